@@ -0,0 +1,96 @@
+package com.example.socks5.bench;
+
+import com.example.socks5.auth.Authenticator;
+import com.example.socks5.config.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户表规模不同时 {@link Authenticator#authenticate} 的耗时. 每次调用轮流使用一组随机挑选的用户,
+ * 避免总是命中同一个缓存行.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-Dlogback.configurationFile=logback-bench.xml"})
+public class AuthenticatorBenchmark {
+    private static final int SAMPLES = 1024;
+    private static final long SEED = 42;
+
+    @Param({"100", "10000", "1000000"})
+    public int users;
+
+    private Authenticator authenticator;
+    private final String[] names = new String[SAMPLES];
+    private final String[] passwords = new String[SAMPLES];
+    private final String[] wrongPasswords = new String[SAMPLES];
+    private final String[] unknownNames = new String[SAMPLES];
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        List<Config.UserConfig> table = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            Config.UserConfig user = new Config.UserConfig();
+            user.setName(name(i));
+            user.setPwd(password(i));
+            table.add(user);
+        }
+        Config config = new Config();
+        config.setUsers(table);
+        authenticator = new Authenticator(config);
+
+        SplittableRandom random = new SplittableRandom(SEED);
+        for (int i = 0; i < SAMPLES; i++) {
+            int user = random.nextInt(users);
+            names[i] = name(user);
+            passwords[i] = password(user);
+            wrongPasswords[i] = password(user) + "x";
+            unknownNames[i] = "nobody-" + random.nextInt();
+        }
+    }
+
+    private static String name(int i) { return "user-" + i; }
+
+    private static String password(int i) { return "pwd-" + Integer.toHexString(i * 0x9E3779B1); }
+
+    private int nextSample() {
+        next = (next + 1) & (SAMPLES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public boolean success() {
+        int i = nextSample();
+        return authenticator.authenticate(names[i], passwords[i]);
+    }
+
+    @Benchmark
+    public boolean wrongPassword() {
+        int i = nextSample();
+        return authenticator.authenticate(names[i], wrongPasswords[i]);
+    }
+
+    @Benchmark
+    public boolean unknownUser() {
+        int i = nextSample();
+        return authenticator.authenticate(unknownNames[i], passwords[i]);
+    }
+}
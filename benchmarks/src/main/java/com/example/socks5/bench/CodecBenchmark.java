@@ -0,0 +1,125 @@
+package com.example.socks5.bench;
+
+import com.example.socks5.server.codec.Socks5Codec;
+import com.example.socks5.server.codec.Socks5Exception;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解析一次完整握手 (greeting, auth, request) 的耗时, 按请求中的地址类型分别测量.
+ * 每次调用都新建一个 {@link Socks5Codec}, 与每个连接的实际用法一致.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-Dlogback.configurationFile=logback-bench.xml"})
+public class CodecBenchmark {
+
+    @Param({"ipv4", "ipv6", "domain"})
+    public String addressType;
+
+    private ByteBuffer handshake;
+    private ByteBuffer reply;
+    private InetAddress bindAddress;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] user = "benchmark-user".getBytes(StandardCharsets.UTF_8);
+        byte[] pwd = "benchmark-password".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[]{Socks5Codec.VERSION, 2, 0x00, Socks5Codec.METHOD_USER_PASS});
+        bytes.write(Socks5Codec.AUTH_VERSION);
+        bytes.write(user.length);
+        bytes.write(user);
+        bytes.write(pwd.length);
+        bytes.write(pwd);
+        bytes.write(new byte[]{Socks5Codec.VERSION, Socks5Codec.CMD_CONNECT, 0x00});
+        switch (addressType) {
+            case "ipv4" -> {
+                bytes.write(Socks5Codec.ATYP_IPV4);
+                bytes.write(InetAddress.getByName("93.184.216.34").getAddress());
+            }
+            case "ipv6" -> {
+                bytes.write(Socks5Codec.ATYP_IPV6);
+                bytes.write(InetAddress.getByName("2606:2800:220:1:248:1893:25c8:1946").getAddress());
+            }
+            case "domain" -> {
+                byte[] host = "www.example.com".getBytes(StandardCharsets.US_ASCII);
+                bytes.write(Socks5Codec.ATYP_DOMAIN);
+                bytes.write(host.length);
+                bytes.write(host);
+            }
+            default -> throw new IllegalArgumentException("Unknown address type: " + addressType);
+        }
+        bytes.write(new byte[]{0x01, (byte) 0xBB});
+
+        handshake = ByteBuffer.wrap(bytes.toByteArray());
+        reply = ByteBuffer.allocate(Socks5Codec.MAX_REPLY_SIZE);
+        bindAddress = addressType.equals("ipv6")
+                ? InetAddress.getByName("2001:db8::1") : InetAddress.getByName("192.0.2.1");
+    }
+
+    /**
+     * 三帧一次到齐.
+     */
+    @Benchmark
+    public void decodeHandshake(Blackhole bh) throws Socks5Exception {
+        handshake.clear();
+        Socks5Codec codec = new Socks5Codec();
+        while (codec.decode(handshake) != Socks5Codec.Frame.NONE) {
+            // 逐帧解出
+        }
+        consume(codec, bh);
+    }
+
+    /**
+     * 数据每次只多到一个字节, 测量帧不完整时反复尝试的开销.
+     */
+    @Benchmark
+    public void decodeHandshakeByteByByte(Blackhole bh) throws Socks5Exception {
+        handshake.clear();
+        int end = handshake.limit();
+        Socks5Codec codec = new Socks5Codec();
+        for (int limit = 1; limit <= end; limit++) {
+            handshake.limit(limit);
+            while (codec.decode(handshake) != Socks5Codec.Frame.NONE) {
+                // 逐帧解出
+            }
+        }
+        consume(codec, bh);
+    }
+
+    @Benchmark
+    public ByteBuffer writeReply() {
+        reply.clear();
+        Socks5Codec.writeReply(reply, Socks5Codec.REP_SUCCEEDED, bindAddress, 1080);
+        return reply;
+    }
+
+    private static void consume(Socks5Codec codec, Blackhole bh) {
+        bh.consume(codec.offersUserPass());
+        bh.consume(codec.username());
+        bh.consume(codec.password());
+        bh.consume(codec.host());
+        bh.consume(codec.port());
+    }
+}
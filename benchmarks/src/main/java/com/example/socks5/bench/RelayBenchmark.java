@@ -0,0 +1,259 @@
+package com.example.socks5.bench;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.server.Socks5Server;
+import com.example.socks5.server.codec.Socks5Codec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回环上经过完整代理的单向转发吞吐. 每组参数启动一个真实的 {@link Socks5Server},
+ * 客户端握手后持续写入, 目标端由单独的线程读走.
+ * <p>
+ * 每次调用发送 1 MiB, 因此结果中的 ops/s 就是 MiB/s.
+ * transport 为 unix 时客户端经 Unix 域套接字连接代理, 与 tcp 的差值即为同机客户端省下的回环 TCP 开销.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-Dlogback.configurationFile=logback-bench.xml"})
+public class RelayBenchmark {
+    private static final int BATCH = 1 << 20;
+    private static final long SEED = 42;
+    private static final String USER = "bench";
+    private static final String PASSWORD = "bench";
+
+    @Param({"thread", "nio"})
+    public String engine;
+
+    @Param({"4096", "16384", "65536"})
+    public int bufferSize;
+
+    /** 客户端每次写入的字节数: 交互式的小包, 一个 MSS, 批量传输 */
+    @Param({"64", "1460", "65536"})
+    public int writeSize;
+
+    /** 客户端到代理的连接方式, 代理到目标始终是回环 TCP */
+    @Param({"tcp", "unix"})
+    public String transport;
+
+    private InetAddress loopback;
+    private Path socketDir;
+    private Socks5Server server;
+    private Thread serverThread;
+    private ServerSocketChannel target;
+    private SocketChannel client;
+    private SocketChannel peer;
+    private Sink sink;
+    private ByteBuffer payload;
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        loopback = InetAddress.getByName("127.0.0.1");
+        target = ServerSocketChannel.open().bind(new InetSocketAddress(loopback, 0));
+
+        int proxyPort = freePort();
+        Path socketPath = null;
+        if (transport.equals("unix")) {
+            socketDir = Files.createTempDirectory("socks5-bench");
+            socketPath = socketDir.resolve("proxy.sock");
+        }
+        server = new Socks5Server(config(proxyPort, socketPath));
+        serverThread = new Thread(server::start, "bench-proxy");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        client = connect(socketPath != null
+                ? UnixDomainSocketAddress.of(socketPath) : new InetSocketAddress(loopback, proxyPort));
+        handshake(((InetSocketAddress) target.getLocalAddress()).getPort());
+        peer = target.accept();
+        sink = new Sink(peer);
+        Thread sinkThread = new Thread(sink, "bench-sink");
+        sinkThread.setDaemon(true);
+        sinkThread.start();
+
+        // 固定种子的随机内容
+        byte[] bytes = new byte[writeSize];
+        new SplittableRandom(SEED).nextBytes(bytes);
+        payload = ByteBuffer.allocateDirect(writeSize);
+        payload.put(bytes).flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.close();
+        peer.close();
+        target.close();
+        server.shutdown();
+        serverThread.join(TimeUnit.SECONDS.toMillis(5));
+        if (socketDir != null) {
+            Files.deleteIfExists(socketDir.resolve("proxy.sock"));
+            Files.delete(socketDir);
+        }
+    }
+
+    @Benchmark
+    public void transfer() throws Exception {
+        for (int remaining = BATCH; remaining > 0; remaining -= writeSize) {
+            payload.clear();
+            if (remaining < writeSize) {
+                payload.limit(remaining);
+            }
+            while (payload.hasRemaining()) {
+                client.write(payload);
+            }
+        }
+        sent += BATCH;
+        sink.await(sent);
+    }
+
+    private Config config(int port, Path socketPath) {
+        Config.ServerConfig serverConfig = new Config.ServerConfig();
+        serverConfig.setBind(loopback.getHostAddress());
+        serverConfig.setPort(port);
+        if (socketPath != null) {
+            Config.UnixListenerConfig unix = new Config.UnixListenerConfig();
+            unix.setPath(socketPath.toString());
+            serverConfig.setUnixListeners(List.of(unix));
+        }
+        serverConfig.setEngine(engine);
+        serverConfig.setBufferSize(bufferSize);
+
+        Config.UserConfig user = new Config.UserConfig();
+        user.setName(USER);
+        user.setPwd(PASSWORD);
+
+        Config config = new Config();
+        config.setServer(serverConfig);
+        config.setUsers(List.of(user));
+        config.getUdp().setEnabled(false);
+        config.getMetrics().setJmx(false);
+        return config;
+    }
+
+    private int freePort() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            probe.bind(new InetSocketAddress(loopback, 0));
+            return ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+    }
+
+    // 代理在另一个线程上启动, 端口或套接字文件就绪前重试 (连接被拒绝和文件不存在都是 SocketException)
+    private static SocketChannel connect(SocketAddress address) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                return SocketChannel.open(address);
+            } catch (SocketException e) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // 三帧一次发出, 再一起读回方法选择, 认证结果和 IPv4 的成功应答
+    private void handshake(int targetPort) throws IOException {
+        byte[] user = USER.getBytes(StandardCharsets.US_ASCII);
+        byte[] pwd = PASSWORD.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer request = ByteBuffer.allocate(64);
+        request.put(Socks5Codec.VERSION).put((byte) 1).put(Socks5Codec.METHOD_USER_PASS);
+        request.put(Socks5Codec.AUTH_VERSION).put((byte) user.length).put(user).put((byte) pwd.length).put(pwd);
+        request.put(Socks5Codec.VERSION).put(Socks5Codec.CMD_CONNECT).put((byte) 0x00)
+                .put(Socks5Codec.ATYP_IPV4).put(loopback.getAddress()).putShort((short) targetPort);
+        request.flip();
+        while (request.hasRemaining()) {
+            client.write(request);
+        }
+
+        ByteBuffer response = ByteBuffer.allocate(2 + 2 + 10);
+        while (response.hasRemaining()) {
+            if (client.read(response) < 0) {
+                throw new EOFException("Proxy closed the connection during handshake");
+            }
+        }
+        if (response.get(1) != Socks5Codec.METHOD_USER_PASS || response.get(3) != 0x00
+                || response.get(5) != Socks5Codec.REP_SUCCEEDED) {
+            throw new IOException("SOCKS5 handshake failed");
+        }
+    }
+
+    /**
+     * 读走目标端收到的全部数据并计数.
+     */
+    private static final class Sink implements Runnable {
+        private final SocketChannel channel;
+        private final Object lock = new Object();
+        private long received;
+        private boolean closed;
+
+        Sink(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            try {
+                int n;
+                while ((n = channel.read(buffer)) >= 0) {
+                    buffer.clear();
+                    synchronized (lock) {
+                        received += n;
+                        lock.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                // tearDown 关闭通道
+            } finally {
+                synchronized (lock) {
+                    closed = true;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        void await(long bytes) throws IOException, InterruptedException {
+            synchronized (lock) {
+                while (received < bytes) {
+                    if (closed) {
+                        throw new EOFException("Tunnel closed after " + received + " bytes");
+                    }
+                    lock.wait();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * JMH 基准测试: 握手解析 ({@link com.example.socks5.bench.CodecBenchmark}),
+ * 用户认证 ({@link com.example.socks5.bench.AuthenticatorBenchmark})
+ * 和回环上的转发吞吐 ({@link com.example.socks5.bench.RelayBenchmark}).
+ * <p>
+ * 每个基准都在类上固定了 fork 数, 预热和测量轮次以及 JVM 参数, 输入数据由固定种子生成,
+ * 同一台机器上不同提交的结果可以直接比较:
+ * <pre>
+ * git checkout A &amp;&amp; mvn -q install &amp;&amp; mvn -q -f benchmarks/pom.xml package
+ * java -jar benchmarks/target/benchmarks.jar -rf json -rff a.json
+ * git checkout B &amp;&amp; ...
+ * java -jar benchmarks/target/benchmarks.jar -rf json -rff b.json
+ * </pre>
+ * 只跑一部分时在命令行上给出正则, 例如 {@code java -jar benchmarks.jar Codec}.
+ */
+package com.example.socks5.bench;
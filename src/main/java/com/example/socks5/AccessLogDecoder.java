@@ -0,0 +1,85 @@
+package com.example.socks5;
+
+import com.example.socks5.accesslog.AccessLogCodec;
+import com.example.socks5.accesslog.AccessRecord;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 把二进制访问日志转换为文本格式输出到标准输出, 每条记录一行, 格式与 text 格式的访问日志相同.
+ * <p>
+ * 用法: java -cp socks5-proxy-0.0.1-jar-with-dependencies.jar com.example.socks5.AccessLogDecoder 文件...
+ */
+public class AccessLogDecoder {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || args[0].equals("--help")) {
+            System.err.println("Usage: java -cp socks5-proxy-0.0.1-jar-with-dependencies.jar "
+                    + "com.example.socks5.AccessLogDecoder FILE...");
+            System.exit(args.length == 0 ? 2 : 0);
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        int failures = 0;
+        for (String file : args) {
+            try {
+                decode(file, out);
+            } catch (IOException e) {
+                out.flush();
+                System.err.println(file + ": " + e.getMessage());
+                failures++;
+            }
+        }
+        out.flush();
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void decode(String file, Writer out) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            fill(channel, buf, AccessLogCodec.HEADER_SIZE);
+            buf.flip();
+            AccessLogCodec.readHeader(buf);
+
+            StringBuilder line = new StringBuilder(256);
+            boolean eof = false;
+            while (true) {
+                AccessRecord record;
+                while ((record = AccessLogCodec.decode(buf)) != null) {
+                    line.setLength(0);
+                    AccessLogCodec.format(record, line);
+                    out.append(line).append('\n');
+                }
+                if (eof) {
+                    break;
+                }
+                buf.compact();
+                eof = channel.read(buf) < 0;
+                buf.flip();
+            }
+            // 写线程正在写入的文件末尾可能有半条记录
+            if (buf.hasRemaining()) {
+                throw new IOException("Ignored " + buf.remaining() + " trailing bytes of an incomplete record");
+            }
+        }
+    }
+
+    private static void fill(FileChannel channel, ByteBuffer buf, int length) throws IOException {
+        while (buf.position() < length) {
+            if (channel.read(buf) < 0) {
+                break;
+            }
+        }
+    }
+}
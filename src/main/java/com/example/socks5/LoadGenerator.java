@@ -0,0 +1,192 @@
+package com.example.socks5;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.loadgen.LoadClient;
+import com.example.socks5.loadgen.LoadOptions;
+import com.example.socks5.loadgen.LoadStats;
+import com.example.socks5.loadgen.LoadTarget;
+import com.example.socks5.metrics.LatencyHistogram;
+import com.example.socks5.server.Socks5Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端到端压测入口. 在回环上启动 echo/sink/source 目标, 用大量并发客户端经代理
+ * 完成认证和 CONNECT 并收发数据, 每秒输出一次进度, 结束时给出延迟分位数.
+ * <p>
+ * 未指定 --proxy 时按 config.json 在同一进程内启动代理, 和 {@link Main} 的运行方式一致.
+ * --proxy=unix:路径 经 Unix 域套接字连接代理, 与回环 TCP 的结果对比即为同机客户端省下的开销.
+ */
+public class LoadGenerator {
+    private static final double MIB = 1024 * 1024;
+
+    private final LoadOptions options;
+    private final int targetPort;
+    private final LoadStats stats = new LoadStats();
+    private final Set<Closeable> sockets = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    private LoadGenerator(LoadOptions options, int targetPort) {
+        this.options = options;
+        this.targetPort = targetPort;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (List.of(args).contains("--help")) {
+            System.out.print(LoadOptions.USAGE);
+            return;
+        }
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(LoadOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Config config = null;
+        if (options.getProxy() == null || options.getUsername() == null) {
+            config = Config.load();
+        }
+        if (options.getUsername() == null) {
+            if (config.getUsers() == null || config.getUsers().isEmpty()) {
+                throw new IllegalStateException("No users in config.json, pass --user=name:password");
+            }
+            Config.UserConfig user = config.getUsers().get(0);
+            options.setCredentials(user.getName(), user.getPwd());
+        }
+
+        Socks5Server server = null;
+        if (options.getProxy() == null) {
+            server = startProxy(config, options);
+        }
+        try (LoadTarget target = new LoadTarget(InetAddress.getLoopbackAddress(), options.getPayloadSize())) {
+            new LoadGenerator(options, target.getPort(options.getMode())).run();
+        } finally {
+            if (server != null) {
+                server.shutdown();
+            }
+        }
+    }
+
+    private static Socks5Server startProxy(Config config, LoadOptions options) throws IOException, InterruptedException {
+        Socks5Server server = new Socks5Server(config);
+        Thread.ofPlatform().name("socks5-proxy").daemon().start(server::start);
+
+        // 有多个监听地址时连接第一个
+        Config.ListenerConfig listener = config.getServer().effectiveListeners().get(0);
+        String bind = listener.getBind();
+        InetAddress address = bind == null || InetAddress.getByName(bind).isAnyLocalAddress()
+                ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+        InetSocketAddress proxy = new InetSocketAddress(address, listener.getPort());
+        // 等代理开始监听
+        for (int attempt = 0; ; attempt++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(proxy, 1000);
+                break;
+            } catch (IOException e) {
+                if (attempt >= 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+        options.setProxy(proxy);
+        return server;
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf(Locale.ROOT, "Load test: %d %s clients via %s, payload %d B, lifetime %s, %d s%n",
+                options.getConnections(), options.getMode().name().toLowerCase(Locale.ROOT), options.getProxy(),
+                options.getPayloadSize(),
+                options.getLifetimeMillis() > 0 ? options.getLifetimeMillis() + " ms" : "unlimited",
+                options.getDurationSeconds());
+
+        long rampMillis = TimeUnit.SECONDS.toMillis(options.getRampSeconds());
+        ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < options.getConnections(); i++) {
+            long delay = rampMillis * i / options.getConnections();
+            clients.execute(new LoadClient(options, targetPort, stats, sockets, () -> running, delay));
+        }
+
+        long startedAt = System.nanoTime();
+        long lastAt = startedAt;
+        long lastTunnels = 0;
+        long lastFailures = 0;
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (int second = 1; second <= options.getDurationSeconds(); second++) {
+            long wakeAt = startedAt + TimeUnit.SECONDS.toNanos(second);
+            TimeUnit.NANOSECONDS.sleep(wakeAt - System.nanoTime());
+
+            long now = System.nanoTime();
+            double elapsed = (now - lastAt) / 1e9;
+            long tunnels = stats.getTunnels();
+            long failures = stats.getFailures();
+            long sent = stats.getBytesSent();
+            long received = stats.getBytesReceived();
+            System.out.printf(Locale.ROOT,
+                    "[%4ds] active %6d  connects/s %8.1f  failures/s %7.1f  up %8.2f MiB/s  down %8.2f MiB/s%n",
+                    second, stats.getActiveTunnels(), (tunnels - lastTunnels) / elapsed,
+                    (failures - lastFailures) / elapsed, (sent - lastSent) / MIB / elapsed,
+                    (received - lastReceived) / MIB / elapsed);
+            lastAt = now;
+            lastTunnels = tunnels;
+            lastFailures = failures;
+            lastSent = sent;
+            lastReceived = received;
+        }
+
+        running = false;
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        // 阻塞在读写上的客户端靠关闭套接字唤醒
+        for (Closeable socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // 忽略
+            }
+        }
+        clients.shutdownNow();
+        clients.awaitTermination(10, TimeUnit.SECONDS);
+        report(seconds);
+    }
+
+    private void report(double seconds) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Tunnels:    %d (%.1f connects/s)%n", stats.getTunnels(),
+                stats.getTunnels() / seconds);
+        System.out.printf(Locale.ROOT, "Failures:   %d (connect %d, handshake %d, relay %d; %d timeouts)%n",
+                stats.getFailures(), stats.getFailures(LoadStats.Stage.CONNECT),
+                stats.getFailures(LoadStats.Stage.HANDSHAKE), stats.getFailures(LoadStats.Stage.RELAY),
+                stats.getTimeouts());
+        System.out.printf(Locale.ROOT, "Throughput: up %.2f MiB/s, down %.2f MiB/s%n",
+                stats.getBytesSent() / MIB / seconds, stats.getBytesReceived() / MIB / seconds);
+        printLatency("Handshake", stats.getHandshakeHistogram());
+        printLatency("First byte", stats.getFirstByteHistogram());
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot s = histogram.snapshot();
+        if (s.getCount() == 0) {
+            System.out.printf("%-11s n/a%n", name + ":");
+            return;
+        }
+        System.out.printf(Locale.ROOT, "%-11s p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms (%d samples)%n",
+                name + ":", s.quantileSeconds(0.5) * 1000, s.quantileSeconds(0.9) * 1000,
+                s.quantileSeconds(0.99) * 1000, s.quantileSeconds(0.999) * 1000, s.getCount());
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.socks5;
+
+import com.example.socks5.auth.PasswordHash;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 生成 config.json 中 users[].passwordHash 的值. 有终端时提示输入口令 (不回显), 否则从标准输入读一行.
+ * <p>
+ * 用法: java -cp socks5-proxy-0.0.1-jar-with-dependencies.jar com.example.socks5.PasswordHasher [--iterations N]
+ */
+public class PasswordHasher {
+
+    public static void main(String[] args) throws IOException {
+        int iterations = PasswordHash.DEFAULT_ITERATIONS;
+        if (args.length == 2 && args[0].equals("--iterations")) {
+            iterations = Integer.parseInt(args[1]);
+        } else if (args.length != 0) {
+            System.err.println("Usage: java -cp socks5-proxy-0.0.1-jar-with-dependencies.jar "
+                    + "com.example.socks5.PasswordHasher [--iterations N]");
+            System.exit(args[0].equals("--help") ? 0 : 2);
+            return;
+        }
+        String password;
+        Console console = System.console();
+        if (console != null) {
+            char[] typed = console.readPassword("Password: ");
+            char[] again = console.readPassword("Repeat: ");
+            if (typed == null || again == null || !String.valueOf(typed).equals(String.valueOf(again))) {
+                System.err.println("Passwords do not match");
+                System.exit(1);
+                return;
+            }
+            password = String.valueOf(typed);
+        } else {
+            password = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+        }
+        if (password == null || password.isEmpty()) {
+            System.err.println("Empty password");
+            System.exit(1);
+            return;
+        }
+        System.out.println(PasswordHash.create(password, iterations));
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.socks5;
+
+import com.example.socks5.accounting.CounterFile;
+import com.example.socks5.accounting.TrafficAccounting;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 查看或清零流量计数器文件, 代理运行时也可以使用. 每个键一行: 用户, 目标主机 (按用户合计的行为 "-"),
+ * 上行字节, 下行字节, 连接数, 最后活动时间.
+ * <p>
+ * 用法: java -cp socks5-proxy-0.0.1-jar-with-dependencies.jar com.example.socks5.TrafficCounters 文件 [reset 用户...]
+ * <br>
+ * reset 把用户及其各目标的计数清零, 用于按周期重新计算配额.
+ */
+public class TrafficCounters {
+
+    public static void main(String[] args) throws IOException {
+        boolean reset = args.length >= 3 && args[1].equals("reset");
+        if (args.length == 0 || args[0].equals("--help") || (args.length != 1 && !reset)) {
+            System.err.println("Usage: java -cp socks5-proxy-0.0.1-jar-with-dependencies.jar "
+                    + "com.example.socks5.TrafficCounters FILE [reset USER...]");
+            System.exit(args.length > 0 && args[0].equals("--help") ? 0 : 2);
+            return;
+        }
+        try (CounterFile file = CounterFile.openExisting(Paths.get(args[0]))) {
+            if (reset) {
+                // 过长的用户名在文件中是截断加摘要的形式, 直接给出列表中显示的键也可以
+                Set<String> users = new HashSet<>(Arrays.asList(args).subList(2, args.length));
+                users.addAll(users.stream().map(TrafficAccounting::userKey).collect(Collectors.toSet()));
+                reset(file, users);
+            } else {
+                list(file, System.out);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void list(CounterFile file, PrintStream out) {
+        out.printf("%-24s %-40s %16s %16s %12s  %s%n", "USER", "DESTINATION", "BYTES_UP", "BYTES_DOWN",
+                "CONNECTIONS", "LAST_ACTIVE");
+        for (int i = 0, used = file.getUsed(); i < used; i++) {
+            String key = file.key(i);
+            if (key == null) {
+                continue;
+            }
+            int sep = key.indexOf(TrafficAccounting.SEPARATOR);
+            long lastActive = file.get(i, CounterFile.LAST_ACTIVE);
+            out.printf("%-24s %-40s %16d %16d %12d  %s%n",
+                    sep < 0 ? key : key.substring(0, sep),
+                    sep < 0 ? "-" : key.substring(sep + 1),
+                    file.get(i, CounterFile.BYTES_UP),
+                    file.get(i, CounterFile.BYTES_DOWN),
+                    file.get(i, CounterFile.CONNECTIONS),
+                    lastActive > 0 ? Instant.ofEpochMilli(lastActive) : "-");
+        }
+    }
+
+    private static void reset(CounterFile file, Set<String> users) {
+        for (int i = 0, used = file.getUsed(); i < used; i++) {
+            String key = file.key(i);
+            if (key == null) {
+                continue;
+            }
+            int sep = key.indexOf(TrafficAccounting.SEPARATOR);
+            String user = sep < 0 ? key : key.substring(0, sep);
+            if (users.contains(user)) {
+                long bytes = file.reset(i);
+                System.out.println("Reset " + key.replace(TrafficAccounting.SEPARATOR, ' ') + " (" + bytes + " bytes)");
+            }
+        }
+    }
+}
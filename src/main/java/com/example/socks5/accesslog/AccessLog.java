@@ -0,0 +1,237 @@
+package com.example.socks5.accesslog;
+
+import com.example.socks5.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步访问日志. 连接线程在关闭时把 {@link AccessRecord} 复制进无锁的环形缓冲区
+ * (一次 CAS 占位, 一次 volatile 写发布), 由一个后台线程成批编码并写入文件,
+ * 连接路径上不做格式化, 也不经过 logback.
+ * <p>
+ * 缓冲区满时按配置丢弃新记录 (计入 {@link #getDropped()}) 或让发布方等待.
+ */
+public final class AccessLog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // block 策略下发布方每次等待的时间
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final DateTimeFormatter ROTATED_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final boolean enabled;
+    private final boolean binary;
+    private final boolean blocking;
+    private final Path path;
+    private final long maxFileSize;
+    private final long idleParkNanos;
+
+    private final AccessRecord[] slots;
+    // 每个槽位中已发布的序号, 写线程看到与期望序号相同时才读取槽位
+    private final AtomicLongArray published;
+    private final int mask;
+    // 下一个可占用的序号
+    private final AtomicLong claimed = new AtomicLong();
+    // 写线程下一个要读取的序号, 小于它的槽位都可以复用
+    private volatile long consumed;
+
+    private final LongAdder dropped = new LongAdder();
+    private volatile long written;
+    private volatile boolean closed;
+    private final Thread writer;
+
+    private FileChannel channel;
+    private long fileSize;
+
+    public AccessLog(Config.AccessLogConfig config) {
+        this.enabled = config.isEnabled();
+        this.binary = config.isBinary();
+        this.blocking = config.isBlocking();
+        this.path = Paths.get(config.getPath());
+        this.maxFileSize = config.getMaxFileSize();
+        this.idleParkNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getFlushIntervalMillis()));
+
+        int capacity = enabled ? Integer.highestOneBit(Math.max(2, config.getBufferSize()) * 2 - 1) : 1;
+        this.slots = new AccessRecord[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new AccessRecord();
+            published.set(i, -1);
+        }
+        this.mask = capacity - 1;
+
+        if (enabled) {
+            writer = Thread.ofPlatform().name("access-log-writer").daemon().unstarted(this::drain);
+            writer.start();
+            logger.info("Access log enabled: {} ({}, {} records buffered, {} when full)", path,
+                    binary ? "binary" : "text", capacity, blocking ? "block" : "drop");
+        } else {
+            writer = null;
+        }
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    /**
+     * 发布一条记录. 记录的内容被复制, 调用返回后 record 可以丢弃.
+     */
+    public void publish(AccessRecord record) {
+        if (!enabled || closed) {
+            return;
+        }
+        long seq;
+        while (true) {
+            seq = claimed.get();
+            if (seq - consumed >= slots.length) {
+                if (!blocking) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                if (closed) {
+                    return;
+                }
+                continue;
+            }
+            if (claimed.compareAndSet(seq, seq + 1)) {
+                break;
+            }
+        }
+        int index = (int) seq & mask;
+        slots[index].copyFrom(record);
+        published.set(index, seq);
+    }
+
+    /** 因缓冲区已满而丢弃的记录数 */
+    public long getDropped() { return dropped.sum(); }
+
+    /** 已写入文件的记录数 */
+    public long getWritten() { return written; }
+
+    // ---------------------------------------------------------------- 写线程
+
+    private void drain() {
+        ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        StringBuilder line = new StringBuilder(256);
+        long next = 0;
+        while (true) {
+            // 先读 closed 再取记录, 关闭前发布的记录都会写出
+            boolean stopping = closed;
+            int count = 0;
+            int index = (int) next & mask;
+            while (published.get(index) == next) {
+                if (buf.remaining() < AccessLogCodec.MAX_RECORD_SIZE) {
+                    write(buf);
+                }
+                AccessRecord record = slots[index];
+                if (binary) {
+                    AccessLogCodec.encode(record, buf);
+                } else {
+                    line.setLength(0);
+                    AccessLogCodec.format(record, line);
+                    buf.put(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+                }
+                record.clearReferences();
+                consumed = ++next;
+                count++;
+                index = (int) next & mask;
+            }
+            if (buf.position() > 0) {
+                write(buf);
+            }
+            written += count;
+            if (count == 0) {
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(this, idleParkNanos);
+            }
+        }
+        closeFile();
+    }
+
+    private void write(ByteBuffer buf) {
+        buf.flip();
+        try {
+            if (channel == null || maxFileSize > 0 && fileSize >= maxFileSize) {
+                openFile();
+            }
+            while (buf.hasRemaining()) {
+                fileSize += channel.write(buf);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to write access log {}: {}", path, e.getMessage());
+            closeFile();
+        } finally {
+            buf.clear();
+        }
+    }
+
+    private void openFile() throws IOException {
+        if (channel != null) {
+            closeFile();
+            Path rotated = path.resolveSibling(path.getFileName() + "." + LocalDateTime.now().format(ROTATED_SUFFIX));
+            Files.move(path, rotated);
+            logger.info("Rotated access log to {}", rotated);
+        }
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+        if (binary && fileSize == 0) {
+            ByteBuffer header = ByteBuffer.allocate(AccessLogCodec.HEADER_SIZE);
+            AccessLogCodec.writeHeader(header);
+            header.flip();
+            while (header.hasRemaining()) {
+                fileSize += channel.write(header);
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing access log: {}", e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * 写出缓冲区中剩余的记录后停止写线程.
+     */
+    @Override
+    public void close() {
+        if (!enabled || closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.socks5.accesslog;
+
+import com.example.socks5.server.codec.Socks5Codec;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 访问日志的两种格式.
+ * <p>
+ * 文本格式每条记录一行, 字段以空格分隔, 缺失的字段为 "-":
+ * <pre>
+ * 时间(UTC) 客户端 用户 命令 目标 应答码 结束原因 握手ms DNSms 连接ms 时长ms 上行字节 下行字节
+ * </pre>
+ * 用户名和目标主机由客户端提供, 其中的空白和控制字符 (0x00-0x20, 0x7F, U+0080-U+009F, U+2028, U+2029)
+ * 以及 '%' 按 UTF-8 字节写成 %HH, 恰好为 "-" 的值写成 %2D, 一条记录总是一行且字段数固定.
+ * 二进制格式以 {@link #MAGIC} 和版本号开头, 之后每条记录前有 2 字节的长度,
+ * 字段依次为: 开始时间 (毫秒), 结束原因, 命令, 应答码 (0xFF 为无), 客户端地址 (长度 + 字节),
+ * 客户端端口, 用户名 (长度 + UTF-8), 目标主机 (长度 + 字节), 目标端口,
+ * 握手/DNS/连接耗时 (微秒, int, -1 为无), 时长 (微秒), 上行和下行字节数. 整数均为大端序.
+ */
+public final class AccessLogCodec {
+    public static final byte[] MAGIC = {'S', '5', 'A', 'L'};
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = MAGIC.length + 1;
+    // 一条记录编码后的上限: 用户名和主机名各 255 字节, 文本格式中转义后最多展开为三倍
+    public static final int MAX_RECORD_SIZE = 2048;
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT).withZone(ZoneOffset.UTC);
+    private static final AccessRecord.CloseReason[] REASONS = AccessRecord.CloseReason.values();
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private AccessLogCodec() {}
+
+    public static void writeHeader(ByteBuffer buf) {
+        buf.put(MAGIC).put(VERSION);
+    }
+
+    /**
+     * 检查文件头, 不是访问日志时抛出异常.
+     */
+    public static void readHeader(ByteBuffer buf) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        if (buf.remaining() < HEADER_SIZE) {
+            throw new IOException("Not a binary access log: file too short");
+        }
+        buf.get(magic);
+        byte version = buf.get();
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a binary access log: bad magic");
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported access log version " + version);
+        }
+    }
+
+    /**
+     * 写入一条二进制记录, 调用方保证 buf 至少还有 {@link #MAX_RECORD_SIZE} 字节.
+     */
+    public static void encode(AccessRecord r, ByteBuffer buf) {
+        int lengthAt = buf.position();
+        buf.putShort((short) 0);
+        buf.putLong(r.startMillis);
+        buf.put((byte) r.reason.ordinal());
+        buf.put(r.command);
+        buf.put((byte) (r.reply == AccessRecord.NO_REPLY ? 0xFF : r.reply));
+        byte[] address = r.clientAddress != null ? r.clientAddress.getAddress() : new byte[0];
+        buf.put((byte) address.length).put(address);
+        buf.putShort((short) r.clientPort);
+        putString(buf, r.username != null ? r.username.getBytes(StandardCharsets.UTF_8) : null);
+        putString(buf, r.targetHost != null ? r.targetHost.getBytes(StandardCharsets.UTF_8) : null);
+        buf.putShort((short) r.targetPort);
+        buf.putInt(micros(r.handshakeNanos));
+        buf.putInt(micros(r.dnsNanos));
+        buf.putInt(micros(r.connectNanos));
+        buf.putLong(TimeUnit.NANOSECONDS.toMicros(r.durationNanos));
+        buf.putLong(r.bytesUp);
+        buf.putLong(r.bytesDown);
+        buf.putShort(lengthAt, (short) (buf.position() - lengthAt - 2));
+    }
+
+    /**
+     * 读出一条二进制记录; buf 中不足一条完整记录时返回 null, 位置不变.
+     */
+    public static AccessRecord decode(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 2) {
+            return null;
+        }
+        int length = buf.getShort(buf.position()) & 0xFFFF;
+        if (buf.remaining() < 2 + length) {
+            return null;
+        }
+        buf.position(buf.position() + 2);
+        ByteBuffer body = buf.slice(buf.position(), length);
+        buf.position(buf.position() + length);
+        try {
+            AccessRecord r = new AccessRecord();
+            r.startMillis = body.getLong();
+            int reason = body.get() & 0xFF;
+            // 新版本增加的结束原因在旧的解码器中显示为 ERROR
+            r.reason = reason < REASONS.length ? REASONS[reason] : AccessRecord.CloseReason.ERROR;
+            r.command = body.get();
+            int reply = body.get() & 0xFF;
+            r.reply = reply == 0xFF ? AccessRecord.NO_REPLY : reply;
+            byte[] address = new byte[body.get() & 0xFF];
+            body.get(address);
+            r.clientAddress = address.length > 0 ? InetAddress.getByAddress(address) : null;
+            r.clientPort = body.getShort() & 0xFFFF;
+            byte[] username = getString(body);
+            r.username = username != null ? new String(username, StandardCharsets.UTF_8) : null;
+            byte[] host = getString(body);
+            r.targetHost = host != null ? new String(host, StandardCharsets.UTF_8) : null;
+            r.targetPort = body.getShort() & 0xFFFF;
+            r.handshakeNanos = nanos(body.getInt());
+            r.dnsNanos = nanos(body.getInt());
+            r.connectNanos = nanos(body.getInt());
+            r.durationNanos = TimeUnit.MICROSECONDS.toNanos(body.getLong());
+            r.bytesUp = body.getLong();
+            r.bytesDown = body.getLong();
+            return r;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated access log record");
+        }
+    }
+
+    /**
+     * 按文本格式输出一条记录, 不含换行.
+     */
+    public static void format(AccessRecord r, StringBuilder sb) {
+        TIME.formatTo(Instant.ofEpochMilli(r.startMillis), sb);
+        sb.append(' ');
+        if (r.clientAddress != null) {
+            appendHost(sb, r.clientAddress).append(':').append(r.clientPort);
+        } else {
+            sb.append('-');
+        }
+        sb.append(' ');
+        if (r.username != null) {
+            appendEscaped(sb, r.username);
+        } else {
+            sb.append('-');
+        }
+        sb.append(' ').append(commandName(r.command));
+        sb.append(' ');
+        if (r.targetHost != null) {
+            boolean v6 = r.targetHost.indexOf(':') >= 0;
+            sb.append(v6 ? "[" : "");
+            appendEscaped(sb, r.targetHost);
+            sb.append(v6 ? "]" : "").append(':').append(r.targetPort);
+        } else {
+            sb.append('-');
+        }
+        sb.append(' ');
+        if (r.reply == AccessRecord.NO_REPLY) {
+            sb.append('-');
+        } else {
+            sb.append(String.format(Locale.ROOT, "0x%02x", r.reply));
+        }
+        sb.append(' ').append(r.reason);
+        appendMillis(sb, r.handshakeNanos);
+        appendMillis(sb, r.dnsNanos);
+        appendMillis(sb, r.connectNanos);
+        appendMillis(sb, r.durationNanos);
+        sb.append(' ').append(r.bytesUp).append(' ').append(r.bytesDown);
+    }
+
+    private static void appendEscaped(StringBuilder sb, String value) {
+        if (value.equals("-")) {
+            sb.append("%2D");
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!needsEscape(c)) {
+                sb.append(c);
+                continue;
+            }
+            for (byte b : String.valueOf(c).getBytes(StandardCharsets.UTF_8)) {
+                sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+        }
+    }
+
+    private static boolean needsEscape(char c) {
+        return c <= 0x20 || c == 0x7F || c == '%' || (c >= 0x80 && c <= 0x9F) || c == '\u2028' || c == '\u2029';
+    }
+
+    private static StringBuilder appendHost(StringBuilder sb, InetAddress address) {
+        String host = address.getHostAddress();
+        return address instanceof Inet6Address ? sb.append('[').append(host).append(']') : sb.append(host);
+    }
+
+    private static void appendMillis(StringBuilder sb, long nanos) {
+        sb.append(' ');
+        if (nanos < 0) {
+            sb.append('-');
+        } else {
+            sb.append(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+        }
+    }
+
+    private static String commandName(byte command) {
+        return switch (command) {
+            case Socks5Codec.CMD_CONNECT -> "CONNECT";
+            case Socks5Codec.CMD_UDP_ASSOCIATE -> "UDP";
+            case 0 -> "-";
+            default -> "0x" + Integer.toHexString(command & 0xFF);
+        };
+    }
+
+    private static void putString(ByteBuffer buf, byte[] bytes) {
+        if (bytes == null) {
+            buf.put((byte) 0);
+            return;
+        }
+        int length = Math.min(bytes.length, 255);
+        // 截断时不拆开 UTF-8 多字节字符
+        while (length < bytes.length && length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        buf.put((byte) length).put(bytes, 0, length);
+    }
+
+    private static byte[] getString(ByteBuffer buf) {
+        int length = buf.get() & 0xFF;
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static int micros(long nanos) {
+        return nanos < 0 ? -1 : (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    private static long nanos(int micros) {
+        return micros < 0 ? -1 : TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+}
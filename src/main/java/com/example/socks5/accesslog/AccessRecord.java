@@ -0,0 +1,134 @@
+package com.example.socks5.accesslog;
+
+import java.net.InetAddress;
+
+/**
+ * 一条连接的访问记录. 连接处理过程中由所属线程 (或事件循环) 逐步填写,
+ * 关闭时交给 {@link AccessLog#publish}, 其字段被复制进环形缓冲区中预先分配的槽位.
+ * <p>
+ * 时长以纳秒保存, -1 表示该阶段没有发生.
+ */
+public final class AccessRecord {
+    /** 没有给客户端回复请求应答 */
+    public static final int NO_REPLY = -1;
+
+    public enum CloseReason {
+        /** 隧道或 UDP 关联正常结束 */
+        COMPLETED,
+        /** 客户端在发出请求之前断开 */
+        CLIENT_GONE,
+        PROTOCOL_ERROR,
+        AUTH_FAILED,
+        TIMEOUT,
+        /** 回复了失败的请求应答, 见 reply */
+        REQUEST_FAILED,
+        ERROR,
+        /** 隧道超时被回收, 新值只能追加在末尾, 二进制格式按序号保存 */
+        IDLE_TIMEOUT,
+        LIFETIME_EXCEEDED,
+        HALF_CLOSE_TIMEOUT,
+        /** 被管理接口或关闭时的排空超时强制关闭 */
+        KILLED,
+        /** 用户超出流量配额, 隧道被切断 */
+        QUOTA_EXCEEDED
+    }
+
+    long startMillis;
+    long startNanos;
+    InetAddress clientAddress;
+    int clientPort;
+    String username;
+    byte command;
+    String targetHost;
+    int targetPort;
+    int reply = NO_REPLY;
+    CloseReason reason;
+    long handshakeNanos = -1;
+    long dnsNanos = -1;
+    long connectNanos = -1;
+    long durationNanos;
+    long bytesUp;
+    long bytesDown;
+
+    /**
+     * 接受连接时调用, 记录开始时间和客户端地址.
+     */
+    public void start(InetAddress address, int port) {
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        clientAddress = address;
+        clientPort = port;
+    }
+
+    public void setUsername(String username) { this.username = username; }
+
+    public void request(byte command, String host, int port) {
+        this.command = command;
+        this.targetHost = host;
+        this.targetPort = port;
+        this.handshakeNanos = System.nanoTime() - startNanos;
+    }
+
+    public void setDnsNanos(long nanos) { this.dnsNanos = nanos; }
+
+    public void setConnectNanos(long nanos) { this.connectNanos = nanos; }
+
+    public void setReply(int reply) { this.reply = reply; }
+
+    /**
+     * 记录请求失败的应答码.
+     */
+    public void requestFailed(int reply) {
+        this.reply = reply;
+        fail(CloseReason.REQUEST_FAILED);
+    }
+
+    /**
+     * 记录连接结束的原因, 只保留第一次设置的值.
+     */
+    public void fail(CloseReason reason) {
+        if (this.reason == null) {
+            this.reason = reason;
+        }
+    }
+
+    public void addBytes(long up, long down) {
+        bytesUp += up;
+        bytesDown += down;
+    }
+
+    /**
+     * 连接关闭时调用. 没有设置过原因时, 发出过成功应答的记为 COMPLETED, 否则为 CLIENT_GONE.
+     */
+    public void finish() {
+        durationNanos = System.nanoTime() - startNanos;
+        if (reason == null) {
+            reason = reply == 0 ? CloseReason.COMPLETED : CloseReason.CLIENT_GONE;
+        }
+    }
+
+    void copyFrom(AccessRecord r) {
+        startMillis = r.startMillis;
+        clientAddress = r.clientAddress;
+        clientPort = r.clientPort;
+        username = r.username;
+        command = r.command;
+        targetHost = r.targetHost;
+        targetPort = r.targetPort;
+        reply = r.reply;
+        reason = r.reason;
+        handshakeNanos = r.handshakeNanos;
+        dnsNanos = r.dnsNanos;
+        connectNanos = r.connectNanos;
+        durationNanos = r.durationNanos;
+        bytesUp = r.bytesUp;
+        bytesDown = r.bytesDown;
+    }
+
+    // 槽位被写出之后清除引用, 不让环形缓冲区拖住已关闭连接的字符串
+    void clearReferences() {
+        clientAddress = null;
+        username = null;
+        targetHost = null;
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.socks5.accounting;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 内存映射的计数器文件. 文件头之后是固定大小的槽, 每个槽是一个键 (用户或用户加目标) 和它的计数:
+ * <pre>
+ * 文件头 64 字节: magic(4) version(4) slotSize(4) slots(4) used(4)
+ * 槽 256 字节:    keyLength(4) 保留(4) bytesUp(8) bytesDown(8) connections(8) lastActiveMillis(8) 保留(8) key(UTF-8)
+ * </pre>
+ * 槽只追加不回收: 先写键, 再发布 keyLength, 最后增加 used, 读者只看 used 以内且 keyLength 不为 0 的槽.
+ * 计数用原子加直接更新映射内存, 同一文件的其它映射 (例如运行中的命令行工具) 立即可见.
+ * 进程崩溃不丢数据, 页缓存由操作系统写回; 机器掉电时最多丢失最近一次 {@link #force} 之后的增量.
+ * <p>
+ * 所有整数为小端序.
+ */
+public final class CounterFile implements AutoCloseable {
+    public static final int BYTES_UP = 8;
+    public static final int BYTES_DOWN = 16;
+    public static final int CONNECTIONS = 24;
+    public static final int LAST_ACTIVE = 32;
+
+    private static final int MAGIC = 0x43413553; // "S5AC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 256;
+    private static final int KEY_OFFSET = 48;
+    static final int KEY_CAPACITY = SLOT_SIZE - KEY_OFFSET;
+    private static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int slots;
+
+    private CounterFile(Path path, FileChannel channel, MappedByteBuffer map, int slots) {
+        this.path = path;
+        this.channel = channel;
+        this.map = map;
+        this.slots = slots;
+    }
+
+    /**
+     * 打开或创建计数器文件. 已有文件的槽数比 slots 小时扩大, 比它大时沿用文件中的值.
+     */
+    public static CounterFile open(Path path, int slots) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            slots = Math.min(Math.max(slots, 1), MAX_SLOTS);
+            long existing = channel.size();
+            if (existing > 0) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                int fileSlots = checkHeader(path, header, existing);
+                slots = Math.max(slots, fileSlots);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+            if (existing == 0) {
+                INT.set(map, 4, VERSION);
+                INT.set(map, 8, SLOT_SIZE);
+                INT.setRelease(map, 0, MAGIC);
+            }
+            INT.setRelease(map, 12, slots);
+            return new CounterFile(path, channel, map, slots);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 以读写方式打开已有的文件, 供命令行工具查看和清零, 不改变文件大小.
+     */
+    public static CounterFile openExisting(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(path + ": not a counter file");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int slots = checkHeader(path, map, size);
+            return new CounterFile(path, channel, map, slots);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int checkHeader(Path path, MappedByteBuffer header, long size) throws IOException {
+        if ((int) INT.getAcquire(header, 0) != MAGIC || (int) INT.get(header, 4) != VERSION
+                || (int) INT.get(header, 8) != SLOT_SIZE) {
+            throw new IOException(path + ": not a counter file or unsupported version");
+        }
+        int slots = (int) INT.get(header, 12);
+        if (slots < 0 || HEADER_SIZE + (long) slots * SLOT_SIZE > size) {
+            throw new IOException(path + ": truncated counter file");
+        }
+        return slots;
+    }
+
+    public int getSlots() { return slots; }
+
+    /** 已分配的槽数 */
+    public int getUsed() { return (int) INT.getAcquire(map, 16); }
+
+    /**
+     * 读出槽 slot 的键, 尚未发布时返回 null.
+     */
+    public String key(int slot) {
+        int base = base(slot);
+        int length = (int) INT.getAcquire(map, base);
+        if (length <= 0 || length > KEY_CAPACITY) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        map.get(base + KEY_OFFSET, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 在末尾分配一个槽并写入键, 文件已满时返回 -1. 调用方负责串行化分配并保证键不重复.
+     */
+    int allocate(byte[] key) {
+        int used = getUsed();
+        if (used >= slots) {
+            return -1;
+        }
+        int base = base(used);
+        map.put(base + KEY_OFFSET, key);
+        INT.setRelease(map, base, key.length);
+        INT.setRelease(map, 16, used + 1);
+        return used;
+    }
+
+    public long get(int slot, int field) {
+        return (long) LONG.getVolatile(map, base(slot) + field);
+    }
+
+    /**
+     * 原子地加上 delta, 返回相加之后的值.
+     */
+    public long add(int slot, int field, long delta) {
+        return (long) LONG.getAndAdd(map, base(slot) + field, delta) + delta;
+    }
+
+    void touch(int slot, long millis) {
+        LONG.setOpaque(map, base(slot) + LAST_ACTIVE, millis);
+    }
+
+    /**
+     * 把槽的流量和连接计数清零, 返回清零前的字节数合计. 可以在代理运行时进行, 清零之后的增量照常累计.
+     */
+    public long reset(int slot) {
+        int base = base(slot);
+        long up = (long) LONG.getAndSet(map, base + BYTES_UP, 0L);
+        long down = (long) LONG.getAndSet(map, base + BYTES_DOWN, 0L);
+        LONG.getAndSet(map, base + CONNECTIONS, 0L);
+        return up + down;
+    }
+
+    /**
+     * 把修改过的页写回磁盘.
+     */
+    public void force() {
+        map.force();
+    }
+
+    private static int base(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    @Override
+    public String toString() { return path.toString(); }
+}
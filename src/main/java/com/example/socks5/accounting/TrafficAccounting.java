@@ -0,0 +1,262 @@
+package com.example.socks5.accounting;
+
+import com.example.socks5.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 按用户 (可选再按目标主机) 的持久流量计数和配额. 计数保存在 {@link CounterFile} 中, 重启后继续累计,
+ * 可以用 {@code com.example.socks5.TrafficCounters} 在运行时查看和清零.
+ * <p>
+ * 每条隧道在建立时通过 {@link #open} 取得一个 {@link Usage}, 转发路径上每次读到数据只做一到两次原子加.
+ * 用户的计数达到 quotaBytes 后拒绝新的请求, 开启 cutOnQuota 时正在转发的隧道也在下一次读到数据时关闭.
+ * 配额针对清零以来的累计字节数, 按周期计费时由外部定期清零.
+ * <p>
+ * 用户名超过 {@link #USER_KEY_CAPACITY} 字节时, 键为截断的用户名加 '~' 和 SHA-256 的前 8 字节 (十六进制),
+ * 长用户名各有各的槽, 目标也总有位置写进键里, 命令行工具仍能看出是哪个用户.
+ */
+public final class TrafficAccounting implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TrafficAccounting.class);
+
+    /** 用户和目标之间的分隔符, 命令行工具据此拆开键 */
+    public static final char SEPARATOR = '\u0000';
+    // 用户部分的上限, 按目标计数时至少留出 79 字节给目标
+    static final int USER_KEY_CAPACITY = 128;
+    private static final int DIGEST_BYTES = 8;
+
+    private final CounterFile file;
+    private final boolean perDestination;
+    private final boolean cutOnQuota;
+    private final Map<String, Long> quotas = new HashMap<>();
+    // 文件中保存的键 (见 stored) 到槽号, 启动时从文件中读出, 之后只在分配新槽时增加
+    private final ConcurrentHashMap<String, Integer> index = new ConcurrentHashMap<>();
+    private final long flushNanos;
+    private final Thread flusher;
+    private volatile boolean closed;
+    private boolean fullWarned;
+
+    private TrafficAccounting(Config config, CounterFile file) {
+        Config.AccountingConfig accounting = config.getAccounting();
+        this.file = file;
+        this.perDestination = accounting.isPerDestination();
+        this.cutOnQuota = accounting.isCutOnQuota();
+        if (config.getUsers() != null) {
+            for (Config.UserConfig user : config.getUsers()) {
+                if (user.getName() != null && user.getQuotaBytes() > 0) {
+                    quotas.put(user.getName(), user.getQuotaBytes());
+                }
+            }
+        }
+        for (int i = 0, used = file.getUsed(); i < used; i++) {
+            String key = file.key(i);
+            if (key != null) {
+                index.putIfAbsent(key, i);
+            }
+        }
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(accounting.getFlushMillis());
+        this.flusher = flushNanos > 0
+                ? Thread.ofPlatform().name("socks5-accounting-flush").daemon().start(this::flushLoop)
+                : null;
+        logger.info("Traffic accounting in {} ({} of {} slots used, {} quotas)", file, file.getUsed(),
+                file.getSlots(), quotas.size());
+    }
+
+    /**
+     * 没有开启时返回 null.
+     */
+    public static TrafficAccounting create(Config config) throws IOException {
+        Config.AccountingConfig accounting = config.getAccounting();
+        if (!accounting.isEnabled()) {
+            return null;
+        }
+        return new TrafficAccounting(config, CounterFile.open(Paths.get(accounting.getFile()), accounting.getSlots()));
+    }
+
+    /**
+     * 用户的计数已达到配额.
+     */
+    public boolean isOverQuota(String username) {
+        Long quota = username != null ? quotas.get(username) : null;
+        if (quota == null) {
+            return false;
+        }
+        Integer slot = index.get(userKey(username));
+        return slot != null && total(slot) >= quota;
+    }
+
+    /**
+     * 为一条隧道取得计数句柄并计入一次连接.
+     */
+    public Usage open(String username, String host) {
+        if (username == null) {
+            return Usage.NONE;
+        }
+        String userKey = userKey(username);
+        int user = slot(userKey);
+        int destination = perDestination && host != null ? slot(userKey + SEPARATOR + host) : -1;
+        long now = System.currentTimeMillis();
+        for (int slot : new int[] {user, destination}) {
+            if (slot >= 0) {
+                file.add(slot, CounterFile.CONNECTIONS, 1);
+                file.touch(slot, now);
+            }
+        }
+        Long quota = quotas.get(username);
+        return new Usage(file, user, destination, cutOnQuota && quota != null ? quota : Long.MAX_VALUE);
+    }
+
+    private int slot(String key) {
+        String stored = stored(key);
+        Integer slot = index.get(stored);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (this) {
+            slot = index.get(stored);
+            if (slot != null) {
+                return slot;
+            }
+            int allocated = file.allocate(stored.getBytes(StandardCharsets.UTF_8));
+            if (allocated < 0) {
+                if (!fullWarned) {
+                    fullWarned = true;
+                    logger.warn("Counter file {} is full ({} slots), new users and destinations are not counted",
+                            file, file.getSlots());
+                }
+                return -1;
+            }
+            index.put(stored, allocated);
+            return allocated;
+        }
+    }
+
+    /**
+     * 用户在计数器文件中的键, 也是该用户各目标键的前缀. 命令行工具按它找到要清零的用户.
+     */
+    public static String userKey(String username) {
+        // 每个 char 编码后最多 3 字节, 短的名字不必编码
+        if (username.length() * 3 <= USER_KEY_CAPACITY) {
+            return username;
+        }
+        byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= USER_KEY_CAPACITY) {
+            return username;
+        }
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        return cut(bytes, USER_KEY_CAPACITY - 1 - DIGEST_BYTES * 2) + '~'
+                + HexFormat.of().formatHex(digest, 0, DIGEST_BYTES);
+    }
+
+    /**
+     * 键在文件中保存的形式, 也是 index 的键, 重启后从文件读出的键与运行时查找的键一致.
+     * 过长的键在字符边界截断, 截断后相同的键共用一个槽.
+     */
+    static String stored(String key) {
+        // 每个 char 编码后最多 3 字节, 短的键不必编码
+        if (key.length() * 3 <= CounterFile.KEY_CAPACITY) {
+            return key;
+        }
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= CounterFile.KEY_CAPACITY ? key : cut(bytes, CounterFile.KEY_CAPACITY);
+    }
+
+    // 在不超过 capacity 的最后一个字符边界截断
+    private static String cut(byte[] bytes, int capacity) {
+        int end = capacity;
+        while ((bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private long total(int slot) {
+        return file.get(slot, CounterFile.BYTES_UP) + file.get(slot, CounterFile.BYTES_DOWN);
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(flushNanos);
+            if (!closed) {
+                file.force();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.warn("Error closing counter file {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * 一条隧道的计数句柄. 每个方向只由一个线程调用 {@link #add}.
+     */
+    public static final class Usage {
+        /** 没有用户或没有开启计数时使用, 什么也不做 */
+        public static final Usage NONE = new Usage(null, -1, -1, Long.MAX_VALUE);
+
+        private final CounterFile file;
+        private final int user;
+        private final int destination;
+        // 达到后应关闭隧道的用户字节数, 不切断时为 Long.MAX_VALUE
+        private final long cutAt;
+
+        private Usage(CounterFile file, int user, int destination, long cutAt) {
+            this.file = file;
+            this.user = user;
+            this.destination = destination;
+            this.cutAt = cutAt;
+        }
+
+        /**
+         * 计入 n 字节. 返回 true 表示用户已超出配额, 隧道应当关闭.
+         */
+        public boolean add(boolean upstream, long n) {
+            if (user < 0) {
+                return false;
+            }
+            int field = upstream ? CounterFile.BYTES_UP : CounterFile.BYTES_DOWN;
+            long total = file.add(user, field, n);
+            if (destination >= 0) {
+                file.add(destination, field, n);
+            }
+            if (cutAt == Long.MAX_VALUE) {
+                return false;
+            }
+            return total + file.get(user, upstream ? CounterFile.BYTES_DOWN : CounterFile.BYTES_UP) >= cutAt;
+        }
+
+        /**
+         * 隧道关闭时调用, 记录最后活动时间.
+         */
+        public void close() {
+            if (user >= 0) {
+                file.touch(user, System.currentTimeMillis());
+            }
+        }
+    }
+}
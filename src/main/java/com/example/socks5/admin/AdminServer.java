@@ -0,0 +1,230 @@
+package com.example.socks5.admin;
+
+import com.example.socks5.auth.Authenticator;
+import com.example.socks5.config.Config;
+import com.example.socks5.server.ServerContext;
+import com.example.socks5.server.acl.AccessPolicy;
+import com.example.socks5.server.session.Session;
+import com.example.socks5.server.session.SessionRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * 本地 HTTP 管理接口, 以 JSON 输出:
+ * <ul>
+ *     <li>GET /sessions?sort=rate|bytes|age&amp;limit=N&amp;user=U&amp;target=T: 活动连接, 默认按吞吐量取前 50 条.
+ *     user 按用户名精确匹配, target 按 "host:port" 子串匹配</li>
+ *     <li>POST /sessions/kill?id=N 或按 user/target 过滤: 关闭匹配的连接, 至少要给出一个条件</li>
+ *     <li>POST /acl/reload: 重新读取配置文件中的 acl 部分并换上新规则, 有误时保留原来的规则</li>
+ *     <li>POST /auth/reload: 从凭据来源重新读取用户, 有误时保留原来的用户</li>
+ * </ul>
+ */
+public final class AdminServer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AdminServer.class);
+
+    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final int DEFAULT_LIMIT = 50;
+
+    private final SessionRegistry sessions;
+    private final AccessPolicy accessPolicy;
+    private final Authenticator authenticator;
+    private final HttpServer server;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public AdminServer(Config.AdminConfig config, ServerContext context) throws IOException {
+        this.sessions = context.getSessionRegistry();
+        this.accessPolicy = context.getAccessPolicy();
+        this.authenticator = context.getAuthenticator();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(config.getBind()), config.getPort());
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/sessions", this::handle);
+        server.createContext("/acl/reload", this::handleAclReload);
+        server.createContext("/auth/reload", this::handleAuthReload);
+        server.start();
+        logger.info("Admin endpoint listening on http://{}:{}/", config.getBind(),
+                server.getAddress().getPort());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            Object body;
+            try {
+                if (path.equals("/sessions") && method.equals("GET")) {
+                    body = list(query);
+                } else if (path.equals("/sessions/kill") && method.equals("POST")) {
+                    body = kill(query);
+                } else {
+                    exchange.sendResponseHeaders(path.equals("/sessions") || path.equals("/sessions/kill") ? 405 : 404,
+                            -1);
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, Map.of("error", e.getMessage()));
+                return;
+            }
+            send(exchange, 200, body);
+        }
+    }
+
+    private void handleAclReload(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            try {
+                accessPolicy.update(Config.load().getAcl());
+            } catch (RuntimeException | UnknownHostException e) {
+                logger.warn("Failed to reload ACL: {}", e.getMessage());
+                send(exchange, 400, Map.of("error", String.valueOf(e.getMessage())));
+                return;
+            }
+            send(exchange, 200, Map.of("rules", accessPolicy.getRuleCount()));
+        }
+    }
+
+    private void handleAuthReload(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            try {
+                authenticator.update();
+            } catch (RuntimeException | IOException e) {
+                logger.warn("Failed to reload users: {}", e.getMessage());
+                send(exchange, 400, Map.of("error", String.valueOf(e.getMessage())));
+                return;
+            }
+            send(exchange, 200, Map.of("users", authenticator.getUserCount()));
+        }
+    }
+
+    private Map<String, Object> list(Map<String, String> query) {
+        SessionRegistry.Order order = parseOrder(query.getOrDefault("sort", "rate"));
+        int limit = parseInt(query, "limit", DEFAULT_LIMIT);
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Session.Snapshot s : sessions.top(filter(query), order, limit)) {
+            rows.add(row(s));
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("total", sessions.size());
+        result.put("sessions", rows);
+        return result;
+    }
+
+    private Map<String, Object> kill(Map<String, String> query) {
+        int killed;
+        if (query.containsKey("id")) {
+            Session session = sessions.get(parseLong(query.get("id")));
+            killed = session != null && session.kill() ? 1 : 0;
+        } else if (query.containsKey("user") || query.containsKey("target")) {
+            killed = sessions.kill(filter(query));
+        } else {
+            throw new IllegalArgumentException("id, user or target is required");
+        }
+        logger.info("Admin closed {} connections ({})", killed, query);
+        return Map.of("killed", killed);
+    }
+
+    private static Map<String, Object> row(Session.Snapshot s) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("id", s.getId());
+        row.put("client", s.getClient());
+        row.put("user", s.getUsername());
+        row.put("target", s.getTarget());
+        row.put("started", Instant.ofEpochMilli(s.getStartMillis()).toString());
+        row.put("ageSeconds", s.getAgeNanos() / 1_000_000_000L);
+        row.put("bytesUp", s.getBytesUp());
+        row.put("bytesDown", s.getBytesDown());
+        row.put("rateUp", Math.round(s.getRateUp()));
+        row.put("rateDown", Math.round(s.getRateDown()));
+        return row;
+    }
+
+    private static Predicate<Session.Snapshot> filter(Map<String, String> query) {
+        String user = query.get("user");
+        String target = query.get("target");
+        String needle = target != null ? target.toLowerCase(Locale.ROOT) : null;
+        return s -> (user == null || user.equals(s.getUsername()))
+                && (needle == null || (s.getTarget() != null && s.getTarget().toLowerCase(Locale.ROOT).contains(needle)));
+    }
+
+    private static SessionRegistry.Order parseOrder(String value) {
+        try {
+            return SessionRegistry.Order.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("sort must be rate, bytes or age");
+        }
+    }
+
+    private static int parseInt(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("id must be a number");
+        }
+    }
+
+    private static Map<String, String> parseQuery(String raw) {
+        Map<String, String> query = new HashMap<>();
+        if (raw == null || raw.isEmpty()) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, StandardCharsets.UTF_8);
+            String value = eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8) : "";
+            query.put(name, value);
+        }
+        return query;
+    }
+
+    private void send(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -4,61 +4,314 @@ import com.example.socks5.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-public class Authenticator {
+/**
+ * 用户名/口令认证.
+ * <ul>
+ *     <li>用户来自 {@link CredentialStore}, 以不可变快照整体替换, 进行中的认证继续使用旧快照</li>
+ *     <li>口令散列的校验很慢, 成功的结果按用户缓存一段时间, 期间同一口令直接通过.
+ *     缓存中只保存口令的 HMAC (密钥每次启动随机生成), 不保存口令本身</li>
+ *     <li>同一用户名和口令的并发校验合并为一次, 客户端集中重连时只计算一次散列</li>
+ *     <li>散列在按 CPU 核数的固定线程池上计算, 队列满时直接拒绝, 大量错误登录不会占满虚拟线程的载体线程</li>
+ *     <li>不存在的用户也对一个随机口令计算同样迭代次数的散列, 响应时间上看不出用户名是否存在</li>
+ * </ul>
+ * 凭据改动后旧的缓存条目随即失效, 口令没变的用户保留缓存.
+ */
+public final class Authenticator implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(Authenticator.class);
 
-    private final Map<String, String> users;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
 
-    public Authenticator(Config config) {
-        this.users = new HashMap<>();
-        loadUsers(config);
+    private final CredentialStore store;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final SecretKeySpec cacheKey;
+
+    private volatile Map<String, Credential> users;
+    // 不存在的用户用它校验, 没有散列口令的用户时为 null
+    private volatile Credential unknownUser;
+    private final ConcurrentHashMap<String, Verified> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> inflight = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder reloadFailures = new LongAdder();
+
+    public Authenticator(Config config) throws IOException {
+        Config.AuthConfig auth = config.getAuth();
+        this.store = createStore(config);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, auth.getCacheTtlSeconds()));
+        this.maxEntries = Math.max(1, auth.getCacheMaxEntries());
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.cacheKey = new SecretKeySpec(key, MAC_ALGORITHM);
+        int threads = auth.getVerifyThreads() > 0 ? auth.getVerifyThreads() : Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, auth.getVerifyQueueSize())),
+                Thread.ofPlatform().name("socks5-auth-", 0).daemon().factory());
+
+        // 启动时读不到用户直接失败; 之后的重新加载失败时保留原来的用户
+        this.users = Map.copyOf(store.load());
+        this.unknownUser = unknownUser(users, null);
+        logLoaded("Loaded", users);
+        if (auth.isWatch()) {
+            store.watch(this::reload);
+        }
     }
 
-    private void loadUsers(Config config) {
-        try {
-            List<Config.UserConfig> userConfigs = config.getUsers();
-            if (userConfigs != null) {
-                for (Config.UserConfig user : userConfigs) {
-                    if (user.getName() != null && user.getPwd() != null) {
-                        users.put(user.getName(), user.getPwd());
-                    }
-                }
+    private static CredentialStore createStore(Config config) throws IOException {
+        String className = config.getAuth().getStore();
+        if (className == null || className.isEmpty()) {
+            if (config.getAuth().getUsersFile() == null && config.getSource() == null) {
+                // 在代码中构造的配置 (基准测试, 嵌入使用) 没有文件可读, 直接使用其中的用户
+                List<Config.UserConfig> users = config.getUsers();
+                return () -> FileCredentialStore.credentials(users, "configured users");
             }
-            logger.info("Loaded {} users from config", users.size());
+            return new FileCredentialStore(config);
+        }
+        try {
+            return Class.forName(className).asSubclass(CredentialStore.class)
+                    .getConstructor(Config.class).newInstance(config);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IOException("Cannot create credential store " + className + ": " + e, e);
+        }
+    }
 
-            if (logger.isDebugEnabled()) {
-                users.keySet().forEach(username ->
-                    logger.debug("Registered user: {}", username));
-            }
-        } catch (Exception e) {
-            logger.error("Failed to load users from config", e);
+    /**
+     * 从凭据来源重新读取全部用户并整体替换. 读取失败时抛出异常, 继续使用原来的用户.
+     */
+    public void update() throws IOException {
+        Map<String, Credential> loaded = store.load();
+        Map<String, Credential> previous = users;
+        Map<String, Credential> next = new HashMap<>(loaded.size() * 2);
+        for (Map.Entry<String, Credential> e : loaded.entrySet()) {
+            Credential old = previous.get(e.getKey());
+            // 口令没变的用户沿用旧对象, 登录缓存按对象判断是否仍然有效
+            next.put(e.getKey(), old != null && old.sameSecret(e.getValue()) ? old : e.getValue());
+        }
+        Map<String, Credential> snapshot = Map.copyOf(next);
+        unknownUser = unknownUser(snapshot, unknownUser);
+        users = snapshot;
+        cache.entrySet().removeIf(e -> snapshot.get(e.getKey()) != e.getValue().credential);
+        reloads.increment();
+        logLoaded("Reloaded", snapshot);
+    }
+
+    /**
+     * 迭代次数取现有散列中最大的一个, 与上次相同时沿用原来的对象.
+     */
+    private static Credential unknownUser(Map<String, Credential> users, Credential previous) {
+        int iterations = users.values().stream().mapToInt(Credential::iterations).max().orElse(0);
+        if (iterations == 0) {
+            return null;
+        }
+        if (previous != null && previous.iterations() == iterations) {
+            return previous;
         }
+        byte[] secret = new byte[18];
+        new SecureRandom().nextBytes(secret);
+        return Credential.hashed("", PasswordHash.create(Base64.getEncoder().encodeToString(secret), iterations));
     }
 
+    private void reload() {
+        try {
+            update();
+        } catch (IOException | RuntimeException e) {
+            reloadFailures.increment();
+            logger.warn("Failed to reload users from {}, keeping {} existing users: {}", store, users.size(),
+                    e.getMessage());
+        }
+    }
+
+    private static void logLoaded(String action, Map<String, Credential> users) {
+        long cleartext = users.values().stream().filter(c -> !c.isHashed()).count();
+        logger.info("{} {} users", action, users.size());
+        if (cleartext > 0) {
+            logger.warn("{} users have cleartext passwords, replace pwd with passwordHash "
+                    + "(generate with com.example.socks5.PasswordHasher)", cleartext);
+        }
+        if (logger.isDebugEnabled()) {
+            users.keySet().forEach(username -> logger.debug("Registered user: {}", username));
+        }
+    }
+
+    /**
+     * 阻塞认证, 供每连接一个线程的处理器使用.
+     */
     public boolean authenticate(String username, String password) {
+        return authenticateAsync(username, password).join();
+    }
+
+    /**
+     * 异步认证. 命中缓存或明文口令时返回已完成的 future,
+     * 否则在校验线程池上计算口令散列, 调用方线程不会阻塞.
+     */
+    public CompletableFuture<Boolean> authenticateAsync(String username, String password) {
         if (username == null || password == null) {
             logger.warn("Authentication attempt with null username or password");
-            return false;
+            return CompletableFuture.completedFuture(false);
+        }
+        Credential credential = users.get(username);
+        if (credential == null) {
+            Credential unknown = unknownUser;
+            return unknown != null ? verify(username, password, unknown, null)
+                    : CompletableFuture.completedFuture(result(username, false));
+        }
+        if (!credential.isHashed()) {
+            return CompletableFuture.completedFuture(result(username, credential.verify(password)));
         }
+        if (ttlNanos == 0) {
+            return verify(username, password, credential, null);
+        }
+        byte[] digest = digest(username, password);
+        Verified verified = cache.get(username);
+        if (verified != null && verified.credential == credential && System.nanoTime() - verified.expiresAt < 0
+                && MessageDigest.isEqual(verified.digest, digest)) {
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(result(username, true));
+        }
+        cacheMisses.increment();
+        return verify(username, password, credential, digest);
+    }
 
+    private CompletableFuture<Boolean> verify(String username, String password, Credential credential, byte[] digest) {
+        // 摘要同时覆盖用户名和口令, 可以直接作为合并并发校验的键
+        String key = digest != null ? Base64.getEncoder().encodeToString(digest) : null;
+        CompletableFuture<Boolean> created = new CompletableFuture<>();
+        if (key != null) {
+            CompletableFuture<Boolean> future = inflight.putIfAbsent(key, created);
+            if (future != null) {
+                coalesced.increment();
+                return future;
+            }
+        }
         try {
-            String storedPassword = users.get(username);
-            boolean authenticated = storedPassword != null && storedPassword.equals(password);
-
-            if (authenticated) {
-                logger.info("User authenticated successfully: {}", username);
-            } else {
-                logger.warn("Authentication failed for user: {}", username);
+            executor.execute(() -> {
+                boolean ok;
+                try {
+                    ok = credential.verify(password);
+                } catch (RuntimeException e) {
+                    logger.error("Error during authentication for user: {}", username, e);
+                    ok = false;
+                }
+                if (ok && digest != null && users.get(username) == credential) {
+                    store(username, new Verified(credential, digest, System.nanoTime() + ttlNanos));
+                }
+                if (key != null) {
+                    inflight.remove(key, created);
+                }
+                created.complete(result(username, ok));
+            });
+        } catch (RejectedExecutionException e) {
+            if (key != null) {
+                inflight.remove(key, created);
             }
+            rejected.increment();
+            logger.warn("Too many password checks in flight, rejecting login for user: {}", username);
+            created.complete(false);
+        }
+        return created;
+    }
+
+    private static boolean result(String username, boolean authenticated) {
+        if (authenticated) {
+            logger.debug("User authenticated successfully: {}", username);
+        } else {
+            logger.warn("Authentication failed for user: {}", username);
+        }
+        return authenticated;
+    }
+
+    private byte[] digest(String username, String password) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(cacheKey);
+            byte[] name = username.getBytes(StandardCharsets.UTF_8);
+            // 带上长度, 避免用户名和口令的边界被移动后得到相同的输入
+            mac.update((byte) (name.length >>> 8));
+            mac.update((byte) name.length);
+            mac.update(name);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " not available", e);
+        }
+    }
+
+    private void store(String username, Verified verified) {
+        cache.put(username, verified);
+        if (cache.size() > maxEntries) {
+            trim();
+        }
+    }
+
+    private void trim() {
+        long now = System.nanoTime();
+        cache.values().removeIf(v -> now - v.expiresAt >= 0);
+        Iterator<String> it = cache.keySet().iterator();
+        while (cache.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public int getUserCount() { return users.size(); }
+
+    public long getCacheHits() { return cacheHits.sum(); }
+
+    public long getCacheMisses() { return cacheMisses.sum(); }
+
+    public long getCoalesced() { return coalesced.sum(); }
+
+    /** 校验队列已满而被拒绝的登录 */
+    public long getRejected() { return rejected.sum(); }
+
+    public long getReloads() { return reloads.sum(); }
+
+    public long getReloadFailures() { return reloadFailures.sum(); }
+
+    public int getCacheSize() { return cache.size(); }
+
+    @Override
+    public void close() {
+        store.close();
+        executor.shutdownNow();
+        logger.info("Login cache stats: {} hits, {} misses, {} coalesced", getCacheHits(), getCacheMisses(),
+                getCoalesced());
+    }
+
+    private static final class Verified {
+        final Credential credential;
+        final byte[] digest;
+        final long expiresAt;
 
-            return authenticated;
-        } catch (Exception e) {
-            logger.error("Error during authentication for user: {}", username, e);
-            return false;
+        Verified(Credential credential, byte[] digest, long expiresAt) {
+            this.credential = credential;
+            this.digest = digest;
+            this.expiresAt = expiresAt;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,70 @@
+package com.example.socks5.auth;
+
+import com.example.socks5.config.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * 一个用户的不可变凭据: 口令散列, 或兼容旧配置的明文口令.
+ */
+public final class Credential {
+    private final String username;
+    // 二者有且只有一个不为 null
+    private final PasswordHash hash;
+    private final byte[] cleartext;
+
+    private Credential(String username, PasswordHash hash, byte[] cleartext) {
+        this.username = username;
+        this.hash = hash;
+        this.cleartext = cleartext;
+    }
+
+    public static Credential hashed(String username, PasswordHash hash) {
+        return new Credential(username, hash, null);
+    }
+
+    public static Credential cleartext(String username, String password) {
+        return new Credential(username, null, password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 由配置中的用户生成, passwordHash 优先于 pwd; 两者都没有时返回 null.
+     */
+    public static Credential of(Config.UserConfig user) {
+        if (user.getName() == null) {
+            return null;
+        }
+        if (user.getPasswordHash() != null) {
+            return hashed(user.getName(), PasswordHash.parse(user.getPasswordHash()));
+        }
+        return user.getPwd() != null ? cleartext(user.getName(), user.getPwd()) : null;
+    }
+
+    public String getUsername() { return username; }
+
+    /**
+     * 为 true 时校验要计算口令散列, 不应在事件循环线程上进行.
+     */
+    public boolean isHashed() { return hash != null; }
+
+    // 口令散列的迭代次数, 明文口令为 0
+    int iterations() { return hash != null ? hash.getIterations() : 0; }
+
+    public boolean verify(String password) {
+        if (hash != null) {
+            return hash.verify(password);
+        }
+        return MessageDigest.isEqual(cleartext, password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 与 other 的口令相同. 重新加载时据此保留未改动的旧对象, 让它们的登录缓存继续有效.
+     */
+    boolean sameSecret(Credential other) {
+        if (hash != null) {
+            return other.hash != null && hash.toString().equals(other.hash.toString());
+        }
+        return other.cleartext != null && MessageDigest.isEqual(cleartext, other.cleartext);
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.socks5.auth;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * 用户凭据的来源. 默认读取本地 JSON 文件, 也可以换成嵌入式数据库或外部目录服务的实现,
+ * 实现类需要有一个接受 {@link com.example.socks5.config.Config} 的公开构造函数.
+ */
+public interface CredentialStore extends AutoCloseable {
+
+    /**
+     * 读取当前全部用户, 键为用户名. 每次调用都返回新的完整快照.
+     */
+    Map<String, Credential> load() throws IOException;
+
+    /**
+     * 数据源变化时调用 onChange, 由调用方重新 {@link #load}. 不支持变化通知的实现什么也不做.
+     */
+    default void watch(Runnable onChange) {}
+
+    @Override
+    default void close() {}
+}
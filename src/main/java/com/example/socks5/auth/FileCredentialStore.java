@@ -0,0 +1,140 @@
+package com.example.socks5.auth;
+
+import com.example.socks5.config.Config;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 从本地 JSON 文件读取用户. 文件可以是用户数组, 也可以是带 users 字段的对象 (例如 config.json 本身),
+ * 每个用户的写法与 config.json 的 users 部分相同.
+ * <p>
+ * 监视时看的是文件所在的目录, 编辑器先写临时文件再改名的保存方式也能发现.
+ * 一次保存常常触发多个事件, 收到事件后稍等片刻再通知, 合并为一次重新加载.
+ */
+public class FileCredentialStore implements CredentialStore {
+    private static final Logger logger = LoggerFactory.getLogger(FileCredentialStore.class);
+
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Path path;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private WatchService watchService;
+
+    public FileCredentialStore(Config config) {
+        String usersFile = config.getAuth().getUsersFile();
+        if (usersFile != null) {
+            this.path = Paths.get(usersFile).toAbsolutePath();
+        } else {
+            this.path = (config.getSource() != null ? config.getSource() : Paths.get("config.json")).toAbsolutePath();
+        }
+    }
+
+    @Override
+    public Map<String, Credential> load() throws IOException {
+        JsonNode root = mapper.readTree(path.toFile());
+        JsonNode users = root.isArray() ? root : root.path("users");
+        if (users.isMissingNode() || users.isNull()) {
+            return new HashMap<>();
+        }
+        List<Config.UserConfig> configs;
+        try {
+            configs = mapper.convertValue(users, new TypeReference<List<Config.UserConfig>>() {});
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid users in " + path + ": " + e.getMessage(), e);
+        }
+        return credentials(configs, path);
+    }
+
+    /**
+     * 把配置中的用户转换为凭据, 用户名重复或口令散列无效时抛出异常.
+     */
+    static Map<String, Credential> credentials(List<Config.UserConfig> configs, Object source) throws IOException {
+        Map<String, Credential> credentials = new HashMap<>();
+        if (configs == null) {
+            return credentials;
+        }
+        for (Config.UserConfig user : configs) {
+            Credential credential;
+            try {
+                credential = Credential.of(user);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("User " + user.getName() + ": " + e.getMessage());
+            }
+            if (credential != null && credentials.put(credential.getUsername(), credential) != null) {
+                throw new IOException("Duplicate user " + credential.getUsername() + " in " + source);
+            }
+        }
+        return credentials;
+    }
+
+    @Override
+    public void watch(Runnable onChange) {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.warn("Cannot watch {} for changes: {}", path, e.getMessage());
+            return;
+        }
+        Thread.ofVirtual().name("socks5-credential-watcher").start(() -> watchLoop(onChange));
+        logger.info("Watching {} for user changes", path);
+    }
+
+    private void watchLoop(Runnable onChange) {
+        Path name = path.getFileName();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= name.equals(event.context());
+                }
+                key.reset();
+                if (!changed) {
+                    continue;
+                }
+                // 等保存完成, 把这段时间内的后续事件一并丢掉
+                Thread.sleep(SETTLE_MILLIS);
+                WatchKey pending;
+                while ((pending = watchService.poll()) != null) {
+                    pending.pollEvents();
+                    pending.reset();
+                }
+                onChange.run();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // 关闭
+        }
+    }
+
+    @Override
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.debug("Error closing watch service: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String toString() { return path.toString(); }
+}
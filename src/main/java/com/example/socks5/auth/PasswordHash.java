@@ -0,0 +1,96 @@
+package com.example.socks5.auth;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * 加盐的 PBKDF2-HMAC-SHA256 口令散列, 编码为 "pbkdf2-sha256$迭代次数$盐$散列", 盐和散列为 Base64.
+ * 校验故意很慢, 成功结果由 {@link Authenticator} 缓存.
+ */
+public final class PasswordHash {
+    public static final String PREFIX = "pbkdf2-sha256$";
+    public static final int DEFAULT_ITERATIONS = 210_000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String encoded;
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PasswordHash(String encoded, int iterations, byte[] salt, byte[] hash) {
+        this.encoded = encoded;
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * 用随机盐计算 password 的散列.
+     */
+    public static PasswordHash create(String password, int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be positive: " + iterations);
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] hash = derive(password, salt, iterations, HASH_LENGTH * 8);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        String encoded = PREFIX + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+        return new PasswordHash(encoded, iterations, salt, hash);
+    }
+
+    /**
+     * 解析编码后的散列, 格式不对时抛出 IllegalArgumentException.
+     */
+    public static PasswordHash parse(String encoded) {
+        if (!encoded.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("Unsupported password hash, expected " + PREFIX + "...");
+        }
+        String[] parts = encoded.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Malformed password hash");
+        }
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] hash = Base64.getDecoder().decode(parts[2]);
+            if (iterations < 1 || salt.length == 0 || hash.length == 0) {
+                throw new IllegalArgumentException("Malformed password hash");
+            }
+            return new PasswordHash(encoded, iterations, salt, hash);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed password hash: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 按相同的盐和迭代次数重新计算并在常数时间内比较.
+     */
+    public boolean verify(String password) {
+        return MessageDigest.isEqual(hash, derive(password, salt, iterations, hash.length * 8));
+    }
+
+    public int getIterations() { return iterations; }
+
+    @Override
+    public String toString() { return encoded; }
+
+    private static byte[] derive(String password, byte[] salt, int iterations, int bits) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.socks5.config;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,13 +9,32 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Config {
     private static final Logger logger = LoggerFactory.getLogger(Config.class);
 
     private ServerConfig server;
     private List<UserConfig> users;
+    private DnsConfig dns = new DnsConfig();
+    private ConnectConfig connect = new ConnectConfig();
+    private PreconnectConfig preconnect = new PreconnectConfig();
+    private UdpConfig udp = new UdpConfig();
+    private MetricsConfig metrics = new MetricsConfig();
+    private LimitsConfig limits = new LimitsConfig();
+    private AdmissionConfig admission = new AdmissionConfig();
+    private AccessLogConfig accessLog = new AccessLogConfig();
+    private TimeoutsConfig timeouts = new TimeoutsConfig();
+    private UpstreamConfig upstream = new UpstreamConfig();
+    private AdminConfig admin = new AdminConfig();
+    private AclConfig acl = new AclConfig();
+    private AuthConfig auth = new AuthConfig();
+    private AccountingConfig accounting = new AccountingConfig();
+    // 读取配置的文件, 由 load() 设置; 在代码中构造的配置为 null
+    @JsonIgnore
+    private Path source;
 
     // Jackson 需要默认构造函数
     public Config() {}
@@ -22,6 +42,23 @@ public class Config {
     public static class ServerConfig {
         private int port;
         private String bind;
+        // 多个监听地址, 设置后忽略上面的 port 和 bind
+        private List<ListenerConfig> listeners;
+        // 同机客户端使用的 Unix 域套接字监听, 与上面的 TCP 监听同时生效
+        private List<UnixListenerConfig> unixListeners;
+        // 连接处理引擎: "thread" 每连接一个虚拟线程, "nio" 基于 Selector 的事件循环
+        private String engine = "thread";
+        // nio 引擎的事件循环数量, 0 表示按 CPU 核数
+        private int selectorThreads;
+        // 转发缓冲区(直接内存)大小及池中最多缓存的空闲块数
+        private int bufferSize = 16384;
+        private int bufferPoolSize = 1024;
+        // 所有隧道正在使用的转发缓冲区的内存上限(字节), 0 表示不限制
+        private long bufferMemoryLimit;
+        // 隧道一个方向静默超过该时间后归还缓冲区, 0 表示一直持有
+        private int idleBufferReleaseMillis = 30000;
+        // 关闭时停止接收新连接后, 等待现有连接自然结束的最长时间, 到时强制关闭; 0 表示立即关闭
+        private int drainTimeoutMillis = 10000;
 
         public ServerConfig() {}
 
@@ -30,11 +67,100 @@ public class Config {
 
         public String getBind() { return bind; }
         public void setBind(String bind) { this.bind = bind; }
+
+        public List<ListenerConfig> getListeners() { return listeners; }
+        public void setListeners(List<ListenerConfig> listeners) { this.listeners = listeners; }
+
+        /**
+         * 实际使用的监听地址: 配置了 listeners 时为该列表, 否则为 bind:port 一个.
+         */
+        public List<ListenerConfig> effectiveListeners() {
+            if (listeners != null && !listeners.isEmpty()) {
+                return listeners;
+            }
+            ListenerConfig single = new ListenerConfig();
+            single.setBind(bind);
+            single.setPort(port);
+            return List.of(single);
+        }
+
+        public List<UnixListenerConfig> getUnixListeners() { return unixListeners; }
+        public void setUnixListeners(List<UnixListenerConfig> unixListeners) { this.unixListeners = unixListeners; }
+
+        public String getEngine() { return engine; }
+        public void setEngine(String engine) { this.engine = engine; }
+
+        public int getSelectorThreads() { return selectorThreads; }
+        public void setSelectorThreads(int selectorThreads) { this.selectorThreads = selectorThreads; }
+
+        public int getBufferSize() { return bufferSize; }
+        public void setBufferSize(int bufferSize) { this.bufferSize = bufferSize; }
+
+        public int getBufferPoolSize() { return bufferPoolSize; }
+        public void setBufferPoolSize(int bufferPoolSize) { this.bufferPoolSize = bufferPoolSize; }
+
+        public long getBufferMemoryLimit() { return bufferMemoryLimit; }
+        public void setBufferMemoryLimit(long bufferMemoryLimit) { this.bufferMemoryLimit = bufferMemoryLimit; }
+
+        public int getIdleBufferReleaseMillis() { return idleBufferReleaseMillis; }
+        public void setIdleBufferReleaseMillis(int idleBufferReleaseMillis) { this.idleBufferReleaseMillis = idleBufferReleaseMillis; }
+
+        public int getDrainTimeoutMillis() { return drainTimeoutMillis; }
+        public void setDrainTimeoutMillis(int drainTimeoutMillis) { this.drainTimeoutMillis = drainTimeoutMillis; }
+
+        public boolean isNioEngine() { return "nio".equalsIgnoreCase(engine); }
+    }
+
+    public static class ListenerConfig {
+        private String bind;
+        private int port;
+        // 接收线程数. 大于 1 时在支持 SO_REUSEPORT 的系统上为每个线程打开一个监听套接字,
+        // 由内核把新连接分散到各个套接字; 不支持时多个线程共用一个套接字
+        private int acceptors = 1;
+
+        public ListenerConfig() {}
+
+        public String getBind() { return bind; }
+        public void setBind(String bind) { this.bind = bind; }
+
+        public int getPort() { return port; }
+        public void setPort(int port) { this.port = port; }
+
+        public int getAcceptors() { return acceptors; }
+        public void setAcceptors(int acceptors) { this.acceptors = acceptors; }
+    }
+
+    public static class UnixListenerConfig {
+        // 套接字文件路径, 启动时删除遗留的套接字文件, 关闭时删除
+        private String path;
+        // 套接字文件的权限, 格式同 ls -l, 例如 "rw-rw----"; 为空时沿用 umask
+        private String permissions = "rw-rw----";
+        // 接收线程数, 多个线程共用一个套接字
+        private int acceptors = 1;
+
+        public UnixListenerConfig() {}
+
+        public String getPath() { return path; }
+        public void setPath(String path) { this.path = path; }
+
+        public String getPermissions() { return permissions; }
+        public void setPermissions(String permissions) { this.permissions = permissions; }
+
+        public int getAcceptors() { return acceptors; }
+        public void setAcceptors(int acceptors) { this.acceptors = acceptors; }
     }
 
     public static class UserConfig {
         private String name;
+        // 明文口令, 仅为兼容旧配置; 建议改用 passwordHash
         private String pwd;
+        // PasswordHasher 生成的口令散列, 设置后忽略 pwd
+        private String passwordHash;
+        // 该用户所有隧道合计的每秒字节数和同时连接数, 0 表示沿用 limits 中的默认值, 负数表示不限制
+        private long maxBytesPerSecond;
+        private int maxConnections;
+        // 清零以来上下行合计的字节数上限, 需要开启 accounting; 0 表示不限制
+        private long quotaBytes;
 
         public UserConfig() {}
 
@@ -43,6 +169,533 @@ public class Config {
 
         public String getPwd() { return pwd; }
         public void setPwd(String pwd) { this.pwd = pwd; }
+
+        public String getPasswordHash() { return passwordHash; }
+        public void setPasswordHash(String passwordHash) { this.passwordHash = passwordHash; }
+
+        public long getMaxBytesPerSecond() { return maxBytesPerSecond; }
+        public void setMaxBytesPerSecond(long maxBytesPerSecond) { this.maxBytesPerSecond = maxBytesPerSecond; }
+
+        public int getMaxConnections() { return maxConnections; }
+        public void setMaxConnections(int maxConnections) { this.maxConnections = maxConnections; }
+
+        public long getQuotaBytes() { return quotaBytes; }
+        public void setQuotaBytes(long quotaBytes) { this.quotaBytes = quotaBytes; }
+    }
+
+    public static class DnsConfig {
+        // 成功结果的缓存时间; JDK 解析器拿不到记录本身的 TTL, 统一使用这里的值
+        private int cacheTtlSeconds = 60;
+        private int negativeTtlSeconds = 5;
+        private int maxEntries = 10000;
+        // 在 TTL 的最后这一百分比时间内被命中的条目会在后台提前刷新
+        private int refreshAheadPercent = 20;
+        // 静态主机表, 名字 -> IP 字面量列表, 优先于系统解析器
+        private Map<String, List<String>> hosts = new HashMap<>();
+
+        public DnsConfig() {}
+
+        public int getCacheTtlSeconds() { return cacheTtlSeconds; }
+        public void setCacheTtlSeconds(int cacheTtlSeconds) { this.cacheTtlSeconds = cacheTtlSeconds; }
+
+        public int getNegativeTtlSeconds() { return negativeTtlSeconds; }
+        public void setNegativeTtlSeconds(int negativeTtlSeconds) { this.negativeTtlSeconds = negativeTtlSeconds; }
+
+        public int getMaxEntries() { return maxEntries; }
+        public void setMaxEntries(int maxEntries) { this.maxEntries = maxEntries; }
+
+        public int getRefreshAheadPercent() { return refreshAheadPercent; }
+        public void setRefreshAheadPercent(int refreshAheadPercent) { this.refreshAheadPercent = refreshAheadPercent; }
+
+        public Map<String, List<String>> getHosts() { return hosts; }
+        public void setHosts(Map<String, List<String>> hosts) { this.hosts = hosts; }
+    }
+
+    public static class ConnectConfig {
+        private int timeoutMillis = 10000;
+        // RFC 8305 的 Connection Attempt Delay, 相邻两次连接尝试之间的间隔
+        private int attemptDelayMillis = 250;
+        // 关闭时只连接解析结果中的第一个地址
+        private boolean happyEyeballs = true;
+        // 出站连接绑定的本地源地址, 为空时由系统选择
+        private List<String> egressAddresses;
+        // round-robin 或 hash (按目标地址和端口固定出口)
+        private String egressSelection = "round-robin";
+        // 绑定失败的出口地址暂停使用的时间
+        private int egressRetryMillis = 10000;
+
+        public ConnectConfig() {}
+
+        public int getTimeoutMillis() { return timeoutMillis; }
+        public void setTimeoutMillis(int timeoutMillis) { this.timeoutMillis = timeoutMillis; }
+
+        public int getAttemptDelayMillis() { return attemptDelayMillis; }
+        public void setAttemptDelayMillis(int attemptDelayMillis) { this.attemptDelayMillis = attemptDelayMillis; }
+
+        public boolean isHappyEyeballs() { return happyEyeballs; }
+        public void setHappyEyeballs(boolean happyEyeballs) { this.happyEyeballs = happyEyeballs; }
+
+        public List<String> getEgressAddresses() { return egressAddresses; }
+        public void setEgressAddresses(List<String> egressAddresses) { this.egressAddresses = egressAddresses; }
+
+        public String getEgressSelection() { return egressSelection; }
+        public void setEgressSelection(String egressSelection) { this.egressSelection = egressSelection; }
+
+        public boolean isEgressHash() { return "hash".equalsIgnoreCase(egressSelection); }
+
+        public int getEgressRetryMillis() { return egressRetryMillis; }
+        public void setEgressRetryMillis(int egressRetryMillis) { this.egressRetryMillis = egressRetryMillis; }
+    }
+
+    public static class PreconnectConfig {
+        private boolean enabled;
+        // 每秒 CONNECT 次数达到该值的目标才会预先建立连接
+        private double minRate = 5;
+        private int maxPerDestination = 8;
+        // 所有目标预建连接的总数上限
+        private int maxTotal = 256;
+        // 参与统计的目标数量上限
+        private int maxDestinations = 1024;
+        // 预建连接闲置超过该时间后丢弃, 应小于上游服务器的空闲超时
+        private int maxIdleMillis = 15000;
+
+        public PreconnectConfig() {}
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+        public double getMinRate() { return minRate; }
+        public void setMinRate(double minRate) { this.minRate = minRate; }
+
+        public int getMaxPerDestination() { return maxPerDestination; }
+        public void setMaxPerDestination(int maxPerDestination) { this.maxPerDestination = maxPerDestination; }
+
+        public int getMaxTotal() { return maxTotal; }
+        public void setMaxTotal(int maxTotal) { this.maxTotal = maxTotal; }
+
+        public int getMaxDestinations() { return maxDestinations; }
+        public void setMaxDestinations(int maxDestinations) { this.maxDestinations = maxDestinations; }
+
+        public int getMaxIdleMillis() { return maxIdleMillis; }
+        public void setMaxIdleMillis(int maxIdleMillis) { this.maxIdleMillis = maxIdleMillis; }
+    }
+
+    public static class UdpConfig {
+        // 关闭时 UDP ASSOCIATE 回复 0x07
+        private boolean enabled = true;
+        private int relayThreads = 1;
+        // 目标在该时间内没有往来数据报时从 NAT 表中删除, 之后它发来的数据报会被丢弃
+        private int natTimeoutSeconds = 120;
+        // 每个关联最多同时通信的目标数
+        private int maxNatEntries = 1024;
+        // 中继套接字的 SO_RCVBUF/SO_SNDBUF, 0 表示使用系统默认值
+        private int socketBufferSize;
+
+        public UdpConfig() {}
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+        public int getRelayThreads() { return relayThreads; }
+        public void setRelayThreads(int relayThreads) { this.relayThreads = relayThreads; }
+
+        public int getNatTimeoutSeconds() { return natTimeoutSeconds; }
+        public void setNatTimeoutSeconds(int natTimeoutSeconds) { this.natTimeoutSeconds = natTimeoutSeconds; }
+
+        public int getMaxNatEntries() { return maxNatEntries; }
+        public void setMaxNatEntries(int maxNatEntries) { this.maxNatEntries = maxNatEntries; }
+
+        public int getSocketBufferSize() { return socketBufferSize; }
+        public void setSocketBufferSize(int socketBufferSize) { this.socketBufferSize = socketBufferSize; }
+    }
+
+    public static class MetricsConfig {
+        // 开启后在 bind:port 的 /metrics 上输出 Prometheus 文本格式
+        private boolean enabled;
+        private String bind = "127.0.0.1";
+        private int port = 9180;
+        // 是否把指标注册为 JMX MXBean
+        private boolean jmx = true;
+
+        public MetricsConfig() {}
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+        public String getBind() { return bind; }
+        public void setBind(String bind) { this.bind = bind; }
+
+        public int getPort() { return port; }
+        public void setPort(int port) { this.port = port; }
+
+        public boolean isJmx() { return jmx; }
+        public void setJmx(boolean jmx) { this.jmx = jmx; }
+    }
+
+    public static class AccessLogConfig {
+        // 每条连接一条记录, 由后台线程批量写入文件
+        private boolean enabled = true;
+        private String path = "logs/access.log";
+        // "text" 每条一行; "binary" 更紧凑, 用 AccessLogDecoder 转换为文本
+        private String format = "text";
+        // 环形缓冲区能容纳的记录数, 向上取整到 2 的幂
+        private int bufferSize = 8192;
+        // 缓冲区满时: "drop" 丢弃新记录并计数, "block" 让连接线程等待写入
+        private String overflow = "drop";
+        // 没有新记录时后台线程的等待间隔
+        private int flushIntervalMillis = 200;
+        // 文件超过该大小后改名保存并新建, 0 表示不切分
+        private long maxFileSize = 100L * 1024 * 1024;
+
+        public AccessLogConfig() {}
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+        public String getPath() { return path; }
+        public void setPath(String path) { this.path = path; }
+
+        public String getFormat() { return format; }
+        public void setFormat(String format) { this.format = format; }
+
+        public int getBufferSize() { return bufferSize; }
+        public void setBufferSize(int bufferSize) { this.bufferSize = bufferSize; }
+
+        public String getOverflow() { return overflow; }
+        public void setOverflow(String overflow) { this.overflow = overflow; }
+
+        public int getFlushIntervalMillis() { return flushIntervalMillis; }
+        public void setFlushIntervalMillis(int flushIntervalMillis) { this.flushIntervalMillis = flushIntervalMillis; }
+
+        public long getMaxFileSize() { return maxFileSize; }
+        public void setMaxFileSize(long maxFileSize) { this.maxFileSize = maxFileSize; }
+
+        public boolean isBinary() { return "binary".equalsIgnoreCase(format); }
+
+        public boolean isBlocking() { return "block".equalsIgnoreCase(overflow); }
+    }
+
+    public static class LimitsConfig {
+        // 每个用户的默认上限, 可被 UserConfig 中的设置覆盖; 0 表示不限制
+        private long userBytesPerSecond;
+        private int userMaxConnections;
+        // 每个客户端 IP 的上限, 与用户上限同时生效; 0 表示不限制
+        private long ipBytesPerSecond;
+        private int ipMaxConnections;
+        // 空闲之后允许突发的数据量, 以按限速发送的时间计
+        private int burstMillis = 100;
+
+        public LimitsConfig() {}
+
+        public long getUserBytesPerSecond() { return userBytesPerSecond; }
+        public void setUserBytesPerSecond(long userBytesPerSecond) { this.userBytesPerSecond = userBytesPerSecond; }
+
+        public int getUserMaxConnections() { return userMaxConnections; }
+        public void setUserMaxConnections(int userMaxConnections) { this.userMaxConnections = userMaxConnections; }
+
+        public long getIpBytesPerSecond() { return ipBytesPerSecond; }
+        public void setIpBytesPerSecond(long ipBytesPerSecond) { this.ipBytesPerSecond = ipBytesPerSecond; }
+
+        public int getIpMaxConnections() { return ipMaxConnections; }
+        public void setIpMaxConnections(int ipMaxConnections) { this.ipMaxConnections = ipMaxConnections; }
+
+        public int getBurstMillis() { return burstMillis; }
+        public void setBurstMillis(int burstMillis) { this.burstMillis = burstMillis; }
+    }
+
+    public static class AdmissionConfig {
+        // 监听套接字的 backlog
+        private int backlog = 1024;
+        // 同时打开的客户端连接数和尚未完成握手的连接数, 超出时立即拒绝; 0 表示不限制
+        private int maxConnections;
+        private int maxHandshakes;
+        // 从接受连接到收到完整请求的总时限, 与单次读取的超时分开计算
+        private int handshakeTimeoutMillis = 10000;
+
+        public AdmissionConfig() {}
+
+        public int getBacklog() { return backlog; }
+        public void setBacklog(int backlog) { this.backlog = backlog; }
+
+        public int getMaxConnections() { return maxConnections; }
+        public void setMaxConnections(int maxConnections) { this.maxConnections = maxConnections; }
+
+        public int getMaxHandshakes() { return maxHandshakes; }
+        public void setMaxHandshakes(int maxHandshakes) { this.maxHandshakes = maxHandshakes; }
+
+        public int getHandshakeTimeoutMillis() { return handshakeTimeoutMillis; }
+        public void setHandshakeTimeoutMillis(int handshakeTimeoutMillis) { this.handshakeTimeoutMillis = handshakeTimeoutMillis; }
+    }
+
+    public static class TimeoutsConfig {
+        // 隧道两个方向都没有数据的最长时间; 0 表示不限制. 默认都不限制, 与没有隧道超时时的行为一致
+        private long idleMillis;
+        // 隧道从建立起的最长存活时间; 0 表示不限制
+        private long maxLifetimeMillis;
+        // 一方关闭发送之后, 另一方向继续传输的最长时间; 0 表示只受空闲超时限制
+        private long halfCloseMillis;
+        // 时间轮的精度和桶数, 超时最多晚一个 tick 触发
+        private int tickMillis = 1000;
+        private int wheelSize = 512;
+
+        public TimeoutsConfig() {}
+
+        public long getIdleMillis() { return idleMillis; }
+        public void setIdleMillis(long idleMillis) { this.idleMillis = idleMillis; }
+
+        public long getMaxLifetimeMillis() { return maxLifetimeMillis; }
+        public void setMaxLifetimeMillis(long maxLifetimeMillis) { this.maxLifetimeMillis = maxLifetimeMillis; }
+
+        public long getHalfCloseMillis() { return halfCloseMillis; }
+        public void setHalfCloseMillis(long halfCloseMillis) { this.halfCloseMillis = halfCloseMillis; }
+
+        public int getTickMillis() { return tickMillis; }
+        public void setTickMillis(int tickMillis) { this.tickMillis = tickMillis; }
+
+        public int getWheelSize() { return wheelSize; }
+        public void setWheelSize(int wheelSize) { this.wheelSize = wheelSize; }
+
+        public boolean isEnabled() { return idleMillis > 0 || maxLifetimeMillis > 0 || halfCloseMillis > 0; }
+    }
+
+    public static class UpstreamConfig {
+        // 按顺序匹配目标, 第一条命中的规则决定经哪个上游池转发; 都不命中时直连
+        private List<UpstreamRuleConfig> rules;
+        private List<UpstreamPoolConfig> pools;
+        // 连续失败这么多次后把上游移出轮换
+        private int maxFailures = 3;
+        // 移出后至少这么久才重新参与选择, 主动检查成功时提前恢复
+        private int ejectMillis = 30000;
+        // 主动健康检查的间隔, 0 表示只根据实际连接的结果判断
+        private int healthCheckIntervalMillis = 10000;
+
+        public UpstreamConfig() {}
+
+        public List<UpstreamRuleConfig> getRules() { return rules; }
+        public void setRules(List<UpstreamRuleConfig> rules) { this.rules = rules; }
+
+        public List<UpstreamPoolConfig> getPools() { return pools; }
+        public void setPools(List<UpstreamPoolConfig> pools) { this.pools = pools; }
+
+        public int getMaxFailures() { return maxFailures; }
+        public void setMaxFailures(int maxFailures) { this.maxFailures = maxFailures; }
+
+        public int getEjectMillis() { return ejectMillis; }
+        public void setEjectMillis(int ejectMillis) { this.ejectMillis = ejectMillis; }
+
+        public int getHealthCheckIntervalMillis() { return healthCheckIntervalMillis; }
+        public void setHealthCheckIntervalMillis(int healthCheckIntervalMillis) { this.healthCheckIntervalMillis = healthCheckIntervalMillis; }
+    }
+
+    public static class UpstreamRuleConfig {
+        // 目标匹配: "*" 任意目标, "*.example.com" 该域名及其子域名, "10.0.0.0/8" IP 目标所在网段, 其它为精确匹配
+        private List<String> hosts;
+        // 目标端口, 为空表示任意端口
+        private List<Integer> ports;
+        // 上游池名称, "direct" 表示直连
+        private String pool;
+
+        public UpstreamRuleConfig() {}
+
+        public List<String> getHosts() { return hosts; }
+        public void setHosts(List<String> hosts) { this.hosts = hosts; }
+
+        public List<Integer> getPorts() { return ports; }
+        public void setPorts(List<Integer> ports) { this.ports = ports; }
+
+        public String getPool() { return pool; }
+        public void setPool(String pool) { this.pool = pool; }
+    }
+
+    public static class UpstreamPoolConfig {
+        private String name;
+        // 负载均衡: "least-connections" 选未结束连接最少的, "ewma" 按连接耗时的滑动平均乘以未结束连接数选择
+        private String balance = "least-connections";
+        private List<UpstreamServerConfig> servers;
+
+        public UpstreamPoolConfig() {}
+
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+
+        public String getBalance() { return balance; }
+        public void setBalance(String balance) { this.balance = balance; }
+
+        public List<UpstreamServerConfig> getServers() { return servers; }
+        public void setServers(List<UpstreamServerConfig> servers) { this.servers = servers; }
+
+        public boolean isEwma() { return "ewma".equalsIgnoreCase(balance); }
+    }
+
+    public static class UpstreamServerConfig {
+        // "socks5" 或 "http" (HTTP CONNECT)
+        private String type = "socks5";
+        private String host;
+        private int port;
+        // 上游要求认证时的用户名和密码
+        private String username;
+        private String password;
+
+        public UpstreamServerConfig() {}
+
+        public String getType() { return type; }
+        public void setType(String type) { this.type = type; }
+
+        public String getHost() { return host; }
+        public void setHost(String host) { this.host = host; }
+
+        public int getPort() { return port; }
+        public void setPort(int port) { this.port = port; }
+
+        public String getUsername() { return username; }
+        public void setUsername(String username) { this.username = username; }
+
+        public String getPassword() { return password; }
+        public void setPassword(String password) { this.password = password; }
+
+        public boolean isHttp() { return "http".equalsIgnoreCase(type); }
+    }
+
+    public static class AclConfig {
+        // 没有规则命中时的动作: "allow" 或 "deny"
+        private String defaultAction = "allow";
+        // 按顺序排列, 第一条命中的规则生效
+        private List<AclRuleConfig> rules;
+
+        public AclConfig() {}
+
+        public String getDefaultAction() { return defaultAction; }
+        public void setDefaultAction(String defaultAction) { this.defaultAction = defaultAction; }
+
+        public List<AclRuleConfig> getRules() { return rules; }
+        public void setRules(List<AclRuleConfig> rules) { this.rules = rules; }
+    }
+
+    public static class AclRuleConfig {
+        // "allow" 或 "deny"
+        private String action;
+        // 规则适用的用户, 为空表示所有用户
+        private List<String> users;
+        // 目标匹配: "*" 任意目标, "*.example.com" 该域名及其子域名, "10.0.0.0/8" 网段, 其它为精确匹配.
+        // 为空表示任意目标
+        private List<String> hosts;
+        // 目标端口, 如 "443" 或 "8000-8999", 为空表示任意端口
+        private List<String> ports;
+        // 拒绝时的应答: "not-allowed" (默认), "network-unreachable", "host-unreachable", "refused"
+        private String reply;
+
+        public AclRuleConfig() {}
+
+        public String getAction() { return action; }
+        public void setAction(String action) { this.action = action; }
+
+        public List<String> getUsers() { return users; }
+        public void setUsers(List<String> users) { this.users = users; }
+
+        public List<String> getHosts() { return hosts; }
+        public void setHosts(List<String> hosts) { this.hosts = hosts; }
+
+        public List<String> getPorts() { return ports; }
+        public void setPorts(List<String> ports) { this.ports = ports; }
+
+        public String getReply() { return reply; }
+        public void setReply(String reply) { this.reply = reply; }
+    }
+
+    public static class AdminConfig {
+        // 开启后在 bind:port 的 /sessions 上查询和关闭活动连接, 只应监听本地地址
+        private boolean enabled;
+        private String bind = "127.0.0.1";
+        private int port = 9181;
+        // 计算每条连接吞吐量的采样间隔
+        private int sampleMillis = 1000;
+
+        public AdminConfig() {}
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+        public String getBind() { return bind; }
+        public void setBind(String bind) { this.bind = bind; }
+
+        public int getPort() { return port; }
+        public void setPort(int port) { this.port = port; }
+
+        public int getSampleMillis() { return sampleMillis; }
+        public void setSampleMillis(int sampleMillis) { this.sampleMillis = sampleMillis; }
+    }
+
+    public static class AuthConfig {
+        // CredentialStore 实现类的全名, 为空时使用 FileCredentialStore
+        private String store;
+        // 用户文件: JSON 数组, 或带 users 字段的对象. 为空时读取配置文件本身的 users 部分,
+        // 在代码中构造的配置则直接使用其中的 users, 不再重新加载
+        private String usersFile;
+        // 监视用户文件, 变化后自动重新加载
+        private boolean watch = true;
+        // 登录成功后在这段时间内同一口令不再重新计算散列, 0 表示不缓存
+        private int cacheTtlSeconds = 300;
+        private int cacheMaxEntries = 10000;
+        // 计算口令散列的线程数, 0 表示按 CPU 核数; 排队的校验超过 verifyQueueSize 时直接拒绝登录
+        private int verifyThreads;
+        private int verifyQueueSize = 256;
+
+        public AuthConfig() {}
+
+        public String getStore() { return store; }
+        public void setStore(String store) { this.store = store; }
+
+        public String getUsersFile() { return usersFile; }
+        public void setUsersFile(String usersFile) { this.usersFile = usersFile; }
+
+        public boolean isWatch() { return watch; }
+        public void setWatch(boolean watch) { this.watch = watch; }
+
+        public int getCacheTtlSeconds() { return cacheTtlSeconds; }
+        public void setCacheTtlSeconds(int cacheTtlSeconds) { this.cacheTtlSeconds = cacheTtlSeconds; }
+
+        public int getCacheMaxEntries() { return cacheMaxEntries; }
+        public void setCacheMaxEntries(int cacheMaxEntries) { this.cacheMaxEntries = cacheMaxEntries; }
+
+        public int getVerifyThreads() { return verifyThreads; }
+        public void setVerifyThreads(int verifyThreads) { this.verifyThreads = verifyThreads; }
+
+        public int getVerifyQueueSize() { return verifyQueueSize; }
+        public void setVerifyQueueSize(int verifyQueueSize) { this.verifyQueueSize = verifyQueueSize; }
+    }
+
+    public static class AccountingConfig {
+        // 开启后按用户把流量和连接数累计到内存映射的计数器文件中, 重启后继续累计
+        private boolean enabled;
+        private String file = "traffic.counters";
+        // 文件中的槽数, 每个用户 (及每个用户的每个目标主机) 占一个槽
+        private int slots = 65536;
+        // 同时按用户加目标主机计数
+        private boolean perDestination;
+        // 写回磁盘的间隔, 机器掉电时最多丢失这段时间的增量; 0 表示只在关闭时写回
+        private int flushMillis = 5000;
+        // 用户超出 quotaBytes 后关闭其正在转发的隧道, 否则只拒绝新的请求
+        private boolean cutOnQuota;
+
+        public AccountingConfig() {}
+
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+        public String getFile() { return file; }
+        public void setFile(String file) { this.file = file; }
+
+        public int getSlots() { return slots; }
+        public void setSlots(int slots) { this.slots = slots; }
+
+        public boolean isPerDestination() { return perDestination; }
+        public void setPerDestination(boolean perDestination) { this.perDestination = perDestination; }
+
+        public int getFlushMillis() { return flushMillis; }
+        public void setFlushMillis(int flushMillis) { this.flushMillis = flushMillis; }
+
+        public boolean isCutOnQuota() { return cutOnQuota; }
+        public void setCutOnQuota(boolean cutOnQuota) { this.cutOnQuota = cutOnQuota; }
     }
 
     public ServerConfig getServer() { return server; }
@@ -51,6 +704,51 @@ public class Config {
     public List<UserConfig> getUsers() { return users; }
     public void setUsers(List<UserConfig> users) { this.users = users; }
 
+    public DnsConfig getDns() { return dns; }
+    public void setDns(DnsConfig dns) { this.dns = dns; }
+
+    public ConnectConfig getConnect() { return connect; }
+    public void setConnect(ConnectConfig connect) { this.connect = connect; }
+
+    public PreconnectConfig getPreconnect() { return preconnect; }
+    public void setPreconnect(PreconnectConfig preconnect) { this.preconnect = preconnect; }
+
+    public UdpConfig getUdp() { return udp; }
+    public void setUdp(UdpConfig udp) { this.udp = udp; }
+
+    public MetricsConfig getMetrics() { return metrics; }
+    public void setMetrics(MetricsConfig metrics) { this.metrics = metrics; }
+
+    public LimitsConfig getLimits() { return limits; }
+    public void setLimits(LimitsConfig limits) { this.limits = limits; }
+
+    public AdmissionConfig getAdmission() { return admission; }
+    public void setAdmission(AdmissionConfig admission) { this.admission = admission; }
+
+    public AccessLogConfig getAccessLog() { return accessLog; }
+    public void setAccessLog(AccessLogConfig accessLog) { this.accessLog = accessLog; }
+
+    public TimeoutsConfig getTimeouts() { return timeouts; }
+    public void setTimeouts(TimeoutsConfig timeouts) { this.timeouts = timeouts; }
+
+    public UpstreamConfig getUpstream() { return upstream; }
+    public void setUpstream(UpstreamConfig upstream) { this.upstream = upstream; }
+
+    public AdminConfig getAdmin() { return admin; }
+    public void setAdmin(AdminConfig admin) { this.admin = admin; }
+
+    public AclConfig getAcl() { return acl; }
+    public void setAcl(AclConfig acl) { this.acl = acl; }
+
+    public AuthConfig getAuth() { return auth; }
+    public void setAuth(AuthConfig auth) { this.auth = auth; }
+
+    public AccountingConfig getAccounting() { return accounting; }
+    public void setAccounting(AccountingConfig accounting) { this.accounting = accounting; }
+
+    public Path getSource() { return source; }
+    public void setSource(Path source) { this.source = source; }
+
     public static Config load() throws IOException {
         ObjectMapper mapper = new ObjectMapper();
         Path configPath = Paths.get("config.json");
@@ -58,6 +756,7 @@ public class Config {
         try {
             String jsonContent = Files.readString(configPath);
             Config config = mapper.readValue(jsonContent, Config.class);
+            config.setSource(configPath);
             logger.info("Loaded config from: {}", configPath.toAbsolutePath());
             return config;
         } catch (Exception e) {
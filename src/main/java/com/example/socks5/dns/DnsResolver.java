@@ -0,0 +1,232 @@
+package com.example.socks5.dns;
+
+import com.example.socks5.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CONNECT 目标域名的缓存解析器.
+ * <ul>
+ *     <li>成功和失败的结果都按各自的 TTL 缓存</li>
+ *     <li>同一名字的并发查询合并为一次</li>
+ *     <li>在 TTL 最后一段时间内仍被命中的条目会在后台提前刷新, 调用方继续拿到旧结果</li>
+ * </ul>
+ * 实际查询交给 {@link NameLookup}, 在虚拟线程上执行, 不会阻塞调用方.
+ */
+public class DnsResolver implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DnsResolver.class);
+
+    private final NameLookup lookup;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long refreshAheadNanos;
+    private final int maxEntries;
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> inflight = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public DnsResolver(Config.DnsConfig config, NameLookup lookup) {
+        this.lookup = lookup;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(1, config.getCacheTtlSeconds()));
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, config.getNegativeTtlSeconds()));
+        int percent = Math.min(Math.max(config.getRefreshAheadPercent(), 0), 100);
+        this.refreshAheadNanos = ttlNanos / 100 * percent;
+        this.maxEntries = Math.max(1, config.getMaxEntries());
+    }
+
+    public static DnsResolver create(Config.DnsConfig config) throws UnknownHostException {
+        NameLookup lookup = NameLookup.SYSTEM;
+        if (config.getHosts() != null && !config.getHosts().isEmpty()) {
+            lookup = new StaticNameLookup(config.getHosts(), NameLookup.SYSTEM);
+            logger.info("Loaded {} static DNS entries", config.getHosts().size());
+        }
+        return new DnsResolver(config, lookup);
+    }
+
+    /**
+     * 阻塞解析, 命中缓存时直接返回. 供每连接一个线程的处理器使用.
+     */
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        String key = host.toLowerCase(Locale.ROOT);
+        Entry entry = cached(key);
+        if (entry == null) {
+            try {
+                entry = load(key).join();
+            } catch (CompletionException e) {
+                throw new UnknownHostException(host + ": " + e.getCause());
+            }
+        }
+        if (entry.failure != null) {
+            throw entry.failure;
+        }
+        return entry.addresses;
+    }
+
+    /**
+     * 异步解析, 结果在查询线程上完成; 命中缓存时返回已完成的 future.
+     */
+    public CompletableFuture<List<InetAddress>> resolveAsync(String host) {
+        String key = host.toLowerCase(Locale.ROOT);
+        Entry entry = cached(key);
+        if (entry != null) {
+            return entry.failure != null
+                    ? CompletableFuture.failedFuture(entry.failure)
+                    : CompletableFuture.completedFuture(entry.addresses);
+        }
+        return load(key).thenCompose(e -> e.failure != null
+                ? CompletableFuture.failedFuture(e.failure)
+                : CompletableFuture.completedFuture(e.addresses));
+    }
+
+    private Entry cached(String key) {
+        Entry entry = cache.get(key);
+        long now = System.nanoTime();
+        if (entry == null || now - entry.expiresAt >= 0) {
+            misses.increment();
+            return null;
+        }
+        if (entry.failure != null) {
+            negativeHits.increment();
+            return entry;
+        }
+        hits.increment();
+        if (now - entry.refreshAt >= 0 && !entry.refreshing) {
+            // 热点条目在过期前后台刷新
+            entry.refreshing = true;
+            refreshes.increment();
+            load(key);
+        }
+        return entry;
+    }
+
+    private CompletableFuture<Entry> load(String key) {
+        CompletableFuture<Entry> future = inflight.get(key);
+        if (future != null) {
+            coalesced.increment();
+            return future;
+        }
+        CompletableFuture<Entry> created = new CompletableFuture<>();
+        future = inflight.putIfAbsent(key, created);
+        if (future != null) {
+            coalesced.increment();
+            return future;
+        }
+        try {
+            executor.execute(() -> {
+                Entry entry = query(key);
+                store(key, entry);
+                inflight.remove(key, created);
+                created.complete(entry);
+            });
+        } catch (RejectedExecutionException e) {
+            inflight.remove(key, created);
+            created.complete(new Entry(null, new UnknownHostException(key + ": resolver closed"), 0, 0));
+        }
+        return created;
+    }
+
+    private Entry query(String key) {
+        long start = System.nanoTime();
+        try {
+            List<InetAddress> addresses = List.of(lookup.lookup(key));
+            if (addresses.isEmpty()) {
+                throw new UnknownHostException(key);
+            }
+            long now = System.nanoTime();
+            logger.debug("Resolved {} to {} in {}ms", key, addresses, TimeUnit.NANOSECONDS.toMillis(now - start));
+            return new Entry(addresses, null, now + ttlNanos, now + ttlNanos - refreshAheadNanos);
+        } catch (UnknownHostException e) {
+            failures.increment();
+            long now = System.nanoTime();
+            logger.debug("Failed to resolve {}: {}", key, e.getMessage());
+            return new Entry(null, e, now + negativeTtlNanos, Long.MAX_VALUE);
+        } catch (RuntimeException e) {
+            failures.increment();
+            UnknownHostException failure = new UnknownHostException(key + ": " + e.getMessage());
+            long now = System.nanoTime();
+            return new Entry(null, failure, now + negativeTtlNanos, Long.MAX_VALUE);
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        if (entry.failure != null) {
+            // 刷新失败时保留仍然有效的旧结果, 让它自然过期
+            Entry previous = cache.get(key);
+            if (previous != null && previous.failure == null && System.nanoTime() - previous.expiresAt < 0) {
+                return;
+            }
+        }
+        cache.put(key, entry);
+        if (cache.size() > maxEntries) {
+            trim();
+        }
+    }
+
+    private void trim() {
+        long now = System.nanoTime();
+        cache.values().removeIf(e -> now - e.expiresAt >= 0);
+        Iterator<String> it = cache.keySet().iterator();
+        while (cache.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public long getHits() { return hits.sum(); }
+
+    public long getNegativeHits() { return negativeHits.sum(); }
+
+    public long getMisses() { return misses.sum(); }
+
+    public long getCoalesced() { return coalesced.sum(); }
+
+    public long getRefreshes() { return refreshes.sum(); }
+
+    public long getFailures() { return failures.sum(); }
+
+    public int getSize() { return cache.size(); }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        logger.info("DNS cache stats: {} hits, {} negative hits, {} misses, {} coalesced, {} refreshes, {} failures",
+                getHits(), getNegativeHits(), getMisses(), getCoalesced(), getRefreshes(), getFailures());
+    }
+
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        final UnknownHostException failure;
+        final long expiresAt;
+        final long refreshAt;
+        volatile boolean refreshing;
+
+        Entry(List<InetAddress> addresses, UnknownHostException failure, long expiresAt, long refreshAt) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
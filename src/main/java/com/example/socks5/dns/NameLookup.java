@@ -0,0 +1,14 @@
+package com.example.socks5.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * 实际执行域名查询的后端. 默认使用 JDK 系统解析器, 测试时可以换成本地的替身实现.
+ */
+@FunctionalInterface
+public interface NameLookup {
+    NameLookup SYSTEM = InetAddress::getAllByName;
+
+    InetAddress[] lookup(String host) throws UnknownHostException;
+}
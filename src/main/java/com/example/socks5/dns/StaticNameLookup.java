@@ -0,0 +1,60 @@
+package com.example.socks5.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 固定主机表, 表中没有的名字交给下一级查询. 用于配置里的 hosts 覆盖以及本地测试.
+ */
+public class StaticNameLookup implements NameLookup {
+    private final Map<String, InetAddress[]> hosts = new HashMap<>();
+    private final NameLookup fallback;
+
+    public StaticNameLookup(Map<String, List<String>> entries, NameLookup fallback) throws UnknownHostException {
+        this.fallback = fallback;
+        for (Map.Entry<String, List<String>> entry : entries.entrySet()) {
+            List<String> literals = entry.getValue();
+            InetAddress[] addresses = new InetAddress[literals.size()];
+            for (int i = 0; i < addresses.length; i++) {
+                String literal = literals.get(i);
+                // 只接受 IP 字面量, 这样 getByName 不会触发查询
+                if (!isLiteral(literal)) {
+                    throw new UnknownHostException("Not an IP literal for " + entry.getKey() + ": " + literal);
+                }
+                addresses[i] = InetAddress.getByName(literal);
+            }
+            hosts.put(entry.getKey().toLowerCase(Locale.ROOT), addresses);
+        }
+    }
+
+    @Override
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        InetAddress[] addresses = hosts.get(host.toLowerCase(Locale.ROOT));
+        if (addresses != null) {
+            return addresses.clone();
+        }
+        if (fallback == null) {
+            throw new UnknownHostException(host);
+        }
+        return fallback.lookup(host);
+    }
+
+    private static boolean isLiteral(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        // IPv6 允许十六进制数字, IPv4 只允许十进制数字
+        int radix = s.indexOf(':') >= 0 ? 16 : 10;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '.' && c != ':' && Character.digit(c, radix) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
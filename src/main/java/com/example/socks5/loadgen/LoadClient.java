@@ -0,0 +1,254 @@
+package com.example.socks5.loadgen;
+
+import com.example.socks5.server.codec.Socks5Codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 一个压测客户端: 按 RFC 1929 认证后 CONNECT 到目标, 按模式收发数据,
+ * 隧道寿命到期后关闭并重新连接, 直到压测结束.
+ */
+public class LoadClient implements Runnable {
+    // 失败后稍等再重连, 避免代理拒绝服务时空转
+    private static final long FAILURE_BACKOFF_MILLIS = 100;
+
+    private final LoadOptions options;
+    private final LoadStats stats;
+    private final Set<Closeable> sockets;
+    private final BooleanSupplier running;
+    private final long startDelayMillis;
+
+    private final byte[] greeting;
+    private final byte[] auth;
+    private final byte[] request;
+    private final byte[] payload;
+    private final byte[] readBuffer;
+
+    public LoadClient(LoadOptions options, int targetPort, LoadStats stats, Set<Closeable> sockets,
+                      BooleanSupplier running, long startDelayMillis) {
+        this.options = options;
+        this.stats = stats;
+        this.sockets = sockets;
+        this.running = running;
+        this.startDelayMillis = startDelayMillis;
+
+        this.greeting = new byte[]{Socks5Codec.VERSION, 1, Socks5Codec.METHOD_USER_PASS};
+        this.auth = authFrame(options.getUsername(), options.getPassword());
+        this.request = requestFrame(options.getTargetHost(), targetPort);
+        this.payload = new byte[options.getPayloadSize()];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        this.readBuffer = new byte[Math.max(options.getPayloadSize(), 16384)];
+    }
+
+    private static byte[] authFrame(String username, String password) {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        byte[] pwd = password.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(Socks5Codec.AUTH_VERSION);
+        frame.write(user.length);
+        frame.writeBytes(user);
+        frame.write(pwd.length);
+        frame.writeBytes(pwd);
+        return frame.toByteArray();
+    }
+
+    private static byte[] requestFrame(String host, int port) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.writeBytes(new byte[]{Socks5Codec.VERSION, Socks5Codec.CMD_CONNECT, 0x00});
+        byte[] literal = ipLiteral(host);
+        if (literal != null) {
+            frame.write(literal.length == 4 ? Socks5Codec.ATYP_IPV4 : Socks5Codec.ATYP_IPV6);
+            frame.writeBytes(literal);
+        } else {
+            // 域名交给代理解析
+            byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+            frame.write(Socks5Codec.ATYP_DOMAIN);
+            frame.write(name.length);
+            frame.writeBytes(name);
+        }
+        frame.write(port >> 8);
+        frame.write(port);
+        return frame.toByteArray();
+    }
+
+    private static byte[] ipLiteral(String host) {
+        if (!host.matches("[0-9.]+") && !host.contains(":")) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(host).getAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(startDelayMillis);
+            while (running.getAsBoolean()) {
+                if (!runTunnel()) {
+                    Thread.sleep(FAILURE_BACKOFF_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 建立一条隧道并按模式使用到寿命结束, 失败时返回 false
+    private boolean runTunnel() {
+        LoadStats.Stage stage = LoadStats.Stage.CONNECT;
+        boolean opened = false;
+        long start = System.nanoTime();
+        Closeable socket = null;
+        try {
+            InputStream in;
+            OutputStream out;
+            if (options.getProxy() instanceof UnixDomainSocketAddress unix) {
+                // Unix 域套接字没有 SO_TIMEOUT, 不设读超时
+                SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+                socket = channel;
+                sockets.add(channel);
+                channel.connect(unix);
+                in = Channels.newInputStream(channel);
+                out = Channels.newOutputStream(channel);
+            } else {
+                Socket tcp = new Socket();
+                socket = tcp;
+                sockets.add(tcp);
+                tcp.setTcpNoDelay(true);
+                tcp.setSoTimeout(options.getTimeoutMillis());
+                tcp.connect(options.getProxy(), options.getTimeoutMillis());
+                in = tcp.getInputStream();
+                out = tcp.getOutputStream();
+            }
+
+            stage = LoadStats.Stage.HANDSHAKE;
+            handshake(in, out);
+            stats.tunnelOpened(start);
+            opened = true;
+
+            stage = LoadStats.Stage.RELAY;
+            transfer(in, out, start);
+            return true;
+        } catch (IOException e) {
+            // 压测结束时强制关闭的连接不算失败
+            if (running.getAsBoolean()) {
+                stats.failed(stage, e instanceof SocketTimeoutException);
+            }
+            return false;
+        } finally {
+            if (opened) {
+                stats.tunnelClosed();
+            }
+            if (socket != null) {
+                sockets.remove(socket);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // 忽略
+                }
+            }
+        }
+    }
+
+    private void handshake(InputStream in, OutputStream out) throws IOException {
+        out.write(greeting);
+        readFully(in, 2);
+        if (readBuffer[1] != Socks5Codec.METHOD_USER_PASS) {
+            throw new IOException("Proxy refused username/password authentication");
+        }
+        out.write(auth);
+        readFully(in, 2);
+        if (readBuffer[1] != 0x00) {
+            throw new IOException("Proxy rejected credentials");
+        }
+        out.write(request);
+        readFully(in, 5);
+        if (readBuffer[1] != Socks5Codec.REP_SUCCEEDED) {
+            throw new IOException("CONNECT failed with reply " + readBuffer[1]);
+        }
+        // 应答中绑定地址的剩余部分
+        int rest = switch (readBuffer[3]) {
+            case Socks5Codec.ATYP_IPV4 -> 4 - 1 + 2;
+            case Socks5Codec.ATYP_IPV6 -> 16 - 1 + 2;
+            case Socks5Codec.ATYP_DOMAIN -> (readBuffer[4] & 0xFF) + 2;
+            default -> throw new IOException("Invalid address type in reply: " + readBuffer[3]);
+        };
+        readFully(in, rest);
+    }
+
+    private void transfer(InputStream in, OutputStream out, long start) throws IOException {
+        long deadline = options.getLifetimeMillis() > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.getLifetimeMillis()) : Long.MAX_VALUE;
+        boolean first = true;
+        while (running.getAsBoolean() && System.nanoTime() - deadline < 0) {
+            switch (options.getMode()) {
+                case ECHO -> {
+                    out.write(payload);
+                    stats.sent(payload.length);
+                    int remaining = payload.length;
+                    while (remaining > 0) {
+                        int n = read(in, Math.min(remaining, readBuffer.length));
+                        if (first) {
+                            stats.firstByte(start);
+                            first = false;
+                        }
+                        stats.received(n);
+                        remaining -= n;
+                    }
+                }
+                case SINK -> {
+                    out.write(payload);
+                    stats.sent(payload.length);
+                }
+                case SOURCE -> {
+                    int n = read(in, readBuffer.length);
+                    if (first) {
+                        stats.firstByte(start);
+                        first = false;
+                    }
+                    stats.received(n);
+                }
+            }
+        }
+    }
+
+    private int read(InputStream in, int max) throws IOException {
+        int n = in.read(readBuffer, 0, max);
+        if (n < 0) {
+            throw new EOFException("Tunnel closed by proxy");
+        }
+        return n;
+    }
+
+    private void readFully(InputStream in, int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            int n = in.read(readBuffer, off, length - off);
+            if (n < 0) {
+                throw new EOFException("Connection closed by proxy during handshake");
+            }
+            off += n;
+        }
+    }
+}
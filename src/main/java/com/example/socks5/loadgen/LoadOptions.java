@@ -0,0 +1,135 @@
+package com.example.socks5.loadgen;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.util.Locale;
+
+/**
+ * 压测参数, 由命令行的 --name=value 解析得到.
+ */
+public class LoadOptions {
+    public static final String USAGE = """
+            Usage: java -cp socks5-proxy-0.0.1-jar-with-dependencies.jar com.example.socks5.LoadGenerator [options]
+              --proxy=host:port    proxy to test; default starts one in-process from config.json
+              --proxy=unix:PATH    proxy listening on a Unix domain socket (server.unixListeners)
+              --user=name:pwd      credentials; default the first user in config.json
+              --mode=echo|sink|source
+                                   echo: write a payload and wait for it to come back
+                                   sink: write only; source: read only   (default echo)
+              --connections=N      concurrent clients                    (default 1000)
+              --ramp=SECONDS       spread client start-up over this time (default 0)
+              --duration=SECONDS   length of the run                     (default 30)
+              --payload=BYTES      bytes per write                       (default 1024)
+              --lifetime=MILLIS    close and reconnect after this long, 0 keeps tunnels open (default 0)
+              --target-host=HOST   address or name sent in CONNECT; names go through the proxy's
+                                   resolver                              (default 127.0.0.1)
+              --timeout=MILLIS     connect and read timeout, TCP only    (default 10000)
+            """;
+
+    public enum Mode { ECHO, SINK, SOURCE }
+
+    // null 表示在进程内启动代理; 否则为 InetSocketAddress 或 UnixDomainSocketAddress
+    private SocketAddress proxy;
+    private String username;
+    private String password;
+    private Mode mode = Mode.ECHO;
+    private int connections = 1000;
+    private int rampSeconds;
+    private int durationSeconds = 30;
+    private int payloadSize = 1024;
+    private int lifetimeMillis;
+    private String targetHost = "127.0.0.1";
+    private int timeoutMillis = 10000;
+
+    public static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "proxy" -> options.proxy = parseAddress(value);
+                case "user" -> {
+                    int colon = value.indexOf(':');
+                    if (colon < 0) {
+                        throw new IllegalArgumentException("--user must be name:password");
+                    }
+                    options.username = value.substring(0, colon);
+                    options.password = value.substring(colon + 1);
+                }
+                case "mode" -> options.mode = Mode.valueOf(value.toUpperCase(Locale.ROOT));
+                case "connections" -> options.connections = positive(name, value);
+                case "ramp" -> options.rampSeconds = nonNegative(name, value);
+                case "duration" -> options.durationSeconds = positive(name, value);
+                case "payload" -> options.payloadSize = positive(name, value);
+                case "lifetime" -> options.lifetimeMillis = nonNegative(name, value);
+                case "target-host" -> options.targetHost = value;
+                case "timeout" -> options.timeoutMillis = positive(name, value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return options;
+    }
+
+    private static SocketAddress parseAddress(String value) {
+        if (value.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(value.substring("unix:".length()));
+        }
+        int colon = value.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("--proxy must be host:port");
+        }
+        String host = value.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new InetSocketAddress(host, Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    private static int positive(String name, String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) {
+            throw new IllegalArgumentException("--" + name + " must be positive: " + value);
+        }
+        return n;
+    }
+
+    private static int nonNegative(String name, String value) {
+        int n = Integer.parseInt(value);
+        if (n < 0) {
+            throw new IllegalArgumentException("--" + name + " must not be negative: " + value);
+        }
+        return n;
+    }
+
+    public SocketAddress getProxy() { return proxy; }
+    public void setProxy(SocketAddress proxy) { this.proxy = proxy; }
+
+    public String getUsername() { return username; }
+    public String getPassword() { return password; }
+
+    public void setCredentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    public Mode getMode() { return mode; }
+
+    public int getConnections() { return connections; }
+
+    public int getRampSeconds() { return rampSeconds; }
+
+    public int getDurationSeconds() { return durationSeconds; }
+
+    public int getPayloadSize() { return payloadSize; }
+
+    public int getLifetimeMillis() { return lifetimeMillis; }
+
+    public String getTargetHost() { return targetHost; }
+
+    public int getTimeoutMillis() { return timeoutMillis; }
+}
@@ -0,0 +1,76 @@
+package com.example.socks5.loadgen;
+
+import com.example.socks5.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压测客户端共享的计数器, 由报告线程每秒读取一次.
+ */
+public class LoadStats {
+    /** 失败发生的阶段 */
+    public enum Stage { CONNECT, HANDSHAKE, RELAY }
+
+    /** 从开始连接代理到收到 CONNECT 成功应答 */
+    private final LatencyHistogram handshake = new LatencyHistogram();
+    /** 从开始连接代理到收到目标发回的第一个字节 */
+    private final LatencyHistogram firstByte = new LatencyHistogram();
+
+    private final LongAdder tunnels = new LongAdder();
+    private final LongAdder activeTunnels = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder[] failures = new LongAdder[Stage.values().length];
+
+    public LoadStats() {
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new LongAdder();
+        }
+    }
+
+    void tunnelOpened(long startNanos) {
+        handshake.recordSince(startNanos);
+        tunnels.increment();
+        activeTunnels.increment();
+    }
+
+    void tunnelClosed() { activeTunnels.decrement(); }
+
+    void firstByte(long startNanos) { firstByte.recordSince(startNanos); }
+
+    void sent(int n) { bytesSent.add(n); }
+
+    void received(int n) { bytesReceived.add(n); }
+
+    void failed(Stage stage, boolean timeout) {
+        failures[stage.ordinal()].increment();
+        if (timeout) {
+            timeouts.increment();
+        }
+    }
+
+    public LatencyHistogram getHandshakeHistogram() { return handshake; }
+
+    public LatencyHistogram getFirstByteHistogram() { return firstByte; }
+
+    public long getTunnels() { return tunnels.sum(); }
+
+    public long getActiveTunnels() { return activeTunnels.sum(); }
+
+    public long getBytesSent() { return bytesSent.sum(); }
+
+    public long getBytesReceived() { return bytesReceived.sum(); }
+
+    public long getTimeouts() { return timeouts.sum(); }
+
+    public long getFailures(Stage stage) { return failures[stage.ordinal()].sum(); }
+
+    public long getFailures() {
+        long total = 0;
+        for (LongAdder f : failures) {
+            total += f.sum();
+        }
+        return total;
+    }
+}
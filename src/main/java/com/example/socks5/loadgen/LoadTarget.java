@@ -0,0 +1,116 @@
+package com.example.socks5.loadgen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 压测用的回环目标服务器, 每种模式监听一个端口, 每个连接一个虚拟线程:
+ * echo 原样发回, sink 只读不写, source 不停发送.
+ */
+public class LoadTarget implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(LoadTarget.class);
+
+    private static final int BUFFER_SIZE = 16384;
+
+    private final ServerSocketChannel[] listeners = new ServerSocketChannel[LoadOptions.Mode.values().length];
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private final ByteBuffer sourceData;
+    private volatile boolean running = true;
+
+    public LoadTarget(InetAddress bindAddress, int payloadSize) throws IOException {
+        byte[] data = new byte[Math.max(payloadSize, 1)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        this.sourceData = ByteBuffer.wrap(data).asReadOnlyBuffer();
+
+        for (LoadOptions.Mode mode : LoadOptions.Mode.values()) {
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(bindAddress, 0), 4096);
+            listeners[mode.ordinal()] = listener;
+            Thread.ofVirtual().name("load-target-" + mode.name().toLowerCase()).start(() -> acceptLoop(listener, mode));
+        }
+    }
+
+    public int getPort(LoadOptions.Mode mode) {
+        return listeners[mode.ordinal()].socket().getLocalPort();
+    }
+
+    private void acceptLoop(ServerSocketChannel listener, LoadOptions.Mode mode) {
+        while (running) {
+            try {
+                SocketChannel channel = listener.accept();
+                connections.add(channel);
+                Thread.ofVirtual().start(() -> serve(channel, mode));
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Load target failed to accept: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel, LoadOptions.Mode mode) {
+        try (channel) {
+            switch (mode) {
+                case ECHO -> {
+                    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    while (channel.read(buffer) >= 0) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                }
+                case SINK -> {
+                    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    while (channel.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                }
+                case SOURCE -> {
+                    ByteBuffer data = sourceData.duplicate();
+                    while (true) {
+                        data.rewind();
+                        while (data.hasRemaining()) {
+                            channel.write(data);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // 客户端断开
+        } finally {
+            connections.remove(channel);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                logger.debug("Error closing load target listener: {}", e.getMessage());
+            }
+        }
+        for (SocketChannel channel : connections) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing load target connection: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.socks5.metrics;
+
+import com.example.socks5.server.limit.AdmissionControl;
+import com.example.socks5.server.timeout.TunnelTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热路径上的计数器和延迟直方图. 两种引擎在各阶段边界调用这里的方法, 代价只是
+ * 一次 nanoTime 和若干次 {@link LongAdder} 累加, 可以在生产环境常开.
+ * 同时作为 MXBean 注册到 JMX.
+ */
+public class Metrics implements Socks5MetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+    public static final String OBJECT_NAME = "com.example.socks5:type=Metrics";
+
+    // SOCKS5 应答码 0x01 - 0x08
+    private static final int MAX_REPLY_CODE = 8;
+
+    /** 从接受连接到解析出请求, 包括客户端的往返时间 */
+    private final LatencyHistogram handshake = new LatencyHistogram();
+    /** 校验用户名密码的耗时 */
+    private final LatencyHistogram auth = new LatencyHistogram();
+    /** 域名目标的解析耗时, 包括命中缓存的情况 */
+    private final LatencyHistogram dns = new LatencyHistogram();
+    /** 与目标建立连接的耗时, 包括取用预建连接 */
+    private final LatencyHistogram connect = new LatencyHistogram();
+
+    private final LongAdder accepted = new LongAdder();
+    // 监听地址 (host:port) 到该地址上接受的连接数
+    private final Map<String, LongAdder> listenerAccepts = new ConcurrentSkipListMap<>();
+    private final LongAdder activeTunnels = new LongAdder();
+    private final LongAdder tunnels = new LongAdder();
+    private final LongAdder bytesUpstream = new LongAdder();
+    private final LongAdder bytesDownstream = new LongAdder();
+    private final LongAdder authFailures = new LongAdder();
+    private final LongAdder[] replyFailures = new LongAdder[MAX_REPLY_CODE + 1];
+    private final LongAdder[] shed = new LongAdder[AdmissionControl.ShedReason.values().length];
+    private final LongAdder handshakeTimeouts = new LongAdder();
+    private final LongAdder[] tunnelTimeouts = new LongAdder[TunnelTimer.Reason.values().length];
+
+    // 接受速率按读取间隔计算
+    private long rateSampledAt = System.nanoTime();
+    private long rateSampledCount;
+    private double acceptRate;
+
+    public Metrics() {
+        for (int i = 0; i < replyFailures.length; i++) {
+            replyFailures[i] = new LongAdder();
+        }
+        for (int i = 0; i < shed.length; i++) {
+            shed[i] = new LongAdder();
+        }
+        for (int i = 0; i < tunnelTimeouts.length; i++) {
+            tunnelTimeouts[i] = new LongAdder();
+        }
+    }
+
+    // ---------------------------------------------------------------- 记录
+
+    public void connectionAccepted() { accepted.increment(); }
+
+    /**
+     * 一个监听地址的接受计数器, 由该地址的接收线程直接累加.
+     */
+    public LongAdder listenerAccepts(String listener) {
+        return listenerAccepts.computeIfAbsent(listener, k -> new LongAdder());
+    }
+
+    /**
+     * 准入控制在接收线程上直接拒绝了一条连接.
+     */
+    public void connectionShed(AdmissionControl.ShedReason reason) { shed[reason.ordinal()].increment(); }
+
+    /**
+     * 客户端没有在握手时限内发完请求.
+     */
+    public void handshakeTimedOut() { handshakeTimeouts.increment(); }
+
+    /**
+     * 时间轮回收了一条超时的隧道.
+     */
+    public void tunnelExpired(TunnelTimer.Reason reason) { tunnelTimeouts[reason.ordinal()].increment(); }
+
+    public void recordHandshake(long startNanos) { handshake.recordSince(startNanos); }
+
+    public void recordAuth(long startNanos, boolean success) {
+        auth.recordSince(startNanos);
+        if (!success) {
+            authFailures.increment();
+        }
+    }
+
+    public void recordDns(long startNanos) { dns.recordSince(startNanos); }
+
+    public void recordConnect(long startNanos) { connect.recordSince(startNanos); }
+
+    /**
+     * 给客户端回复了失败的请求应答.
+     */
+    public void requestFailed(int replyCode) {
+        if (replyCode > 0 && replyCode <= MAX_REPLY_CODE) {
+            replyFailures[replyCode].increment();
+        }
+    }
+
+    public void tunnelOpened() {
+        tunnels.increment();
+        activeTunnels.increment();
+    }
+
+    public void tunnelClosed() { activeTunnels.decrement(); }
+
+    /**
+     * 转发的字节数, upstream 为客户端到目标方向.
+     */
+    public void addBytes(boolean upstream, long n) {
+        (upstream ? bytesUpstream : bytesDownstream).add(n);
+    }
+
+    // ---------------------------------------------------------------- 读取
+
+    public LatencyHistogram getHandshakeHistogram() { return handshake; }
+
+    public LatencyHistogram getAuthHistogram() { return auth; }
+
+    public LatencyHistogram getDnsHistogram() { return dns; }
+
+    public LatencyHistogram getConnectHistogram() { return connect; }
+
+    @Override
+    public long getAcceptedConnections() { return accepted.sum(); }
+
+    @Override
+    public Map<String, Long> getListenerAcceptedConnections() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        listenerAccepts.forEach((listener, count) -> counts.put(listener, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public synchronized double getAcceptRate() {
+        long now = System.nanoTime();
+        long elapsed = now - rateSampledAt;
+        if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+            long count = accepted.sum();
+            acceptRate = (count - rateSampledCount) * 1e9 / elapsed;
+            rateSampledCount = count;
+            rateSampledAt = now;
+        }
+        return acceptRate;
+    }
+
+    @Override
+    public long getActiveTunnels() { return activeTunnels.sum(); }
+
+    @Override
+    public long getTotalTunnels() { return tunnels.sum(); }
+
+    @Override
+    public long getBytesUpstream() { return bytesUpstream.sum(); }
+
+    @Override
+    public long getBytesDownstream() { return bytesDownstream.sum(); }
+
+    @Override
+    public long getAuthFailures() { return authFailures.sum(); }
+
+    @Override
+    public Map<String, Long> getRequestFailures() {
+        Map<String, Long> failures = new LinkedHashMap<>();
+        for (int code = 1; code <= MAX_REPLY_CODE; code++) {
+            failures.put(replyCodeLabel(code), replyFailures[code].sum());
+        }
+        return failures;
+    }
+
+    @Override
+    public Map<String, Long> getShedConnections() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (AdmissionControl.ShedReason reason : AdmissionControl.ShedReason.values()) {
+            counts.put(shedReasonLabel(reason), shed[reason.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getHandshakeTimeouts() { return handshakeTimeouts.sum(); }
+
+    @Override
+    public Map<String, Long> getTunnelTimeouts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (TunnelTimer.Reason reason : TunnelTimer.Reason.values()) {
+            counts.put(timeoutReasonLabel(reason), tunnelTimeouts[reason.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public LatencySummary getHandshakeLatency() { return LatencySummary.of(handshake); }
+
+    @Override
+    public LatencySummary getAuthLatency() { return LatencySummary.of(auth); }
+
+    @Override
+    public LatencySummary getDnsLatency() { return LatencySummary.of(dns); }
+
+    @Override
+    public LatencySummary getConnectLatency() { return LatencySummary.of(connect); }
+
+    static String replyCodeLabel(int code) {
+        return String.format("0x%02x", code);
+    }
+
+    static String shedReasonLabel(AdmissionControl.ShedReason reason) {
+        return reason.name().toLowerCase(Locale.ROOT);
+    }
+
+    static String timeoutReasonLabel(TunnelTimer.Reason reason) {
+        return reason.name().toLowerCase(Locale.ROOT);
+    }
+
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            logger.warn("Failed to register metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.debug("Failed to unregister metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * JMX 中一个直方图的摘要, 单位毫秒.
+     */
+    public static final class LatencySummary {
+        private final long count;
+        private final double p50;
+        private final double p99;
+        private final double p999;
+
+        LatencySummary(long count, double p50, double p99, double p999) {
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+        }
+
+        static LatencySummary of(LatencyHistogram histogram) {
+            LatencyHistogram.Snapshot s = histogram.snapshot();
+            return new LatencySummary(s.getCount(), s.quantileSeconds(0.5) * 1000,
+                    s.quantileSeconds(0.99) * 1000, s.quantileSeconds(0.999) * 1000);
+        }
+
+        public long getCount() { return count; }
+
+        public double getP50Millis() { return p50; }
+
+        public double getP99Millis() { return p99; }
+
+        public double getP999Millis() { return p999; }
+    }
+}
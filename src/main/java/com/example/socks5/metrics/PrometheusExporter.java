@@ -0,0 +1,257 @@
+package com.example.socks5.metrics;
+
+import com.example.socks5.accesslog.AccessLog;
+import com.example.socks5.auth.Authenticator;
+import com.example.socks5.config.Config;
+import com.example.socks5.dns.DnsResolver;
+import com.example.socks5.server.ServerContext;
+import com.example.socks5.server.buffer.BufferPool;
+import com.example.socks5.server.connect.EgressSelector;
+import com.example.socks5.server.connect.PreconnectPool;
+import com.example.socks5.server.limit.AdmissionControl;
+import com.example.socks5.server.upstream.UpstreamPool;
+import com.example.socks5.server.upstream.UpstreamProxy;
+import com.example.socks5.server.upstream.UpstreamRouter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 在本地 HTTP 端口的 /metrics 上以 Prometheus 文本格式输出指标.
+ * 延迟以 summary 形式给出 p50/p99/p999, 分位数按启动以来的全部记录计算.
+ */
+public final class PrometheusExporter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(PrometheusExporter.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final ServerContext context;
+    private final HttpServer server;
+
+    public PrometheusExporter(Config.MetricsConfig config, ServerContext context) throws IOException {
+        this.context = context;
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(config.getBind()), config.getPort());
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        logger.info("Metrics endpoint listening on http://{}:{}/metrics", config.getBind(),
+                server.getAddress().getPort());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    String scrape() {
+        Metrics metrics = context.getMetrics();
+        StringBuilder sb = new StringBuilder(4096);
+
+        counter(sb, "socks5_connections_accepted_total", "Accepted client connections", metrics.getAcceptedConnections());
+        header(sb, "socks5_listener_connections_accepted_total", "Accepted client connections by listener", "counter");
+        for (Map.Entry<String, Long> e : metrics.getListenerAcceptedConnections().entrySet()) {
+            sample(sb, "socks5_listener_connections_accepted_total{listener=\"" + e.getKey() + "\"}", e.getValue());
+        }
+        gauge(sb, "socks5_accept_rate", "Accepted connections per second since the previous scrape", metrics.getAcceptRate());
+        gauge(sb, "socks5_tunnels_active", "Tunnels currently relaying data", metrics.getActiveTunnels());
+        counter(sb, "socks5_tunnels_total", "Tunnels opened", metrics.getTotalTunnels());
+
+        header(sb, "socks5_relay_bytes_total", "Bytes relayed through tunnels", "counter");
+        sample(sb, "socks5_relay_bytes_total{direction=\"upstream\"}", metrics.getBytesUpstream());
+        sample(sb, "socks5_relay_bytes_total{direction=\"downstream\"}", metrics.getBytesDownstream());
+
+        counter(sb, "socks5_auth_failures_total", "Rejected username/password logins", metrics.getAuthFailures());
+        header(sb, "socks5_request_failures_total", "Failed requests by SOCKS5 reply code", "counter");
+        for (Map.Entry<String, Long> e : metrics.getRequestFailures().entrySet()) {
+            sample(sb, "socks5_request_failures_total{code=\"" + e.getKey() + "\"}", e.getValue());
+        }
+
+        AdmissionControl admission = context.getAdmissionControl();
+        gauge(sb, "socks5_connections_open", "Admitted client connections not yet closed", admission.getConnections());
+        gauge(sb, "socks5_handshakes_in_flight", "Admitted connections that have not sent a request yet",
+                admission.getHandshakes());
+        header(sb, "socks5_connections_shed_total", "Connections rejected at accept by admission control", "counter");
+        for (Map.Entry<String, Long> e : metrics.getShedConnections().entrySet()) {
+            sample(sb, "socks5_connections_shed_total{reason=\"" + e.getKey() + "\"}", e.getValue());
+        }
+        counter(sb, "socks5_handshake_timeouts_total", "Connections closed for not finishing the handshake in time",
+                metrics.getHandshakeTimeouts());
+        header(sb, "socks5_tunnel_timeouts_total", "Tunnels closed by the idle, lifetime or half-close timeout",
+                "counter");
+        for (Map.Entry<String, Long> e : metrics.getTunnelTimeouts().entrySet()) {
+            sample(sb, "socks5_tunnel_timeouts_total{reason=\"" + e.getKey() + "\"}", e.getValue());
+        }
+
+        summary(sb, "socks5_handshake_seconds", "Time from accept until the request is parsed",
+                metrics.getHandshakeHistogram());
+        summary(sb, "socks5_auth_seconds", "Time spent checking credentials", metrics.getAuthHistogram());
+        summary(sb, "socks5_dns_seconds", "Time to resolve domain targets, cache hits included",
+                metrics.getDnsHistogram());
+        summary(sb, "socks5_connect_seconds", "Time to get a connected upstream socket",
+                metrics.getConnectHistogram());
+
+        BufferPool pool = context.getBufferPool();
+        gauge(sb, "socks5_buffers_in_use", "Relay buffers lent to tunnels", pool.getInUseCount());
+        gauge(sb, "socks5_buffers_pooled", "Idle relay buffers kept for reuse", pool.getPooledCount());
+
+        Authenticator auth = context.getAuthenticator();
+        header(sb, "socks5_auth_cache_lookups_total", "Login cache lookups for hashed passwords by result", "counter");
+        sample(sb, "socks5_auth_cache_lookups_total{result=\"hit\"}", auth.getCacheHits());
+        sample(sb, "socks5_auth_cache_lookups_total{result=\"miss\"}", auth.getCacheMisses());
+        counter(sb, "socks5_auth_verifications_coalesced_total", "Password checks that joined an identical one in flight",
+                auth.getCoalesced());
+        counter(sb, "socks5_auth_verifications_rejected_total", "Logins refused because the password check queue was full",
+                auth.getRejected());
+        header(sb, "socks5_auth_reloads_total", "User reloads from the credential store by result", "counter");
+        sample(sb, "socks5_auth_reloads_total{result=\"ok\"}", auth.getReloads());
+        sample(sb, "socks5_auth_reloads_total{result=\"failed\"}", auth.getReloadFailures());
+        gauge(sb, "socks5_auth_users", "Users in the current credential snapshot", auth.getUserCount());
+
+        DnsResolver dns = context.getDnsResolver();
+        header(sb, "socks5_dns_cache_lookups_total", "DNS cache lookups by result", "counter");
+        sample(sb, "socks5_dns_cache_lookups_total{result=\"hit\"}", dns.getHits());
+        sample(sb, "socks5_dns_cache_lookups_total{result=\"negative_hit\"}", dns.getNegativeHits());
+        sample(sb, "socks5_dns_cache_lookups_total{result=\"miss\"}", dns.getMisses());
+        gauge(sb, "socks5_dns_cache_entries", "Entries in the DNS cache", dns.getSize());
+
+        AccessLog accessLog = context.getAccessLog();
+        if (accessLog.isEnabled()) {
+            header(sb, "socks5_access_log_records_total", "Access log records by outcome", "counter");
+            sample(sb, "socks5_access_log_records_total{result=\"written\"}", accessLog.getWritten());
+            sample(sb, "socks5_access_log_records_total{result=\"dropped\"}", accessLog.getDropped());
+        }
+
+        PreconnectPool preconnect = context.getPreconnectPool();
+        header(sb, "socks5_preconnect_requests_total", "CONNECTs to hot destinations by pool result", "counter");
+        sample(sb, "socks5_preconnect_requests_total{result=\"hit\"}", preconnect.getHits());
+        sample(sb, "socks5_preconnect_requests_total{result=\"miss\"}", preconnect.getMisses());
+        gauge(sb, "socks5_preconnect_pooled", "Idle pre-connected upstream sockets", preconnect.getPooledCount());
+
+        UpstreamRouter upstreams = context.getUpstreamRouter();
+        if (upstreams.isEnabled() && !upstreams.getPools().isEmpty()) {
+            upstreams(sb, upstreams);
+        }
+
+        EgressSelector egress = context.getConnector().getEgress();
+        if (egress.isEnabled()) {
+            egress(sb, egress);
+        }
+        return sb.toString();
+    }
+
+    private static void egress(StringBuilder sb, EgressSelector egress) {
+        header(sb, "socks5_egress_binds_total", "Outbound sockets bound to the egress address", "counter");
+        for (EgressSelector.Egress e : egress.getEgresses()) {
+            String address = "{egress=\"" + e + "\"";
+            sample(sb, "socks5_egress_binds_total" + address + ",result=\"bound\"}", e.getBound());
+            sample(sb, "socks5_egress_binds_total" + address + ",result=\"failed\"}", e.getFailed());
+        }
+        header(sb, "socks5_egress_up", "Whether the egress address is used for new connections", "gauge");
+        long now = System.nanoTime();
+        for (EgressSelector.Egress e : egress.getEgresses()) {
+            sample(sb, "socks5_egress_up{egress=\"" + e + "\"}", e.isSuspended(now) ? 0 : 1);
+        }
+    }
+
+    private static void upstreams(StringBuilder sb, UpstreamRouter upstreams) {
+        header(sb, "socks5_upstream_up", "Whether the upstream proxy is in rotation", "gauge");
+        for (UpstreamPool pool : upstreams.getPools()) {
+            for (UpstreamProxy proxy : pool.getProxies()) {
+                sample(sb, "socks5_upstream_up" + upstreamLabels(pool, proxy), proxy.isEjected() ? 0 : 1);
+            }
+        }
+        header(sb, "socks5_upstream_outstanding", "Connections being set up or relayed through the upstream proxy",
+                "gauge");
+        for (UpstreamPool pool : upstreams.getPools()) {
+            for (UpstreamProxy proxy : pool.getProxies()) {
+                sample(sb, "socks5_upstream_outstanding" + upstreamLabels(pool, proxy), proxy.getOutstanding());
+            }
+        }
+        header(sb, "socks5_upstream_connect_seconds_ewma",
+                "Moving average of the time to connect through the upstream proxy", "gauge");
+        for (UpstreamPool pool : upstreams.getPools()) {
+            for (UpstreamProxy proxy : pool.getProxies()) {
+                sample(sb, "socks5_upstream_connect_seconds_ewma" + upstreamLabels(pool, proxy),
+                        proxy.getConnectNanos() / 1e9);
+            }
+        }
+        header(sb, "socks5_upstream_connects_total", "Connections and health checks through the upstream proxy",
+                "counter");
+        for (UpstreamPool pool : upstreams.getPools()) {
+            for (UpstreamProxy proxy : pool.getProxies()) {
+                sample(sb, "socks5_upstream_connects_total" + upstreamLabels(pool, proxy, ",result=\"success\""),
+                        proxy.getSuccesses());
+                sample(sb, "socks5_upstream_connects_total" + upstreamLabels(pool, proxy, ",result=\"failure\""),
+                        proxy.getFailures());
+            }
+        }
+    }
+
+    private static String upstreamLabels(UpstreamPool pool, UpstreamProxy proxy) {
+        return upstreamLabels(pool, proxy, "");
+    }
+
+    private static String upstreamLabels(UpstreamPool pool, UpstreamProxy proxy, String extra) {
+        return "{pool=\"" + pool.getName() + "\",upstream=\"" + proxy.getLabel() + "\"" + extra + "}";
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String series, double value) {
+        sb.append(series).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(String.format(Locale.ROOT, "%.6g", value));
+        }
+        sb.append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, help, "counter");
+        sample(sb, name, value);
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, help, "gauge");
+        sample(sb, name, value);
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot s = histogram.snapshot();
+        header(sb, name, help, "summary");
+        for (double q : QUANTILES) {
+            sample(sb, name + "{quantile=\"" + q + "\"}", s.quantileSeconds(q));
+        }
+        sample(sb, name + "_sum", s.getSumSeconds());
+        sample(sb, name + "_count", s.getCount());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.socks5.metrics;
+
+import java.util.Map;
+
+/**
+ * 通过 JMX 暴露的指标, 名字为 {@value Metrics#OBJECT_NAME}.
+ */
+public interface Socks5MetricsMXBean {
+    long getAcceptedConnections();
+
+    /** 监听地址 (如 "0.0.0.0:1080") 到接受的连接数 */
+    Map<String, Long> getListenerAcceptedConnections();
+
+    /** 最近一次读取以来每秒接受的连接数 */
+    double getAcceptRate();
+
+    long getActiveTunnels();
+
+    long getTotalTunnels();
+
+    long getBytesUpstream();
+
+    long getBytesDownstream();
+
+    long getAuthFailures();
+
+    /** 应答码 (如 "0x05") 到失败次数 */
+    Map<String, Long> getRequestFailures();
+
+    /** 准入控制拒绝的连接数, 按原因 ("connections" 或 "handshakes") */
+    Map<String, Long> getShedConnections();
+
+    long getHandshakeTimeouts();
+
+    /** 因超时被回收的隧道数, 按原因 ("idle", "lifetime" 或 "half_close") */
+    Map<String, Long> getTunnelTimeouts();
+
+    Metrics.LatencySummary getHandshakeLatency();
+
+    Metrics.LatencySummary getAuthLatency();
+
+    Metrics.LatencySummary getDnsLatency();
+
+    Metrics.LatencySummary getConnectLatency();
+}
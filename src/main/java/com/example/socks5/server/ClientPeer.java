@@ -0,0 +1,68 @@
+package com.example.socks5.server;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 客户端连接的来源, 两种引擎共用. Unix 域套接字的对端没有 IP 地址, 按回环地址处理:
+ * 限速, ACL 和 UDP 关联都以 127.0.0.1 为来源, 日志中显示为 unix:监听路径.
+ */
+public final class ClientPeer {
+    private final InetAddress address;
+    private final int port;
+    private final InetAddress localAddress;
+    private final String info;
+    private final boolean unix;
+
+    private ClientPeer(InetAddress address, int port, InetAddress localAddress, String info, boolean unix) {
+        this.address = address;
+        this.port = port;
+        this.localAddress = localAddress;
+        this.info = info;
+        this.unix = unix;
+    }
+
+    /**
+     * listener 为接收该连接的监听地址的标签 (见 {@link #label}), Unix 域套接字的连接用它标识来源.
+     */
+    public static ClientPeer of(SocketChannel channel, String listener) throws IOException {
+        SocketAddress remote = channel.getRemoteAddress();
+        if (remote instanceof InetSocketAddress inet) {
+            InetAddress local = ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+            return new ClientPeer(inet.getAddress(), inet.getPort(), local,
+                    inet.getAddress().getHostAddress() + ":" + inet.getPort(), false);
+        }
+        // 对端通常是未命名的套接字, 用监听路径标识
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        return new ClientPeer(loopback, 0, loopback, listener, true);
+    }
+
+    /**
+     * 监听地址的显示形式: host:port, [v6]:port 或 unix:路径.
+     */
+    public static String label(SocketAddress address) {
+        if (address instanceof UnixDomainSocketAddress unix) {
+            return "unix:" + unix.getPath();
+        }
+        InetSocketAddress inet = (InetSocketAddress) address;
+        String host = inet.getAddress().getHostAddress();
+        return (inet.getAddress() instanceof Inet6Address ? "[" + host + "]" : host) + ":" + inet.getPort();
+    }
+
+    public InetAddress getAddress() { return address; }
+
+    /** Unix 域套接字为 0 */
+    public int getPort() { return port; }
+
+    /** 客户端连到的本机地址, UDP 关联绑定在这个地址上 */
+    public InetAddress getLocalAddress() { return localAddress; }
+
+    public String getInfo() { return info; }
+
+    public boolean isUnix() { return unix; }
+}
@@ -0,0 +1,129 @@
+package com.example.socks5.server;
+
+import com.example.socks5.accesslog.AccessLog;
+import com.example.socks5.accounting.TrafficAccounting;
+import com.example.socks5.auth.Authenticator;
+import com.example.socks5.config.Config;
+import com.example.socks5.dns.DnsResolver;
+import com.example.socks5.metrics.Metrics;
+import com.example.socks5.server.acl.AccessPolicy;
+import com.example.socks5.server.buffer.BufferPool;
+import com.example.socks5.server.connect.HappyEyeballsConnector;
+import com.example.socks5.server.connect.PreconnectPool;
+import com.example.socks5.server.limit.AdmissionControl;
+import com.example.socks5.server.limit.TrafficLimiter;
+import com.example.socks5.server.session.SessionRegistry;
+import com.example.socks5.server.timeout.TunnelReaper;
+import com.example.socks5.server.udp.UdpRelay;
+import com.example.socks5.server.upstream.UpstreamRouter;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 服务器范围内共享的组件, 由 {@link Socks5Server} 创建并交给两种连接处理引擎.
+ */
+public class ServerContext implements AutoCloseable {
+    private final Config config;
+    private final Authenticator authenticator;
+    private final BufferPool bufferPool;
+    private final DnsResolver dnsResolver;
+    private final HappyEyeballsConnector connector;
+    private final PreconnectPool preconnectPool;
+    private final UdpRelay udpRelay;
+    private final TrafficLimiter trafficLimiter;
+    private final TrafficAccounting trafficAccounting;
+    private final Metrics metrics = new Metrics();
+    private final AdmissionControl admissionControl;
+    private final AccessLog accessLog;
+    private final TunnelReaper tunnelReaper;
+    private final UpstreamRouter upstreamRouter;
+    private final SessionRegistry sessionRegistry;
+    private final AccessPolicy accessPolicy;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public ServerContext(Config config) throws IOException {
+        Config.ServerConfig server = config.getServer();
+        this.config = config;
+        this.authenticator = new Authenticator(config);
+        this.accessPolicy = new AccessPolicy(config.getAcl());
+        this.bufferPool = new BufferPool(server.getBufferSize(), server.getBufferPoolSize(),
+                server.getBufferMemoryLimit());
+        this.dnsResolver = DnsResolver.create(config.getDns());
+        this.connector = new HappyEyeballsConnector(config.getConnect());
+        this.preconnectPool = new PreconnectPool(config.getPreconnect(), dnsResolver, connector);
+        this.upstreamRouter = new UpstreamRouter(config.getUpstream(), dnsResolver, connector);
+        this.udpRelay = config.getUdp().isEnabled() ? new UdpRelay(config.getUdp(), dnsResolver, accessPolicy) : null;
+        this.trafficLimiter = new TrafficLimiter(config);
+        this.trafficAccounting = TrafficAccounting.create(config);
+        this.admissionControl = new AdmissionControl(config.getAdmission(), metrics);
+        this.accessLog = new AccessLog(config.getAccessLog());
+        this.sessionRegistry = new SessionRegistry(config.getAdmin());
+        // NIO 引擎的每个事件循环有自己的时间轮, 不需要回收线程
+        this.tunnelReaper = !server.isNioEngine() && config.getTimeouts().isEnabled()
+                ? new TunnelReaper(config.getTimeouts()) : null;
+        if (config.getMetrics().isJmx()) {
+            metrics.registerMBean();
+        }
+    }
+
+    public Config getConfig() { return config; }
+
+    public Config.ServerConfig getServerConfig() { return config.getServer(); }
+
+    public Authenticator getAuthenticator() { return authenticator; }
+
+    public AccessPolicy getAccessPolicy() { return accessPolicy; }
+
+    public BufferPool getBufferPool() { return bufferPool; }
+
+    public DnsResolver getDnsResolver() { return dnsResolver; }
+
+    public HappyEyeballsConnector getConnector() { return connector; }
+
+    public PreconnectPool getPreconnectPool() { return preconnectPool; }
+
+    public UpstreamRouter getUpstreamRouter() { return upstreamRouter; }
+
+    /** 关闭 UDP 中继时为 null */
+    public UdpRelay getUdpRelay() { return udpRelay; }
+
+    public TrafficLimiter getTrafficLimiter() { return trafficLimiter; }
+
+    /** 没有开启流量计数时为 null */
+    public TrafficAccounting getTrafficAccounting() { return trafficAccounting; }
+
+    public AdmissionControl getAdmissionControl() { return admissionControl; }
+
+    public AccessLog getAccessLog() { return accessLog; }
+
+    /** NIO 引擎或没有配置隧道超时时为 null */
+    public TunnelReaper getTunnelReaper() { return tunnelReaper; }
+
+    public SessionRegistry getSessionRegistry() { return sessionRegistry; }
+
+    public Metrics getMetrics() { return metrics; }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.unregisterMBean();
+        sessionRegistry.close();
+        if (tunnelReaper != null) {
+            tunnelReaper.close();
+        }
+        if (udpRelay != null) {
+            udpRelay.close();
+        }
+        preconnectPool.close();
+        upstreamRouter.close();
+        dnsResolver.close();
+        accessLog.close();
+        authenticator.close();
+        if (trafficAccounting != null) {
+            trafficAccounting.close();
+        }
+    }
+}
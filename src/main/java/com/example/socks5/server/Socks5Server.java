@@ -1,78 +1,295 @@
 package com.example.socks5.server;
 
-import com.example.socks5.auth.Authenticator;
+import com.example.socks5.admin.AdminServer;
 import com.example.socks5.config.Config;
+import com.example.socks5.metrics.PrometheusExporter;
 import com.example.socks5.server.handler.Socks5Handler;
+import com.example.socks5.server.limit.AdmissionControl;
+import com.example.socks5.server.nio.NioEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Socks5Server {
     private static final Logger logger = LoggerFactory.getLogger(Socks5Server.class);
-    
+
     private final Config config;
-    private final Authenticator authenticator;
+    private final ServerContext context;
     private volatile boolean running;
-    private ServerSocket serverSocket;
-    
-    public Socks5Server(Config config) {
+    private boolean stopped;
+    // 所有监听套接字, shutdown 可能在其他线程中调用
+    private final List<ServerSocketChannel> serverChannels = new CopyOnWriteArrayList<>();
+    private final List<Thread> acceptors = new ArrayList<>();
+    // Unix 域套接字文件, 关闭时删除
+    private final List<Path> socketFiles = new CopyOnWriteArrayList<>();
+    private NioEngine nioEngine;
+    private PrometheusExporter exporter;
+    private AdminServer adminServer;
+
+    public Socks5Server(Config config) throws IOException {
         this.config = config;
-        this.authenticator = new Authenticator(config);
+        this.context = new ServerContext(config);
     }
-    
+
+    /**
+     * 打开所有监听地址并启动接收线程, 阻塞到服务器关闭.
+     */
     public void start() {
         running = true;
-        int port = config.getServer().getPort();
-        String bindAddress = config.getServer().getBind();
-        
+
         try {
-            serverSocket = new ServerSocket(port, 50, java.net.InetAddress.getByName(bindAddress));
-            
-            logger.info("SOCKS5 Proxy Server started on {}:{}", bindAddress, port);
-            logger.info("Using virtual threads for improved scalability");
-            logger.info("Username/password authentication is REQUIRED");
-            
-            while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    
-                    // 为每个客户端连接创建虚拟线程
-                    Thread virtualThread = Thread.ofVirtual().start(() -> {
-                        Socks5Handler handler = new Socks5Handler(clientSocket, authenticator);
-                        handler.run();
-                    });
-                    
-                    logger.debug("Started virtual thread: {} for client: {}", 
-                                virtualThread.getName(), clientSocket.getInetAddress().getHostAddress());
-                    
-                } catch (IOException e) {
-                    if (running) {
-                        logger.error("Error accepting client connection: {}", e.getMessage());
-                    } else {
-                        logger.debug("Server socket closed while accepting connections");
-                    }
+            for (Config.ListenerConfig listener : config.getServer().effectiveListeners()) {
+                openListener(listener);
+            }
+            List<Config.UnixListenerConfig> unixListeners = config.getServer().getUnixListeners();
+            if (unixListeners != null) {
+                for (Config.UnixListenerConfig listener : unixListeners) {
+                    openUnixListener(listener);
                 }
             }
-            
+
+            if (config.getServer().isNioEngine()) {
+                nioEngine = new NioEngine(context);
+                nioEngine.start();
+            } else {
+                logger.info("Using virtual threads for improved scalability");
+            }
+            logger.info("Username/password authentication is REQUIRED");
+            if (config.getMetrics().isEnabled()) {
+                exporter = new PrometheusExporter(config.getMetrics(), context);
+            }
+            if (config.getAdmin().isEnabled()) {
+                adminServer = new AdminServer(config.getAdmin(), context);
+            }
+
+            for (Thread acceptor : acceptors) {
+                acceptor.start();
+            }
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
+            }
         } catch (IOException e) {
             logger.error("Failed to start SOCKS5 server: {}", e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             shutdown();
         }
     }
-    
-    public void shutdown() {
+
+    private void openListener(Config.ListenerConfig listener) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(listener.getBind()), listener.getPort());
+        int count = Math.max(1, listener.getAcceptors());
+        int backlog = config.getAdmission().getBacklog();
+
+        ServerSocketChannel first = ServerSocketChannel.open();
+        serverChannels.add(first);
+        boolean reusePort = count > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort) {
+            first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        } else if (count > 1) {
+            logger.warn("SO_REUSEPORT is not supported, {} acceptors will share one socket", count);
+        }
+        first.bind(address, backlog);
+        // 端口为 0 时其余套接字绑定到第一个套接字实际得到的端口
+        InetSocketAddress bound = (InetSocketAddress) first.getLocalAddress();
+        String label = ClientPeer.label(bound);
+        LongAdder accepted = context.getMetrics().listenerAccepts(label);
+
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel channel = first;
+            if (reusePort && i > 0) {
+                channel = ServerSocketChannel.open();
+                serverChannels.add(channel);
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(bound, backlog);
+            }
+            addAcceptor(channel, label, i, accepted);
+        }
+        logger.info("SOCKS5 Proxy Server started on {} ({} acceptor{}{})", label, count, count > 1 ? "s" : "",
+                reusePort ? ", SO_REUSEPORT" : "");
+    }
+
+    /**
+     * 同机客户端走 Unix 域套接字, 省去回环 TCP 的协议栈开销. 握手, 认证和转发与 TCP 连接完全相同.
+     */
+    private void openUnixListener(Config.UnixListenerConfig listener) throws IOException {
+        if (listener.getPath() == null || listener.getPath().isEmpty()) {
+            throw new IOException("Unix listener without a path");
+        }
+        Path path = Paths.get(listener.getPath()).toAbsolutePath();
+        int count = Math.max(1, listener.getAcceptors());
+        removeStaleSocket(path);
+        String permissions = listener.getPermissions();
+        Set<PosixFilePermission> mode = null;
+        if (permissions != null && !permissions.isEmpty()) {
+            try {
+                mode = PosixFilePermissions.fromString(permissions);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid permissions " + permissions + " for " + path + ": " + e.getMessage(), e);
+            }
+        }
+
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannels.add(channel);
+        if (mode != null) {
+            bindRestricted(channel, path, mode);
+        } else {
+            channel.bind(UnixDomainSocketAddress.of(path), config.getAdmission().getBacklog());
+        }
+        socketFiles.add(path);
+
+        // 改名之后通道的本地地址仍是临时路径, 标签用配置的路径
+        String label = ClientPeer.label(UnixDomainSocketAddress.of(path));
+        LongAdder accepted = context.getMetrics().listenerAccepts(label);
+        for (int i = 0; i < count; i++) {
+            addAcceptor(channel, label, i, accepted);
+        }
+        logger.info("SOCKS5 Proxy Server started on {} ({} acceptor{}, permissions {})", label, count,
+                count > 1 ? "s" : "", permissions != null && !permissions.isEmpty() ? permissions : "from umask");
+    }
+
+    /**
+     * 在只有本用户能进入的临时目录中绑定并设置权限, 再改名为 path,
+     * 套接字出现在 path 时已经是配置的权限, 不会有一段时间按 umask 对其他用户开放.
+     */
+    private void bindRestricted(ServerSocketChannel channel, Path path, Set<PosixFilePermission> mode)
+            throws IOException {
+        Path dir;
+        try {
+            dir = Files.createTempDirectory(path.getParent(), ".socks5-",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("Cannot set permissions on " + path + ": " + e.getMessage(), e);
+        }
+        Path temporary = dir.resolve("s");
+        try {
+            channel.bind(UnixDomainSocketAddress.of(temporary), config.getAdmission().getBacklog());
+            Files.setPosixFilePermissions(temporary, mode);
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // 上次异常退出留下的套接字文件会使 bind 失败; 只删除套接字, 同名的普通文件报错
+    private static void removeStaleSocket(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attributes.isOther()) {
+            throw new IOException(path + " exists and is not a socket");
+        }
+        Files.delete(path);
+        logger.info("Removed stale socket file {}", path);
+    }
+
+    private void addAcceptor(ServerSocketChannel channel, String label, int index, LongAdder accepted) {
+        acceptors.add(Thread.ofPlatform()
+                .name("socks5-acceptor-" + label + "-" + index)
+                .unstarted(() -> acceptLoop(channel, label, accepted)));
+    }
+
+    private void acceptLoop(ServerSocketChannel serverChannel, String label, LongAdder accepted) {
+        while (running && serverChannel.isOpen()) {
+            try {
+                SocketChannel clientChannel = serverChannel.accept();
+                context.getMetrics().connectionAccepted();
+                accepted.increment();
+                // 过载时在这里直接拒绝, 不交给引擎
+                if (context.getAdmissionControl().tryAdmit() != null) {
+                    AdmissionControl.reject(clientChannel);
+                    continue;
+                }
+
+                if (nioEngine != null) {
+                    nioEngine.dispatch(clientChannel, label);
+                    continue;
+                }
+
+                // 为每个客户端连接创建虚拟线程
+                Thread virtualThread = Thread.ofVirtual().start(() -> {
+                    Socks5Handler handler = new Socks5Handler(clientChannel, label, context);
+                    handler.run();
+                });
+
+                logger.debug("Started virtual thread: {} for client: {}",
+                            virtualThread.getName(), clientChannel.getRemoteAddress());
+
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error accepting client connection: {}", e.getMessage());
+                } else {
+                    logger.debug("Server socket closed while accepting connections");
+                }
+            }
+        }
+    }
+
+    /**
+     * 关闭服务器. 关闭钩子和 start() 都会调用, 后来的调用等待先来的完成,
+     * 保证进程退出之前访问日志等组件已经写完. 停止接收新连接后先等待现有连接结束,
+     * 超过 drainTimeoutMillis 的强制关闭.
+     */
+    public synchronized void shutdown() {
         running = false;
-        if (serverSocket != null && !serverSocket.isClosed()) {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        for (ServerSocketChannel serverChannel : serverChannels) {
+            if (serverChannel.isOpen()) {
+                try {
+                    serverChannel.close();
+                } catch (IOException e) {
+                    logger.debug("Error closing server socket: {}", e.getMessage());
+                }
+            }
+        }
+        for (Path socketFile : socketFiles) {
             try {
-                serverSocket.close();
+                Files.deleteIfExists(socketFile);
             } catch (IOException e) {
-                logger.debug("Error closing server socket: {}", e.getMessage());
+                logger.debug("Error deleting socket file {}: {}", socketFile, e.getMessage());
             }
         }
+        context.getSessionRegistry().drain(Math.max(0, config.getServer().getDrainTimeoutMillis()));
+        if (adminServer != null) {
+            adminServer.close();
+        }
+        if (exporter != null) {
+            exporter.close();
+        }
+        if (nioEngine != null) {
+            nioEngine.shutdown();
+        }
+        context.close();
         logger.info("SOCKS5 Proxy Server stopped");
     }
-}
\ No newline at end of file
+}
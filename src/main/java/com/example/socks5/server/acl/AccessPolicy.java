@@ -0,0 +1,154 @@
+package com.example.socks5.server.acl;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.server.codec.Socks5Codec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 按用户的目标访问控制. 配置中的规则按顺序编号, 第一条命中的规则生效, 没有命中时按 defaultAction.
+ * <p>
+ * 规则编译为不可变的查找结构: 网段进前缀树, 域名进倒序标签树, 查找时间只与地址或域名的长度有关,
+ * 与规则数量无关. 适用于所有用户的规则和各用户自己的规则分别编译, 查找时取两者中序号较小的命中.
+ * {@link #update} 编译新规则后整体替换, 进行中的查找继续使用旧规则.
+ * <p>
+ * 域名目标在请求时按域名规则判断; 本地解析后再按解析出的地址逐个判断, 网段规则由此对域名目标生效.
+ * 经上游代理转发的域名目标不在本地解析, 只按域名规则判断.
+ */
+public final class AccessPolicy {
+    private static final Logger logger = LoggerFactory.getLogger(AccessPolicy.class);
+
+    private volatile Compiled compiled;
+
+    public AccessPolicy(Config.AclConfig config) throws UnknownHostException {
+        this.compiled = compile(config);
+        if (compiled.rules.length > 0) {
+            logger.info("Loaded {} ACL rules, default {}", compiled.rules.length,
+                    compiled.defaultReply == Socks5Codec.REP_SUCCEEDED ? "allow" : "deny");
+        }
+    }
+
+    /**
+     * 编译并换上新规则. 配置有误时抛出异常, 继续使用原来的规则.
+     */
+    public void update(Config.AclConfig config) throws UnknownHostException {
+        Compiled next = compile(config);
+        compiled = next;
+        logger.info("Reloaded {} ACL rules", next.rules.length);
+    }
+
+    public int getRuleCount() { return compiled.rules.length; }
+
+    /**
+     * 请求时的检查. literal 为 IP 目标的地址, 域名目标为 null, 此时 host 为域名.
+     * 允许时返回 {@link Socks5Codec#REP_SUCCEEDED}, 否则返回回复客户端的应答码.
+     */
+    public byte check(String username, String host, InetAddress literal, int port) {
+        Compiled c = compiled;
+        if (c.empty) {
+            return c.defaultReply;
+        }
+        return literal != null
+                ? c.decide(username, null, literal.getAddress(), port)
+                : c.decide(username, host, null, port);
+    }
+
+    /**
+     * 域名目标解析后对单个地址的检查, 域名规则和网段规则一起判断.
+     */
+    public byte checkResolved(String username, String host, InetAddress address, int port) {
+        Compiled c = compiled;
+        return c.empty ? c.defaultReply : c.decide(username, host, address.getAddress(), port);
+    }
+
+    /**
+     * 解析出的地址中允许连接的部分, 全部允许时返回原列表. 返回空列表时由 {@link #checkResolved} 给出应答码.
+     */
+    public List<InetAddress> filter(String username, String host, List<InetAddress> addresses, int port) {
+        if (compiled.empty) {
+            return addresses;
+        }
+        List<InetAddress> allowed = null;
+        for (int i = 0; i < addresses.size(); i++) {
+            boolean ok = checkResolved(username, host, addresses.get(i), port) == Socks5Codec.REP_SUCCEEDED;
+            if (!ok && allowed == null) {
+                allowed = new ArrayList<>(addresses.subList(0, i));
+            } else if (ok && allowed != null) {
+                allowed.add(addresses.get(i));
+            }
+        }
+        return allowed != null ? allowed : addresses;
+    }
+
+    private static Compiled compile(Config.AclConfig config) throws UnknownHostException {
+        String defaultAction = config.getDefaultAction() == null ? "allow"
+                : config.getDefaultAction().toLowerCase(Locale.ROOT);
+        if (!defaultAction.equals("allow") && !defaultAction.equals("deny")) {
+            throw new IllegalArgumentException("ACL defaultAction must be allow or deny: " + defaultAction);
+        }
+        List<Config.AclRuleConfig> configs = config.getRules() != null ? config.getRules() : List.of();
+        AclRule[] rules = new AclRule[configs.size()];
+        AclTable.Builder global = new AclTable.Builder();
+        Map<String, AclTable.Builder> perUser = new HashMap<>();
+        for (int i = 0; i < rules.length; i++) {
+            Config.AclRuleConfig rule = configs.get(i);
+            rules[i] = new AclRule(i, rule);
+            List<AclTable.Builder> tables = new ArrayList<>();
+            if (rule.getUsers() == null || rule.getUsers().isEmpty()) {
+                tables.add(global);
+            } else {
+                for (String user : rule.getUsers()) {
+                    tables.add(perUser.computeIfAbsent(user, k -> new AclTable.Builder()));
+                }
+            }
+            List<String> hosts = rule.getHosts() == null || rule.getHosts().isEmpty() ? List.of("*") : rule.getHosts();
+            for (String host : hosts) {
+                String pattern = host.trim().toLowerCase(Locale.ROOT);
+                for (AclTable.Builder table : tables) {
+                    table.add(pattern, i);
+                }
+            }
+        }
+        Map<String, AclTable> users = new HashMap<>();
+        for (Map.Entry<String, AclTable.Builder> e : perUser.entrySet()) {
+            users.put(e.getKey(), e.getValue().build());
+        }
+        byte defaultReply = defaultAction.equals("allow")
+                ? Socks5Codec.REP_SUCCEEDED : Socks5Codec.REP_CONNECTION_NOT_ALLOWED;
+        return new Compiled(rules, global.build(), users, defaultReply);
+    }
+
+    private static final class Compiled {
+        final AclRule[] rules;
+        final AclTable global;
+        final Map<String, AclTable> users;
+        final byte defaultReply;
+        // 没有任何规则, 一律按默认动作
+        final boolean empty;
+
+        Compiled(AclRule[] rules, AclTable global, Map<String, AclTable> users, byte defaultReply) {
+            this.rules = rules;
+            this.global = global;
+            this.users = users;
+            this.defaultReply = defaultReply;
+            this.empty = rules.length == 0;
+        }
+
+        byte decide(String username, String name, byte[] address, int port) {
+            int best = global.match(name, address, port, rules, Integer.MAX_VALUE);
+            AclTable own = username != null ? users.get(username) : null;
+            if (own != null) {
+                best = own.match(name, address, port, rules, best);
+            }
+            return best == Integer.MAX_VALUE ? defaultReply : rules[best].reply;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.socks5.server.acl;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.server.codec.Socks5Codec;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 编译后的一条规则. 目标匹配由各个查找结构负责, 这里只保存动作和端口范围.
+ * 规则在所有查找结构中以配置中的序号引用, 序号越小优先级越高.
+ */
+final class AclRule {
+    final int index;
+    // 允许时为 REP_SUCCEEDED, 拒绝时为回复客户端的应答码
+    final byte reply;
+    // 成对的端口范围 [lo, hi], null 表示任意端口
+    private final int[] ports;
+
+    AclRule(int index, Config.AclRuleConfig config) {
+        this.index = index;
+        this.reply = reply(config);
+        this.ports = ports(config.getPorts());
+    }
+
+    boolean matchesPort(int port) {
+        if (ports == null) {
+            return true;
+        }
+        for (int i = 0; i < ports.length; i += 2) {
+            if (port >= ports[i] && port <= ports[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ids[from, to) 中第一条端口匹配且优先于 best 的规则序号, 没有时返回 best. ids 按序号升序排列.
+     */
+    static int first(int[] ids, int from, int to, int port, AclRule[] rules, int best) {
+        for (int i = from; i < to; i++) {
+            int id = ids[i];
+            if (id >= best) {
+                break;
+            }
+            if (rules[id].matchesPort(port)) {
+                return id;
+            }
+        }
+        return best;
+    }
+
+    private static byte reply(Config.AclRuleConfig config) {
+        String action = config.getAction() == null ? "" : config.getAction().toLowerCase(Locale.ROOT);
+        switch (action) {
+            case "allow" -> {
+                return Socks5Codec.REP_SUCCEEDED;
+            }
+            case "deny" -> {
+                String reply = config.getReply() == null ? "not-allowed" : config.getReply().toLowerCase(Locale.ROOT);
+                return switch (reply) {
+                    case "not-allowed" -> Socks5Codec.REP_CONNECTION_NOT_ALLOWED;
+                    case "network-unreachable" -> Socks5Codec.REP_NETWORK_UNREACHABLE;
+                    case "host-unreachable" -> Socks5Codec.REP_HOST_UNREACHABLE;
+                    case "refused" -> Socks5Codec.REP_CONNECTION_REFUSED;
+                    default -> throw new IllegalArgumentException("Unknown ACL reply: " + config.getReply());
+                };
+            }
+            default -> throw new IllegalArgumentException("ACL action must be allow or deny: " + config.getAction());
+        }
+    }
+
+    private static int[] ports(List<String> config) {
+        if (config == null || config.isEmpty()) {
+            return null;
+        }
+        int[] ports = new int[config.size() * 2];
+        for (int i = 0; i < config.size(); i++) {
+            String range = config.get(i).trim();
+            int dash = range.indexOf('-');
+            int lo = Integer.parseInt(dash < 0 ? range : range.substring(0, dash).trim());
+            int hi = dash < 0 ? lo : Integer.parseInt(range.substring(dash + 1).trim());
+            if (lo < 0 || hi > 65535 || lo > hi) {
+                throw new IllegalArgumentException("Invalid ACL port range: " + range);
+            }
+            ports[2 * i] = lo;
+            ports[2 * i + 1] = hi;
+        }
+        return ports;
+    }
+}
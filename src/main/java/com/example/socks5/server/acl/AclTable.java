@@ -0,0 +1,82 @@
+package com.example.socks5.server.acl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一组规则 (全体用户或某个用户) 的查找结构: 两个协议族的网段树, 域名树和不限目标的规则.
+ */
+final class AclTable {
+    private final CidrTrie ipv4;
+    private final CidrTrie ipv6;
+    private final DomainTrie domains;
+    // 不限目标的规则, 升序
+    private final int[] any;
+
+    private AclTable(Builder builder) {
+        this.ipv4 = builder.ipv4.build();
+        this.ipv6 = builder.ipv6.build();
+        this.domains = builder.domains.build();
+        this.any = builder.any.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * 命中的规则中优先于 best 的最小序号, 没有时返回 best.
+     * name 为域名目标的名字, address 为目标地址, 都可以为 null.
+     */
+    int match(String name, byte[] address, int port, AclRule[] rules, int best) {
+        best = AclRule.first(any, 0, any.length, port, rules, best);
+        if (name != null) {
+            best = domains.match(name, port, rules, best);
+        }
+        if (address != null) {
+            best = (address.length == 4 ? ipv4 : ipv6).match(address, port, rules, best);
+        }
+        return best;
+    }
+
+    static final class Builder {
+        private final CidrTrie.Builder ipv4 = new CidrTrie.Builder(32);
+        private final CidrTrie.Builder ipv6 = new CidrTrie.Builder(128);
+        private final DomainTrie.Builder domains = new DomainTrie.Builder();
+        private final List<Integer> any = new ArrayList<>();
+
+        /**
+         * pattern 已转为小写, 写法与上游路由规则相同.
+         */
+        void add(String pattern, int ruleId) throws UnknownHostException {
+            if (pattern.equals("*")) {
+                if (any.isEmpty() || any.get(any.size() - 1) != ruleId) {
+                    any.add(ruleId);
+                }
+                return;
+            }
+            if (pattern.startsWith("*.")) {
+                domains.add(pattern.substring(2), true, ruleId);
+                return;
+            }
+            int slash = pattern.indexOf('/');
+            if (slash > 0) {
+                byte[] network = InetAddress.getByName(pattern.substring(0, slash)).getAddress();
+                int prefix = Integer.parseInt(pattern.substring(slash + 1));
+                if (prefix < 0 || prefix > network.length * 8) {
+                    throw new IllegalArgumentException("Invalid prefix length in " + pattern);
+                }
+                (network.length == 4 ? ipv4 : ipv6).add(network, prefix, ruleId);
+                return;
+            }
+            if (pattern.indexOf(':') >= 0 || pattern.chars().allMatch(c -> c == '.' || Character.isDigit(c))) {
+                byte[] address = InetAddress.getByName(pattern).getAddress();
+                (address.length == 4 ? ipv4 : ipv6).add(address, address.length * 8, ruleId);
+                return;
+            }
+            domains.add(pattern, false, ruleId);
+        }
+
+        AclTable build() {
+            return new AclTable(this);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.socks5.server.acl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 一个协议族的网段前缀树. 从地址最高位开始每一位走一层, 网段规则挂在前缀长度对应的节点上,
+ * 查找沿地址走到底, 途经的每个节点都是一个包含该地址的网段. 构建后节点压平为数组, 查找不分配对象.
+ */
+final class CidrTrie {
+    // 节点 i 的子节点为 children[2i] (位 0) 和 children[2i+1] (位 1), 0 表示没有; 根节点为 0
+    private final int[] children;
+    // 节点 i 上的规则为 ruleIds[ruleStart[i], ruleStart[i+1])
+    private final int[] ruleStart;
+    private final int[] ruleIds;
+    private final int bits;
+
+    private CidrTrie(Builder builder) {
+        int nodes = builder.rules.size();
+        this.bits = builder.bits;
+        this.children = Arrays.copyOf(builder.children, nodes * 2);
+        this.ruleStart = new int[nodes + 1];
+        int total = 0;
+        for (List<Integer> ids : builder.rules) {
+            total += ids.size();
+        }
+        this.ruleIds = new int[total];
+        int n = 0;
+        for (int i = 0; i < nodes; i++) {
+            ruleStart[i] = n;
+            for (int id : builder.rules.get(i)) {
+                ruleIds[n++] = id;
+            }
+        }
+        ruleStart[nodes] = n;
+    }
+
+    /**
+     * 包含 address 的网段规则中端口匹配且优先于 best 的规则序号, 没有时返回 best.
+     */
+    int match(byte[] address, int port, AclRule[] rules, int best) {
+        if (address.length * 8 != bits) {
+            return best;
+        }
+        int node = 0;
+        for (int depth = 0; ; depth++) {
+            best = AclRule.first(ruleIds, ruleStart[node], ruleStart[node + 1], port, rules, best);
+            if (depth == bits) {
+                return best;
+            }
+            int bit = (address[depth >>> 3] >>> (7 - (depth & 7))) & 1;
+            node = children[2 * node + bit];
+            if (node == 0) {
+                return best;
+            }
+        }
+    }
+
+    static final class Builder {
+        private final int bits;
+        private int[] children = new int[64];
+        // 每个节点上的规则序号, 按加入顺序即升序排列
+        private final List<List<Integer>> rules = new ArrayList<>();
+
+        Builder(int bits) {
+            this.bits = bits;
+            rules.add(new ArrayList<>());
+        }
+
+        void add(byte[] network, int prefix, int ruleId) {
+            int node = 0;
+            for (int depth = 0; depth < prefix; depth++) {
+                int bit = (network[depth >>> 3] >>> (7 - (depth & 7))) & 1;
+                int child = children[2 * node + bit];
+                if (child == 0) {
+                    child = rules.size();
+                    rules.add(new ArrayList<>(0));
+                    if (children.length < rules.size() * 2) {
+                        children = Arrays.copyOf(children, children.length * 2);
+                    }
+                    children[2 * node + bit] = child;
+                }
+                node = child;
+            }
+            List<Integer> ids = rules.get(node);
+            if (ids.isEmpty() || ids.get(ids.size() - 1) != ruleId) {
+                ids.add(ruleId);
+            }
+        }
+
+        CidrTrie build() {
+            return new CidrTrie(this);
+        }
+    }
+}
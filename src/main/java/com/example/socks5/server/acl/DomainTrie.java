@@ -0,0 +1,135 @@
+package com.example.socks5.server.acl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按标签倒序排列的域名树: www.example.com 依次走 com, example, www 三层.
+ * 精确规则挂在完整域名对应的节点上, 后缀规则 (*.example.com) 挂在后缀对应的节点上, 对该域名本身也生效.
+ * 子节点放在开放寻址的散列表中, 查找直接在目标字符串上按区间比较标签, 不截取子串, 不区分大小写.
+ */
+final class DomainTrie {
+    private static final int[] NONE = new int[0];
+
+    private final Node root;
+
+    private DomainTrie(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * host 命中的域名规则中端口匹配且优先于 best 的规则序号, 没有时返回 best.
+     */
+    int match(String host, int port, AclRule[] rules, int best) {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        Node node = root;
+        while (end > 0) {
+            int start = host.lastIndexOf('.', end - 1) + 1;
+            node = node.find(host, start, end);
+            if (node == null) {
+                return best;
+            }
+            best = AclRule.first(node.suffix, 0, node.suffix.length, port, rules, best);
+            if (start == 0) {
+                return AclRule.first(node.exact, 0, node.exact.length, port, rules, best);
+            }
+            end = start - 1;
+        }
+        return best;
+    }
+
+    // 按小写字符计算 String.hashCode, 再把高位混入低位
+    private static int hash(String s, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Node {
+        // 长度为 2 的幂的散列表, 没有子节点时为 null
+        private final String[] labels;
+        private final Node[] next;
+        private final int[] exact;
+        private final int[] suffix;
+
+        Node(Builder.Branch b) {
+            this.exact = toArray(b.exact);
+            this.suffix = toArray(b.suffix);
+            if (b.children.isEmpty()) {
+                this.labels = null;
+                this.next = null;
+                return;
+            }
+            int size = Integer.highestOneBit(b.children.size() * 2 - 1) << 1;
+            this.labels = new String[size];
+            this.next = new Node[size];
+            for (Map.Entry<String, Builder.Branch> e : b.children.entrySet()) {
+                String label = e.getKey();
+                int i = hash(label, 0, label.length()) & (size - 1);
+                while (labels[i] != null) {
+                    i = (i + 1) & (size - 1);
+                }
+                labels[i] = label;
+                next[i] = new Node(e.getValue());
+            }
+        }
+
+        Node find(String host, int from, int to) {
+            if (labels == null) {
+                return null;
+            }
+            int mask = labels.length - 1;
+            int length = to - from;
+            for (int i = hash(host, from, to) & mask; labels[i] != null; i = (i + 1) & mask) {
+                String label = labels[i];
+                if (label.length() == length && host.regionMatches(true, from, label, 0, length)) {
+                    return next[i];
+                }
+            }
+            return null;
+        }
+
+        private static int[] toArray(List<Integer> ids) {
+            return ids.isEmpty() ? NONE : ids.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    static final class Builder {
+        private final Branch root = new Branch();
+
+        /**
+         * domain 已转为小写. suffix 为 true 时匹配该域名及其所有子域名.
+         */
+        void add(String domain, boolean suffix, int ruleId) {
+            Branch node = root;
+            int end = domain.length();
+            while (end > 0) {
+                int start = domain.lastIndexOf('.', end - 1) + 1;
+                node = node.children.computeIfAbsent(domain.substring(start, end), k -> new Branch());
+                end = start - 1;
+            }
+            List<Integer> ids = suffix ? node.suffix : node.exact;
+            if (ids.isEmpty() || ids.get(ids.size() - 1) != ruleId) {
+                ids.add(ruleId);
+            }
+        }
+
+        DomainTrie build() {
+            return new DomainTrie(new Node(root));
+        }
+
+        // 构建中的节点, 完成后转为不可变的 Node
+        private static final class Branch {
+            final Map<String, Branch> children = new HashMap<>();
+            final List<Integer> exact = new ArrayList<>(0);
+            final List<Integer> suffix = new ArrayList<>(0);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.socks5.server.buffer;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 全局共享的直接缓冲区池. 转发开始时借出, 隧道结束或空闲时归还,
+ * 最多缓存 maxPooled 块空闲缓冲区, 多出来的交给 GC.
+ * <p>
+ * 配置了内存上限时, 借出中的缓冲区总量不超过上限(池中空闲的另计, 最多 maxPooled 块),
+ * 超出时 {@link #acquire()} 阻塞直到有缓冲区被释放, {@link #tryAcquire()} 返回 null.
+ */
+public class BufferPool {
+    // 过小的缓冲区会让每次系统调用搬运的数据太少
+    public static final int MIN_BUFFER_SIZE = 4096;
+
+    private final int bufferSize;
+    private final int maxPooled;
+    // 按栈使用, 最近归还的缓冲区最先借出
+    private final Deque<ByteBuffer> free = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    // 每个许可对应一块借出中的缓冲区, null 表示不限制
+    private final Semaphore budget;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, 0);
+    }
+
+    public BufferPool(int bufferSize, int maxPooled, long memoryLimit) {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("bufferSize must be at least " + MIN_BUFFER_SIZE + ": " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = Math.max(0, maxPooled);
+        if (memoryLimit > 0) {
+            long permits = Math.max(2, memoryLimit / bufferSize);
+            this.budget = new Semaphore((int) Math.min(Integer.MAX_VALUE, permits));
+        } else {
+            this.budget = null;
+        }
+    }
+
+    public int getBufferSize() { return bufferSize; }
+
+    public int getPooledCount() { return pooled.get(); }
+
+    public int getInUseCount() { return inUse.get(); }
+
+    public boolean isUnderPressure() { return budget != null && budget.availablePermits() == 0; }
+
+    /**
+     * 借出一块缓冲区, 超出内存上限时阻塞等待.
+     */
+    public ByteBuffer acquire() throws InterruptedIOException {
+        if (budget != null && !budget.tryAcquire()) {
+            try {
+                budget.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for relay buffer");
+            }
+        }
+        return take();
+    }
+
+    /**
+     * 非阻塞地借出一块缓冲区, 超出内存上限时返回 null.
+     */
+    public ByteBuffer tryAcquire() {
+        if (budget != null && !budget.tryAcquire()) {
+            return null;
+        }
+        return take();
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        inUse.decrementAndGet();
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+        } else {
+            free.offerFirst(buffer);
+        }
+        if (budget != null) {
+            budget.release();
+        }
+    }
+
+    private ByteBuffer take() {
+        inUse.incrementAndGet();
+        ByteBuffer buffer = free.pollFirst();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+}
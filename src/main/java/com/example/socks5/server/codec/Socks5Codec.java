@@ -0,0 +1,310 @@
+package com.example.socks5.server.codec;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SOCKS5 握手的增量解码器 (RFC 1928 问候和请求, RFC 1929 用户名/密码认证) 以及应答的编码.
+ * <p>
+ * 调用方把收到的数据追加到同一个缓冲区, 以读模式传给 {@link #decode}. 数据不足一帧时返回
+ * {@link Frame#NONE} 且不移动 position; 解出一帧后 position 移到帧尾, 可以继续解下一帧.
+ * 请求帧之后剩下的字节是客户端提前发出的数据, 由调用方原样转发给目标.
+ * <p>
+ * 解码本身不分配内存, 帧的字段只记录在缓冲区中的位置; 这些访问方法在下一次 decode
+ * 或调用方修改缓冲区 (compact 等) 之前有效. 一个实例对应一条连接, 不是线程安全的.
+ */
+public final class Socks5Codec {
+    public static final byte VERSION = 0x05;
+    public static final byte AUTH_VERSION = 0x01;
+
+    public static final byte METHOD_USER_PASS = 0x02;
+    public static final byte METHOD_NO_ACCEPTABLE = (byte) 0xFF;
+
+    public static final byte CMD_CONNECT = 0x01;
+    public static final byte CMD_UDP_ASSOCIATE = 0x03;
+
+    public static final byte ATYP_IPV4 = 0x01;
+    public static final byte ATYP_DOMAIN = 0x03;
+    public static final byte ATYP_IPV6 = 0x04;
+
+    public static final byte REP_SUCCEEDED = 0x00;
+    public static final byte REP_GENERAL_FAILURE = 0x01;
+    public static final byte REP_CONNECTION_NOT_ALLOWED = 0x02;
+    public static final byte REP_NETWORK_UNREACHABLE = 0x03;
+    public static final byte REP_HOST_UNREACHABLE = 0x04;
+    public static final byte REP_CONNECTION_REFUSED = 0x05;
+    public static final byte REP_COMMAND_NOT_SUPPORTED = 0x07;
+    public static final byte REP_ADDRESS_TYPE_NOT_SUPPORTED = 0x08;
+
+    /** 最长的一帧: 认证帧 1 + 1 + 255 + 1 + 255 字节 */
+    public static final int MAX_FRAME_SIZE = 513;
+    /** 最长的应答: IPv6 绑定地址的请求应答 */
+    public static final int MAX_REPLY_SIZE = 22;
+
+    /** decode 的结果, 握手中的帧只会按 GREETING, AUTH, REQUEST 的顺序出现 */
+    public enum Frame { NONE, GREETING, AUTH, REQUEST }
+
+    private Frame expected = Frame.GREETING;
+    private ByteBuffer frame;
+
+    private boolean offersUserPass;
+
+    private int usernameOffset;
+    private int usernameLength;
+    private int passwordOffset;
+    private int passwordLength;
+
+    private byte command;
+    private byte addressType;
+    private int addressOffset;
+    private int addressLength;
+    private int port;
+
+    /**
+     * 从 in 的 position 开始解下一帧. 全部三帧都解出之后总是返回 {@link Frame#NONE}.
+     */
+    public Frame decode(ByteBuffer in) throws Socks5Exception {
+        Frame decoded = switch (expected) {
+            case GREETING -> decodeGreeting(in);
+            case AUTH -> decodeAuthentication(in);
+            case REQUEST -> decodeRequest(in);
+            default -> Frame.NONE;
+        };
+        if (decoded != Frame.NONE) {
+            frame = in;
+            expected = decoded == Frame.REQUEST ? Frame.NONE : Frame.values()[decoded.ordinal() + 1];
+        }
+        return decoded;
+    }
+
+    private Frame decodeGreeting(ByteBuffer in) throws Socks5Exception {
+        int p = in.position();
+        if (in.remaining() < 2) {
+            return Frame.NONE;
+        }
+        int version = in.get(p) & 0xFF;
+        if (version != VERSION) {
+            throw new Socks5Exception("Unsupported SOCKS version: " + version);
+        }
+        int methodCount = in.get(p + 1) & 0xFF;
+        if (in.remaining() < 2 + methodCount) {
+            return Frame.NONE;
+        }
+        offersUserPass = false;
+        for (int i = 0; i < methodCount; i++) {
+            if (in.get(p + 2 + i) == METHOD_USER_PASS) {
+                offersUserPass = true;
+                break;
+            }
+        }
+        in.position(p + 2 + methodCount);
+        return Frame.GREETING;
+    }
+
+    private Frame decodeAuthentication(ByteBuffer in) throws Socks5Exception {
+        int p = in.position();
+        if (in.remaining() < 2) {
+            return Frame.NONE;
+        }
+        int version = in.get(p) & 0xFF;
+        if (version != AUTH_VERSION) {
+            throw new Socks5Exception("Unsupported authentication version: " + version);
+        }
+        int ulen = in.get(p + 1) & 0xFF;
+        if (in.remaining() < 3 + ulen) {
+            return Frame.NONE;
+        }
+        int plen = in.get(p + 2 + ulen) & 0xFF;
+        if (in.remaining() < 3 + ulen + plen) {
+            return Frame.NONE;
+        }
+        usernameOffset = p + 2;
+        usernameLength = ulen;
+        passwordOffset = p + 3 + ulen;
+        passwordLength = plen;
+        in.position(p + 3 + ulen + plen);
+        return Frame.AUTH;
+    }
+
+    private Frame decodeRequest(ByteBuffer in) throws Socks5Exception {
+        int p = in.position();
+        if (in.remaining() < 5) {
+            return Frame.NONE;
+        }
+        int version = in.get(p) & 0xFF;
+        if (version != VERSION) {
+            throw new Socks5Exception("Invalid SOCKS version in request: " + version);
+        }
+        byte atyp = in.get(p + 3);
+        int offset = p + 4;
+        int length;
+        switch (atyp) {
+            case ATYP_IPV4 -> length = 4;
+            case ATYP_DOMAIN -> {
+                length = in.get(p + 4) & 0xFF;
+                offset++;
+            }
+            case ATYP_IPV6 -> length = 16;
+            // 不认识的地址类型无法确定帧长, 只能回复错误后关闭
+            default -> throw new Socks5Exception("Unsupported address type: " + atyp,
+                    REP_ADDRESS_TYPE_NOT_SUPPORTED);
+        }
+        int end = offset + length + 2;
+        if (in.limit() < end) {
+            return Frame.NONE;
+        }
+        byte cmd = in.get(p + 1);
+        int targetPort = ((in.get(end - 2) & 0xFF) << 8) | (in.get(end - 1) & 0xFF);
+        // UDP ASSOCIATE 的地址和端口可以全为 0, 表示客户端还不知道自己的发送地址
+        if (targetPort == 0 && cmd == CMD_CONNECT) {
+            throw new Socks5Exception("Invalid port number: " + targetPort);
+        }
+        // 域名之后会原样写进 HTTP CONNECT 请求, 访问日志和 ACL 匹配, 先挡掉空白和控制字符
+        if (atyp == ATYP_DOMAIN && !isValidHost(in, offset, length)) {
+            throw new Socks5Exception("Invalid domain name in request", REP_HOST_UNREACHABLE);
+        }
+        command = cmd;
+        addressType = atyp;
+        addressOffset = offset;
+        addressLength = length;
+        port = targetPort;
+        in.position(end);
+        return Frame.REQUEST;
+    }
+
+    // ---------------------------------------------------------------- 帧字段
+
+    public boolean offersUserPass() { return offersUserPass; }
+
+    public String username() { return string(usernameOffset, usernameLength); }
+
+    public String password() { return string(passwordOffset, passwordLength); }
+
+    public byte command() { return command; }
+
+    public byte addressType() { return addressType; }
+
+    public boolean isDomain() { return addressType == ATYP_DOMAIN; }
+
+    public int port() { return port; }
+
+    /**
+     * 目标为 IP 地址时返回该地址, 为域名时返回 null.
+     */
+    public InetAddress address() {
+        if (isDomain()) {
+            return null;
+        }
+        byte[] addr = new byte[addressLength];
+        frame.get(addressOffset, addr);
+        try {
+            return InetAddress.getByAddress(addr);
+        } catch (UnknownHostException e) {
+            // 长度已由地址类型保证为 4 或 16
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 目标为域名时返回域名本身, 否则返回 IP 地址的文本形式.
+     */
+    public String host() {
+        return isDomain() ? string(addressOffset, addressLength) : address().getHostAddress();
+    }
+
+    private String string(int offset, int length) {
+        if (frame.hasArray()) {
+            return new String(frame.array(), frame.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        frame.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---------------------------------------------------------------- 主机名校验
+
+    /**
+     * host 是否为合法的主机名或 IP 地址字面量: 只允许 ASCII 字母, 数字, '-', '_' 和 '.';
+     * 含 ':' 时按 IPv6 字面量处理, 只允许十六进制数字, ':' 和 '.'.
+     */
+    public static boolean isValidHost(CharSequence host) {
+        int length = host.length();
+        if (length == 0 || length > 255) {
+            return false;
+        }
+        int classes = 0;
+        for (int i = 0; i < length; i++) {
+            int c = hostCharClass(host.charAt(i));
+            if (c == 0) {
+                return false;
+            }
+            classes |= c;
+        }
+        return validClasses(classes);
+    }
+
+    /**
+     * 同 {@link #isValidHost(CharSequence)}, 直接检查缓冲区中从 offset 开始的 length 个字节.
+     */
+    public static boolean isValidHost(ByteBuffer buf, int offset, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int classes = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int c = hostCharClass(buf.get(i) & 0xFF);
+            if (c == 0) {
+                return false;
+            }
+            classes |= c;
+        }
+        return validClasses(classes);
+    }
+
+    // 1: 十六进制数字和 '.', 2: 其它主机名字符, 4: ':', 0: 不允许
+    private static int hostCharClass(int c) {
+        if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || c == '.') {
+            return 1;
+        }
+        if ((c >= 'g' && c <= 'z') || (c >= 'G' && c <= 'Z') || c == '-' || c == '_') {
+            return 2;
+        }
+        return c == ':' ? 4 : 0;
+    }
+
+    // 含 ':' 的只能是 IPv6 字面量
+    private static boolean validClasses(int classes) {
+        return (classes & 4) == 0 || (classes & 2) == 0;
+    }
+
+    // ---------------------------------------------------------------- 应答
+
+    public static void writeMethod(ByteBuffer out, byte method) {
+        out.put(VERSION).put(method);
+    }
+
+    public static void writeAuthStatus(ByteBuffer out, boolean success) {
+        out.put(AUTH_VERSION).put(success ? (byte) 0x00 : (byte) 0x01);
+    }
+
+    /**
+     * 请求应答. bindAddr 为 null 时绑定地址写 0.0.0.0:0, 用于错误应答.
+     */
+    public static void writeReply(ByteBuffer out, byte reply, InetAddress bindAddr, int bindPort) {
+        out.put(VERSION).put(reply).put((byte) 0x00);
+        if (bindAddr == null) {
+            out.put(ATYP_IPV4).putInt(0).putShort((short) 0);
+            return;
+        }
+        byte[] addrBytes = bindAddr.getAddress();
+        out.put(addrBytes.length == 4 ? ATYP_IPV4 : ATYP_IPV6);
+        out.put(addrBytes);
+        out.put((byte) (bindPort >> 8)).put((byte) bindPort);
+    }
+
+    public static void writeError(ByteBuffer out, byte reply) {
+        writeReply(out, reply, null, 0);
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.socks5.server.codec;
+
+import java.io.IOException;
+
+/**
+ * 客户端发来的握手数据不符合协议. replyCode 不为 -1 时应先给客户端回复该应答码再关闭连接.
+ */
+public class Socks5Exception extends IOException {
+    private final int replyCode;
+
+    public Socks5Exception(String message) {
+        this(message, -1);
+    }
+
+    public Socks5Exception(String message, int replyCode) {
+        super(message);
+        this.replyCode = replyCode;
+    }
+
+    public int getReplyCode() { return replyCode; }
+
+    public boolean hasReply() { return replyCode >= 0; }
+}
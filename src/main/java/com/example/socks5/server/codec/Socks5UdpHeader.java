@@ -0,0 +1,94 @@
+package com.example.socks5.server.codec;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * RFC 1928 第 7 节的 UDP 封装头: RSV(2) FRAG(1) ATYP(1) DST.ADDR DST.PORT(2).
+ * <p>
+ * 所有方法都按绝对位置读写, 不移动缓冲区的 position, 数据报在同一块缓冲区里原地加上或去掉头部.
+ */
+public final class Socks5UdpHeader {
+    /** IPv6 地址的头部长度, 也是中继回给客户端时可能用到的最长头部 */
+    public static final int MAX_IP_LENGTH = 22;
+
+    private Socks5UdpHeader() {}
+
+    /**
+     * 从 position 开始的头部长度. 分片的数据报 (FRAG 不为 0, 不支持重组), 格式错误
+     * 或域名不合法 (见 {@link Socks5Codec#isValidHost(ByteBuffer, int, int)}) 时返回 -1.
+     */
+    public static int length(ByteBuffer buf) {
+        int p = buf.position();
+        int remaining = buf.remaining();
+        if (remaining < 4 || buf.get(p + 2) != 0) {
+            return -1;
+        }
+        int length = switch (buf.get(p + 3)) {
+            case Socks5Codec.ATYP_IPV4 -> 10;
+            case Socks5Codec.ATYP_IPV6 -> 22;
+            case Socks5Codec.ATYP_DOMAIN -> remaining < 5 ? -1 : 7 + (buf.get(p + 4) & 0xFF);
+            default -> -1;
+        };
+        if (length < 0 || length > remaining) {
+            return -1;
+        }
+        if (buf.get(p + 3) == Socks5Codec.ATYP_DOMAIN && !Socks5Codec.isValidHost(buf, p + 5, length - 7)) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * 以 address 为来源地址时写出的头部长度.
+     */
+    public static int length(InetSocketAddress address) {
+        return address.getAddress() instanceof Inet4Address ? 10 : MAX_IP_LENGTH;
+    }
+
+    public static boolean isDomain(ByteBuffer buf) {
+        return buf.get(buf.position() + 3) == Socks5Codec.ATYP_DOMAIN;
+    }
+
+    public static String domain(ByteBuffer buf) {
+        int p = buf.position();
+        byte[] name = new byte[buf.get(p + 4) & 0xFF];
+        buf.get(p + 5, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    public static InetAddress address(ByteBuffer buf) {
+        int p = buf.position();
+        byte[] addr = new byte[buf.get(p + 3) == Socks5Codec.ATYP_IPV4 ? 4 : 16];
+        buf.get(p + 4, addr);
+        try {
+            return InetAddress.getByAddress(addr);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static int port(ByteBuffer buf, int length) {
+        int end = buf.position() + length;
+        return ((buf.get(end - 2) & 0xFF) << 8) | (buf.get(end - 1) & 0xFF);
+    }
+
+    /**
+     * 在 at 处写入以 address 为来源的头部, 长度为 {@link #length(InetSocketAddress)}.
+     */
+    public static void write(ByteBuffer buf, int at, InetSocketAddress address) {
+        InetAddress ip = address.getAddress();
+        buf.putShort(at, (short) 0).put(at + 2, (byte) 0);
+        if (ip instanceof Inet4Address) {
+            buf.put(at + 3, Socks5Codec.ATYP_IPV4).put(at + 4, ip.getAddress());
+            buf.putShort(at + 8, (short) address.getPort());
+        } else {
+            buf.put(at + 3, Socks5Codec.ATYP_IPV6).put(at + 4, ip.getAddress());
+            buf.putShort(at + 20, (short) address.getPort());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.socks5.server.connect;
+
+import com.example.socks5.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 出站连接的本地源地址. 配置了多个出口地址时, 新连接在连接前绑定到其中一个,
+ * 到同一个热门目标的连接分散到多个源 IP 上, 每个源 IP 各有一套临时端口.
+ * <ul>
+ *     <li>round-robin: 依次轮换</li>
+ *     <li>hash: 按目标地址和端口取哈希, 同一目标固定从同一出口发出</li>
+ * </ul>
+ * 绑定失败 (临时端口用尽时为 EADDRINUSE) 的地址暂停使用 retryMillis, 改用同协议族的下一个地址.
+ */
+public final class EgressSelector {
+    private static final Logger logger = LoggerFactory.getLogger(EgressSelector.class);
+
+    private final List<Egress> egresses = new ArrayList<>();
+    private final List<Egress> ipv4 = new ArrayList<>();
+    private final List<Egress> ipv6 = new ArrayList<>();
+    private final boolean hash;
+    private final long retryNanos;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public EgressSelector(Config.ConnectConfig config) throws IOException {
+        this.hash = config.isEgressHash();
+        this.retryNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getEgressRetryMillis()));
+        if (config.getEgressAddresses() != null) {
+            for (String address : config.getEgressAddresses()) {
+                Egress egress = new Egress(InetAddress.getByName(address.trim()));
+                egresses.add(egress);
+                (egress.address instanceof Inet6Address ? ipv6 : ipv4).add(egress);
+            }
+        }
+        if (!egresses.isEmpty()) {
+            logger.info("Binding outbound connections to {} egress addresses ({})", egresses.size(),
+                    hash ? "hash" : "round-robin");
+        }
+    }
+
+    public boolean isEnabled() { return !egresses.isEmpty(); }
+
+    public List<Egress> getEgresses() { return egresses; }
+
+    /**
+     * 把尚未连接的 channel 绑定到适合 target 的出口地址. 没有配置同一协议族的出口地址时不绑定, 由系统选择.
+     * 所有候选地址都绑定失败时抛出最后一次的 {@link BindException}.
+     */
+    public void bind(SocketChannel channel, InetAddress target, int port) throws IOException {
+        List<Egress> family = target instanceof Inet6Address ? ipv6 : ipv4;
+        int n = family.size();
+        if (n == 0) {
+            return;
+        }
+        int start = hash
+                ? Math.floorMod(31 * target.hashCode() + port, n)
+                : Math.floorMod(next.getAndIncrement(), n);
+        // 允许复用处于 TIME_WAIT 的本地端口, 高频短连接时减少绑定失败
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+
+        long now = System.nanoTime();
+        BindException last = null;
+        // 第一轮跳过暂停中的地址, 全都失败时第二轮再试暂停中的地址
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < n; i++) {
+                Egress egress = family.get((start + i) % n);
+                if (egress.isSuspended(now) != (pass == 1)) {
+                    continue;
+                }
+                try {
+                    channel.bind(new InetSocketAddress(egress.address, 0));
+                    egress.bound.increment();
+                    return;
+                } catch (BindException e) {
+                    egress.failed.increment();
+                    egress.suspend(now + retryNanos, e);
+                    last = e;
+                }
+            }
+        }
+        throw last;
+    }
+
+    /**
+     * 一个出口地址及其使用计数.
+     */
+    public static final class Egress {
+        private final InetAddress address;
+        private final LongAdder bound = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        // 暂停使用的截止时间, 0 表示可用
+        private volatile long suspendedUntil;
+
+        Egress(InetAddress address) {
+            this.address = address;
+        }
+
+        public InetAddress getAddress() { return address; }
+
+        /** 成功绑定的连接数 */
+        public long getBound() { return bound.sum(); }
+
+        /** 绑定失败的次数 */
+        public long getFailed() { return failed.sum(); }
+
+        public boolean isSuspended(long now) {
+            long until = suspendedUntil;
+            return until != 0 && now - until < 0;
+        }
+
+        private void suspend(long until, BindException cause) {
+            if (!isSuspended(System.nanoTime())) {
+                logger.warn("Egress address {} failed to bind, skipping it for a while: {}",
+                        address.getHostAddress(), cause.getMessage());
+            }
+            // 0 留作 "可用" 的标记
+            suspendedUntil = until != 0 ? until : 1;
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.socks5.server.connect;
+
+import com.example.socks5.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 RFC 8305 (Happy Eyeballs v2) 连接目标: 解析出的地址按协议族交替排列,
+ * 每隔 attemptDelay 或在上一个尝试失败时立即发起下一个尝试, 最先连上的获胜, 其余全部取消.
+ * 每个尝试在自己的虚拟线程上做阻塞连接.
+ */
+public class HappyEyeballsConnector {
+    private static final Logger logger = LoggerFactory.getLogger(HappyEyeballsConnector.class);
+
+    // 统计表的上限, 防止目标数量无限增长
+    private static final int MAX_TRACKED_DESTINATIONS = 10000;
+
+    private final int connectTimeoutMillis;
+    private final int attemptDelayMillis;
+    private final boolean enabled;
+    private final EgressSelector egress;
+
+    private final ConcurrentHashMap<String, FamilyStats> destinations = new ConcurrentHashMap<>();
+    private final FamilyStats total = new FamilyStats();
+
+    public HappyEyeballsConnector(Config.ConnectConfig config) throws IOException {
+        this.connectTimeoutMillis = config.getTimeoutMillis();
+        this.attemptDelayMillis = Math.max(10, config.getAttemptDelayMillis());
+        this.enabled = config.isHappyEyeballs();
+        this.egress = new EgressSelector(config);
+    }
+
+    public int getConnectTimeoutMillis() { return connectTimeoutMillis; }
+
+    public EgressSelector getEgress() { return egress; }
+
+    /**
+     * 打开一个尚未连接的阻塞模式通道, 配置了出口地址时已绑定到其中一个. 所有出站连接都经这里创建.
+     */
+    public SocketChannel open(InetAddress address, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            egress.bind(channel, address, port);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 阻塞连接, 返回已连接的阻塞模式通道. destination 只用于统计.
+     */
+    public SocketChannel connect(List<InetAddress> addresses, int port, String destination) throws IOException {
+        List<InetAddress> ordered = enabled ? interleave(addresses) : addresses.subList(0, 1);
+        SocketChannel channel = ordered.size() == 1
+                ? connectSingle(ordered.get(0), port)
+                : race(ordered, port);
+        recordWin(destination, ((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+        return channel;
+    }
+
+    /**
+     * 在虚拟线程上执行 {@link #connect}, 供事件循环使用.
+     */
+    public CompletableFuture<SocketChannel> connectAsync(List<InetAddress> addresses, int port, String destination) {
+        CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                future.complete(connect(addresses, port, destination));
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public void recordWin(String destination, InetAddress winner) {
+        boolean v6 = winner instanceof Inet6Address;
+        total.record(v6);
+        FamilyStats stats = destinations.get(destination);
+        if (stats == null && destinations.size() < MAX_TRACKED_DESTINATIONS) {
+            stats = destinations.computeIfAbsent(destination, k -> new FamilyStats());
+        }
+        if (stats != null) {
+            stats.record(v6);
+        }
+    }
+
+    public FamilyStats getTotalStats() { return total; }
+
+    public FamilyStats getStats(String destination) { return destinations.get(destination); }
+
+    public Iterable<String> getTrackedDestinations() { return destinations.keySet(); }
+
+    private SocketChannel connectSingle(InetAddress address, int port) throws IOException {
+        SocketChannel channel = open(address, port);
+        try {
+            channel.socket().connect(new InetSocketAddress(address, port), connectTimeoutMillis);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private SocketChannel race(List<InetAddress> ordered, int port) throws IOException {
+        Race race = new Race();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+        int started = 0;
+        int finished = 0;
+        IOException lastError = null;
+        Attempt winner = null;
+
+        try {
+            race.start(ordered.get(started++), port, connectTimeoutMillis);
+            while (winner == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Connect timed out after " + connectTimeoutMillis + "ms");
+                }
+                long wait = started < ordered.size()
+                        ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(attemptDelayMillis))
+                        : remaining;
+                Attempt attempt = race.results.poll(wait, TimeUnit.NANOSECONDS);
+
+                if (attempt == null) {
+                    // 上一个尝试还没结果, 到了错开间隔就发起下一个
+                    if (started < ordered.size()) {
+                        race.start(ordered.get(started++), port, remainingMillis(deadline));
+                    }
+                    continue;
+                }
+                finished++;
+                if (attempt.channel != null) {
+                    winner = attempt;
+                } else {
+                    lastError = attempt.error;
+                    logger.debug("Connect attempt to {} failed: {}", attempt.address, attempt.error.getMessage());
+                    if (started < ordered.size()) {
+                        race.start(ordered.get(started++), port, remainingMillis(deadline));
+                    } else if (finished == started) {
+                        throw lastError;
+                    }
+                }
+            }
+            return winner.channel;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting", e);
+        } finally {
+            race.finish(winner != null ? winner.channel : null);
+        }
+    }
+
+    private static int remainingMillis(long deadline) {
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * RFC 8305 第 4 节: 以第一个地址的协议族开头, 两个协议族交替排列.
+     */
+    static List<InetAddress> interleave(List<InetAddress> addresses) {
+        if (addresses.size() <= 1) {
+            return addresses;
+        }
+        boolean firstV6 = addresses.get(0) instanceof Inet6Address;
+        List<InetAddress> preferred = new ArrayList<>();
+        List<InetAddress> other = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstV6 ? preferred : other).add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                ordered.add(preferred.get(i));
+            }
+            if (i < other.size()) {
+                ordered.add(other.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    private static final class Attempt {
+        final InetAddress address;
+        final SocketChannel channel;
+        final IOException error;
+
+        Attempt(InetAddress address, SocketChannel channel, IOException error) {
+            this.address = address;
+            this.channel = channel;
+            this.error = error;
+        }
+    }
+
+    /**
+     * 一次竞速中所有尝试共享的状态. 结束后除获胜者外的通道都会被关闭,
+     * 包括结束之后才连上的.
+     */
+    private final class Race {
+        final BlockingQueue<Attempt> results = new LinkedBlockingQueue<>();
+        private final List<SocketChannel> channels = new ArrayList<>();
+        private boolean finished;
+
+        void start(InetAddress address, int port, int timeoutMillis) {
+            Thread.ofVirtual().start(() -> {
+                SocketChannel channel = null;
+                try {
+                    channel = open(address, port);
+                    if (!register(channel)) {
+                        return;
+                    }
+                    channel.socket().connect(new InetSocketAddress(address, port), timeoutMillis);
+                    results.add(new Attempt(address, channel, null));
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                    results.add(new Attempt(address, null, e));
+                }
+            });
+        }
+
+        private synchronized boolean register(SocketChannel channel) {
+            if (finished) {
+                closeQuietly(channel);
+                return false;
+            }
+            channels.add(channel);
+            return true;
+        }
+
+        synchronized void finish(SocketChannel winner) {
+            finished = true;
+            for (SocketChannel channel : channels) {
+                if (channel != winner) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing channel: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 某个目标上各协议族获胜的次数.
+     */
+    public static final class FamilyStats {
+        private final LongAdder ipv4Wins = new LongAdder();
+        private final LongAdder ipv6Wins = new LongAdder();
+
+        void record(boolean v6) {
+            (v6 ? ipv6Wins : ipv4Wins).increment();
+        }
+
+        public long getIpv4Wins() { return ipv4Wins.sum(); }
+
+        public long getIpv6Wins() { return ipv6Wins.sum(); }
+    }
+}
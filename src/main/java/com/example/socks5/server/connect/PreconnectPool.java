@@ -0,0 +1,360 @@
+package com.example.socks5.server.connect;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.dns.DnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点目标的预建连接池.
+ * <ul>
+ *     <li>按 host:port 统计 CONNECT 的到达速率, 达到 minRate 的目标视为热点</li>
+ *     <li>热点目标保持若干已建立但未使用的上游连接, 匹配的 CONNECT 直接取用, 省去解析和 TCP 握手</li>
+ *     <li>池大小按到达速率乘以建连耗时估算, 取用时池空则调大, 连接闲置过期则调小</li>
+ *     <li>取出前检查连接是否已被对端关闭, 闲置超过 maxIdle 的连接直接丢弃</li>
+ * </ul>
+ * 主动先发数据的服务器(SMTP, SSH 等)无法使用预建连接, 发现后该目标不再预建.
+ */
+public class PreconnectPool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(PreconnectPool.class);
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    // 到达速率和建连耗时的平滑系数
+    private static final double ALPHA = 0.3;
+    // 还没有测到建连耗时时的估计值
+    private static final long INITIAL_CONNECT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final boolean enabled;
+    private final double minRate;
+    private final int maxPerDestination;
+    private final int maxTotal;
+    private final int maxDestinations;
+    private final long maxIdleNanos;
+    private final DnsResolver dnsResolver;
+    private final HappyEyeballsConnector connector;
+
+    private final ConcurrentHashMap<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final AtomicInteger totalPooled = new AtomicInteger();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Thread sweeper;
+    private volatile boolean closed;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public PreconnectPool(Config.PreconnectConfig config, DnsResolver dnsResolver, HappyEyeballsConnector connector) {
+        this.enabled = config.isEnabled();
+        this.minRate = Math.max(0.1, config.getMinRate());
+        this.maxPerDestination = Math.max(1, config.getMaxPerDestination());
+        this.maxTotal = Math.max(1, config.getMaxTotal());
+        this.maxDestinations = Math.max(1, config.getMaxDestinations());
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(100, config.getMaxIdleMillis()));
+        this.dnsResolver = dnsResolver;
+        this.connector = connector;
+        this.sweeper = enabled ? Thread.ofVirtual().name("socks5-preconnect").start(this::sweepLoop) : null;
+    }
+
+    /**
+     * 记录一次到 host:port 的 CONNECT, 有可用的预建连接时取出返回(阻塞模式), 否则返回 null.
+     */
+    public SocketChannel poll(String host, int port) {
+        if (!enabled) {
+            return null;
+        }
+        String key = host.toLowerCase(Locale.ROOT) + ":" + port;
+        Destination d = destinations.get(key);
+        if (d == null) {
+            if (destinations.size() >= maxDestinations) {
+                return null;
+            }
+            d = destinations.computeIfAbsent(key, k -> new Destination(host, port, k));
+        }
+        d.arrivals.increment();
+        if (d.target == 0) {
+            return null;
+        }
+
+        Idle idle;
+        while ((idle = d.idle.pollFirst()) != null) {
+            d.pooled.decrementAndGet();
+            totalPooled.decrementAndGet();
+            if (isUsable(d, idle)) {
+                hits.increment();
+                refill(d);
+                return idle.channel;
+            }
+            closeQuietly(idle.channel);
+        }
+        misses.increment();
+        d.missed = true;
+        refill(d);
+        return null;
+    }
+
+    private boolean isUsable(Destination d, Idle idle) {
+        if (System.nanoTime() - idle.createdAt >= maxIdleNanos) {
+            expired.increment();
+            return false;
+        }
+        // 非阻塞地读一个字节: 0 表示连接仍然空闲可用, -1 表示对端已关闭,
+        // 读到数据说明服务器会主动先发, 这个字节已无法还给客户端
+        try {
+            SocketChannel channel = idle.channel;
+            channel.configureBlocking(false);
+            int n = channel.read(ByteBuffer.allocate(1));
+            if (n == 0) {
+                channel.configureBlocking(true);
+                return true;
+            }
+            if (n > 0) {
+                markServerFirst(d);
+            }
+        } catch (IOException e) {
+            logger.debug("Pre-connected socket to {} is broken: {}", d.key, e.getMessage());
+        }
+        stale.increment();
+        return false;
+    }
+
+    private void markServerFirst(Destination d) {
+        if (!d.serverFirst) {
+            d.serverFirst = true;
+            d.target = 0;
+            logger.info("Destination {} sends data before the client, pre-connecting disabled for it", d.key);
+            drain(d);
+        }
+    }
+
+    private void refill(Destination d) {
+        while (!closed && !d.failed) {
+            int pending = d.pending.get();
+            if (d.pooled.get() + pending >= d.target || totalPooled.get() + pending >= maxTotal) {
+                return;
+            }
+            if (!d.pending.compareAndSet(pending, pending + 1)) {
+                continue;
+            }
+            try {
+                executor.execute(() -> open(d));
+            } catch (RejectedExecutionException e) {
+                d.pending.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void open(Destination d) {
+        long start = System.nanoTime();
+        SocketChannel channel;
+        try {
+            List<InetAddress> addresses = dnsResolver.resolve(d.host);
+            channel = connector.connect(addresses, d.port, d.key);
+            long elapsed = System.nanoTime() - start;
+            d.connectNanos = (long) (ALPHA * elapsed + (1 - ALPHA) * d.connectNanos);
+            created.increment();
+        } catch (IOException e) {
+            failures.increment();
+            // 失败后不再补充, 等下一次清理时再试
+            d.failed = true;
+            d.pending.decrementAndGet();
+            logger.debug("Failed to pre-connect to {}: {}", d.key, e.getMessage());
+            return;
+        }
+        if (closed || d.target == 0 || d.pooled.get() >= maxPerDestination) {
+            d.pending.decrementAndGet();
+            closeQuietly(channel);
+            return;
+        }
+        // 先计入池中再减少 pending, 避免并发的 refill 多建连接
+        d.idle.offerFirst(new Idle(channel, System.nanoTime()));
+        d.pooled.incrementAndGet();
+        totalPooled.incrementAndGet();
+        d.pending.decrementAndGet();
+        if (closed) {
+            drain(d);
+        }
+    }
+
+    private void sweepLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(SWEEP_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                logger.error("Error sweeping pre-connect pool: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        Iterator<Destination> it = destinations.values().iterator();
+        while (it.hasNext()) {
+            Destination d = it.next();
+            long count = d.arrivals.sumThenReset();
+            double perSecond = count * 1000.0 / SWEEP_INTERVAL_MILLIS;
+            d.rate = ALPHA * perSecond + (1 - ALPHA) * d.rate;
+
+            boolean expiredAny = expire(d, now);
+            if (d.serverFirst || d.rate < minRate) {
+                if (d.target > 0) {
+                    logger.debug("Destination {} is no longer hot ({} conn/s)", d.key, String.format("%.1f", d.rate));
+                    d.target = 0;
+                    d.extra = 0;
+                    drain(d);
+                }
+                // 冷目标不再占用统计表, 主动先发的目标保留标记
+                if (!d.serverFirst && d.rate < minRate / 10 && d.pending.get() == 0) {
+                    it.remove();
+                }
+                continue;
+            }
+
+            // Little 定律: 补充一个连接的耗时内预计到达的 CONNECT 数, 再加一个余量;
+            // 池空取不到时调大, 有连接闲置到过期时调小
+            if (d.missed) {
+                d.extra++;
+            } else if (expiredAny && d.extra > 0) {
+                d.extra--;
+            }
+            d.missed = false;
+            double connectSeconds = d.connectNanos / 1e9;
+            int base = (int) Math.ceil(d.rate * connectSeconds) + 1;
+            int target = Math.min(maxPerDestination, base + d.extra);
+            d.extra = Math.max(0, Math.min(d.extra, maxPerDestination - base));
+            if (d.target == 0) {
+                logger.debug("Destination {} is hot ({} conn/s), keeping {} pre-connected sockets",
+                        d.key, String.format("%.1f", d.rate), target);
+            }
+            d.target = target;
+            d.failed = false;
+            refill(d);
+        }
+    }
+
+    private boolean expire(Destination d, long now) {
+        boolean any = false;
+        Iterator<Idle> it = d.idle.descendingIterator();
+        while (it.hasNext()) {
+            Idle idle = it.next();
+            if (now - idle.createdAt < maxIdleNanos) {
+                break;
+            }
+            if (d.idle.removeFirstOccurrence(idle)) {
+                d.pooled.decrementAndGet();
+                totalPooled.decrementAndGet();
+                expired.increment();
+                closeQuietly(idle.channel);
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    private void drain(Destination d) {
+        Idle idle;
+        while ((idle = d.idle.pollFirst()) != null) {
+            d.pooled.decrementAndGet();
+            totalPooled.decrementAndGet();
+            closeQuietly(idle.channel);
+        }
+    }
+
+    public long getHits() { return hits.sum(); }
+
+    public long getMisses() { return misses.sum(); }
+
+    public long getStale() { return stale.sum(); }
+
+    public long getExpired() { return expired.sum(); }
+
+    public long getCreated() { return created.sum(); }
+
+    public long getFailures() { return failures.sum(); }
+
+    public int getPooledCount() { return totalPooled.get(); }
+
+    @Override
+    public void close() {
+        if (!enabled) {
+            return;
+        }
+        closed = true;
+        sweeper.interrupt();
+        executor.shutdownNow();
+        for (Destination d : destinations.values()) {
+            drain(d);
+        }
+        logger.info("Pre-connect stats: {} hits, {} misses, {} stale, {} expired, {} created, {} failures",
+                getHits(), getMisses(), getStale(), getExpired(), getCreated(), getFailures());
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Error closing channel: {}", e.getMessage());
+        }
+    }
+
+    private static final class Idle {
+        final SocketChannel channel;
+        final long createdAt;
+
+        Idle(SocketChannel channel, long createdAt) {
+            this.channel = channel;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * 一个 host:port 的统计和空闲连接. 最新建立的连接在队头, 取用时优先使用最新的.
+     */
+    private static final class Destination {
+        final String host;
+        final int port;
+        final String key;
+        final LongAdder arrivals = new LongAdder();
+        final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<>();
+        final AtomicInteger pooled = new AtomicInteger();
+        final AtomicInteger pending = new AtomicInteger();
+        // target 由清理线程计算, 其余 volatile 字段由取用和建连线程更新; rate 和 extra 只在清理线程中使用
+        volatile int target;
+        volatile long connectNanos = INITIAL_CONNECT_NANOS;
+        volatile boolean serverFirst;
+        volatile boolean missed;
+        volatile boolean failed;
+        double rate;
+        int extra;
+
+        Destination(String host, int port, String key) {
+            this.host = host;
+            this.port = port;
+            this.key = key;
+        }
+    }
+}
@@ -1,44 +1,158 @@
 package com.example.socks5.server.handler;
 
+import com.example.socks5.accesslog.AccessLog;
+import com.example.socks5.accesslog.AccessRecord;
+import com.example.socks5.accounting.TrafficAccounting;
 import com.example.socks5.auth.Authenticator;
+import com.example.socks5.config.Config;
+import com.example.socks5.dns.DnsResolver;
+import com.example.socks5.metrics.Metrics;
+import com.example.socks5.server.ClientPeer;
+import com.example.socks5.server.ServerContext;
+import com.example.socks5.server.acl.AccessPolicy;
+import com.example.socks5.server.buffer.BufferPool;
+import com.example.socks5.server.codec.Socks5Codec;
+import com.example.socks5.server.codec.Socks5Exception;
+import com.example.socks5.server.connect.HappyEyeballsConnector;
+import com.example.socks5.server.connect.PreconnectPool;
+import com.example.socks5.server.limit.AdmissionControl;
+import com.example.socks5.server.limit.TrafficLimiter;
+import com.example.socks5.server.session.Session;
+import com.example.socks5.server.session.SessionRegistry;
+import com.example.socks5.server.timeout.TunnelReaper;
+import com.example.socks5.server.timeout.TunnelTimer;
+import com.example.socks5.server.udp.UdpAssociation;
+import com.example.socks5.server.udp.UdpRelay;
+import com.example.socks5.server.upstream.UpstreamConnection;
+import com.example.socks5.server.upstream.UpstreamException;
+import com.example.socks5.server.upstream.UpstreamPool;
+import com.example.socks5.server.upstream.UpstreamRouter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class Socks5Handler implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(Socks5Handler.class);
 
-    private final Socket clientSocket;
+    private final SocketChannel clientChannel;
+    // 接收该连接的监听地址标签
+    private final String listener;
+    // Unix 域套接字没有 Socket 适配器, 为 null
+    private Socket clientSocket;
     private final com.example.socks5.auth.Authenticator authenticator;
-    private static final int BUFFER_SIZE = 8192;
+    private final AccessPolicy accessPolicy;
+    private final BufferPool bufferPool;
+    private final DnsResolver dnsResolver;
+    private final HappyEyeballsConnector connector;
+    private final PreconnectPool preconnectPool;
+    private final UpstreamRouter upstreamRouter;
+    private final UdpRelay udpRelay;
+    private final TrafficLimiter trafficLimiter;
+    private final TrafficAccounting trafficAccounting;
+    private final AdmissionControl admission;
+    private final Metrics metrics;
+    private final AccessLog accessLog;
+    private final int idleReleaseMillis;
+    private final TunnelReaper tunnelReaper;
+    private final Config.TimeoutsConfig timeouts;
+    private final SessionRegistry sessions;
     private static final int SOCKET_TIMEOUT = 30000; // 30 seconds
+    private static final int HANDSHAKE_BUFFER_SIZE = 2048;
+    // 问候, 认证和请求三个应答加起来的最大长度
+    private static final int HANDSHAKE_REPLY_SIZE = 64;
 
     private InputStream clientIn;
     private OutputStream clientOut;
-    private final String clientInfo;
-
-    public Socks5Handler(Socket clientSocket, Authenticator authenticator) {
-        this.clientSocket = clientSocket;
-        this.authenticator = authenticator;
-        this.clientInfo = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
+    // 握手数据读入同一个缓冲区(读模式), 应答先写入 out 再批量发出
+    private final ByteBuffer in = ByteBuffer.allocate(HANDSHAKE_BUFFER_SIZE).flip();
+    private final ByteBuffer out = ByteBuffer.allocate(HANDSHAKE_REPLY_SIZE);
+    private final Socks5Codec codec = new Socks5Codec();
+    private ClientPeer peer;
+    private String clientInfo;
+    private final AccessRecord record = new AccessRecord();
+    private long startedAt;
+    // 握手的总时限, 每次读取的超时取它和 SOCKET_TIMEOUT 中较小的一个
+    private long handshakeDeadline;
+    private boolean handshaking;
+    // Unix 域套接字不支持 SO_TIMEOUT, 握手时限由这个虚拟线程到时关闭通道
+    private Thread handshakeWatchdog;
+    private volatile boolean handshakeExpired;
+    private String username;
+    // 收到请求后占用的连接数和限速额度, 连接关闭时归还
+    private TrafficLimiter.Lease lease;
+    // 经上游代理建立的连接, 关闭时归还上游的名额
+    private UpstreamConnection upstreamConnection;
+    // 隧道被时间轮回收的原因, 由回收线程写入
+    private volatile TunnelTimer.Reason expiredReason;
+    private Session session;
+    // 被管理接口或关闭排空强制关闭, 转发开始后 tunnelTarget 为目标通道, 都由其它线程读取
+    private volatile boolean killed;
+    private volatile SocketChannel tunnelTarget;
+
+    public Socks5Handler(SocketChannel clientChannel, String listener, ServerContext context) {
+        this.clientChannel = clientChannel;
+        this.listener = listener;
+        this.authenticator = context.getAuthenticator();
+        this.accessPolicy = context.getAccessPolicy();
+        this.bufferPool = context.getBufferPool();
+        this.dnsResolver = context.getDnsResolver();
+        this.connector = context.getConnector();
+        this.preconnectPool = context.getPreconnectPool();
+        this.upstreamRouter = context.getUpstreamRouter();
+        this.udpRelay = context.getUdpRelay();
+        this.trafficLimiter = context.getTrafficLimiter();
+        this.trafficAccounting = context.getTrafficAccounting();
+        this.admission = context.getAdmissionControl();
+        this.metrics = context.getMetrics();
+        this.accessLog = context.getAccessLog();
+        this.idleReleaseMillis = context.getServerConfig().getIdleBufferReleaseMillis();
+        this.tunnelReaper = context.getTunnelReaper();
+        this.timeouts = context.getConfig().getTimeouts();
+        this.sessions = context.getSessionRegistry();
     }
 
     @Override
     public void run() {
-        logger.info("Handling connection from: {}", clientInfo);
+        handshaking = true;
+        try {
+            peer = ClientPeer.of(clientChannel, listener);
+        } catch (IOException e) {
+            // 接收之后通道已经关闭, 还没有登记会话
+            logger.debug("Client disconnected before the connection was set up: {}", e.getMessage());
+            closeQuietly(clientChannel);
+            finishHandshake();
+            admission.connectionClosed();
+            return;
+        }
+        clientSocket = peer.isUnix() ? null : clientChannel.socket();
+        clientInfo = peer.getInfo();
+        logger.debug("Handling connection from: {}", clientInfo);
+        record.start(peer.getAddress(), peer.getPort());
+        startedAt = System.nanoTime();
+        session = sessions.register(clientInfo, this::kill);
+        handshakeDeadline = startedAt + admission.getHandshakeTimeoutNanos();
 
         try {
             // Set socket timeout
-            clientSocket.setSoTimeout(SOCKET_TIMEOUT);
-
-            clientIn = clientSocket.getInputStream();
-            clientOut = clientSocket.getOutputStream();
+            setReadTimeout(SOCKET_TIMEOUT);
+
+            if (clientSocket != null) {
+                clientIn = clientSocket.getInputStream();
+                clientOut = clientSocket.getOutputStream();
+            } else {
+                clientIn = Channels.newInputStream(clientChannel);
+                clientOut = Channels.newOutputStream(clientChannel);
+                startHandshakeWatchdog();
+            }
 
             // SOCKS5握手
             if (!handleHandshake()) {
@@ -53,282 +167,472 @@ public class Socks5Handler implements Runnable {
             // 处理客户端请求
             handleRequest();
 
+        } catch (Socks5Exception e) {
+            logger.warn("Protocol error from client {}: {}", clientInfo, e.getMessage());
+            record.fail(AccessRecord.CloseReason.PROTOCOL_ERROR);
+            // 之前攒下的应答和错误应答一起发出
+            if (e.hasReply()) {
+                Socks5Codec.writeError(out, (byte) e.getReplyCode());
+                metrics.requestFailed(e.getReplyCode());
+                record.setReply(e.getReplyCode());
+            }
+            try {
+                flushOut();
+            } catch (IOException ignored) {
+                // 客户端已经断开
+            }
         } catch (SocketTimeoutException e) {
+            if (handshaking) {
+                metrics.handshakeTimedOut();
+            }
+            record.fail(AccessRecord.CloseReason.TIMEOUT);
             logger.warn("Socket timeout for client: {}", clientInfo);
         } catch (IOException e) {
-            logger.error("Error handling client {}: {}", clientInfo, e.getMessage());
+            if (killed) {
+                record.fail(session.isQuotaExceeded()
+                        ? AccessRecord.CloseReason.QUOTA_EXCEEDED : AccessRecord.CloseReason.KILLED);
+                logger.debug("Connection killed: {}", clientInfo);
+            } else {
+                record.fail(AccessRecord.CloseReason.ERROR);
+                logger.error("Error handling client {}: {}", clientInfo, e.getMessage());
+            }
         } catch (Exception e) {
+            record.fail(AccessRecord.CloseReason.ERROR);
             logger.error("Unexpected error handling client {}: {}", clientInfo, e.getMessage(),e);
         } finally {
-            closeQuietly(clientSocket);
-            logger.info("Connection closed: {}", clientInfo);
+            closeQuietly(clientChannel);
+            if (lease != null) {
+                lease.release();
+            }
+            if (upstreamConnection != null) {
+                upstreamConnection.release();
+            }
+            if (handshaking) {
+                finishHandshake();
+            }
+            admission.connectionClosed();
+            sessions.unregister(session);
+            record.finish();
+            accessLog.publish(record);
+            logger.debug("Connection closed: {}", clientInfo);
         }
     }
 
     private boolean handleHandshake() throws IOException {
-        // 读取客户端握手请求
-        int version = clientIn.read();
-        if (version == -1) {
-            logger.debug("Client disconnected during handshake");
-            return false;
-        }
-
-        if (version != 0x05) {
-            logger.warn("Unsupported SOCKS version from {}: {}", clientInfo, version);
-            return false;
-        }
-
-        int methodCount = clientIn.read();
-        if (methodCount == -1) {
+        if (!readFrame()) {
             logger.debug("Client disconnected during handshake");
             return false;
         }
 
-        byte[] methods = clientIn.readNBytes(methodCount);
-        if (methods.length != methodCount) {
-            logger.warn("Incomplete handshake data from {}", clientInfo);
-            return false;
-        }
-
-        // 检查支持的认证方法 - 只支持用户名/密码认证
-        boolean supportsUserPass = false;
-
-        for (byte method : methods) {
-            if (method == 0x02) { // USERNAME/PASSWORD
-                supportsUserPass = true;
-                break;
-            }
-        }
-
         // 选择认证方法 - 强制使用用户名/密码认证
-        byte selectedMethod = supportsUserPass ? (byte) 0x02 : (byte) 0xFF;
-
-        // 发送握手响应
-        clientOut.write(new byte[]{0x05, selectedMethod});
-        clientOut.flush();
+        boolean supportsUserPass = codec.offersUserPass();
+        Socks5Codec.writeMethod(out, supportsUserPass ? Socks5Codec.METHOD_USER_PASS : Socks5Codec.METHOD_NO_ACCEPTABLE);
 
-        if (selectedMethod == (byte) 0xFF) {
+        if (!supportsUserPass) {
+            record.fail(AccessRecord.CloseReason.AUTH_FAILED);
+            flushOut();
             logger.warn("Client {} doesn't support username/password authentication", clientInfo);
             return false;
         }
 
+        // 应答先留在 out 中, 客户端流水线发来的后续帧处理完之后一起发出
         logger.debug("Handshake completed for client: {}", clientInfo);
         return true;
     }
 
     private boolean handleAuthentication() throws IOException {
-        // 读取认证版本
-        int authVersion = clientIn.read();
-        if (authVersion == -1) {
-            logger.debug("Client {} disconnected during authentication",clientInfo);
+        if (!readFrame()) {
+            logger.debug("Client {} disconnected during authentication", clientInfo);
             return false;
         }
 
-        if (authVersion != 0x01) {
-            logger.warn("Unsupported authentication version from {}: {}", clientInfo, authVersion);
+        // 验证凭据
+        long authStart = System.nanoTime();
+        boolean authenticated = authenticator.authenticate(codec.username(), codec.password());
+        metrics.recordAuth(authStart, authenticated);
+
+        // 发送认证响应
+        Socks5Codec.writeAuthStatus(out, authenticated);
+        if (!authenticated) {
+            record.fail(AccessRecord.CloseReason.AUTH_FAILED);
+            flushOut();
             return false;
         }
+        username = codec.username();
+        record.setUsername(username);
+        session.setUsername(username);
+        return true;
+    }
 
-        // 读取用户名
-        int usernameLen = clientIn.read();
-        if (usernameLen == -1) {
-            logger.debug("Client {} disconnected during authentication",clientInfo);
-            return false;
+    private void handleRequest() throws IOException {
+        if (!readFrame()) {
+            logger.debug("Client {} disconnected before sending a request", clientInfo);
+            return;
+        }
+        finishHandshake();
+        metrics.recordHandshake(startedAt);
+        InetAddress literal = codec.address();
+        String targetHost = literal != null ? literal.getHostAddress() : codec.host();
+        int targetPort = codec.port();
+        record.request(codec.command(), targetHost, targetPort);
+        session.setTarget(targetHost, targetPort);
+
+        boolean udpAssociate = codec.command() == Socks5Codec.CMD_UDP_ASSOCIATE && udpRelay != null;
+        if (!udpAssociate && codec.command() != Socks5Codec.CMD_CONNECT) { // 只支持CONNECT和UDP ASSOCIATE命令
+            logger.warn("Unsupported command from {}: {}", clientInfo, codec.command());
+            sendErrorResponse(Socks5Codec.REP_COMMAND_NOT_SUPPORTED);
+            return;
         }
 
-        byte[] usernameBytes = clientIn.readNBytes(usernameLen);
-        if (usernameBytes.length != usernameLen) {
-            logger.warn("Incomplete username data from {}",clientInfo);
-            return false;
+        // 目标访问控制, 域名目标在本地解析之后还要按地址再检查; UDP ASSOCIATE 的目标由中继逐个检查
+        if (!udpAssociate) {
+            byte verdict = accessPolicy.check(username, targetHost, literal, targetPort);
+            if (verdict != Socks5Codec.REP_SUCCEEDED) {
+                logger.debug("Client {} ({}) denied access to {}:{}", clientInfo, username, targetHost, targetPort);
+                sendErrorResponse(verdict);
+                return;
+            }
         }
-        String username = new String(usernameBytes, StandardCharsets.UTF_8);
 
-        // 读取密码
-        int passwordLen = clientIn.read();
-        if (passwordLen == -1) {
-            logger.debug("Client {} disconnected during authentication",clientInfo);
-            return false;
+        // 用户的流量配额已用完
+        if (trafficAccounting != null && trafficAccounting.isOverQuota(username)) {
+            logger.debug("Client {} ({}) is over quota", clientInfo, username);
+            sendErrorResponse(Socks5Codec.REP_CONNECTION_NOT_ALLOWED);
+            return;
         }
 
-        byte[] passwordBytes = clientIn.readNBytes(passwordLen);
-        if (passwordBytes.length != passwordLen) {
-            logger.warn("Incomplete password data from {}", clientInfo);
-            return false;
+        // 用户或客户端 IP 的连接数已满
+        lease = trafficLimiter.acquire(username, peer.getAddress());
+        if (lease == null) {
+            sendErrorResponse(Socks5Codec.REP_CONNECTION_NOT_ALLOWED);
+            return;
+        }
+        if (udpAssociate) {
+            handleUdpAssociate();
+            return;
         }
-        String password = new String(passwordBytes, StandardCharsets.UTF_8);
 
-        // 验证凭据
-        boolean authenticated = authenticator.authenticate(username, password);
+        // 解析目标地址
+        List<InetAddress> targetAddresses = literal != null ? List.of(literal) : null;
 
-        // 发送认证响应
-        byte status = authenticated ? (byte) 0x00 : (byte) 0x01;
-        clientOut.write(new byte[]{0x01, status});
-        clientOut.flush();
+        logger.debug("Client {} connecting to: {}:{}", clientInfo, targetHost, targetPort);
 
-        return authenticated;
-    }
+        // 经上游代理转发的目标交给上游解析
+        UpstreamPool upstreamPool = upstreamRouter.route(targetHost, literal, targetPort);
+        if (upstreamPool != null) {
+            connectViaUpstream(upstreamPool, targetHost, literal, targetPort);
+            return;
+        }
 
-    private void handleRequest() throws IOException {
-        // 读取请求头
-        byte[] header = clientIn.readNBytes(4); // version, command, reserved, address type
-        if (header.length != 4) {
-            throw new IOException("Incomplete request header");
+        // 热点目标优先取用预建连接, 省去解析和 TCP 握手
+        SocketChannel pooled = preconnectPool.poll(targetHost, targetPort);
+        if (pooled != null && literal == null && accessPolicy.checkResolved(username, targetHost,
+                pooled.socket().getInetAddress(), targetPort) != Socks5Codec.REP_SUCCEEDED) {
+            closeQuietly(pooled);
+            pooled = null;
         }
 
-        if (header[0] != 0x05) {
-            throw new IOException("Invalid SOCKS version in request: " + header[0]);
+        // 域名交给缓存解析器
+        if (pooled == null && targetAddresses == null) {
+            long dnsStart = System.nanoTime();
+            try {
+                targetAddresses = dnsResolver.resolve(targetHost);
+                metrics.recordDns(dnsStart);
+                record.setDnsNanos(System.nanoTime() - dnsStart);
+            } catch (UnknownHostException e) {
+                metrics.recordDns(dnsStart);
+                record.setDnsNanos(System.nanoTime() - dnsStart);
+                logger.error("Failed to resolve target {} from client {}: {}", targetHost, clientInfo, e.getMessage());
+                sendErrorResponse(Socks5Codec.REP_HOST_UNREACHABLE);
+                return;
+            }
+            List<InetAddress> allowed = accessPolicy.filter(username, targetHost, targetAddresses, targetPort);
+            if (allowed.isEmpty()) {
+                logger.debug("Client {} ({}) denied access to all addresses of {}:{}", clientInfo, username,
+                        targetHost, targetPort);
+                sendErrorResponse(accessPolicy.checkResolved(username, targetHost, targetAddresses.get(0), targetPort));
+                return;
+            }
+            targetAddresses = allowed;
         }
 
-        byte command = header[1];
-        byte addressType = header[3];
+        // 连接到目标服务器, 多个地址时按 Happy Eyeballs 竞速
+        long connectStart = System.nanoTime();
+        try (SocketChannel targetChannel = pooled != null ? pooled
+                : connector.connect(targetAddresses, targetPort, targetHost + ":" + targetPort)) {
+            metrics.recordConnect(connectStart);
+            record.setConnectNanos(System.nanoTime() - connectStart);
+            openTunnel(targetChannel, targetHost, targetPort);
 
-        if (command != 0x01) { // 只支持CONNECT命令
-            logger.warn("Unsupported command from {}: {}", clientInfo, command);
-            sendErrorResponse((byte)0x07); // Command not supported
-            return;
+        } catch (IOException e) {
+            logger.error("Failed to connect to target {}:{} from client {}: {}",
+                        targetHost, targetPort, clientInfo, e.getMessage());
+            sendErrorResponse(Socks5Codec.REP_CONNECTION_REFUSED);
         }
+    }
 
-        // 解析目标地址
-        String targetHost;
-        int targetPort;
-
-        switch (addressType) {
-            case 0x01: // IPv4
-                byte[] ipv4 = clientIn.readNBytes(4);
-                if (ipv4.length != 4) {
-                    throw new IOException("Incomplete IPv4 address");
-                }
-                targetHost = InetAddress.getByAddress(ipv4).getHostAddress();
-                break;
-            case 0x03: // Domain name
-                int domainLen = clientIn.read();
-                if (domainLen == -1) {
-                    throw new IOException("Incomplete domain length");
-                }
-                byte[] domainBytes = clientIn.readNBytes(domainLen);
-                if (domainBytes.length != domainLen) {
-                    throw new IOException("Incomplete domain name");
-                }
-                targetHost = new String(domainBytes, StandardCharsets.UTF_8);
-                break;
-            case 0x04: // IPv6
-                byte[] ipv6 = clientIn.readNBytes(16);
-                if (ipv6.length != 16) {
-                    throw new IOException("Incomplete IPv6 address");
-                }
-                targetHost = InetAddress.getByAddress(ipv6).getHostAddress();
-                break;
-            default:
-                logger.warn("Unsupported address type from {}: {}", clientInfo, addressType);
-                sendErrorResponse((byte)0x08); // Address type not supported
-                return;
+    private void connectViaUpstream(UpstreamPool pool, String targetHost, InetAddress literal, int targetPort)
+            throws IOException {
+        long connectStart = System.nanoTime();
+        try {
+            upstreamConnection = upstreamRouter.connect(pool, targetHost, literal, targetPort);
+        } catch (IOException e) {
+            logger.error("Failed to connect to target {}:{} via pool {} from client {}: {}",
+                    targetHost, targetPort, pool, clientInfo, e.getMessage());
+            sendErrorResponse(e instanceof UpstreamException ue ? ue.getReplyCode() : Socks5Codec.REP_GENERAL_FAILURE);
+            return;
         }
+        metrics.recordConnect(connectStart);
+        record.setConnectNanos(System.nanoTime() - connectStart);
+        logger.debug("Client {} connected to {}:{} via {}", clientInfo, targetHost, targetPort,
+                upstreamConnection.getProxy());
 
-        // 读取端口
-        byte[] portBytes = clientIn.readNBytes(2);
-        if (portBytes.length != 2) {
-            throw new IOException("Incomplete port data");
+        try (SocketChannel targetChannel = upstreamConnection.getChannel()) {
+            openTunnel(targetChannel, targetHost, targetPort);
         }
-        targetPort = ((portBytes[0] & 0xFF) << 8) | (portBytes[1] & 0xFF);
+    }
 
-        if (targetPort == 0 || targetPort > 65535) {
-            throw new IOException("Invalid port number: " + targetPort);
-        }
+    private void openTunnel(SocketChannel targetChannel, String targetHost, int targetPort) throws IOException {
+        Socket targetSocket = targetChannel.socket();
 
-        logger.info("Client {} connecting to: {}:{}",clientInfo, targetHost, targetPort);
+        // Remove timeout for data transfer
+        setReadTimeout(0);
 
-        // 连接到目标服务器
-        try (Socket targetSocket = new Socket()) {
-            // Set connection timeout
-            targetSocket.connect(new InetSocketAddress(targetHost, targetPort), 10000);
+        // 发送成功响应
+        sendSuccessResponse(targetSocket.getLocalAddress(), targetSocket.getLocalPort());
 
-            // Remove timeout for data transfer
-            clientSocket.setSoTimeout(0);
+        // 客户端在请求之后立即发送的早到数据先转发给目标
+        while (in.hasRemaining()) {
+            targetChannel.write(in);
+        }
 
-            // 发送成功响应
-            sendSuccessResponse(targetSocket.getLocalAddress(), targetSocket.getLocalPort());
+        // 开始数据转发
+        startTunneling(targetChannel, targetHost, targetPort);
+    }
 
-            // 开始数据转发
-            startTunneling(targetSocket, targetHost, targetPort);
+    private void handleUdpAssociate() throws IOException {
+        // 请求中的地址是客户端将要发送数据报的地址, 未指定时以控制连接的来源地址为准
+        InetAddress requested = codec.address();
+        InetAddress clientAddress = requested != null && !requested.isAnyLocalAddress()
+                ? requested : peer.getAddress();
+        int clientPort = codec.port();
 
+        UdpAssociation association;
+        try {
+            association = udpRelay.associate(clientAddress, clientPort, peer.getLocalAddress(), username,
+                    clientInfo, session);
         } catch (IOException e) {
-            logger.error("Failed to connect to target {}:{} from client {}: {}",
-                        targetHost, targetPort, clientInfo, e.getMessage());
-            sendErrorResponse((byte)0x05); // Connection refused
+            logger.error("Failed to set up UDP relay for client {}: {}", clientInfo, e.getMessage());
+            sendErrorResponse(Socks5Codec.REP_GENERAL_FAILURE);
+            return;
+        }
+
+        if (trafficAccounting != null) {
+            session.setUsage(trafficAccounting.open(username, null));
+        }
+        try (association) {
+            InetSocketAddress bind = association.getBindAddress();
+            logger.debug("Client {} associated UDP relay at {}", clientInfo, bind);
+            setReadTimeout(0);
+            sendSuccessResponse(bind.getAddress(), bind.getPort());
+
+            // 关联一直保持到控制连接关闭, 控制连接上再收到的数据没有意义, 直接丢弃
+            byte[] discard = in.array();
+            while (clientIn.read(discard) != -1) {
+                // 继续等待连接关闭
+            }
         }
     }
 
-    private void sendSuccessResponse(InetAddress bindAddr, int bindPort) throws IOException {
-        ByteArrayOutputStream response = new ByteArrayOutputStream();
-        response.write(0x05); // version
-        response.write(0x00); // success
-        response.write(0x00); // reserved
+    /**
+     * 解出下一个握手帧. 缓冲区中的数据不够时先发出已缓存的应答, 再从客户端读取.
+     * 客户端在帧完整之前断开时返回 false.
+     */
+    private boolean readFrame() throws IOException {
+        while (codec.decode(in) == Socks5Codec.Frame.NONE) {
+            flushOut();
+            long remaining = handshakeDeadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Handshake not completed in time");
+            }
+            setReadTimeout((int) Math.min(SOCKET_TIMEOUT, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+            in.compact();
+            int n;
+            try {
+                n = clientIn.read(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            } catch (IOException e) {
+                if (handshakeExpired) {
+                    throw new SocketTimeoutException("Handshake not completed in time");
+                }
+                throw e;
+            }
+            if (n > 0) {
+                in.position(in.position() + n);
+            }
+            in.flip();
+            if (n == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void finishHandshake() {
+        handshaking = false;
+        if (handshakeWatchdog != null) {
+            handshakeWatchdog.interrupt();
+        }
+        admission.handshakeFinished();
+    }
 
-        byte[] addrBytes = bindAddr.getAddress();
-        if (addrBytes.length == 4) {
-            response.write(0x01); // IPv4
-        } else {
-            response.write(0x04); // IPv6
+    private void setReadTimeout(int millis) throws SocketException {
+        if (clientSocket != null) {
+            clientSocket.setSoTimeout(millis);
         }
+    }
+
+    private void startHandshakeWatchdog() {
+        handshakeWatchdog = Thread.ofVirtual().start(() -> {
+            try {
+                TimeUnit.NANOSECONDS.sleep(handshakeDeadline - System.nanoTime());
+            } catch (InterruptedException e) {
+                return;
+            }
+            handshakeExpired = true;
+            closeQuietly(clientChannel);
+        });
+    }
 
-        response.write(addrBytes);
-        response.write((bindPort >> 8) & 0xFF);
-        response.write(bindPort & 0xFF);
+    private void flushOut() throws IOException {
+        if (out.position() > 0) {
+            clientOut.write(out.array(), out.arrayOffset(), out.position());
+            clientOut.flush();
+            out.clear();
+        }
+    }
 
-        clientOut.write(response.toByteArray());
-        clientOut.flush();
+    private void sendSuccessResponse(InetAddress bindAddr, int bindPort) throws IOException {
+        record.setReply(Socks5Codec.REP_SUCCEEDED);
+        Socks5Codec.writeReply(out, Socks5Codec.REP_SUCCEEDED, bindAddr, bindPort);
+        flushOut();
     }
 
     private void sendErrorResponse(byte errorCode) throws IOException {
-        clientOut.write(new byte[]{0x05, errorCode, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
-        clientOut.flush();
+        metrics.requestFailed(errorCode);
+        record.requestFailed(errorCode);
+        Socks5Codec.writeError(out, errorCode);
+        flushOut();
     }
 
-    private void startTunneling(Socket targetSocket, String targetHost, int targetPort) throws IOException {
-        String tunnelInfo = String.format("%s -> %s:%d",  clientInfo, targetHost, targetPort);
-        TransferSocket transfer =new TransferSocket(clientSocket,targetSocket);
-        logger.debug("Starting tunnel: {}", tunnelInfo);
-
+    private void startTunneling(SocketChannel targetChannel, String targetHost, int targetPort) throws IOException {
+        tunnelTarget = targetChannel;
+        if (killed) {
+            // kill() 没有看到 tunnelTarget, 目标通道由调用方关闭
+            throw new SocketException("Connection killed");
+        }
+        // 超时由回收线程关闭两端套接字, 阻塞中的读写随之返回
+        TunnelTimer timer = tunnelReaper == null ? null : TunnelTimer.start(tunnelReaper, timeouts, reason -> {
+            expiredReason = reason;
+            metrics.tunnelExpired(reason);
+            logger.debug("Tunnel {} timed out: {} -> {}:{}", reason, clientInfo, targetHost, targetPort);
+            closeQuietly(targetChannel);
+            closeQuietly(clientChannel);
+        });
+        if (trafficAccounting != null) {
+            session.setUsage(trafficAccounting.open(username, targetHost));
+        }
+        TransferSocket transfer = new TransferSocket(clientChannel, targetChannel, bufferPool, metrics, lease,
+                idleReleaseMillis, timer, session);
+        logger.debug("Starting tunnel: {} -> {}:{}", clientInfo, targetHost, targetPort);
+        metrics.tunnelOpened();
 
         // 使用虚拟线程处理双向数据流
         Thread clientToTarget = Thread.ofVirtual().start(() -> {
+            boolean eof = false;
             try {
                 transfer.localToRemote();
+                eof = true;
             } catch (IOException e) {
-                logger.debug("Client to target tunnel closed: {}", tunnelInfo);
+                logger.debug("Client to target tunnel closed: {} -> {}:{}", clientInfo, targetHost, targetPort);
             } finally {
-                closeQuietly(targetSocket);
+                finishDirection(targetChannel, eof, timer);
             }
         });
 
         Thread targetToClient = Thread.ofVirtual().start(() -> {
+            boolean eof = false;
             try {
                 transfer.remoteToLocal();
+                eof = true;
             } catch (IOException e) {
-                logger.debug("Target to client tunnel closed: {}", tunnelInfo);
+                logger.debug("Target to client tunnel closed: {} -> {}:{}", clientInfo, targetHost, targetPort);
             } finally {
-                closeQuietly(clientSocket);
+                finishDirection(clientChannel, eof, timer);
             }
         });
 
         try {
             clientToTarget.join();
             targetToClient.join();
-            logger.info("Tunnel completed: {}", tunnelInfo);
+            logger.debug("Tunnel completed: {} -> {}:{} ({} bytes up, {} bytes down)", clientInfo, targetHost,
+                    targetPort, transfer.getBytesLocalToRemote(), transfer.getBytesRemoteToLocal());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            logger.warn("Tunnel interrupted: {}", tunnelInfo);
+            record.fail(AccessRecord.CloseReason.ERROR);
+            logger.warn("Tunnel interrupted: {} -> {}:{}", clientInfo, targetHost, targetPort);
             // Interrupt both worker threads
             clientToTarget.interrupt();
             targetToClient.interrupt();
+        } finally {
+            if (timer != null) {
+                timer.cancel();
+            }
+            if (killed) {
+                record.fail(session.isQuotaExceeded()
+                        ? AccessRecord.CloseReason.QUOTA_EXCEEDED : AccessRecord.CloseReason.KILLED);
+            }
+            TunnelTimer.Reason reason = expiredReason;
+            if (reason != null) {
+                record.fail(reason.closeReason());
+            }
+            metrics.tunnelClosed();
+            record.addBytes(transfer.getBytesLocalToRemote(), transfer.getBytesRemoteToLocal());
+        }
+    }
+
+    /**
+     * 一个方向结束. 有超时保护时读到 EOF 只关闭对端的发送方向, 另一方向继续传输,
+     * 由半关闭超时限制; 否则直接关闭对端, 让另一方向随之结束.
+     */
+    private void finishDirection(SocketChannel dst, boolean eof, TunnelTimer timer) {
+        if (eof && timer != null) {
+            try {
+                dst.shutdownOutput();
+                timer.halfClosed();
+                return;
+            } catch (IOException e) {
+                logger.debug("Error shutting down output: {}", e.getMessage());
+            }
         }
+        closeQuietly(dst);
     }
 
+    /**
+     * 由管理接口或关闭排空在其它线程上调用, 关闭两端套接字, 阻塞中的读写随之返回.
+     */
+    private void kill() {
+        killed = true;
+        closeQuietly(clientChannel);
+        SocketChannel target = tunnelTarget;
+        if (target != null) {
+            closeQuietly(target);
+        }
+    }
 
-    private void closeQuietly(Socket socket) {
-        if (socket != null && !socket.isClosed()) {
+    private void closeQuietly(SocketChannel channel) {
+        if (channel != null && channel.isOpen()) {
             try {
-                socket.close();
+                channel.close();
             } catch (IOException e) {
                 logger.debug("Error closing socket: {}", e.getMessage());
             }
@@ -1,22 +1,151 @@
-package com.example.socks5.server.handler;
-
-import java.io.IOException;
-import java.net.Socket;
-
-public class TransferSocket {
-    Socket local;
-    Socket remote;
-
-    public TransferSocket(Socket local, Socket remote) {
-        this.local = local;
-        this.remote = remote;
-    }
-
-    public void localToRemote()throws IOException {
-        local.getInputStream().transferTo(remote.getOutputStream());
-    }
-
-    public void remoteToLocal()throws IOException {
-        remote.getInputStream().transferTo(local.getOutputStream());
-    }
-}
+package com.example.socks5.server.handler;
+
+import com.example.socks5.metrics.Metrics;
+import com.example.socks5.server.buffer.BufferPool;
+import com.example.socks5.server.limit.TrafficLimiter;
+import com.example.socks5.server.session.Session;
+import com.example.socks5.server.timeout.TunnelTimer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+public class TransferSocket {
+    private static final int TIMED_OUT = -2;
+
+    private final SocketChannel local;
+    private final SocketChannel remote;
+    private final BufferPool bufferPool;
+    private final Metrics metrics;
+    private final TrafficLimiter.Lease lease;
+    // 源端静默超过这个时间就先归还缓冲区, 0 表示不归还
+    private final int idleReleaseMillis;
+    // 没有配置隧道超时时为 null
+    private final TunnelTimer timer;
+    private final Session session;
+
+    // 每个方向只由一个线程写入, 隧道结束后由 Socks5Handler 读取
+    private volatile long bytesLocalToRemote;
+    private volatile long bytesRemoteToLocal;
+
+    public TransferSocket(SocketChannel local, SocketChannel remote, BufferPool bufferPool, Metrics metrics,
+                          TrafficLimiter.Lease lease, int idleReleaseMillis, TunnelTimer timer, Session session) {
+        this.local = local;
+        this.remote = remote;
+        this.bufferPool = bufferPool;
+        this.metrics = metrics;
+        this.lease = lease;
+        this.idleReleaseMillis = idleReleaseMillis;
+        this.timer = timer;
+        this.session = session;
+    }
+
+    public void localToRemote() throws IOException {
+        relay(local, remote, true);
+    }
+
+    public void remoteToLocal() throws IOException {
+        relay(remote, local, false);
+    }
+
+    public long getBytesLocalToRemote() { return bytesLocalToRemote; }
+
+    public long getBytesRemoteToLocal() { return bytesRemoteToLocal; }
+
+    private void relay(SocketChannel src, SocketChannel dst, boolean upstream) throws IOException {
+        // 空闲检测依赖套接字流的 SO_TIMEOUT, Unix 域套接字没有 Socket 适配器, 一直持有缓冲区
+        Socket srcSocket = idleReleaseMillis > 0 && src.getLocalAddress() instanceof InetSocketAddress
+                ? src.socket() : null;
+        InputStream srcIn = srcSocket != null ? srcSocket.getInputStream() : null;
+        byte[] probe = new byte[1];
+        // 限速时每次只读一个配额, 与同一用户的其它隧道交替发送
+        int readLimit = lease.isShaped() ? lease.quantum() : Integer.MAX_VALUE;
+
+        // 内存上限用尽时在这里等待, 读取随之暂停
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            while (true) {
+                buffer.clear();
+                if (readLimit < buffer.capacity()) {
+                    buffer.limit(readLimit);
+                }
+                if (srcIn != null && srcIn.available() == 0) {
+                    // 源端暂时没有数据: 持有缓冲区等待一个空闲期, 仍无数据则先归还;
+                    // 内存紧张时不等待, 立即归还
+                    int first = bufferPool.isUnderPressure()
+                            ? TIMED_OUT : awaitByte(srcSocket, srcIn, probe, idleReleaseMillis);
+                    if (first == TIMED_OUT) {
+                        bufferPool.release(buffer);
+                        buffer = null;
+                        first = awaitByte(srcSocket, srcIn, probe, 0);
+                        if (first >= 0) {
+                            buffer = bufferPool.acquire();
+                            if (readLimit < buffer.capacity()) {
+                                buffer.limit(readLimit);
+                            }
+                        }
+                    }
+                    if (first < 0) {
+                        break;
+                    }
+                    buffer.put((byte) first);
+                    if (srcIn.available() > 0) {
+                        src.read(buffer);
+                    }
+                } else if (src.read(buffer) < 0) {
+                    break;
+                }
+
+                buffer.flip();
+                int n = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    dst.write(buffer);
+                }
+                if (upstream) {
+                    bytesLocalToRemote += n;
+                } else {
+                    bytesRemoteToLocal += n;
+                }
+                metrics.addBytes(upstream, n);
+                session.addBytes(upstream, n);
+                if (timer != null) {
+                    timer.touch();
+                }
+                if (lease.isShaped()) {
+                    pause(lease.reserve(n));
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private static void pause(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for rate limit");
+        }
+    }
+
+    // 通过套接字流读一个字节, 这样能用上 SO_TIMEOUT; 超时返回 TIMED_OUT
+    private static int awaitByte(Socket socket, InputStream in, byte[] probe, int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+        try {
+            int n = in.read(probe, 0, 1);
+            return n > 0 ? probe[0] & 0xFF : -1;
+        } catch (SocketTimeoutException e) {
+            return TIMED_OUT;
+        }
+    }
+}
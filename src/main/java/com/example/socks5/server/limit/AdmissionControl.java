@@ -0,0 +1,108 @@
+package com.example.socks5.server.limit;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.metrics.Metrics;
+import com.example.socks5.server.codec.Socks5Codec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接收线程上的准入控制. 同时打开的连接数或尚未完成握手的连接数超过上限时,
+ * 新连接在分配给引擎之前就被拒绝, 过载时不再为它们分配线程, 缓冲区或解析器状态.
+ * <p>
+ * 每条被接受的连接由引擎在解析出请求 (或提前关闭) 时调用一次 {@link #handshakeFinished()},
+ * 在关闭时调用一次 {@link #connectionClosed()}.
+ */
+public class AdmissionControl {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+
+    // 拒绝日志最多每秒一条, 过载时不让日志本身成为瓶颈
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public enum ShedReason { CONNECTIONS, HANDSHAKES }
+
+    private static final byte[] REJECT_REPLY = {Socks5Codec.VERSION, Socks5Codec.METHOD_NO_ACCEPTABLE};
+
+    private final int maxConnections;
+    private final int maxHandshakes;
+    private final long handshakeTimeoutNanos;
+    private final Metrics metrics;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger handshakes = new AtomicInteger();
+    private final AtomicLong lastLoggedAt = new AtomicLong(System.nanoTime() - LOG_INTERVAL_NANOS);
+
+    public AdmissionControl(Config.AdmissionConfig config, Metrics metrics) {
+        this.maxConnections = Math.max(0, config.getMaxConnections());
+        this.maxHandshakes = Math.max(0, config.getMaxHandshakes());
+        this.handshakeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getHandshakeTimeoutMillis()));
+        this.metrics = metrics;
+        if (maxConnections > 0 || maxHandshakes > 0) {
+            logger.info("Admission control enabled (max {} connections, {} handshakes in flight)",
+                    maxConnections > 0 ? maxConnections : "unlimited", maxHandshakes > 0 ? maxHandshakes : "unlimited");
+        }
+    }
+
+    /**
+     * 为新连接占用一个连接名额和一个握手名额. 放行时返回 null; 超出任一上限时不占用任何名额,
+     * 记录并返回丢弃原因.
+     */
+    public ShedReason tryAdmit() {
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            return shed(ShedReason.CONNECTIONS);
+        }
+        if (handshakes.incrementAndGet() > maxHandshakes && maxHandshakes > 0) {
+            handshakes.decrementAndGet();
+            connections.decrementAndGet();
+            return shed(ShedReason.HANDSHAKES);
+        }
+        return null;
+    }
+
+    private ShedReason shed(ShedReason reason) {
+        metrics.connectionShed(reason);
+        long now = System.nanoTime();
+        long last = lastLoggedAt.get();
+        if (now - last >= LOG_INTERVAL_NANOS && lastLoggedAt.compareAndSet(last, now)) {
+            logger.warn("Shedding new connections: too many {} in flight ({} connections, {} handshakes)",
+                    reason.name().toLowerCase(Locale.ROOT), connections.get(), handshakes.get());
+        }
+        return reason;
+    }
+
+    public void handshakeFinished() { handshakes.decrementAndGet(); }
+
+    public void connectionClosed() { connections.decrementAndGet(); }
+
+    /** 从接受连接到收到完整请求的总时限 */
+    public long getHandshakeTimeoutNanos() { return handshakeTimeoutNanos; }
+
+    public int getConnections() { return connections.get(); }
+
+    public int getHandshakes() { return handshakes.get(); }
+
+    /**
+     * 拒绝一条未被准入的连接. SOCKS5 的方法选择阶段没有"服务器繁忙"的应答,
+     * 这里回复"没有可接受的方法", 客户端会立即失败而不是等到超时.
+     * 不等待客户端的问候, 只读出已经到达的字节, 接收线程不会因此阻塞.
+     */
+    public static void reject(SocketChannel channel) {
+        try (channel) {
+            channel.configureBlocking(false);
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            channel.read(buf);
+            channel.write(ByteBuffer.wrap(REJECT_REPLY));
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            logger.debug("Error rejecting client: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.socks5.server.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶, 按 GCRA (虚拟调度) 实现: 只保存一个"理论到达时间", 每次记账一次 CAS.
+ * 记账总是成功并返回需要等待的时间, 同一个桶上的各个调用按记账先后排队,
+ * 共享这个桶的隧道因此轮流获得带宽.
+ */
+public final class TokenBucket {
+    private final double nanosPerByte;
+    private final long burstNanos;
+    // 已记账的字节按限速全部发完的时刻 (System.nanoTime)
+    private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+    public TokenBucket(long bytesPerSecond, int burstMillis) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive: " + bytesPerSecond);
+        }
+        this.nanosPerByte = (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, burstMillis));
+    }
+
+    /**
+     * 记账 bytes 字节, 返回调用方在继续发送之前应等待的纳秒数, 不超限时为 0.
+     */
+    public long reserve(int bytes) {
+        long cost = (long) (bytes * nanosPerByte);
+        long now = System.nanoTime();
+        while (true) {
+            long current = tat.get();
+            // 空闲期间不累积超过 burst 的额度
+            long next = (current - now < 0 ? now : current) + cost;
+            if (tat.compareAndSet(current, next)) {
+                long wait = next - now - burstNanos;
+                return wait > 0 ? wait : 0;
+            }
+        }
+    }
+}
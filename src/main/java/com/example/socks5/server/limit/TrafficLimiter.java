@@ -0,0 +1,212 @@
+package com.example.socks5.server.limit;
+
+import com.example.socks5.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按用户和客户端 IP 的限速和连接数限制. 连接数在收到请求时占用, 连接关闭时归还;
+ * 限速由转发循环在每次读到数据后调用 {@link Lease#reserve} 执行, 同一用户 (或 IP)
+ * 的所有隧道共享一个 {@link TokenBucket}, 上下行合计.
+ * <p>
+ * 没有配置任何限制时 {@link #acquire} 直接返回 {@link Lease#UNLIMITED}, 转发路径上只多一次判断.
+ */
+public class TrafficLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(TrafficLimiter.class);
+
+    // 限速时每次最多读取 10ms 的配额, 共享一个桶的隧道因此能交替发送
+    private static final int QUANTUM_DIVISOR = 100;
+    private static final int MIN_QUANTUM = 1024;
+
+    private final Config.LimitsConfig limits;
+    private final Map<String, Config.UserConfig> userConfigs = new HashMap<>();
+    private final boolean enabled;
+    // 用户数量有限, 分组一直保留, 重连不会重置令牌桶; IP 分组在没有连接时删除
+    private final ConcurrentHashMap<String, Group> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetAddress, Group> addresses = new ConcurrentHashMap<>();
+
+    public TrafficLimiter(Config config) {
+        this.limits = config.getLimits();
+        boolean any = limits.getUserBytesPerSecond() > 0 || limits.getUserMaxConnections() > 0
+                || limits.getIpBytesPerSecond() > 0 || limits.getIpMaxConnections() > 0;
+        if (config.getUsers() != null) {
+            for (Config.UserConfig user : config.getUsers()) {
+                if (user.getName() != null) {
+                    userConfigs.put(user.getName(), user);
+                    any |= user.getMaxBytesPerSecond() > 0 || user.getMaxConnections() > 0;
+                }
+            }
+        }
+        this.enabled = any;
+        if (enabled) {
+            logger.info("Traffic limits enabled (per user {} B/s, {} connections; per IP {} B/s, {} connections)",
+                    limits.getUserBytesPerSecond(), limits.getUserMaxConnections(),
+                    limits.getIpBytesPerSecond(), limits.getIpMaxConnections());
+        }
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    /**
+     * 为一条隧道占用用户和 IP 的连接数, 超出任一上限时返回 null.
+     */
+    public Lease acquire(String username, InetAddress address) {
+        if (!enabled) {
+            return Lease.UNLIMITED;
+        }
+        Group user = null;
+        if (username != null) {
+            Config.UserConfig config = userConfigs.get(username);
+            long rate = resolve(config != null ? config.getMaxBytesPerSecond() : 0, limits.getUserBytesPerSecond());
+            int max = (int) resolve(config != null ? config.getMaxConnections() : 0, limits.getUserMaxConnections());
+            if (rate > 0 || max > 0) {
+                user = join(users, username, rate, max);
+                if (user == null) {
+                    logger.warn("Connection limit of {} reached for user {}", max, username);
+                    return null;
+                }
+            }
+        }
+        Group ip = null;
+        if (limits.getIpBytesPerSecond() > 0 || limits.getIpMaxConnections() > 0) {
+            ip = join(addresses, address, limits.getIpBytesPerSecond(), limits.getIpMaxConnections());
+            if (ip == null) {
+                logger.warn("Connection limit of {} reached for client {}", limits.getIpMaxConnections(),
+                        address.getHostAddress());
+                if (user != null) {
+                    leave(users, username, false);
+                }
+                return null;
+            }
+        }
+        if (user == null && ip == null) {
+            return Lease.UNLIMITED;
+        }
+        return new Lease(this, username, user, address, ip);
+    }
+
+    // 用户自己的设置优先, 0 沿用默认值, 负数表示不限制
+    private static long resolve(long own, long fallback) {
+        if (own != 0) {
+            return Math.max(own, 0);
+        }
+        return fallback;
+    }
+
+    private <K> Group join(ConcurrentHashMap<K, Group> map, K key, long rate, int max) {
+        boolean[] admitted = new boolean[1];
+        Group group = map.compute(key, (k, existing) -> {
+            Group g = existing != null ? existing : new Group(rate > 0 ? new TokenBucket(rate, limits.getBurstMillis()) : null,
+                    max, rate > 0 ? quantum(rate) : 0);
+            if (g.maxConnections > 0 && g.connections >= g.maxConnections) {
+                return existing;
+            }
+            g.connections++;
+            admitted[0] = true;
+            return g;
+        });
+        return admitted[0] ? group : null;
+    }
+
+    private static <K> void leave(ConcurrentHashMap<K, Group> map, K key, boolean removeWhenEmpty) {
+        map.computeIfPresent(key, (k, g) -> --g.connections == 0 && removeWhenEmpty ? null : g);
+    }
+
+    private static int quantum(long rate) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_QUANTUM, rate / QUANTUM_DIVISOR));
+    }
+
+    // 连接数只在 ConcurrentHashMap.compute 中读写, 由 map 的分段锁保护
+    private static final class Group {
+        final TokenBucket bucket;
+        final int maxConnections;
+        final int quantum;
+        int connections;
+
+        Group(TokenBucket bucket, int maxConnections, int quantum) {
+            this.bucket = bucket;
+            this.maxConnections = maxConnections;
+            this.quantum = quantum;
+        }
+    }
+
+    /**
+     * 一条隧道占用的限额, 隧道结束时调用 {@link #release()} 归还.
+     */
+    public static final class Lease {
+        public static final Lease UNLIMITED = new Lease(null, null, null, null, null);
+
+        private final TrafficLimiter limiter;
+        private final String username;
+        private final Group user;
+        private final InetAddress address;
+        private final Group ip;
+        private final TokenBucket userBucket;
+        private final TokenBucket ipBucket;
+        private final int quantum;
+        private boolean released;
+
+        private Lease(TrafficLimiter limiter, String username, Group user, InetAddress address, Group ip) {
+            this.limiter = limiter;
+            this.username = username;
+            this.user = user;
+            this.address = address;
+            this.ip = ip;
+            this.userBucket = user != null ? user.bucket : null;
+            this.ipBucket = ip != null ? ip.bucket : null;
+            int q = 0;
+            if (userBucket != null) {
+                q = user.quantum;
+            }
+            if (ipBucket != null) {
+                q = q > 0 ? Math.min(q, ip.quantum) : ip.quantum;
+            }
+            this.quantum = q;
+        }
+
+        /**
+         * 是否需要限速. 为 false 时转发循环不必调用 {@link #reserve}.
+         */
+        public boolean isShaped() { return quantum > 0; }
+
+        /**
+         * 限速时每次读取的最大字节数.
+         */
+        public int quantum() { return quantum; }
+
+        /**
+         * 记账转发的 bytes 字节, 返回读取下一块数据之前应等待的纳秒数.
+         */
+        public long reserve(int bytes) {
+            long wait = 0;
+            if (userBucket != null) {
+                wait = userBucket.reserve(bytes);
+            }
+            if (ipBucket != null) {
+                wait = Math.max(wait, ipBucket.reserve(bytes));
+            }
+            return wait;
+        }
+
+        /**
+         * 归还连接数, 只由关闭隧道的线程调用一次, 重复调用无效.
+         */
+        public void release() {
+            if (limiter == null || released) {
+                return;
+            }
+            released = true;
+            if (user != null) {
+                leave(limiter.users, username, false);
+            }
+            if (ip != null) {
+                leave(limiter.addresses, address, true);
+            }
+        }
+    }
+}
@@ -0,0 +1,871 @@
+package com.example.socks5.server.nio;
+
+import com.example.socks5.accesslog.AccessRecord;
+import com.example.socks5.accounting.TrafficAccounting;
+import com.example.socks5.metrics.Metrics;
+import com.example.socks5.server.ClientPeer;
+import com.example.socks5.server.acl.AccessPolicy;
+import com.example.socks5.server.codec.Socks5Codec;
+import com.example.socks5.server.codec.Socks5Exception;
+import com.example.socks5.server.limit.AdmissionControl;
+import com.example.socks5.server.limit.TrafficLimiter;
+import com.example.socks5.server.session.Session;
+import com.example.socks5.server.timeout.TunnelTimer;
+import com.example.socks5.server.udp.UdpAssociation;
+import com.example.socks5.server.upstream.UpstreamConnection;
+import com.example.socks5.server.upstream.UpstreamException;
+import com.example.socks5.server.upstream.UpstreamPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * nio 引擎中一条客户端连接的全部状态. 握手, 认证, 请求和转发都是非阻塞状态机,
+ * 只在所属 {@link SelectorLoop} 线程上执行.
+ */
+final class NioConnection {
+    private static final Logger logger = LoggerFactory.getLogger(NioConnection.class);
+
+    private static final int HANDSHAKE_BUFFER_SIZE = 2048;
+    // 握手期间两次读取之间的最长间隔, 与 Socks5Handler 的 SOCKET_TIMEOUT 一致
+    private static final long READ_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // VERIFYING: 口令散列在虚拟线程上校验, 期间不读客户端, 已收到的后续帧留在 in 中
+    private enum State { GREETING, AUTH, VERIFYING, REQUEST, CONNECTING, RELAY, ASSOCIATED, CLOSED }
+
+    private final SelectorLoop loop;
+    private final SocketChannel client;
+    // 接收该连接的监听地址标签
+    private final String listener;
+    private final Metrics metrics;
+    private final AdmissionControl admission;
+    private final AccessRecord record = new AccessRecord();
+    private SelectionKey clientKey;
+    private SocketChannel target;
+    private SelectionKey targetKey;
+    private ClientPeer peer;
+    private InetAddress clientAddress;
+    private String clientInfo;
+    private String tunnelInfo;
+    private String destination;
+    private String targetHost;
+    private String username;
+    // 收到请求后占用的连接数和限速额度, 连接关闭时归还
+    private TrafficLimiter.Lease lease;
+    // 经上游代理转发时为 true, 连上之后 upstreamConnection 为建立的连接, 关闭时归还上游的名额
+    private boolean viaUpstream;
+    private UpstreamConnection upstreamConnection;
+
+    private State state = State.GREETING;
+    // 0 表示没有超时
+    private long deadline;
+    // 握手的总时限, 与单次读取的超时分开计算
+    private long handshakeDeadline;
+    // 在准入控制中占用着握手名额
+    private boolean handshaking = true;
+    private boolean closeAfterFlush;
+    // 各阶段的开始时间, 用于延迟统计
+    private long startedAt;
+    private long connectStartedAt;
+
+    // 握手阶段: in 为写模式, out 缓存待发送给客户端的应答
+    private ByteBuffer in = ByteBuffer.allocate(HANDSHAKE_BUFFER_SIZE);
+    private final ByteBuffer out = ByteBuffer.allocate(64);
+    private final Socks5Codec codec = new Socks5Codec();
+
+    private Direction upstream;
+    private Direction downstream;
+    private UdpAssociation association;
+    // 转发阶段的隧道超时, 没有配置时为 null
+    private TunnelTimer tunnelTimer;
+    private Session session;
+
+    NioConnection(SelectorLoop loop, SocketChannel client, String listener) {
+        this.loop = loop;
+        this.client = client;
+        this.listener = listener;
+        this.metrics = loop.context().getMetrics();
+        this.admission = loop.context().getAdmissionControl();
+    }
+
+    void start() {
+        startedAt = System.nanoTime();
+        try {
+            peer = ClientPeer.of(client, listener);
+            clientAddress = peer.getAddress();
+            record.start(clientAddress, peer.getPort());
+            clientInfo = peer.getInfo();
+            session = loop.context().getSessionRegistry().register(clientInfo, () -> loop.execute(this::kill));
+            client.configureBlocking(false);
+            clientKey = client.register(loop.selector(), SelectionKey.OP_READ, this);
+            handshakeDeadline = startedAt + admission.getHandshakeTimeoutNanos();
+            armReadTimeout();
+            logger.debug("Handling connection from: {}", clientInfo);
+        } catch (IOException e) {
+            logger.error("Error registering client {}: {}", clientInfo, e.getMessage());
+            close();
+        }
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            switch (state) {
+                case GREETING, AUTH, VERIFYING, REQUEST -> {
+                    if (key.isWritable()) {
+                        flushOut();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        readHandshake();
+                    }
+                }
+                case CONNECTING -> {
+                    if (key == targetKey && key.isConnectable()) {
+                        finishConnect();
+                    } else if (key == clientKey && key.isWritable()) {
+                        flushOut();
+                    }
+                }
+                case RELAY -> relay(key);
+                case ASSOCIATED -> {
+                    if (key.isWritable()) {
+                        flushOut();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        readControl();
+                    }
+                }
+                default -> { }
+            }
+        } catch (IOException e) {
+            logger.error("Error handling client {}: {}", clientInfo, e.getMessage());
+            // 转发中对端重置连接属于正常结束
+            if (state != State.RELAY) {
+                record.fail(AccessRecord.CloseReason.ERROR);
+            }
+            close();
+        } catch (Exception e) {
+            logger.error("Unexpected error handling client {}: {}", clientInfo, e.getMessage(), e);
+            record.fail(AccessRecord.CloseReason.ERROR);
+            close();
+        }
+    }
+
+    void checkTimeout(long now) {
+        if (state == State.RELAY && loop.idleReleaseNanos() > 0) {
+            releaseIdleBuffer(upstream, now, loop.idleReleaseNanos());
+            releaseIdleBuffer(downstream, now, loop.idleReleaseNanos());
+        }
+        if (deadline == 0 || now - deadline < 0) {
+            return;
+        }
+        if (state == State.CONNECTING && !closeAfterFlush) {
+            connectFailed("connect timed out");
+        } else if (state != State.CLOSED) {
+            if (handshaking && !closeAfterFlush) {
+                metrics.handshakeTimedOut();
+            }
+            record.fail(AccessRecord.CloseReason.TIMEOUT);
+            logger.warn("Socket timeout for client: {}", clientInfo);
+            close();
+        }
+    }
+
+    // ---------------------------------------------------------------- 握手
+
+    private void armReadTimeout() {
+        long readDeadline = System.nanoTime() + READ_TIMEOUT_NANOS;
+        deadline = readDeadline - handshakeDeadline < 0 ? readDeadline : handshakeDeadline;
+    }
+
+    private void readHandshake() throws IOException {
+        int n = client.read(in);
+        if (n == -1) {
+            logger.debug("Client {} disconnected during handshake", clientInfo);
+            close();
+            return;
+        }
+        if (n == 0) {
+            return;
+        }
+        armReadTimeout();
+        decodeHandshake();
+    }
+
+    private void decodeHandshake() throws IOException {
+        in.flip();
+        try {
+            // 客户端流水线发来的多个帧在这里依次处理, 应答攒在 out 中最后一起发出
+            while (state.compareTo(State.CONNECTING) < 0 && state != State.VERIFYING && !closeAfterFlush) {
+                Socks5Codec.Frame frame = codec.decode(in);
+                if (frame == Socks5Codec.Frame.NONE) {
+                    break;
+                }
+                switch (frame) {
+                    case GREETING -> onGreeting();
+                    case AUTH -> onAuthentication();
+                    case REQUEST -> onRequest();
+                    default -> { }
+                }
+            }
+        } catch (Socks5Exception e) {
+            logger.warn("Protocol error from client {}: {}", clientInfo, e.getMessage());
+            record.fail(AccessRecord.CloseReason.PROTOCOL_ERROR);
+            if (e.hasReply()) {
+                Socks5Codec.writeError(out, (byte) e.getReplyCode());
+                metrics.requestFailed(e.getReplyCode());
+                record.setReply(e.getReplyCode());
+            }
+            closeAfterFlush = true;
+        } finally {
+            if (in != null) {
+                in.compact();
+                // 校验口令期间不读客户端, 缓冲区里可能是请求帧和早到的数据 (例如 TLS ClientHello);
+                // 要关闭的连接也先把应答发出去
+                if (!in.hasRemaining() && state.compareTo(State.CONNECTING) < 0 && state != State.VERIFYING
+                        && !closeAfterFlush) {
+                    throw new IOException("Handshake frame too large");
+                }
+            }
+        }
+        if (state != State.CLOSED) {
+            flushOut();
+        }
+    }
+
+    private void onGreeting() {
+        // 只支持用户名/密码认证
+        if (!codec.offersUserPass()) {
+            logger.warn("Client {} doesn't support username/password authentication", clientInfo);
+            Socks5Codec.writeMethod(out, Socks5Codec.METHOD_NO_ACCEPTABLE);
+            record.fail(AccessRecord.CloseReason.AUTH_FAILED);
+            closeAfterFlush = true;
+            return;
+        }
+        state = State.AUTH;
+        Socks5Codec.writeMethod(out, Socks5Codec.METHOD_USER_PASS);
+        logger.debug("Handshake completed for client: {}", clientInfo);
+    }
+
+    private void onAuthentication() {
+        long authStart = System.nanoTime();
+        // codec 中的用户名指向 in, 异步校验期间 in 会被整理, 先取出来
+        String user = codec.username();
+        CompletableFuture<Boolean> result = loop.authenticator().authenticateAsync(user, codec.password());
+        if (result.isDone()) {
+            authenticated(authStart, user, result.join());
+            return;
+        }
+        // 要计算口令散列, 校验完成后回到事件循环继续处理 in 中剩下的帧
+        state = State.VERIFYING;
+        result.whenComplete((ok, error) -> loop.execute(() -> onVerified(authStart, user, ok != null && ok)));
+    }
+
+    private void onVerified(long authStart, String user, boolean ok) {
+        if (state != State.VERIFYING) {
+            return;
+        }
+        state = State.AUTH;
+        authenticated(authStart, user, ok);
+        try {
+            decodeHandshake();
+        } catch (IOException e) {
+            logger.warn("Error handling client {}: {}", clientInfo, e.getMessage());
+            record.fail(AccessRecord.CloseReason.ERROR);
+            close();
+        }
+    }
+
+    private void authenticated(long authStart, String user, boolean authenticated) {
+        metrics.recordAuth(authStart, authenticated);
+        Socks5Codec.writeAuthStatus(out, authenticated);
+        if (!authenticated) {
+            record.fail(AccessRecord.CloseReason.AUTH_FAILED);
+            closeAfterFlush = true;
+            return;
+        }
+        username = user;
+        record.setUsername(username);
+        session.setUsername(username);
+        state = State.REQUEST;
+    }
+
+    private void onRequest() {
+        finishHandshake();
+        metrics.recordHandshake(startedAt);
+        InetAddress literal = codec.address();
+        String targetHost = literal != null ? literal.getHostAddress() : codec.host();
+        int targetPort = codec.port();
+        record.request(codec.command(), targetHost, targetPort);
+        session.setTarget(targetHost, targetPort);
+        boolean udpAssociate = codec.command() == Socks5Codec.CMD_UDP_ASSOCIATE
+                && loop.context().getUdpRelay() != null;
+        if (!udpAssociate && codec.command() != Socks5Codec.CMD_CONNECT) { // 只支持CONNECT和UDP ASSOCIATE命令
+            logger.warn("Unsupported command from {}: {}", clientInfo, codec.command());
+            rejectRequest(Socks5Codec.REP_COMMAND_NOT_SUPPORTED);
+            return;
+        }
+
+        // 目标访问控制, 域名目标在本地解析之后还要按地址再检查; UDP ASSOCIATE 的目标由中继逐个检查
+        if (!udpAssociate) {
+            byte verdict = loop.context().getAccessPolicy().check(username, targetHost, literal, targetPort);
+            if (verdict != Socks5Codec.REP_SUCCEEDED) {
+                logger.debug("Client {} ({}) denied access to {}:{}", clientInfo, username, targetHost, targetPort);
+                rejectRequest(verdict);
+                return;
+            }
+        }
+
+        // 用户的流量配额已用完
+        TrafficAccounting accounting = loop.context().getTrafficAccounting();
+        if (accounting != null && accounting.isOverQuota(username)) {
+            logger.debug("Client {} ({}) is over quota", clientInfo, username);
+            rejectRequest(Socks5Codec.REP_CONNECTION_NOT_ALLOWED);
+            return;
+        }
+
+        // 用户或客户端 IP 的连接数已满
+        lease = loop.context().getTrafficLimiter().acquire(username, clientAddress);
+        if (lease == null) {
+            rejectRequest(Socks5Codec.REP_CONNECTION_NOT_ALLOWED);
+            return;
+        }
+        if (udpAssociate) {
+            associateUdp();
+            return;
+        }
+
+        logger.debug("Client {} connecting to: {}:{}", clientInfo, targetHost, targetPort);
+        this.targetHost = targetHost;
+        destination = targetHost + ":" + targetPort;
+        tunnelInfo = clientInfo + " -> " + destination;
+        state = State.CONNECTING;
+        deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(loop.context().getConnector().getConnectTimeoutMillis());
+
+        connectStartedAt = System.nanoTime();
+        // 经上游代理转发的目标交给上游解析
+        UpstreamPool upstreamPool = loop.context().getUpstreamRouter().route(targetHost, literal, targetPort);
+        if (upstreamPool != null) {
+            connectViaUpstream(upstreamPool, targetHost, literal, targetPort);
+            return;
+        }
+        // 热点目标优先取用预建连接, 省去解析和 TCP 握手
+        SocketChannel pooled = pollPreconnected(targetHost, literal, targetPort);
+        if (pooled != null) {
+            // 等 readHandshake 整理完 in 之后再进入转发
+            loop.execute(() -> onTargetReady(pooled, null));
+            return;
+        }
+        if (literal != null) {
+            connect(new InetSocketAddress(literal, targetPort));
+            return;
+        }
+        // 命中缓存时直接连接, 否则在解析完成后回到事件循环线程继续
+        long dnsStart = System.nanoTime();
+        CompletableFuture<List<InetAddress>> resolved = loop.context().getDnsResolver().resolveAsync(targetHost);
+        if (resolved.isDone()) {
+            metrics.recordDns(dnsStart);
+            record.setDnsNanos(System.nanoTime() - dnsStart);
+            onResolved(resolved, targetHost, targetPort);
+        } else {
+            resolved.whenComplete((addresses, error) -> {
+                metrics.recordDns(dnsStart);
+                long dnsNanos = System.nanoTime() - dnsStart;
+                loop.execute(() -> {
+                    record.setDnsNanos(dnsNanos);
+                    onResolved(resolved, targetHost, targetPort);
+                });
+            });
+        }
+    }
+
+    // ---------------------------------------------------------------- UDP ASSOCIATE
+
+    private void associateUdp() {
+        try {
+            // 请求中的地址是客户端将要发送数据报的地址, 未指定时以控制连接的来源地址为准
+            InetAddress requested = codec.address();
+            InetAddress source = requested != null && !requested.isAnyLocalAddress() ? requested : clientAddress;
+            association = loop.context().getUdpRelay().associate(source, codec.port(), peer.getLocalAddress(),
+                    username, clientInfo, session);
+        } catch (IOException e) {
+            logger.error("Failed to set up UDP relay for client {}: {}", clientInfo, e.getMessage());
+            Socks5Codec.writeError(out, Socks5Codec.REP_GENERAL_FAILURE);
+            metrics.requestFailed(Socks5Codec.REP_GENERAL_FAILURE);
+            record.requestFailed(Socks5Codec.REP_GENERAL_FAILURE);
+            closeAfterFlush = true;
+            return;
+        }
+        TrafficAccounting accounting = loop.context().getTrafficAccounting();
+        if (accounting != null) {
+            session.setUsage(accounting.open(username, null));
+        }
+        InetSocketAddress bind = association.getBindAddress();
+        logger.debug("Client {} associated UDP relay at {}", clientInfo, bind);
+        record.setReply(Socks5Codec.REP_SUCCEEDED);
+        Socks5Codec.writeReply(out, Socks5Codec.REP_SUCCEEDED, bind.getAddress(), bind.getPort());
+        // 关联一直保持到控制连接关闭
+        state = State.ASSOCIATED;
+        deadline = 0;
+    }
+
+    private void readControl() throws IOException {
+        // 控制连接上再收到的数据没有意义, 直接丢弃
+        in.clear();
+        if (client.read(in) == -1) {
+            close();
+        }
+    }
+
+    // 在握手中直接回复错误, 随本轮的其它应答一起发出后关闭
+    private void rejectRequest(byte errorCode) {
+        Socks5Codec.writeError(out, errorCode);
+        metrics.requestFailed(errorCode);
+        record.requestFailed(errorCode);
+        closeAfterFlush = true;
+    }
+
+    private void sendErrorResponse(byte errorCode) throws IOException {
+        Socks5Codec.writeError(out, errorCode);
+        metrics.requestFailed(errorCode);
+        record.requestFailed(errorCode);
+        closeAfterFlush = true;
+        flushOut();
+    }
+
+    private void flushOut() throws IOException {
+        out.flip();
+        client.write(out);
+        out.compact();
+        if (out.position() > 0) {
+            clientKey.interestOps(SelectionKey.OP_WRITE);
+        } else if (closeAfterFlush) {
+            close();
+        } else {
+            clientKey.interestOps(state == State.CONNECTING || state == State.VERIFYING ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    // ---------------------------------------------------------------- 连接目标
+
+    private SocketChannel pollPreconnected(String targetHost, InetAddress literal, int targetPort) {
+        SocketChannel pooled = loop.context().getPreconnectPool().poll(targetHost, targetPort);
+        // 域名目标的预建连接也要按实际地址检查, 不允许时丢弃, 改为解析后再连接
+        if (pooled != null && literal == null && loop.context().getAccessPolicy().checkResolved(username, targetHost,
+                pooled.socket().getInetAddress(), targetPort) != Socks5Codec.REP_SUCCEEDED) {
+            closeQuietly(null, pooled);
+            return null;
+        }
+        return pooled;
+    }
+
+    private void onResolved(CompletableFuture<List<InetAddress>> resolved, String targetHost, int targetPort) {
+        if (state != State.CONNECTING || closeAfterFlush) {
+            return;
+        }
+        List<InetAddress> addresses;
+        try {
+            addresses = resolved.join();
+        } catch (CompletionException e) {
+            logger.error("Failed to resolve target {} from client {}: {}", destination, clientInfo,
+                    e.getCause().getMessage());
+            failRequest(Socks5Codec.REP_HOST_UNREACHABLE);
+            return;
+        }
+        AccessPolicy acl = loop.context().getAccessPolicy();
+        List<InetAddress> allowed = acl.filter(username, targetHost, addresses, targetPort);
+        if (allowed.isEmpty()) {
+            logger.debug("Client {} ({}) denied access to all addresses of {}", clientInfo, username, destination);
+            failRequest(acl.checkResolved(username, targetHost, addresses.get(0), targetPort));
+            return;
+        }
+        addresses = allowed;
+        if (addresses.size() == 1) {
+            connect(new InetSocketAddress(addresses.get(0), targetPort));
+            return;
+        }
+        // 多个地址时在虚拟线程上按 Happy Eyeballs 竞速, 获胜的通道交回事件循环
+        loop.context().getConnector().connectAsync(addresses, targetPort, destination)
+                .whenComplete((channel, error) -> loop.execute(() -> onTargetReady(channel, error)));
+    }
+
+    private void connectViaUpstream(UpstreamPool pool, String targetHost, InetAddress literal, int targetPort) {
+        viaUpstream = true;
+        // 连接上游和上游握手各自受连接超时限制
+        deadline = connectStartedAt
+                + 2 * TimeUnit.MILLISECONDS.toNanos(loop.context().getConnector().getConnectTimeoutMillis());
+        // 在虚拟线程上选择上游, 连接并完成握手, 通道交回事件循环
+        loop.context().getUpstreamRouter().connectAsync(pool, targetHost, literal, targetPort)
+                .whenComplete((conn, error) -> loop.execute(() -> {
+                    if (conn == null) {
+                        onTargetReady(null, error);
+                    } else if (state == State.CLOSED) {
+                        // 连接已经关闭, 没有机会再归还
+                        conn.release();
+                        closeQuietly(null, conn.getChannel());
+                    } else {
+                        upstreamConnection = conn;
+                        logger.debug("Client {} connected to {} via {}", clientInfo, destination, conn.getProxy());
+                        onTargetReady(conn.getChannel(), null);
+                    }
+                }));
+    }
+
+    private void onTargetReady(SocketChannel channel, Throwable error) {
+        if (state != State.CONNECTING || closeAfterFlush) {
+            if (channel != null) {
+                closeQuietly(null, channel);
+            }
+            return;
+        }
+        if (error != null && viaUpstream) {
+            logger.error("Failed to connect to target {} via an upstream from client {}: {}", destination,
+                    clientInfo, error.getMessage());
+            failRequest(error instanceof UpstreamException e ? e.getReplyCode() : Socks5Codec.REP_GENERAL_FAILURE);
+            return;
+        }
+        if (error != null) {
+            connectFailed(error.getMessage());
+            return;
+        }
+        try {
+            target = channel;
+            target.configureBlocking(false);
+            targetKey = target.register(loop.selector(), 0, this);
+            onConnected();
+        } catch (IOException e) {
+            connectFailed(e.getMessage());
+        }
+    }
+
+    private void connect(InetSocketAddress address) {
+        if (state != State.CONNECTING || closeAfterFlush) {
+            return;
+        }
+        try {
+            target = loop.context().getConnector().open(address.getAddress(), address.getPort());
+            target.configureBlocking(false);
+            boolean connected = target.connect(address);
+            targetKey = target.register(loop.selector(), connected ? 0 : SelectionKey.OP_CONNECT, this);
+            if (connected) {
+                // 可能仍在 readHandshake 内, 等 in 整理完之后再进入转发
+                loop.execute(this::finishConnect);
+            }
+        } catch (IOException e) {
+            connectFailed(e.getMessage());
+        }
+    }
+
+    private void finishConnect() {
+        if (state != State.CONNECTING || closeAfterFlush) {
+            return;
+        }
+        try {
+            if (target.finishConnect()) {
+                onDirectConnected();
+            }
+        } catch (IOException e) {
+            connectFailed(e.getMessage());
+        }
+    }
+
+    private void onDirectConnected() throws IOException {
+        InetAddress remote = ((InetSocketAddress) target.getRemoteAddress()).getAddress();
+        loop.context().getConnector().recordWin(destination, remote);
+        onConnected();
+    }
+
+    private void connectFailed(String reason) {
+        logger.error("Failed to connect to target {} from client {}: {}", destination, clientInfo, reason);
+        failRequest(Socks5Codec.REP_CONNECTION_REFUSED);
+    }
+
+    private void failRequest(byte errorCode) {
+        // 给客户端留出读取错误应答的时间
+        deadline = System.nanoTime() + READ_TIMEOUT_NANOS;
+        try {
+            sendErrorResponse(errorCode);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void onConnected() throws IOException {
+        metrics.recordConnect(connectStartedAt);
+        record.setConnectNanos(System.nanoTime() - connectStartedAt);
+        record.setReply(Socks5Codec.REP_SUCCEEDED);
+        InetSocketAddress local = (InetSocketAddress) target.getLocalAddress();
+
+        // 尚未发出的握手应答和成功应答排在下行数据之前,
+        // 客户端在请求之后立即发送的早到数据排在上行数据之前
+        Socks5Codec.writeReply(out, Socks5Codec.REP_SUCCEEDED, local.getAddress(), local.getPort());
+        upstream = new Direction(client, target, in);
+        downstream = new Direction(target, client, out);
+        in = null;
+        upstream.lastActive = downstream.lastActive = loop.now();
+        state = State.RELAY;
+        deadline = 0;
+        tunnelTimer = loop.startTunnelTimer(this::tunnelExpired);
+        TrafficAccounting accounting = loop.context().getTrafficAccounting();
+        if (accounting != null) {
+            session.setUsage(accounting.open(username, targetHost));
+        }
+        metrics.tunnelOpened();
+        logger.debug("Starting tunnel: {}", tunnelInfo);
+
+        flush(upstream);
+        flush(downstream);
+        updateInterest();
+    }
+
+    // ---------------------------------------------------------------- 转发
+
+    private void relay(SelectionKey key) throws IOException {
+        boolean fromClient = key == clientKey;
+        if (key.isReadable()) {
+            read(fromClient ? upstream : downstream);
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush(fromClient ? downstream : upstream);
+        }
+        if (upstream.done && downstream.done) {
+            logger.debug("Tunnel completed: {} ({} bytes up, {} bytes down)", tunnelInfo,
+                    upstream.bytes, downstream.bytes);
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void read(Direction d) throws IOException {
+        if (d.buf == null) {
+            // 缓冲区只在有数据可读时才借出; 内存上限用尽时暂停读取, 由事件循环稍后重试
+            d.buf = loop.bufferPool().tryAcquire();
+            if (d.buf == null) {
+                d.starved = true;
+                loop.addStarved(this);
+                return;
+            }
+        }
+        boolean shaped = lease.isShaped();
+        if (shaped) {
+            // 限速时每次只读一个配额, 与同一用户的其它隧道交替发送
+            d.buf.limit(Math.min(d.buf.capacity(), d.buf.position() + lease.quantum()));
+        }
+        int n = d.src.read(d.buf);
+        if (n < 0) {
+            d.eof = true;
+        } else {
+            d.bytes += n;
+            metrics.addBytes(d == upstream, n);
+            session.addBytes(d == upstream, n);
+            d.lastActive = loop.now();
+            if (tunnelTimer != null) {
+                tunnelTimer.touch();
+            }
+            if (shaped) {
+                throttle(d, lease.reserve(n));
+            }
+        }
+        flush(d);
+    }
+
+    // 超出限速时暂停读取这个方向, 到时间后由事件循环恢复
+    private void throttle(Direction d, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        d.throttled = true;
+        loop.schedule(nanos, () -> {
+            d.throttled = false;
+            if (state == State.RELAY) {
+                updateInterest();
+            }
+        });
+    }
+
+    private void flush(Direction d) throws IOException {
+        if (d.head != null) {
+            if (!drain(d.head, d.dst)) {
+                return;
+            }
+            d.head = null;
+        }
+        if (d.buf != null && drain(d.buf, d.dst) && loop.bufferPool().isUnderPressure()) {
+            // 内存紧张时缓冲区一空就归还, 让给有数据要转发的方向
+            loop.bufferPool().release(d.buf);
+            d.buf = null;
+        }
+        if (d.eof && !d.done && !d.pending()) {
+            d.dst.shutdownOutput();
+            d.done = true;
+            if (tunnelTimer != null) {
+                tunnelTimer.halfClosed();
+            }
+        }
+    }
+
+    // 写出缓冲区(写模式)中的数据, 全部写完返回 true
+    private static boolean drain(ByteBuffer buf, SocketChannel dst) throws IOException {
+        if (buf.position() > 0) {
+            buf.flip();
+            dst.write(buf);
+            buf.compact();
+        }
+        return buf.position() == 0;
+    }
+
+    private void updateInterest() {
+        // 对端来不及消费时停止读取另一侧, 背压自然传递给发送方
+        clientKey.interestOps((upstream.wantsRead() ? SelectionKey.OP_READ : 0)
+                | (downstream.pending() ? SelectionKey.OP_WRITE : 0));
+        targetKey.interestOps((downstream.wantsRead() ? SelectionKey.OP_READ : 0)
+                | (upstream.pending() ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * 重新尝试为因内存上限暂停的方向借缓冲区, 仍然借不到时返回 false.
+     */
+    boolean retryStarved() {
+        if (state != State.RELAY) {
+            return true;
+        }
+        boolean satisfied = retry(upstream) & retry(downstream);
+        updateInterest();
+        return satisfied;
+    }
+
+    private boolean retry(Direction d) {
+        if (!d.starved) {
+            return true;
+        }
+        d.buf = loop.bufferPool().tryAcquire();
+        d.starved = d.buf == null;
+        return !d.starved;
+    }
+
+    private void releaseIdleBuffer(Direction d, long now, long idleNanos) {
+        if (d.buf != null && d.buf.position() == 0 && now - d.lastActive >= idleNanos) {
+            loop.bufferPool().release(d.buf);
+            d.buf = null;
+        }
+    }
+
+    private void tunnelExpired(TunnelTimer.Reason reason) {
+        metrics.tunnelExpired(reason);
+        record.fail(reason.closeReason());
+        logger.debug("Tunnel {} timed out: {}", reason, tunnelInfo);
+        close();
+    }
+
+    // 由管理接口或关闭排空经 execute 转到事件循环上执行
+    private void kill() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        record.fail(session.isQuotaExceeded()
+                ? AccessRecord.CloseReason.QUOTA_EXCEEDED : AccessRecord.CloseReason.KILLED);
+        logger.debug("Connection killed: {}", clientInfo);
+        close();
+    }
+
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        deadline = 0;
+        if (tunnelTimer != null) {
+            tunnelTimer.cancel();
+        }
+        closeQuietly(clientKey, client);
+        closeQuietly(targetKey, target);
+        if (association != null) {
+            association.close();
+        }
+        if (lease != null) {
+            lease.release();
+        }
+        if (upstreamConnection != null) {
+            upstreamConnection.release();
+        }
+        if (handshaking) {
+            finishHandshake();
+        }
+        admission.connectionClosed();
+        if (session != null) {
+            loop.context().getSessionRegistry().unregister(session);
+        }
+        if (upstream != null) {
+            metrics.tunnelClosed();
+            record.addBytes(upstream.bytes, downstream.bytes);
+            loop.bufferPool().release(upstream.buf);
+            loop.bufferPool().release(downstream.buf);
+            upstream.buf = null;
+            downstream.buf = null;
+        }
+        record.finish();
+        loop.context().getAccessLog().publish(record);
+        logger.debug("Connection closed: {}", clientInfo);
+    }
+
+    private void finishHandshake() {
+        handshaking = false;
+        admission.handshakeFinished();
+    }
+
+    private static void closeQuietly(SelectionKey key, SocketChannel channel) {
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing channel: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static final class Direction {
+        final SocketChannel src;
+        final SocketChannel dst;
+        // 在转发数据之前要先写出的字节(握手应答或早到数据), 写完后置为 null
+        ByteBuffer head;
+        // 从池中借出的转发缓冲区, 空闲时归还, 为 null 表示当前未持有
+        ByteBuffer buf;
+        boolean eof;
+        boolean done;
+        boolean starved;
+        boolean throttled;
+        long bytes;
+        long lastActive;
+
+        Direction(SocketChannel src, SocketChannel dst, ByteBuffer head) {
+            this.src = src;
+            this.dst = dst;
+            this.head = head;
+        }
+
+        boolean wantsRead() {
+            return !eof && !starved && !throttled && !pending();
+        }
+
+        boolean pending() {
+            return (head != null && head.position() > 0) || (buf != null && buf.position() > 0);
+        }
+    }
+}
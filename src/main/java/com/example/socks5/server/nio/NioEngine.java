@@ -0,0 +1,69 @@
+package com.example.socks5.server.nio;
+
+import com.example.socks5.server.ServerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 Selector 的连接处理引擎. 固定数量的事件循环线程承载全部连接,
+ * 每条连接只占用一个 {@link NioConnection} 状态对象和两块转发缓冲区.
+ */
+public class NioEngine {
+    private static final Logger logger = LoggerFactory.getLogger(NioEngine.class);
+    // 停止时等待事件循环关闭连接的最长时间
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public NioEngine(ServerContext context) throws IOException {
+        int threads = context.getServerConfig().getSelectorThreads();
+        int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        long idleReleaseNanos = TimeUnit.MILLISECONDS.toNanos(context.getServerConfig().getIdleBufferReleaseMillis());
+        this.loops = new SelectorLoop[count];
+        for (int i = 0; i < count; i++) {
+            loops[i] = new SelectorLoop(i, context, idleReleaseNanos);
+        }
+    }
+
+    public void start() {
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
+        logger.info("Using NIO engine with {} selector loops", loops.length);
+    }
+
+    /**
+     * 由接收线程调用 (可能有多个), 按轮询方式把连接分配给事件循环, 之后连接不再迁移.
+     * listener 为监听地址的标签, 用于标识 Unix 域套接字的客户端.
+     */
+    public void dispatch(SocketChannel channel, String listener) {
+        SelectorLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        loop.accept(channel, listener);
+    }
+
+    /**
+     * 通知所有事件循环退出, 并等待它们关闭各自的连接, 总共最多等待 {@link #SHUTDOWN_TIMEOUT_MILLIS}.
+     * 返回后连接不再写访问日志和流量计数, 调用方可以关闭这些组件.
+     */
+    public void shutdown() {
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_TIMEOUT_MILLIS);
+        try {
+            for (SelectorLoop loop : loops) {
+                if (!loop.awaitTermination(deadline - System.nanoTime())) {
+                    logger.warn("Selector loop did not stop within {}ms", SHUTDOWN_TIMEOUT_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
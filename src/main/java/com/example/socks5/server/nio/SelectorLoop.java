@@ -0,0 +1,256 @@
+package com.example.socks5.server.nio;
+
+import com.example.socks5.auth.Authenticator;
+import com.example.socks5.config.Config;
+import com.example.socks5.server.ServerContext;
+import com.example.socks5.server.buffer.BufferPool;
+import com.example.socks5.server.timeout.TimingWheel;
+import com.example.socks5.server.timeout.TunnelTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 单线程事件循环. 分配到这里的连接在整个生命周期内都只由这个线程处理,
+ * 其它线程只能通过 {@link #execute(Runnable)} 投递任务.
+ */
+final class SelectorLoop implements Runnable, TunnelTimer.Host {
+    private static final Logger logger = LoggerFactory.getLogger(SelectorLoop.class);
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    // 有连接因内存上限暂停读取时, 以更短的间隔重试借缓冲区
+    private static final long STARVED_RETRY_MILLIS = 10;
+
+    private final Selector selector;
+    private final ServerContext context;
+    private final long idleReleaseNanos;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<NioConnection> starved = new ArrayDeque<>();
+    // 按到期时间排序的定时任务, 只在事件循环线程上访问
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long timerSequence;
+    // 隧道的空闲, 总时长和半关闭超时; 没有配置时为 null
+    private final Config.TimeoutsConfig timeouts;
+    private final TimingWheel wheel;
+    private final Thread thread;
+    private volatile boolean running = true;
+    // 每轮 select 之后更新的时间, 供热路径使用以免反复调用 nanoTime
+    private long now = System.nanoTime();
+
+    SelectorLoop(int index, ServerContext context, long idleReleaseNanos) throws IOException {
+        this.selector = Selector.open();
+        this.context = context;
+        this.idleReleaseNanos = idleReleaseNanos;
+        this.timeouts = context.getConfig().getTimeouts();
+        this.wheel = timeouts.isEnabled()
+                ? new TimingWheel(TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeouts.getTickMillis())),
+                        timeouts.getWheelSize(), now)
+                : null;
+        this.thread = Thread.ofPlatform().name("socks5-loop-" + index).unstarted(this);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    ServerContext context() {
+        return context;
+    }
+
+    Authenticator authenticator() {
+        return context.getAuthenticator();
+    }
+
+    BufferPool bufferPool() {
+        return context.getBufferPool();
+    }
+
+    long idleReleaseNanos() {
+        return idleReleaseNanos;
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    /**
+     * 为进入转发阶段的连接启动隧道超时, 没有配置超时时返回 null. 只能在事件循环线程上调用.
+     */
+    TunnelTimer startTunnelTimer(Consumer<TunnelTimer.Reason> onExpired) {
+        return wheel == null ? null : TunnelTimer.start(this, timeouts, onExpired);
+    }
+
+    @Override
+    public void schedule(TunnelTimer timer) {
+        wheel.schedule(timer, timer.deadline());
+    }
+
+    @Override
+    public void cancel(TunnelTimer timer) {
+        wheel.cancel(timer);
+    }
+
+    void addStarved(NioConnection conn) {
+        starved.add(conn);
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 在 delayNanos 之后于事件循环线程上执行 task, 只能在事件循环线程上调用.
+     */
+    void schedule(long delayNanos, Runnable task) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, timerSequence++, task));
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    void accept(SocketChannel channel, String listener) {
+        execute(() -> new NioConnection(this, channel, listener).start());
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+        while (running) {
+            try {
+                long timeout = starved.isEmpty() ? SWEEP_INTERVAL_MILLIS : STARVED_RETRY_MILLIS;
+                if (wheel != null && wheel.size() > 0) {
+                    timeout = Math.min(timeout, Math.max(1, TimeUnit.NANOSECONDS.toMillis(wheel.tickNanos())));
+                }
+                now = System.nanoTime();
+                if (!timers.isEmpty()) {
+                    // select 的超时为 0 表示一直等待, 所以至少等 1ms
+                    long untilTimer = TimeUnit.NANOSECONDS.toMillis(timers.peek().deadline - now + 999_999);
+                    timeout = Math.max(1, Math.min(timeout, untilTimer));
+                }
+                selector.select(this::dispatch, timeout);
+                now = System.nanoTime();
+                runTasks();
+                runTimers();
+                if (wheel != null) {
+                    wheel.advance(now);
+                }
+                retryStarved();
+
+                if (now - nextSweep >= 0) {
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof NioConnection conn) {
+                            conn.checkTimeout(now);
+                        }
+                    }
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+                }
+            } catch (IOException e) {
+                logger.error("Selector loop {} failed: {}", thread.getName(), e.getMessage());
+            } catch (Exception e) {
+                logger.error("Unexpected error in selector loop {}: {}", thread.getName(), e.getMessage(), e);
+            }
+        }
+        closeAll();
+    }
+
+    private void dispatch(SelectionKey key) {
+        NioConnection conn = (NioConnection) key.attachment();
+        conn.handle(key);
+    }
+
+    private void retryStarved() {
+        for (int i = starved.size(); i > 0; i--) {
+            NioConnection conn = starved.poll();
+            if (!conn.retryStarved()) {
+                starved.add(conn);
+            }
+        }
+    }
+
+    private void runTimers() {
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            Runnable task = timers.poll().task;
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("Error running timer in {}: {}", thread.getName(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("Error running task in {}: {}", thread.getName(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection conn) {
+                conn.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("Error closing selector: {}", e.getMessage());
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * 等待事件循环线程关闭全部连接后退出, 超时返回 false.
+     */
+    boolean awaitTermination(long timeoutNanos) throws InterruptedException {
+        return thread.join(Duration.ofNanos(Math.max(0, timeoutNanos)));
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        // 到期时间相同时按加入顺序执行
+        final long sequence;
+        final Runnable task;
+
+        Timer(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            int c = Long.compare(deadline - other.deadline, 0);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.socks5.server.session;
+
+import com.example.socks5.accounting.TrafficAccounting;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 注册表中的一条活动连接. 用户名和目标在握手过程中填入, 字节数由转发线程 (或事件循环) 累加,
+ * 吞吐量由注册表的采样线程定期计算.
+ */
+public final class Session {
+    private final long id;
+    private final String client;
+    private final long startMillis;
+    private final long startNanos;
+    // 关闭连接的方式由引擎提供, 可能在任意线程上调用
+    private final Runnable killer;
+    private final AtomicBoolean killed = new AtomicBoolean();
+    private volatile boolean quotaExceeded;
+
+    private volatile String username;
+    private volatile String target;
+    // 每个方向只由一个线程累加
+    private volatile long bytesUp;
+    private volatile long bytesDown;
+    // 隧道或 UDP 关联建立后设置, 持久计数和配额检查都经过它
+    private volatile TrafficAccounting.Usage usage = TrafficAccounting.Usage.NONE;
+
+    // 以下由采样线程独占, 速率为最近一个采样间隔内的字节数每秒
+    private long sampledAt;
+    private long sampledUp;
+    private long sampledDown;
+    private volatile double rateUp;
+    private volatile double rateDown;
+
+    Session(long id, String client, Runnable killer) {
+        this.id = id;
+        this.client = client;
+        this.killer = killer;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.sampledAt = startNanos;
+    }
+
+    public long getId() { return id; }
+
+    public String getUsername() { return username; }
+
+    public void setUsername(String username) { this.username = username; }
+
+    public String getTarget() { return target; }
+
+    public void setTarget(String host, int port) { this.target = host + ":" + port; }
+
+    public void setUsage(TrafficAccounting.Usage usage) { this.usage = usage; }
+
+    public TrafficAccounting.Usage getUsage() { return usage; }
+
+    public void addBytes(boolean upstream, long n) {
+        if (upstream) {
+            bytesUp += n;
+        } else {
+            bytesDown += n;
+        }
+        if (usage.add(upstream, n) && !killed.get()) {
+            quotaExceeded = true;
+            kill();
+        }
+    }
+
+    /**
+     * 关闭这条连接, 只有第一次调用生效. 连接随后由引擎关闭并从注册表中移除.
+     */
+    public boolean kill() {
+        if (!killed.compareAndSet(false, true)) {
+            return false;
+        }
+        killer.run();
+        return true;
+    }
+
+    public boolean isKilled() { return killed.get(); }
+
+    /** 因用户超出流量配额被关闭 */
+    public boolean isQuotaExceeded() { return quotaExceeded; }
+
+    void sample(long now) {
+        long up = bytesUp;
+        long down = bytesDown;
+        long elapsed = now - sampledAt;
+        if (elapsed > 0) {
+            rateUp = (up - sampledUp) * 1e9 / elapsed;
+            rateDown = (down - sampledDown) * 1e9 / elapsed;
+        }
+        sampledAt = now;
+        sampledUp = up;
+        sampledDown = down;
+    }
+
+    Snapshot snapshot(long now) {
+        return new Snapshot(id, client, username, target, startMillis, now - startNanos, bytesUp, bytesDown,
+                rateUp, rateDown);
+    }
+
+    /**
+     * 某一时刻的副本, 排序和输出都基于副本, 不受转发中计数变化的影响.
+     */
+    public static final class Snapshot {
+        private final long id;
+        private final String client;
+        private final String username;
+        private final String target;
+        private final long startMillis;
+        private final long ageNanos;
+        private final long bytesUp;
+        private final long bytesDown;
+        private final double rateUp;
+        private final double rateDown;
+
+        Snapshot(long id, String client, String username, String target, long startMillis, long ageNanos,
+                 long bytesUp, long bytesDown, double rateUp, double rateDown) {
+            this.id = id;
+            this.client = client;
+            this.username = username;
+            this.target = target;
+            this.startMillis = startMillis;
+            this.ageNanos = ageNanos;
+            this.bytesUp = bytesUp;
+            this.bytesDown = bytesDown;
+            this.rateUp = rateUp;
+            this.rateDown = rateDown;
+        }
+
+        public long getId() { return id; }
+
+        public String getClient() { return client; }
+
+        /** 认证之前为 null */
+        public String getUsername() { return username; }
+
+        /** 收到请求之前为 null */
+        public String getTarget() { return target; }
+
+        public long getStartMillis() { return startMillis; }
+
+        public long getAgeNanos() { return ageNanos; }
+
+        public long getBytesUp() { return bytesUp; }
+
+        public long getBytesDown() { return bytesDown; }
+
+        /** 上行字节每秒, 没有开启采样时为 0 */
+        public double getRateUp() { return rateUp; }
+
+        /** 下行字节每秒, 没有开启采样时为 0 */
+        public double getRateDown() { return rateDown; }
+    }
+}
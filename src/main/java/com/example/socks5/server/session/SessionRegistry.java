@@ -0,0 +1,179 @@
+package com.example.socks5.server.session;
+
+import com.example.socks5.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * 所有活动连接的注册表. 两种引擎在接受连接时注册, 关闭时移除; 管理接口据此查询和关闭连接,
+ * 服务器关闭时据此等待现有连接结束.
+ * <p>
+ * 注册和移除只涉及并发哈希表中的一个桶, 连接之间不争用同一把锁.
+ */
+public final class SessionRegistry implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SessionRegistry.class);
+
+    // 排空超时后强制关闭的连接等待引擎收尾的时间
+    private static final long KILL_GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** 查询结果的排序方式, 排在前面的先输出 */
+    public enum Order {
+        /** 最近一个采样间隔内的总吞吐量从高到低 */
+        RATE(Comparator.comparingDouble((Session.Snapshot s) -> s.getRateUp() + s.getRateDown()).reversed()),
+        /** 累计字节数从多到少 */
+        BYTES(Comparator.comparingLong((Session.Snapshot s) -> s.getBytesUp() + s.getBytesDown()).reversed()),
+        /** 从最老的开始 */
+        AGE(Comparator.comparingLong(Session.Snapshot::getAgeNanos).reversed());
+
+        private final Comparator<Session.Snapshot> comparator;
+
+        Order(Comparator<Session.Snapshot> comparator) {
+            this.comparator = comparator.thenComparingLong(Session.Snapshot::getId);
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    // 排空时等待在这里, 最后一条连接移除时唤醒
+    private final Object drainLock = new Object();
+    private volatile boolean draining;
+    private final long sampleNanos;
+    // 没有开启管理接口时不采样
+    private final Thread sampler;
+    private volatile boolean closed;
+
+    public SessionRegistry(Config.AdminConfig config) {
+        this.sampleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(100, config.getSampleMillis()));
+        this.sampler = config.isEnabled()
+                ? Thread.ofPlatform().name("socks5-session-sampler").daemon().start(this::sampleLoop)
+                : null;
+    }
+
+    /**
+     * 注册一条新连接. killer 负责关闭这条连接, 可能在任意线程上调用.
+     */
+    public Session register(String client, Runnable killer) {
+        Session session = new Session(nextId.incrementAndGet(), client, killer);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    public void unregister(Session session) {
+        sessions.remove(session.getId());
+        session.getUsage().close();
+        if (draining && sessions.isEmpty()) {
+            synchronized (drainLock) {
+                drainLock.notifyAll();
+            }
+        }
+    }
+
+    public int size() { return sessions.size(); }
+
+    public Session get(long id) { return sessions.get(id); }
+
+    /**
+     * 按 order 排序的前 limit 条满足 filter 的连接. 只保留 limit 条的堆, 连接很多时也不必整体排序.
+     */
+    public List<Session.Snapshot> top(Predicate<Session.Snapshot> filter, Order order, int limit) {
+        if (limit <= 0) {
+            return List.of();
+        }
+        // 堆顶是已保留的连接中排在最后的一条
+        PriorityQueue<Session.Snapshot> kept = new PriorityQueue<>(order.comparator.reversed());
+        long now = System.nanoTime();
+        for (Session session : sessions.values()) {
+            Session.Snapshot s = session.snapshot(now);
+            if (!filter.test(s)) {
+                continue;
+            }
+            if (kept.size() < limit) {
+                kept.add(s);
+            } else if (order.comparator.compare(s, kept.peek()) < 0) {
+                kept.poll();
+                kept.add(s);
+            }
+        }
+        List<Session.Snapshot> result = new ArrayList<>(kept);
+        result.sort(order.comparator);
+        return result;
+    }
+
+    /**
+     * 关闭满足 filter 的所有连接, 返回关闭的数量.
+     */
+    public int kill(Predicate<Session.Snapshot> filter) {
+        long now = System.nanoTime();
+        int killed = 0;
+        for (Session session : sessions.values()) {
+            if (filter.test(session.snapshot(now)) && session.kill()) {
+                killed++;
+            }
+        }
+        return killed;
+    }
+
+    /**
+     * 等待现有连接在 timeoutMillis 内自然结束, 到时强制关闭剩下的连接并再等待片刻.
+     * 调用之前应已停止接收新连接.
+     */
+    public void drain(long timeoutMillis) {
+        draining = true;
+        if (sessions.isEmpty()) {
+            return;
+        }
+        logger.info("Waiting up to {}ms for {} connections to finish", timeoutMillis, sessions.size());
+        if (await(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis))) {
+            return;
+        }
+        int killed = kill(s -> true);
+        logger.warn("Closed {} connections still open after {}ms", killed, timeoutMillis);
+        await(System.nanoTime() + KILL_GRACE_NANOS);
+    }
+
+    private boolean await(long deadline) {
+        synchronized (drainLock) {
+            while (!sessions.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(drainLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void sampleLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(this, sampleNanos);
+            long now = System.nanoTime();
+            for (Session session : sessions.values()) {
+                session.sample(now);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (sampler != null) {
+            LockSupport.unpark(sampler);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.socks5.server.timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 哈希时间轮. 截止时间按 tick 取整后落入 wheelSize 个桶之一, 超过一圈的条目记下剩余圈数;
+ * 每个 tick 只检查一个桶, 加入和移除都是链表操作, 与条目总数无关.
+ * <p>
+ * 不是线程安全的, 只能由所有者线程调用 (事件循环或回收线程). {@link #now()} 可以从任意线程读取.
+ */
+public final class TimingWheel {
+    private final long tickNanos;
+    private final Entry[] buckets;
+    private final int mask;
+    private final long origin;
+    // 下一个要处理的 tick
+    private long tick;
+    private int size;
+    // 最近一次 advance 的时间, 作为粗粒度时钟供转发路径记录活动时间
+    private volatile long now;
+
+    public TimingWheel(long tickNanos, int wheelSize, long startNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tickNanos must be positive: " + tickNanos);
+        }
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        this.tickNanos = tickNanos;
+        this.buckets = new Entry[size];
+        this.mask = size - 1;
+        this.origin = startNanos;
+        this.now = startNanos;
+    }
+
+    public long now() { return now; }
+
+    public long tickNanos() { return tickNanos; }
+
+    public int size() { return size; }
+
+    /**
+     * 在 deadline 之后的第一个 tick 调用 entry 的 {@link Entry#expired}. 已在轮中的条目先移除.
+     */
+    public void schedule(Entry entry, long deadline) {
+        if (entry.bucket >= 0) {
+            cancel(entry);
+        }
+        // 向上取整到 tick 边界, 已经过期的在下一次 advance 中触发
+        long ticks = Math.max(tick, Math.floorDiv(deadline - origin + tickNanos - 1, tickNanos));
+        entry.rounds = (ticks - tick) / buckets.length;
+        int index = (int) (ticks & mask);
+        entry.bucket = index;
+        entry.prev = null;
+        entry.next = buckets[index];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        buckets[index] = entry;
+        size++;
+    }
+
+    public void cancel(Entry entry) {
+        if (entry.bucket < 0) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            buckets[entry.bucket] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.bucket = -1;
+        size--;
+    }
+
+    /**
+     * 推进到 now, 处理其间经过的每个 tick 的桶. 到期条目的回调在本轮遍历结束后调用,
+     * 回调中可以重新调度条目.
+     */
+    public void advance(long now) {
+        this.now = now;
+        List<Entry> expired = null;
+        // 第 k 个 tick 的桶在 origin + k * tickNanos 之后处理, 条目不会早于截止时间触发
+        while (origin + tick * tickNanos - now <= 0) {
+            int index = (int) (tick & mask);
+            Entry e = buckets[index];
+            while (e != null) {
+                Entry next = e.next;
+                if (e.rounds > 0) {
+                    e.rounds--;
+                } else {
+                    cancel(e);
+                    if (expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(e);
+                }
+                e = next;
+            }
+            tick++;
+        }
+        if (expired != null) {
+            for (Entry e : expired) {
+                e.expired(this, now);
+            }
+        }
+    }
+
+    /**
+     * 时间轮中的条目, 链表指针直接放在条目里, 不为每次调度分配节点.
+     */
+    public abstract static class Entry {
+        private Entry prev;
+        private Entry next;
+        private int bucket = -1;
+        private long rounds;
+
+        public boolean isScheduled() { return bucket >= 0; }
+
+        /**
+         * 到达截止时间时由所有者线程调用.
+         */
+        protected abstract void expired(TimingWheel wheel, long now);
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.socks5.server.timeout;
+
+import com.example.socks5.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 线程模型下的隧道超时回收. 一个后台线程独占时间轮, 转发线程只把需要加入, 重新排入或移除的定时器
+ * 放进无锁队列, 每个 tick 由回收线程统一处理后推进时间轮.
+ */
+public final class TunnelReaper implements TunnelTimer.Host, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TunnelReaper.class);
+
+    private final TimingWheel wheel;
+    private final long tickNanos;
+    // 待处理的定时器, 处理时按定时器当前状态决定排入还是移除
+    private final Queue<TunnelTimer> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public TunnelReaper(Config.TimeoutsConfig config) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getTickMillis()));
+        this.wheel = new TimingWheel(tickNanos, config.getWheelSize(), System.nanoTime());
+        this.thread = Thread.ofPlatform().name("tunnel-reaper").daemon().unstarted(this::run);
+        thread.start();
+    }
+
+    @Override
+    public long now() {
+        return wheel.now();
+    }
+
+    @Override
+    public void schedule(TunnelTimer timer) {
+        pending.add(timer);
+    }
+
+    @Override
+    public void cancel(TunnelTimer timer) {
+        pending.add(timer);
+    }
+
+    private void run() {
+        while (!closed) {
+            LockSupport.parkNanos(this, tickNanos);
+            TunnelTimer timer;
+            while ((timer = pending.poll()) != null) {
+                if (timer.isCancelled()) {
+                    wheel.cancel(timer);
+                } else {
+                    wheel.schedule(timer, timer.deadline());
+                }
+            }
+            try {
+                wheel.advance(System.nanoTime());
+            } catch (RuntimeException e) {
+                logger.error("Error expiring tunnels: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+}
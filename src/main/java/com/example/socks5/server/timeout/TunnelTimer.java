@@ -0,0 +1,152 @@
+package com.example.socks5.server.timeout;
+
+import com.example.socks5.accesslog.AccessRecord;
+import com.example.socks5.config.Config;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 一条隧道的空闲, 总时长和半关闭超时. 转发路径只调用 {@link #touch()} 记录活动时间
+ * (一次 volatile 读写, 不调用 nanoTime), 时间轮中的条目不随活动移动:
+ * 到期时重新计算真正的截止时间, 没到就按新的截止时间重新排入.
+ */
+public final class TunnelTimer extends TimingWheel.Entry {
+    public enum Reason {
+        IDLE(AccessRecord.CloseReason.IDLE_TIMEOUT),
+        LIFETIME(AccessRecord.CloseReason.LIFETIME_EXCEEDED),
+        HALF_CLOSE(AccessRecord.CloseReason.HALF_CLOSE_TIMEOUT);
+
+        private final AccessRecord.CloseReason closeReason;
+
+        Reason(AccessRecord.CloseReason closeReason) {
+            this.closeReason = closeReason;
+        }
+
+        public AccessRecord.CloseReason closeReason() { return closeReason; }
+    }
+
+    /**
+     * 持有时间轮的一方: 事件循环直接操作自己的时间轮, 回收线程则把请求排队.
+     */
+    public interface Host {
+        /** 时间轮的粗粒度时钟 */
+        long now();
+
+        /** 按 {@link TunnelTimer#deadline()} 加入或重新排入时间轮 */
+        void schedule(TunnelTimer timer);
+
+        void cancel(TunnelTimer timer);
+    }
+
+    private final Host host;
+    private final long idleNanos;
+    private final long lifetimeNanos;
+    private final long halfCloseNanos;
+    private final Consumer<Reason> onExpired;
+    private final long openedAt;
+    private volatile long lastActive;
+    private volatile long halfClosedAt;
+    private volatile boolean halfClosed;
+    private volatile boolean cancelled;
+
+    private TunnelTimer(Host host, Config.TimeoutsConfig config, Consumer<Reason> onExpired) {
+        this.host = host;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getIdleMillis()));
+        this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getMaxLifetimeMillis()));
+        this.halfCloseNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getHalfCloseMillis()));
+        this.onExpired = onExpired;
+        this.openedAt = host.now();
+        this.lastActive = openedAt;
+    }
+
+    /**
+     * 为新隧道创建定时器; 没有配置任何超时时返回 null.
+     * 只配置了半关闭超时时要等到 {@link #halfClosed()} 才排入时间轮, 在此之前没有截止时间.
+     * onExpired 在时间轮所属的线程上调用, 负责关闭隧道.
+     */
+    public static TunnelTimer start(Host host, Config.TimeoutsConfig config, Consumer<Reason> onExpired) {
+        if (!config.isEnabled()) {
+            return null;
+        }
+        TunnelTimer timer = new TunnelTimer(host, config, onExpired);
+        if (timer.idleNanos > 0 || timer.lifetimeNanos > 0) {
+            host.schedule(timer);
+        }
+        return timer;
+    }
+
+    /**
+     * 隧道上有数据收发.
+     */
+    public void touch() {
+        lastActive = host.now();
+    }
+
+    /**
+     * 一个方向已经结束. 配置了半关闭超时时把截止时间提前.
+     */
+    public void halfClosed() {
+        if (halfClosed) {
+            return;
+        }
+        halfClosedAt = host.now();
+        halfClosed = true;
+        if (halfCloseNanos > 0) {
+            host.schedule(this);
+        }
+    }
+
+    /**
+     * 隧道已关闭, 从时间轮中移除.
+     */
+    public void cancel() {
+        cancelled = true;
+        host.cancel(this);
+    }
+
+    public boolean isCancelled() { return cancelled; }
+
+    /**
+     * 各项超时中最早的截止时间. 只对已排入时间轮的定时器调用, 此时至少有一项截止时间.
+     */
+    public long deadline() {
+        long deadline = 0;
+        boolean any = false;
+        if (idleNanos > 0) {
+            deadline = lastActive + idleNanos;
+            any = true;
+        }
+        if (lifetimeNanos > 0) {
+            long d = openedAt + lifetimeNanos;
+            deadline = !any || d - deadline < 0 ? d : deadline;
+            any = true;
+        }
+        if (halfClosed && halfCloseNanos > 0) {
+            long d = halfClosedAt + halfCloseNanos;
+            deadline = !any || d - deadline < 0 ? d : deadline;
+        }
+        return deadline;
+    }
+
+    @Override
+    protected void expired(TimingWheel wheel, long now) {
+        if (cancelled) {
+            return;
+        }
+        Reason reason = null;
+        if (lifetimeNanos > 0 && now - (openedAt + lifetimeNanos) >= 0) {
+            reason = Reason.LIFETIME;
+        } else if (halfClosed && halfCloseNanos > 0 && now - (halfClosedAt + halfCloseNanos) >= 0) {
+            reason = Reason.HALF_CLOSE;
+        } else if (idleNanos > 0 && now - (lastActive + idleNanos) >= 0) {
+            reason = Reason.IDLE;
+        }
+        if (reason == null) {
+            // 期间有活动, 截止时间后移
+            wheel.schedule(this, deadline());
+            return;
+        }
+        onExpired.accept(reason);
+    }
+}
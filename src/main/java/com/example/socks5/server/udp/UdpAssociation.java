@@ -0,0 +1,394 @@
+package com.example.socks5.server.udp;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.server.acl.AccessPolicy;
+import com.example.socks5.server.codec.Socks5Codec;
+import com.example.socks5.server.codec.Socks5UdpHeader;
+import com.example.socks5.server.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个 UDP ASSOCIATE 关联. 客户端的数据报发到 clientChannel, 去掉头部后从 remoteChannel
+ * 发给目标; 目标的回复只有在 NAT 表中 (客户端最近发过数据报的目标) 才会加上头部转回客户端.
+ * <p>
+ * 与 CONNECT 一样按用户的访问控制规则检查目标. 目标第一次出现时检查, 结果记在 NAT 条目里,
+ * 之后发往同一目标的数据报不再检查; 被拒绝的数据报直接丢弃并计入 {@link #getDenied()}.
+ * <p>
+ * 转发的字节数计入控制连接的 {@link Session}, 与 CONNECT 一样进入流量计数和配额,
+ * 超出配额时由会话关闭控制连接, 关联随之关闭.
+ * <p>
+ * 除 {@link #close()} 和计数器的读取外, 所有方法都只在所属 {@link UdpRelayLoop} 线程上执行.
+ */
+public final class UdpAssociation implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(UdpAssociation.class);
+
+    // 回给客户端的数据报在缓冲区前面预留的头部空间
+    static final int HEADROOM = Socks5UdpHeader.MAX_IP_LENGTH;
+    // 每次就绪时最多连续收发的数据报数, 防止一个关联占满事件循环
+    private static final int MAX_BATCH = 64;
+
+    private final UdpRelayLoop loop;
+    private final AccessPolicy accessPolicy;
+    private final String username;
+    private final Session session;
+    private final InetAddress clientAddress;
+    private final int clientPort;
+    private final String clientInfo;
+    private final int maxNatEntries;
+    private final DatagramChannel clientChannel;
+    private final DatagramChannel remoteChannel;
+    private final InetSocketAddress bindAddress;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private SelectionKey clientKey;
+    private SelectionKey remoteKey;
+    // 第一个来自客户端地址的数据报确定客户端的发送端口
+    private InetSocketAddress clientEndpoint;
+    private final Map<InetSocketAddress, NatEntry> nat = new HashMap<>();
+
+    // 最近一次以 IP 地址指定的目标, 连续发往同一目标时不再重新解析头部和创建地址对象
+    private final byte[] lastHeader = new byte[Socks5UdpHeader.MAX_IP_LENGTH];
+    private int lastHeaderLength;
+    private InetSocketAddress lastDestination;
+    // 当前数据报的目标域名, 以 IP 地址指定时为 null
+    private String destinationName;
+
+    private volatile long datagramsUp;
+    private volatile long datagramsDown;
+    private volatile long bytesUp;
+    private volatile long bytesDown;
+    private volatile long dropped;
+    private volatile long denied;
+
+    UdpAssociation(UdpRelayLoop loop, Config.UdpConfig config, AccessPolicy accessPolicy, InetAddress clientAddress,
+                   int clientPort, InetAddress bindAddress, String username, String clientInfo, Session session)
+            throws IOException {
+        this.loop = loop;
+        this.accessPolicy = accessPolicy;
+        this.username = username;
+        this.session = session;
+        this.clientAddress = clientAddress;
+        this.clientPort = clientPort;
+        this.clientInfo = clientInfo;
+        this.maxNatEntries = Math.max(1, config.getMaxNatEntries());
+        this.clientChannel = DatagramChannel.open();
+        DatagramChannel remote = null;
+        try {
+            remote = DatagramChannel.open();
+            configure(clientChannel, config.getSocketBufferSize());
+            configure(remote, config.getSocketBufferSize());
+            clientChannel.bind(new InetSocketAddress(bindAddress, 0));
+            remote.bind(null);
+        } catch (IOException e) {
+            clientChannel.close();
+            if (remote != null) {
+                remote.close();
+            }
+            throw e;
+        }
+        this.remoteChannel = remote;
+        this.bindAddress = (InetSocketAddress) clientChannel.getLocalAddress();
+    }
+
+    private static void configure(DatagramChannel channel, int socketBufferSize) throws IOException {
+        channel.configureBlocking(false);
+        if (socketBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferSize);
+        }
+    }
+
+    /**
+     * 客户端应当把数据报发往的地址, 作为 UDP ASSOCIATE 应答中的 BND.ADDR/BND.PORT.
+     */
+    public InetSocketAddress getBindAddress() { return bindAddress; }
+
+    public long getDatagramsUp() { return datagramsUp; }
+
+    public long getDatagramsDown() { return datagramsDown; }
+
+    public long getBytesUp() { return bytesUp; }
+
+    public long getBytesDown() { return bytesDown; }
+
+    public long getDropped() { return dropped; }
+
+    /** 被访问控制规则拒绝的数据报 */
+    public long getDenied() { return denied; }
+
+    boolean register() {
+        if (closed.get()) {
+            return false;
+        }
+        try {
+            clientKey = clientChannel.register(loop.selector(), SelectionKey.OP_READ, this);
+            remoteKey = remoteChannel.register(loop.selector(), SelectionKey.OP_READ, this);
+            return true;
+        } catch (IOException e) {
+            logger.error("Error registering UDP association for {}: {}", clientInfo, e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key == clientKey) {
+                fromClient();
+            } else if (key == remoteKey) {
+                fromRemote();
+            }
+        } catch (IOException e) {
+            logger.error("UDP relay error for client {}: {}", clientInfo, e.getMessage());
+            close();
+        }
+    }
+
+    // ---------------------------------------------------------------- 客户端 -> 目标
+
+    private void fromClient() throws IOException {
+        ByteBuffer buf = loop.buffer();
+        for (int i = 0; i < MAX_BATCH; i++) {
+            buf.clear();
+            SocketAddress source = clientChannel.receive(buf);
+            if (source == null) {
+                return;
+            }
+            buf.flip();
+            if (!acceptClient((InetSocketAddress) source)) {
+                dropped++;
+                continue;
+            }
+            int headerLength = Socks5UdpHeader.length(buf);
+            InetSocketAddress destination = headerLength < 0 ? null : destination(buf, headerLength);
+            NatEntry entry = destination != null ? touchNat(destination) : null;
+            if (entry == null) {
+                dropped++;
+                continue;
+            }
+            if (!permitted(entry, destination)) {
+                denied++;
+                continue;
+            }
+            entry.sent = true;
+            // 跳过头部, 数据部分原地发出
+            buf.position(buf.position() + headerLength);
+            int length = buf.remaining();
+            if (send(remoteChannel, buf, destination)) {
+                datagramsUp++;
+                bytesUp += length;
+                session.addBytes(true, length);
+            }
+        }
+    }
+
+    private boolean acceptClient(InetSocketAddress source) {
+        if (clientEndpoint != null) {
+            return clientEndpoint.equals(source);
+        }
+        // RFC 1928: 只接受来自请求中声明的地址的数据报
+        if (!source.getAddress().equals(clientAddress) || (clientPort != 0 && source.getPort() != clientPort)) {
+            return false;
+        }
+        clientEndpoint = source;
+        return true;
+    }
+
+    private InetSocketAddress destination(ByteBuffer buf, int headerLength) {
+        destinationName = null;
+        if (sameAsLast(buf, headerLength)) {
+            return lastDestination;
+        }
+        int port = Socks5UdpHeader.port(buf, headerLength);
+        if (port == 0) {
+            return null;
+        }
+        if (Socks5UdpHeader.isDomain(buf)) {
+            // 只使用已缓存的解析结果; 未命中时丢弃这个数据报, 解析在后台继续, 客户端重传时即可命中.
+            // 域名目标不进入 lastDestination, 以免越过解析结果的 TTL
+            String name = Socks5UdpHeader.domain(buf);
+            CompletableFuture<List<InetAddress>> resolved = loop.dnsResolver().resolveAsync(name);
+            if (!resolved.isDone() || resolved.isCompletedExceptionally()) {
+                return null;
+            }
+            destinationName = name;
+            return new InetSocketAddress(resolved.join().get(0), port);
+        }
+        lastDestination = new InetSocketAddress(Socks5UdpHeader.address(buf), port);
+        lastHeaderLength = headerLength;
+        buf.get(buf.position(), lastHeader, 0, headerLength);
+        return lastDestination;
+    }
+
+    private boolean sameAsLast(ByteBuffer buf, int headerLength) {
+        if (lastDestination == null || headerLength != lastHeaderLength) {
+            return false;
+        }
+        int p = buf.position();
+        // 前 3 个字节是 RSV 和 FRAG, 从 ATYP 开始比较
+        for (int i = 3; i < headerLength; i++) {
+            if (buf.get(p + i) != lastHeader[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // NAT 表已满时返回 null
+    private NatEntry touchNat(InetSocketAddress destination) {
+        NatEntry entry = nat.get(destination);
+        if (entry == null) {
+            if (nat.size() >= maxNatEntries) {
+                return null;
+            }
+            entry = new NatEntry();
+            nat.put(destination, entry);
+        }
+        entry.lastActive = loop.now();
+        return entry;
+    }
+
+    /**
+     * 按 ACL 检查当前数据报的目标. 以地址指定的目标在条目里记一次结果; 域名目标按域名和解析出的地址一起判断,
+     * 条目里记住最近一次的域名和结果, 连续发往同一域名时不再检查.
+     */
+    private boolean permitted(NatEntry entry, InetSocketAddress destination) {
+        String name = destinationName;
+        byte verdict;
+        if (name == null) {
+            if (entry.verdict == NatEntry.UNCHECKED) {
+                entry.verdict = accessPolicy.check(username, null, destination.getAddress(), destination.getPort());
+                logDenied(entry.verdict, destination.getAddress().getHostAddress(), destination.getPort());
+            }
+            verdict = entry.verdict;
+        } else {
+            if (!name.equals(entry.name)) {
+                entry.name = name;
+                entry.nameVerdict = accessPolicy.checkResolved(username, name, destination.getAddress(),
+                        destination.getPort());
+                logDenied(entry.nameVerdict, name, destination.getPort());
+            }
+            verdict = entry.nameVerdict;
+        }
+        return verdict == Socks5Codec.REP_SUCCEEDED;
+    }
+
+    private void logDenied(byte verdict, String host, int port) {
+        if (verdict != Socks5Codec.REP_SUCCEEDED) {
+            logger.debug("Client {} ({}) denied UDP access to {}:{}", clientInfo, username, host, port);
+        }
+    }
+
+    // ---------------------------------------------------------------- 目标 -> 客户端
+
+    private void fromRemote() throws IOException {
+        ByteBuffer buf = loop.buffer();
+        for (int i = 0; i < MAX_BATCH; i++) {
+            // 数据读到预留空间之后, 头部原地写在数据前面
+            buf.clear().position(HEADROOM);
+            SocketAddress source = remoteChannel.receive(buf);
+            if (source == null) {
+                return;
+            }
+            InetSocketAddress sender = (InetSocketAddress) source;
+            NatEntry entry = nat.get(sender);
+            // 被拒绝的目标没有发出过数据报, 它的回复同样丢弃
+            if (entry == null || clientEndpoint == null || !entry.sent) {
+                dropped++;
+                continue;
+            }
+            entry.lastActive = loop.now();
+            int length = buf.position() - HEADROOM;
+            int start = HEADROOM - Socks5UdpHeader.length(sender);
+            Socks5UdpHeader.write(buf, start, sender);
+            buf.limit(buf.position()).position(start);
+            if (send(clientChannel, buf, clientEndpoint)) {
+                datagramsDown++;
+                bytesDown += length;
+                session.addBytes(false, length);
+            }
+        }
+    }
+
+    /**
+     * 发不出去 (发送缓冲区满或目标不可达) 的数据报直接丢弃, 与 UDP 本身的语义一致.
+     */
+    private boolean send(DatagramChannel channel, ByteBuffer buf, InetSocketAddress target) {
+        try {
+            if (channel.send(buf, target) > 0) {
+                return true;
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to relay datagram to {} for client {}: {}", target, clientInfo, e.getMessage());
+        }
+        dropped++;
+        return false;
+    }
+
+    void expireNat(long now, long timeoutNanos) {
+        Iterator<NatEntry> it = nat.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastActive >= timeoutNanos) {
+                it.remove();
+            }
+        }
+        if (lastDestination != null && !nat.containsKey(lastDestination)) {
+            lastDestination = null;
+        }
+    }
+
+    /**
+     * 控制连接关闭时调用, 可以在任意线程上执行.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        closeQuietly(clientChannel);
+        closeQuietly(remoteChannel);
+        loop.execute(() -> loop.unregister(this));
+        logger.info("UDP association closed: {} ({} datagrams up, {} down, {} dropped, {} denied)",
+                clientInfo, datagramsUp, datagramsDown, dropped, denied);
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Error closing datagram channel: {}", e.getMessage());
+        }
+    }
+
+    private static final class NatEntry {
+        static final byte UNCHECKED = -1;
+
+        long lastActive;
+        // 以地址指定时的 ACL 结果
+        byte verdict = UNCHECKED;
+        // 最近一次以域名指定时的域名和 ACL 结果
+        String name;
+        byte nameVerdict;
+        // 至少发出过一个数据报, 之后才转发这个目标的回复
+        boolean sent;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.socks5.server.udp;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.dns.DnsResolver;
+import com.example.socks5.server.acl.AccessPolicy;
+import com.example.socks5.server.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UDP ASSOCIATE 的数据报中继. 固定数量的事件循环线程承载全部关联,
+ * 关联在创建时按轮询方式分配给某个循环, 之后不再迁移.
+ */
+public class UdpRelay implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(UdpRelay.class);
+
+    private final Config.UdpConfig config;
+    private final AccessPolicy accessPolicy;
+    private final UdpRelayLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public UdpRelay(Config.UdpConfig config, DnsResolver dnsResolver, AccessPolicy accessPolicy) throws IOException {
+        this.config = config;
+        this.accessPolicy = accessPolicy;
+        int count = Math.max(1, config.getRelayThreads());
+        this.loops = new UdpRelayLoop[count];
+        for (int i = 0; i < count; i++) {
+            loops[i] = new UdpRelayLoop(i, config, dnsResolver);
+        }
+        for (UdpRelayLoop loop : loops) {
+            loop.start();
+        }
+        logger.info("UDP relay started with {} loops", count);
+    }
+
+    /**
+     * 为一条控制连接建立关联. 面向客户端的套接字绑定在 bindAddress 上,
+     * 只接受来自 clientAddress (clientPort 为 0 时不限端口) 的数据报. 发往各目标的数据报按 username 的
+     * 访问控制规则检查, 转发的字节数计入控制连接的 session.
+     */
+    public UdpAssociation associate(InetAddress clientAddress, int clientPort, InetAddress bindAddress,
+                                    String username, String clientInfo, Session session) throws IOException {
+        UdpRelayLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        UdpAssociation association = new UdpAssociation(loop, config, accessPolicy, clientAddress, clientPort,
+                bindAddress, username, clientInfo, session);
+        loop.register(association);
+        return association;
+    }
+
+    @Override
+    public void close() {
+        for (UdpRelayLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.socks5.server.udp;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.dns.DnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UDP 中继的单线程事件循环. 分配到这里的关联只由这个线程收发数据报,
+ * 所有数据报都在同一块直接缓冲区里原地去掉或加上 SOCKS5 UDP 头, 不做拷贝.
+ */
+final class UdpRelayLoop implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(UdpRelayLoop.class);
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    // 一个 IP 数据报的最大长度, 加上回给客户端时在数据前面预留的头部空间
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+
+    private final Selector selector;
+    private final DnsResolver dnsResolver;
+    private final long natTimeoutNanos;
+    private final ByteBuffer buffer;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<UdpAssociation> associations = new HashSet<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    // 每轮 select 之后更新的时间, 供热路径使用以免反复调用 nanoTime
+    private long now = System.nanoTime();
+
+    UdpRelayLoop(int index, Config.UdpConfig config, DnsResolver dnsResolver) throws IOException {
+        this.selector = Selector.open();
+        this.dnsResolver = dnsResolver;
+        this.natTimeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(1, config.getNatTimeoutSeconds()));
+        this.buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE + UdpAssociation.HEADROOM);
+        this.thread = Thread.ofPlatform().name("socks5-udp-" + index).daemon().unstarted(this);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    DnsResolver dnsResolver() {
+        return dnsResolver;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    long now() {
+        return now;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    void register(UdpAssociation association) {
+        execute(() -> {
+            if (association.register()) {
+                associations.add(association);
+            }
+        });
+    }
+
+    void unregister(UdpAssociation association) {
+        associations.remove(association);
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+        while (running) {
+            try {
+                now = System.nanoTime();
+                selector.select(this::dispatch, SWEEP_INTERVAL_MILLIS);
+                now = System.nanoTime();
+                runTasks();
+
+                if (now - nextSweep >= 0) {
+                    for (UdpAssociation association : associations) {
+                        association.expireNat(now, natTimeoutNanos);
+                    }
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+                }
+            } catch (IOException e) {
+                logger.error("UDP relay loop {} failed: {}", thread.getName(), e.getMessage());
+            } catch (Exception e) {
+                logger.error("Unexpected error in UDP relay loop {}: {}", thread.getName(), e.getMessage(), e);
+            }
+        }
+        closeAll();
+    }
+
+    private void dispatch(SelectionKey key) {
+        UdpAssociation association = (UdpAssociation) key.attachment();
+        association.handle(key);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("Error running task in {}: {}", thread.getName(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        runTasks();
+        for (UdpAssociation association : new ArrayList<>(associations)) {
+            association.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("Error closing selector: {}", e.getMessage());
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
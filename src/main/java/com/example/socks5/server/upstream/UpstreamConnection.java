@@ -0,0 +1,25 @@
+package com.example.socks5.server.upstream;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * 经上游代理建立的连接. 连接关闭时调用 {@link #release()} 归还上游的名额.
+ */
+public final class UpstreamConnection {
+    private final UpstreamProxy proxy;
+    private final SocketChannel channel;
+
+    UpstreamConnection(UpstreamProxy proxy, SocketChannel channel) {
+        this.proxy = proxy;
+        this.channel = channel;
+    }
+
+    public UpstreamProxy getProxy() { return proxy; }
+
+    /** 已完成上游握手的阻塞模式通道 */
+    public SocketChannel getChannel() { return channel; }
+
+    public void release() {
+        proxy.release();
+    }
+}
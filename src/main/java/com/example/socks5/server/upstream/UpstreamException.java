@@ -0,0 +1,23 @@
+package com.example.socks5.server.upstream;
+
+import java.io.IOException;
+
+/**
+ * 经上游代理连接目标失败. replyCode 是回复给客户端的 SOCKS5 应答码;
+ * upstreamFault 为 true 表示问题出在上游代理本身 (拒绝认证, 内部错误),
+ * 计入健康检查, 否则只是上游报告目标不可达.
+ */
+public class UpstreamException extends IOException {
+    private final byte replyCode;
+    private final boolean upstreamFault;
+
+    public UpstreamException(String message, byte replyCode, boolean upstreamFault) {
+        super(message);
+        this.replyCode = replyCode;
+        this.upstreamFault = upstreamFault;
+    }
+
+    public byte getReplyCode() { return replyCode; }
+
+    public boolean isUpstreamFault() { return upstreamFault; }
+}
@@ -0,0 +1,233 @@
+package com.example.socks5.server.upstream;
+
+import com.example.socks5.server.codec.Socks5Codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 在已连接的阻塞通道上与上游代理握手, 握手完成后通道直接用于转发.
+ * 读取经套接字流进行, 以便用上 SO_TIMEOUT.
+ */
+final class UpstreamHandshake {
+    // HTTP CONNECT 应答头的最大长度
+    private static final int MAX_RESPONSE_HEADER = 8192;
+    private static final byte NO_AUTH = 0x00;
+    private static final byte RSV = 0x00;
+
+    private UpstreamHandshake() {}
+
+    /**
+     * 请求上游代理连接 host:port. literal 为 host 对应的 IP 地址, 域名目标为 null, 交给上游解析.
+     */
+    static void connect(SocketChannel channel, UpstreamProxy proxy, String host, InetAddress literal, int port,
+                        int timeoutMillis) throws IOException {
+        // 客户端请求在解码时已经校验过, 这里再挡一次, 目标会原样写进 CONNECT 请求行和 Host 头
+        if (literal == null && !Socks5Codec.isValidHost(host)) {
+            throw new UpstreamException("Invalid target host", Socks5Codec.REP_HOST_UNREACHABLE, false);
+        }
+        channel.socket().setSoTimeout(timeoutMillis);
+        InputStream in = channel.socket().getInputStream();
+        try {
+            if (proxy.isHttp()) {
+                httpConnect(channel, in, proxy, host, literal, port);
+            } else {
+                socks5Greeting(channel, in, proxy);
+                socks5Connect(channel, in, host, literal, port);
+            }
+        } catch (SocketTimeoutException e) {
+            throw new SocketTimeoutException("Upstream " + proxy + " did not answer in " + timeoutMillis + "ms");
+        }
+        channel.socket().setSoTimeout(0);
+    }
+
+    /**
+     * 健康检查: SOCKS5 上游完成问候和认证, HTTP 上游只检查 TCP 连接.
+     */
+    static void probe(SocketChannel channel, UpstreamProxy proxy, int timeoutMillis) throws IOException {
+        if (proxy.isHttp()) {
+            return;
+        }
+        channel.socket().setSoTimeout(timeoutMillis);
+        socks5Greeting(channel, channel.socket().getInputStream(), proxy);
+    }
+
+    // ---------------------------------------------------------------- SOCKS5
+
+    private static void socks5Greeting(SocketChannel channel, InputStream in, UpstreamProxy proxy) throws IOException {
+        boolean credentials = proxy.getUsername() != null;
+        ByteBuffer out = ByteBuffer.allocate(Socks5Codec.MAX_FRAME_SIZE);
+        out.put(Socks5Codec.VERSION);
+        if (credentials) {
+            out.put((byte) 2).put(NO_AUTH).put(Socks5Codec.METHOD_USER_PASS);
+        } else {
+            out.put((byte) 1).put(NO_AUTH);
+        }
+        write(channel, out);
+
+        byte[] reply = readFully(in, 2);
+        if (reply[0] != Socks5Codec.VERSION) {
+            throw fault(proxy, "not a SOCKS5 server");
+        }
+        if (reply[1] == NO_AUTH) {
+            return;
+        }
+        if (reply[1] != Socks5Codec.METHOD_USER_PASS || !credentials) {
+            throw fault(proxy, "no acceptable authentication method");
+        }
+
+        byte[] user = proxy.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] pass = proxy.getPassword() != null ? proxy.getPassword().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (user.length > 255 || pass.length > 255) {
+            throw fault(proxy, "username or password longer than 255 bytes");
+        }
+        out.put(Socks5Codec.AUTH_VERSION).put((byte) user.length).put(user).put((byte) pass.length).put(pass);
+        write(channel, out);
+        if (readFully(in, 2)[1] != 0x00) {
+            throw fault(proxy, "authentication rejected");
+        }
+    }
+
+    private static void socks5Connect(SocketChannel channel, InputStream in, String host, InetAddress literal,
+                                      int port) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(Socks5Codec.MAX_FRAME_SIZE);
+        out.put(Socks5Codec.VERSION).put(Socks5Codec.CMD_CONNECT).put(RSV);
+        if (literal != null) {
+            out.put(literal instanceof Inet4Address ? Socks5Codec.ATYP_IPV4 : Socks5Codec.ATYP_IPV6);
+            out.put(literal.getAddress());
+        } else {
+            byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+            out.put(Socks5Codec.ATYP_DOMAIN).put((byte) name.length).put(name);
+        }
+        out.putShort((short) port);
+        write(channel, out);
+
+        byte[] reply = readFully(in, 4);
+        if (reply[0] != Socks5Codec.VERSION) {
+            throw new UpstreamException("Malformed reply from upstream", Socks5Codec.REP_GENERAL_FAILURE, true);
+        }
+        if (reply[1] != Socks5Codec.REP_SUCCEEDED) {
+            // 目标不可达等应答原样转给客户端, 只有一般性失败算作上游的问题
+            throw new UpstreamException(String.format("Upstream replied 0x%02x", reply[1]), reply[1],
+                    reply[1] == Socks5Codec.REP_GENERAL_FAILURE);
+        }
+        // 跳过绑定地址和端口
+        int addressLength = switch (reply[3]) {
+            case Socks5Codec.ATYP_IPV4 -> 4;
+            case Socks5Codec.ATYP_IPV6 -> 16;
+            case Socks5Codec.ATYP_DOMAIN -> readFully(in, 1)[0] & 0xFF;
+            default -> throw new UpstreamException("Malformed reply from upstream", Socks5Codec.REP_GENERAL_FAILURE,
+                    true);
+        };
+        readFully(in, addressLength + 2);
+    }
+
+    // ---------------------------------------------------------------- HTTP CONNECT
+
+    private static void httpConnect(SocketChannel channel, InputStream in, UpstreamProxy proxy, String host,
+                                    InetAddress literal, int port) throws IOException {
+        String authority = (literal != null && !(literal instanceof Inet4Address) ? "[" + host + "]" : host)
+                + ":" + port;
+        StringBuilder request = new StringBuilder(128)
+                .append("CONNECT ").append(authority).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(authority).append("\r\n");
+        if (proxy.getUsername() != null) {
+            String password = proxy.getPassword() != null ? proxy.getPassword() : "";
+            String token = Base64.getEncoder()
+                    .encodeToString((proxy.getUsername() + ":" + password).getBytes(StandardCharsets.UTF_8));
+            request.append("Proxy-Authorization: Basic ").append(token).append("\r\n");
+        }
+        request.append("\r\n");
+        writeFully(channel, ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1)));
+
+        String status = readResponseHeader(in, proxy);
+        // HTTP/1.1 200 Connection established
+        int code = -1;
+        String[] parts = status.split(" ", 3);
+        if (parts.length >= 2 && parts[0].startsWith("HTTP/")) {
+            try {
+                code = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                // 下面按格式错误处理
+            }
+        }
+        if (code >= 200 && code < 300) {
+            return;
+        }
+        if (code == 403) {
+            throw new UpstreamException("Upstream refused: " + status, Socks5Codec.REP_CONNECTION_NOT_ALLOWED, false);
+        }
+        if (code >= 500 && code < 600) {
+            throw new UpstreamException("Upstream could not connect: " + status, Socks5Codec.REP_CONNECTION_REFUSED,
+                    false);
+        }
+        // 407 和无法识别的应答都算作上游的问题
+        throw fault(proxy, "unexpected response: " + status);
+    }
+
+    /**
+     * 逐字节读到应答头结束, 不多读, 目标随后发来的数据留在套接字中由转发读取.
+     */
+    private static String readResponseHeader(InputStream in, UpstreamProxy proxy) throws IOException {
+        StringBuilder header = new StringBuilder(128);
+        int statusEnd = -1;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Upstream " + proxy + " closed the connection");
+            }
+            header.append((char) b);
+            int n = header.length();
+            if (statusEnd < 0 && b == '\n') {
+                statusEnd = n;
+            }
+            if (n >= 4 && header.charAt(n - 1) == '\n' && header.charAt(n - 2) == '\r'
+                    && header.charAt(n - 3) == '\n' && header.charAt(n - 4) == '\r') {
+                return header.substring(0, statusEnd).trim();
+            }
+            if (n > MAX_RESPONSE_HEADER) {
+                throw fault(proxy, "response header too long");
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- 读写
+
+    // out 为写模式, 写完后清空
+    private static void write(SocketChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        writeFully(channel, out);
+        out.clear();
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(data, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Upstream closed the connection during the handshake");
+            }
+            read += n;
+        }
+        return data;
+    }
+
+    private static UpstreamException fault(UpstreamProxy proxy, String reason) {
+        return new UpstreamException("Upstream " + proxy + ": " + reason, Socks5Codec.REP_GENERAL_FAILURE, true);
+    }
+}
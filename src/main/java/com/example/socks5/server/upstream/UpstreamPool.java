@@ -0,0 +1,72 @@
+package com.example.socks5.server.upstream;
+
+import com.example.socks5.config.Config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组可以互相替代的上游代理. 选择时跳过移出轮换的上游, 在其余上游中按配置的策略选一个:
+ * <ul>
+ *     <li>least-connections: 未结束连接最少的</li>
+ *     <li>ewma: 连接耗时的滑动平均乘以 (未结束连接数 + 1) 最小的, 慢的上游分到的连接随之减少</li>
+ * </ul>
+ * 得分相同时从轮转的起点开始比较, 避免总是选中第一个.
+ */
+public final class UpstreamPool {
+    private final String name;
+    private final boolean ewma;
+    private final List<UpstreamProxy> proxies;
+    private final AtomicInteger next = new AtomicInteger();
+
+    UpstreamPool(Config.UpstreamPoolConfig config, Config.UpstreamConfig upstream) {
+        if (config.getName() == null || config.getServers() == null || config.getServers().isEmpty()) {
+            throw new IllegalArgumentException("Upstream pool needs a name and at least one server");
+        }
+        this.name = config.getName();
+        this.ewma = config.isEwma();
+        List<UpstreamProxy> list = new ArrayList<>();
+        for (Config.UpstreamServerConfig server : config.getServers()) {
+            list.add(new UpstreamProxy(server, upstream));
+        }
+        this.proxies = List.copyOf(list);
+    }
+
+    public String getName() { return name; }
+
+    public List<UpstreamProxy> getProxies() { return proxies; }
+
+    /**
+     * 选出一个不在 skip 中的上游并占用一个名额, 调用方在连接关闭时调用 {@link UpstreamProxy#release()}.
+     * 没有可用的上游时返回 null.
+     */
+    UpstreamProxy select(Collection<UpstreamProxy> skip) {
+        long now = System.nanoTime();
+        int size = proxies.size();
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        UpstreamProxy best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            UpstreamProxy p = proxies.get((start + i) % size);
+            if (!p.isAvailable(now) || skip.contains(p)) {
+                continue;
+            }
+            double score = ewma ? (double) p.getConnectNanos() * (p.getOutstanding() + 1) : p.getOutstanding();
+            if (score < bestScore) {
+                best = p;
+                bestScore = score;
+            }
+        }
+        if (best != null) {
+            best.acquire();
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.socks5.server.upstream;
+
+import com.example.socks5.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个上游代理及其负载和健康状态. 被选中时占用一个名额, 使用它的连接关闭时归还.
+ */
+public final class UpstreamProxy {
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamProxy.class);
+
+    // 连接耗时的平滑系数
+    private static final double ALPHA = 0.3;
+    // 还没有测到连接耗时时的估计值
+    private static final long INITIAL_CONNECT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final boolean http;
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final String label;
+    private final int maxFailures;
+    private final long ejectNanos;
+
+    // 正在连接和正在转发的连接数
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // 移出轮换的截止时间, 0 表示在轮换中
+    private volatile long ejectedUntil;
+    // 多个线程同时更新时可能丢掉一次采样, 对平均值没有影响
+    private volatile long connectNanos = INITIAL_CONNECT_NANOS;
+
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    UpstreamProxy(Config.UpstreamServerConfig config, Config.UpstreamConfig upstream) {
+        this.http = config.isHttp();
+        this.host = config.getHost();
+        this.port = config.getPort();
+        this.username = config.getUsername();
+        this.password = config.getPassword();
+        String authority = host.indexOf(':') >= 0 ? "[" + host + "]" : host;
+        this.label = (http ? "http" : "socks5") + "://" + authority + ":" + port;
+        this.maxFailures = Math.max(1, upstream.getMaxFailures());
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, upstream.getEjectMillis()));
+    }
+
+    public boolean isHttp() { return http; }
+
+    public String getHost() { return host; }
+
+    public int getPort() { return port; }
+
+    String getUsername() { return username; }
+
+    String getPassword() { return password; }
+
+    public String getLabel() { return label; }
+
+    public int getOutstanding() { return outstanding.get(); }
+
+    /** 连接耗时 (TCP 连接加上游握手) 的滑动平均 */
+    public long getConnectNanos() { return connectNanos; }
+
+    public long getSuccesses() { return successes.sum(); }
+
+    public long getFailures() { return failures.sum(); }
+
+    /**
+     * 是否参与选择. 移出时间到了之后重新参与, 下一次连接的结果决定是否再次移出.
+     */
+    public boolean isAvailable(long now) {
+        long until = ejectedUntil;
+        return until == 0 || now - until >= 0;
+    }
+
+    public boolean isEjected() { return ejectedUntil != 0; }
+
+    void acquire() {
+        outstanding.incrementAndGet();
+    }
+
+    void release() {
+        outstanding.decrementAndGet();
+    }
+
+    void recordSuccess(long elapsedNanos) {
+        successes.increment();
+        connectNanos = (long) (ALPHA * elapsedNanos + (1 - ALPHA) * connectNanos);
+        recordAnswered();
+    }
+
+    /**
+     * 上游正常应答但目标不可达: 说明上游可用, 耗时不计入平均值.
+     */
+    void recordAnswered() {
+        consecutiveFailures.set(0);
+        if (ejectedUntil != 0) {
+            ejectedUntil = 0;
+            logger.info("Upstream {} is back in rotation", label);
+        }
+    }
+
+    void recordFailure(String reason) {
+        failures.increment();
+        int count = consecutiveFailures.incrementAndGet();
+        if (count >= maxFailures) {
+            boolean wasInRotation = ejectedUntil == 0;
+            // 0 留作 "在轮换中" 的标记
+            long until = System.nanoTime() + ejectNanos;
+            ejectedUntil = until != 0 ? until : 1;
+            if (wasInRotation) {
+                logger.warn("Upstream {} taken out of rotation after {} failures: {}", label, count, reason);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
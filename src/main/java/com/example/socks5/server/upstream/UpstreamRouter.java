@@ -0,0 +1,235 @@
+package com.example.socks5.server.upstream;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.dns.DnsResolver;
+import com.example.socks5.server.codec.Socks5Codec;
+import com.example.socks5.server.connect.HappyEyeballsConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 上游代理链. 按规则为每个 CONNECT 目标选择直连或某个上游池, 经选中的上游代理 (SOCKS5 或 HTTP CONNECT)
+ * 建立隧道, 并根据实际连接的结果和定期的主动检查把出问题的上游移出轮换.
+ * 没有配置规则时所有目标直连.
+ */
+public final class UpstreamRouter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamRouter.class);
+
+    /** 规则中表示直连的池名 */
+    public static final String DIRECT = "direct";
+    // 上游本身出错时最多换几个上游重试, 客户端此时还没有收到应答
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final List<UpstreamRule> rules = new ArrayList<>();
+    private final List<UpstreamPool> pools = new ArrayList<>();
+    private final DnsResolver dnsResolver;
+    private final HappyEyeballsConnector connector;
+    private final int timeoutMillis;
+    private final int healthCheckIntervalMillis;
+    private final ExecutorService executor;
+    private final Thread healthChecker;
+    private volatile boolean closed;
+
+    public UpstreamRouter(Config.UpstreamConfig config, DnsResolver dnsResolver, HappyEyeballsConnector connector)
+            throws IOException {
+        this.dnsResolver = dnsResolver;
+        this.connector = connector;
+        this.timeoutMillis = connector.getConnectTimeoutMillis();
+
+        Map<String, UpstreamPool> byName = new HashMap<>();
+        if (config.getPools() != null) {
+            for (Config.UpstreamPoolConfig poolConfig : config.getPools()) {
+                UpstreamPool pool = new UpstreamPool(poolConfig, config);
+                if (byName.putIfAbsent(pool.getName(), pool) != null) {
+                    throw new IllegalArgumentException("Duplicate upstream pool: " + pool.getName());
+                }
+                pools.add(pool);
+            }
+        }
+        if (config.getRules() != null) {
+            for (Config.UpstreamRuleConfig ruleConfig : config.getRules()) {
+                String name = ruleConfig.getPool();
+                UpstreamPool pool = DIRECT.equalsIgnoreCase(name) ? null : byName.get(name);
+                if (pool == null && !DIRECT.equalsIgnoreCase(name)) {
+                    throw new IllegalArgumentException("Upstream rule refers to unknown pool: " + name);
+                }
+                rules.add(new UpstreamRule(ruleConfig, pool));
+            }
+        }
+
+        boolean checks = !rules.isEmpty() && !pools.isEmpty() && config.getHealthCheckIntervalMillis() > 0;
+        this.healthCheckIntervalMillis = config.getHealthCheckIntervalMillis();
+        this.executor = checks ? Executors.newVirtualThreadPerTaskExecutor() : null;
+        this.healthChecker = checks ? Thread.ofVirtual().name("socks5-upstream-health").start(this::healthLoop) : null;
+        if (!rules.isEmpty()) {
+            logger.info("Upstream routing enabled: {} rules, {} pools", rules.size(), pools.size());
+        }
+    }
+
+    public boolean isEnabled() { return !rules.isEmpty(); }
+
+    public List<UpstreamPool> getPools() { return pools; }
+
+    /**
+     * 目标应经过的上游池, 直连时返回 null. literal 为 IP 目标的地址, 域名目标为 null.
+     */
+    public UpstreamPool route(String host, InetAddress literal, int port) {
+        if (rules.isEmpty()) {
+            return null;
+        }
+        String key = host.toLowerCase(Locale.ROOT);
+        for (UpstreamRule rule : rules) {
+            if (rule.matches(key, literal, port)) {
+                return rule.pool();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 从 pool 中选择上游, 经它阻塞连接到 host:port. 上游本身出错时换一个上游重试;
+     * 上游拒绝或没有可用的上游时抛出 {@link UpstreamException}, 其中带有回复客户端的应答码.
+     */
+    public UpstreamConnection connect(UpstreamPool pool, String host, InetAddress literal, int port)
+            throws IOException {
+        List<UpstreamProxy> tried = new ArrayList<>(MAX_ATTEMPTS);
+        IOException last = null;
+        while (tried.size() < MAX_ATTEMPTS) {
+            UpstreamProxy proxy = pool.select(tried);
+            if (proxy == null) {
+                break;
+            }
+            tried.add(proxy);
+            try {
+                return new UpstreamConnection(proxy, connect(proxy, host, literal, port));
+            } catch (UpstreamException e) {
+                proxy.release();
+                if (!e.isUpstreamFault()) {
+                    throw e;
+                }
+                last = e;
+            } catch (IOException e) {
+                proxy.release();
+                last = e;
+            }
+            logger.debug("Connecting to {}:{} via {} failed: {}", host, port, proxy, last.getMessage());
+        }
+        if (last != null) {
+            throw last;
+        }
+        throw new UpstreamException("No upstream in pool " + pool + " is available",
+                Socks5Codec.REP_GENERAL_FAILURE, false);
+    }
+
+    private SocketChannel connect(UpstreamProxy proxy, String host, InetAddress literal, int port) throws IOException {
+        long start = System.nanoTime();
+        SocketChannel channel = null;
+        try {
+            channel = connector.connect(dnsResolver.resolve(proxy.getHost()), proxy.getPort(), proxy.getLabel());
+            UpstreamHandshake.connect(channel, proxy, host, literal, port, timeoutMillis);
+            proxy.recordSuccess(System.nanoTime() - start);
+            return channel;
+        } catch (UpstreamException e) {
+            closeQuietly(channel);
+            if (e.isUpstreamFault()) {
+                proxy.recordFailure(e.getMessage());
+            } else {
+                // 上游正常应答, 只是目标连不上
+                proxy.recordAnswered();
+            }
+            throw e;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            proxy.recordFailure(e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * 在虚拟线程上执行 {@link #connect}, 供事件循环使用.
+     */
+    public CompletableFuture<UpstreamConnection> connectAsync(UpstreamPool pool, String host, InetAddress literal,
+                                                             int port) {
+        CompletableFuture<UpstreamConnection> future = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                future.complete(connect(pool, host, literal, port));
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    // ---------------------------------------------------------------- 主动健康检查
+
+    private void healthLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(healthCheckIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            // 所有上游并行检查, 全部结束后才开始下一轮
+            List<Future<?>> probes = new ArrayList<>();
+            for (UpstreamPool pool : pools) {
+                for (UpstreamProxy proxy : pool.getProxies()) {
+                    probes.add(executor.submit(() -> probe(proxy)));
+                }
+            }
+            for (Future<?> probe : probes) {
+                try {
+                    probe.get();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ExecutionException e) {
+                    logger.debug("Upstream health check failed: {}", e.getCause().getMessage());
+                }
+            }
+        }
+    }
+
+    private void probe(UpstreamProxy proxy) {
+        long start = System.nanoTime();
+        try (SocketChannel channel = connector.connect(dnsResolver.resolve(proxy.getHost()), proxy.getPort(),
+                proxy.getLabel())) {
+            UpstreamHandshake.probe(channel, proxy, timeoutMillis);
+            proxy.recordSuccess(System.nanoTime() - start);
+        } catch (IOException e) {
+            proxy.recordFailure("health check: " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // 已经失败, 不再处理
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (healthChecker != null) {
+            healthChecker.interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.socks5.server.upstream;
+
+import com.example.socks5.config.Config;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 一条上游路由规则. 目标匹配任意一个 host 模式且端口在列表中 (列表为空时任意端口) 即命中.
+ * 网段模式只匹配 IP 目标, 域名目标不在本地解析.
+ */
+final class UpstreamRule {
+    private final List<Matcher> matchers = new ArrayList<>();
+    private final Set<Integer> ports;
+    // null 表示直连
+    private final UpstreamPool pool;
+
+    UpstreamRule(Config.UpstreamRuleConfig config, UpstreamPool pool) throws UnknownHostException {
+        this.pool = pool;
+        this.ports = config.getPorts() == null || config.getPorts().isEmpty()
+                ? null : new HashSet<>(config.getPorts());
+        List<String> hosts = config.getHosts() == null || config.getHosts().isEmpty() ? List.of("*") : config.getHosts();
+        for (String host : hosts) {
+            matchers.add(compile(host.trim().toLowerCase(Locale.ROOT)));
+        }
+    }
+
+    UpstreamPool pool() {
+        return pool;
+    }
+
+    /**
+     * host 已转为小写; literal 为 IP 目标的地址, 域名目标为 null.
+     */
+    boolean matches(String host, InetAddress literal, int port) {
+        if (ports != null && !ports.contains(port)) {
+            return false;
+        }
+        for (Matcher m : matchers) {
+            if (m.matches(host, literal)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private interface Matcher {
+        boolean matches(String host, InetAddress literal);
+    }
+
+    private static Matcher compile(String pattern) throws UnknownHostException {
+        if (pattern.equals("*")) {
+            return (host, literal) -> true;
+        }
+        if (pattern.startsWith("*.")) {
+            String domain = pattern.substring(2);
+            String suffix = pattern.substring(1);
+            return (host, literal) -> literal == null && (host.equals(domain) || host.endsWith(suffix));
+        }
+        int slash = pattern.indexOf('/');
+        if (slash > 0) {
+            byte[] network = InetAddress.getByName(pattern.substring(0, slash)).getAddress();
+            int prefix = Integer.parseInt(pattern.substring(slash + 1));
+            if (prefix < 0 || prefix > network.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length in " + pattern);
+            }
+            return (host, literal) -> literal != null && inNetwork(literal.getAddress(), network, prefix);
+        }
+        if (pattern.indexOf(':') >= 0 || pattern.chars().allMatch(c -> c == '.' || Character.isDigit(c))) {
+            // IP 字面量按地址比较, 不受 IPv6 写法的影响
+            InetAddress address = InetAddress.getByName(pattern);
+            return (host, literal) -> address.equals(literal);
+        }
+        return (host, literal) -> literal == null && host.equals(pattern);
+    }
+
+    private static boolean inNetwork(byte[] address, byte[] network, int prefix) {
+        if (address.length != network.length) {
+            return false;
+        }
+        int i = 0;
+        for (; prefix >= 8; prefix -= 8, i++) {
+            if (address[i] != network[i]) {
+                return false;
+            }
+        }
+        if (prefix == 0) {
+            return true;
+        }
+        int mask = 0xFF << (8 - prefix);
+        return (address[i] & mask) == (network[i] & mask);
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.socks5.accesslog;
+
+import com.example.socks5.server.codec.Socks5Codec;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AccessLogCodecTest {
+
+    @Test
+    void textLineEscapesUsername() {
+        String[] fields = fields(record("bob\r\n2026-01-01T00:00:00.000Z 6.6.6.6:1 admin CONNECT", "example.com"));
+        assertEquals(13, fields.length);
+        assertEquals("bob%0D%0A2026-01-01T00:00:00.000Z%206.6.6.6:1%20admin%20CONNECT", fields[2]);
+    }
+
+    @Test
+    void textLineEscapesPercentControlsAndDash() {
+        assertEquals("100%25%C2%85%E2%80%A8%7F", fields(record("100%\u0085 \u007F", "example.com"))[2]);
+        assertEquals("%2D", fields(record("-", "example.com"))[2]);
+        assertEquals("-", fields(record(null, "example.com"))[2]);
+        // 非控制字符的 UTF-8 原样保留
+        assertEquals("用户", fields(record("用户", "example.com"))[2]);
+    }
+
+    @Test
+    void textLineEscapesTargetHost() {
+        assertEquals("bad%20host%09:443", fields(record("bob", "bad host\t"))[4]);
+        assertEquals("[::1]:443", fields(record("bob", "::1"))[4]);
+    }
+
+    @Test
+    void worstCaseTextLineFitsRecordSize() {
+        String username = "\u0085".repeat(127) + "\u0001";
+        String host = "\u0001".repeat(255);
+        StringBuilder sb = new StringBuilder();
+        AccessLogCodec.format(record(username, host), sb);
+        String line = sb.toString();
+        assertTrue(line.indexOf('\n') < 0);
+        assertTrue(line.length() + 1 <= AccessLogCodec.MAX_RECORD_SIZE, Integer.toString(line.length()));
+    }
+
+    private static AccessRecord record(String username, String host) {
+        AccessRecord r = new AccessRecord();
+        r.start(InetAddress.getLoopbackAddress(), 40000);
+        r.setUsername(username);
+        r.request(Socks5Codec.CMD_CONNECT, host, 443);
+        r.setReply(Socks5Codec.REP_SUCCEEDED);
+        r.finish();
+        return r;
+    }
+
+    private static String[] fields(AccessRecord r) {
+        StringBuilder sb = new StringBuilder();
+        AccessLogCodec.format(r, sb);
+        return sb.toString().split(" ");
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.socks5.accounting;
+
+import com.example.socks5.config.Config;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrafficAccountingTest {
+    private static final String LONG_HOST = "a".repeat(120) + "." + "b".repeat(120) + ".example";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void longDestinationKeepsItsSlotAfterRestart() throws Exception {
+        Config config = config(dir.resolve("traffic.counters"));
+        try (TrafficAccounting accounting = TrafficAccounting.create(config)) {
+            accounting.open("alice", LONG_HOST).add(true, 100);
+        }
+        try (TrafficAccounting accounting = TrafficAccounting.create(config)) {
+            accounting.open("alice", LONG_HOST).add(false, 50);
+        }
+        try (CounterFile file = CounterFile.openExisting(dir.resolve("traffic.counters"))) {
+            // 用户一个槽, 目标一个槽
+            assertEquals(2, file.getUsed());
+            assertEquals("alice" + TrafficAccounting.SEPARATOR + LONG_HOST.substring(0, CounterFile.KEY_CAPACITY - 6),
+                    file.key(1));
+            assertEquals(100, file.get(1, CounterFile.BYTES_UP));
+            assertEquals(50, file.get(1, CounterFile.BYTES_DOWN));
+            assertEquals(2, file.get(1, CounterFile.CONNECTIONS));
+        }
+    }
+
+    @Test
+    void longDestinationsWithSamePrefixShareOneSlot() throws Exception {
+        Config config = config(dir.resolve("traffic.counters"));
+        try (TrafficAccounting accounting = TrafficAccounting.create(config)) {
+            accounting.open("alice", LONG_HOST + ".one");
+            accounting.open("alice", LONG_HOST + ".two");
+        }
+        try (CounterFile file = CounterFile.openExisting(dir.resolve("traffic.counters"))) {
+            assertEquals(2, file.getUsed());
+            assertEquals(2, file.get(1, CounterFile.CONNECTIONS));
+        }
+    }
+
+    @Test
+    void longUsernamesGetTheirOwnSlots() throws Exception {
+        // RFC 1929 允许 255 字节的用户名, 前 200 字节相同
+        String alice = "u".repeat(200) + "-alice-" + "x".repeat(48);
+        String bob = "u".repeat(200) + "-bob-" + "x".repeat(50);
+        Config config = config(dir.resolve("traffic.counters"));
+        try (TrafficAccounting accounting = TrafficAccounting.create(config)) {
+            assertFalse(accounting.isOverQuota(alice));
+            accounting.open(alice, "example.com").add(true, 100);
+            accounting.open(bob, "example.com").add(true, 7);
+        }
+        try (TrafficAccounting accounting = TrafficAccounting.create(config)) {
+            accounting.open(alice, "example.com").add(true, 100);
+        }
+        try (CounterFile file = CounterFile.openExisting(dir.resolve("traffic.counters"))) {
+            assertEquals(4, file.getUsed());
+            String key = file.key(0);
+            assertEquals(TrafficAccounting.userKey(alice), key);
+            assertTrue(key.startsWith("u".repeat(111)), key);
+            assertTrue(key.length() <= TrafficAccounting.USER_KEY_CAPACITY, key);
+            assertNotEquals(key, file.key(2));
+            assertEquals(key + TrafficAccounting.SEPARATOR + "example.com", file.key(1));
+            assertEquals(200, file.get(0, CounterFile.BYTES_UP));
+            assertEquals(7, file.get(2, CounterFile.BYTES_UP));
+        }
+    }
+
+    private static Config config(Path file) {
+        Config config = new Config();
+        config.getAccounting().setEnabled(true);
+        config.getAccounting().setFile(file.toString());
+        config.getAccounting().setSlots(16);
+        config.getAccounting().setPerDestination(true);
+        config.getAccounting().setFlushMillis(0);
+        return config;
+    }
+}
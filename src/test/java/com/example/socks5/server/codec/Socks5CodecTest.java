@@ -0,0 +1,64 @@
+package com.example.socks5.server.codec;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Socks5CodecTest {
+
+    @Test
+    void decodesDomainRequest() throws Exception {
+        Socks5Codec codec = new Socks5Codec();
+        ByteBuffer in = handshake("www.example-1.com", 443);
+        assertEquals(Socks5Codec.Frame.GREETING, codec.decode(in));
+        assertEquals(Socks5Codec.Frame.AUTH, codec.decode(in));
+        assertEquals(Socks5Codec.Frame.REQUEST, codec.decode(in));
+        assertEquals("www.example-1.com", codec.host());
+        assertEquals(443, codec.port());
+    }
+
+    @Test
+    void rejectsDomainWithLineBreaks() throws Exception {
+        Socks5Codec codec = new Socks5Codec();
+        ByteBuffer in = handshake("example.com:443 HTTP/1.1\r\nX-Injected: 1\r\n\r\nGET", 443);
+        codec.decode(in);
+        codec.decode(in);
+        Socks5Exception e = assertThrows(Socks5Exception.class, () -> codec.decode(in));
+        assertEquals(Socks5Codec.REP_HOST_UNREACHABLE, e.getReplyCode());
+    }
+
+    @Test
+    void validHosts() {
+        assertTrue(Socks5Codec.isValidHost("example.com"));
+        assertTrue(Socks5Codec.isValidHost("_srv.my-host.example"));
+        assertTrue(Socks5Codec.isValidHost("192.0.2.1"));
+        assertTrue(Socks5Codec.isValidHost("2001:db8::1"));
+        assertTrue(Socks5Codec.isValidHost("::ffff:192.0.2.1"));
+
+        assertFalse(Socks5Codec.isValidHost(""));
+        assertFalse(Socks5Codec.isValidHost("example.com\r\nHost: evil"));
+        assertFalse(Socks5Codec.isValidHost("exa mple.com"));
+        assertFalse(Socks5Codec.isValidHost("bücher.example"));
+        assertFalse(Socks5Codec.isValidHost("example.com:80"));
+        assertFalse(Socks5Codec.isValidHost("a%0d.example"));
+    }
+
+    // 问候 (用户名/密码), 认证和 CONNECT 请求
+    private static ByteBuffer handshake(String host, int port) {
+        byte[] name = host.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{5, 1, Socks5Codec.METHOD_USER_PASS});
+        out.writeBytes(new byte[]{1, 1, 'u', 1, 'p'});
+        out.writeBytes(new byte[]{5, Socks5Codec.CMD_CONNECT, 0, Socks5Codec.ATYP_DOMAIN, (byte) name.length});
+        out.writeBytes(name);
+        out.writeBytes(new byte[]{(byte) (port >> 8), (byte) port});
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+}
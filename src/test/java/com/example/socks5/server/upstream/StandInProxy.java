@@ -0,0 +1,122 @@
+package com.example.socks5.server.upstream;
+
+import com.example.socks5.config.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的上游代理替身: 监听回环地址, 每个连接在虚拟线程上按脚本应答.
+ */
+final class StandInProxy implements AutoCloseable {
+    interface Script {
+        void run(Socket socket) throws IOException;
+    }
+
+    private final ServerSocket server;
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    StandInProxy(Script script) throws IOException {
+        this.server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread.ofVirtual().start(() -> {
+            while (!server.isClosed()) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                accepted.incrementAndGet();
+                Thread.ofVirtual().start(() -> {
+                    try (socket) {
+                        script.run(socket);
+                    } catch (IOException ignored) {
+                        // 客户端先断开, 不影响测试
+                    }
+                });
+            }
+        });
+    }
+
+    int getPort() { return server.getLocalPort(); }
+
+    /** 已接受的连接数, 包括健康检查 */
+    int getAccepted() { return accepted.get(); }
+
+    Config.UpstreamServerConfig server(String type, String username, String password) {
+        Config.UpstreamServerConfig config = new Config.UpstreamServerConfig();
+        config.setType(type);
+        config.setHost(InetAddress.getLoopbackAddress().getHostAddress());
+        config.setPort(getPort());
+        config.setUsername(username);
+        config.setPassword(password);
+        return config;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    // ---------------------------------------------------------------- 脚本用的读写
+
+    static byte[] read(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        new DataInputStream(in).readFully(data);
+        return data;
+    }
+
+    /**
+     * 读完 SOCKS5 问候, 返回客户端提供的认证方法.
+     */
+    static byte[] readGreeting(InputStream in) throws IOException {
+        byte[] head = read(in, 2);
+        return read(in, head[1]);
+    }
+
+    /**
+     * 读完用户名密码子协商, 返回 "用户名:密码".
+     */
+    static String readCredentials(InputStream in) throws IOException {
+        read(in, 1);
+        String user = new String(read(in, read(in, 1)[0] & 0xFF), StandardCharsets.UTF_8);
+        String pass = new String(read(in, read(in, 1)[0] & 0xFF), StandardCharsets.UTF_8);
+        return user + ":" + pass;
+    }
+
+    /**
+     * 读完 CONNECT 请求 (只支持域名目标), 返回 "host:port".
+     */
+    static String readConnect(InputStream in) throws IOException {
+        read(in, 4);
+        String host = new String(read(in, read(in, 1)[0] & 0xFF), StandardCharsets.US_ASCII);
+        byte[] port = read(in, 2);
+        return host + ":" + (((port[0] & 0xFF) << 8) | (port[1] & 0xFF));
+    }
+
+    /**
+     * 读到 HTTP 请求头结束, 返回整个请求头.
+     */
+    static String readHttpHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Client closed before the end of the header");
+            }
+            header.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return header.toString(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.socks5.server.upstream;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.server.codec.Socks5Codec;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.socks5.server.upstream.StandInProxy.read;
+import static com.example.socks5.server.upstream.StandInProxy.readConnect;
+import static com.example.socks5.server.upstream.StandInProxy.readCredentials;
+import static com.example.socks5.server.upstream.StandInProxy.readGreeting;
+import static com.example.socks5.server.upstream.StandInProxy.readHttpHeader;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamHandshakeTest {
+    private static final int TIMEOUT_MILLIS = 5000;
+    // 目标紧跟在上游应答后发来的数据
+    private static final byte[] TARGET_DATA = "hello from target".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SOCKS5_SUCCEEDED = {5, 0, 0, 1, 0, 0, 0, 0, 0, 0};
+
+    @Test
+    void socks5WithoutAuth() throws Exception {
+        CompletableFuture<byte[]> methods = new CompletableFuture<>();
+        CompletableFuture<String> target = new CompletableFuture<>();
+        try (StandInProxy upstream = new StandInProxy(socket -> {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            methods.complete(readGreeting(in));
+            out.write(new byte[]{5, 0});
+            target.complete(readConnect(in));
+            out.write(concat(SOCKS5_SUCCEEDED, TARGET_DATA));
+            read(in, 1);
+        }); SocketChannel channel = connect(upstream, "socks5", null, null)) {
+            assertArrayEquals(new byte[]{0}, get(methods));
+            assertEquals("example.com:443", get(target));
+            assertArrayEquals(TARGET_DATA, readAvailable(channel, TARGET_DATA.length));
+        }
+    }
+
+    @Test
+    void socks5WithUsernamePassword() throws Exception {
+        CompletableFuture<byte[]> methods = new CompletableFuture<>();
+        CompletableFuture<String> credentials = new CompletableFuture<>();
+        CompletableFuture<String> target = new CompletableFuture<>();
+        try (StandInProxy upstream = new StandInProxy(socket -> {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            methods.complete(readGreeting(in));
+            out.write(new byte[]{5, Socks5Codec.METHOD_USER_PASS});
+            credentials.complete(readCredentials(in));
+            out.write(new byte[]{1, 0});
+            target.complete(readConnect(in));
+            out.write(concat(SOCKS5_SUCCEEDED, TARGET_DATA));
+            read(in, 1);
+        }); SocketChannel channel = connect(upstream, "socks5", "alice", "s3cret")) {
+            assertArrayEquals(new byte[]{0, Socks5Codec.METHOD_USER_PASS}, get(methods));
+            assertEquals("alice:s3cret", get(credentials));
+            assertEquals("example.com:443", get(target));
+            assertArrayEquals(TARGET_DATA, readAvailable(channel, TARGET_DATA.length));
+        }
+    }
+
+    @Test
+    void socks5RejectedCredentialsAreAnUpstreamFault() throws Exception {
+        try (StandInProxy upstream = new StandInProxy(socket -> {
+            InputStream in = socket.getInputStream();
+            readGreeting(in);
+            socket.getOutputStream().write(new byte[]{5, Socks5Codec.METHOD_USER_PASS});
+            readCredentials(in);
+            socket.getOutputStream().write(new byte[]{1, 1});
+            read(in, 1);
+        })) {
+            UpstreamException e = assertThrows(UpstreamException.class,
+                    () -> connect(upstream, "socks5", "alice", "wrong").close());
+            assertTrue(e.isUpstreamFault());
+            assertEquals(Socks5Codec.REP_GENERAL_FAILURE, e.getReplyCode());
+        }
+    }
+
+    @Test
+    void socks5TargetFailureIsPassedThrough() throws Exception {
+        try (StandInProxy upstream = new StandInProxy(socket -> {
+            InputStream in = socket.getInputStream();
+            readGreeting(in);
+            socket.getOutputStream().write(new byte[]{5, 0});
+            readConnect(in);
+            socket.getOutputStream().write(new byte[]{5, Socks5Codec.REP_CONNECTION_REFUSED, 0, 1, 0, 0, 0, 0, 0, 0});
+            read(in, 1);
+        })) {
+            UpstreamException e = assertThrows(UpstreamException.class,
+                    () -> connect(upstream, "socks5", null, null).close());
+            assertFalse(e.isUpstreamFault());
+            assertEquals(Socks5Codec.REP_CONNECTION_REFUSED, e.getReplyCode());
+        }
+    }
+
+    @Test
+    void httpConnectWithoutAuth() throws Exception {
+        CompletableFuture<String> request = new CompletableFuture<>();
+        try (StandInProxy upstream = new StandInProxy(socket -> {
+            request.complete(readHttpHeader(socket.getInputStream()));
+            // 应答头和目标数据一起到达, 握手不能多读
+            socket.getOutputStream().write(concat(
+                    "HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), TARGET_DATA));
+            read(socket.getInputStream(), 1);
+        }); SocketChannel channel = connect(upstream, "http", null, null)) {
+            String header = get(request);
+            assertTrue(header.startsWith("CONNECT example.com:443 HTTP/1.1\r\n"), header);
+            assertTrue(header.contains("Host: example.com:443\r\n"), header);
+            assertFalse(header.contains("Proxy-Authorization"), header);
+            assertArrayEquals(TARGET_DATA, readAvailable(channel, TARGET_DATA.length));
+        }
+    }
+
+    @Test
+    void httpConnectWithBasicAuth() throws Exception {
+        CompletableFuture<String> request = new CompletableFuture<>();
+        try (StandInProxy upstream = new StandInProxy(socket -> {
+            request.complete(readHttpHeader(socket.getInputStream()));
+            socket.getOutputStream().write(concat(
+                    "HTTP/1.1 200 OK\r\nVia: stand-in\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), TARGET_DATA));
+            read(socket.getInputStream(), 1);
+        }); SocketChannel channel = connect(upstream, "http", "alice", "s3cret")) {
+            String token = Base64.getEncoder().encodeToString("alice:s3cret".getBytes(StandardCharsets.UTF_8));
+            assertTrue(get(request).contains("Proxy-Authorization: Basic " + token + "\r\n"), get(request));
+            assertArrayEquals(TARGET_DATA, readAvailable(channel, TARGET_DATA.length));
+        }
+    }
+
+    @Test
+    void httpNon200IsRejectedWithoutConsumingTargetBytes() throws Exception {
+        byte[] response = concat(
+                "HTTP/1.1 407 Proxy Authentication Required\r\nProxy-Authenticate: Basic\r\n\r\n"
+                        .getBytes(StandardCharsets.ISO_8859_1), TARGET_DATA);
+        try (StandInProxy upstream = new StandInProxy(socket -> {
+            readHttpHeader(socket.getInputStream());
+            socket.getOutputStream().write(response);
+            read(socket.getInputStream(), 1);
+        }); SocketChannel channel = open(upstream)) {
+            UpstreamProxy proxy = proxy(upstream, "http", null, null);
+            UpstreamException e = assertThrows(UpstreamException.class, () -> UpstreamHandshake.connect(
+                    channel, proxy, "example.com", null, 443, TIMEOUT_MILLIS));
+            assertTrue(e.isUpstreamFault());
+            assertTrue(e.getMessage().contains("407"), e.getMessage());
+            // 应答头之后的字节还在套接字里
+            assertArrayEquals(TARGET_DATA, readAvailable(channel, TARGET_DATA.length));
+        }
+    }
+
+    @Test
+    void httpForbiddenIsNotAnUpstreamFault() throws Exception {
+        try (StandInProxy upstream = new StandInProxy(socket -> {
+            readHttpHeader(socket.getInputStream());
+            socket.getOutputStream().write("HTTP/1.1 403 Forbidden\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            read(socket.getInputStream(), 1);
+        })) {
+            UpstreamException e = assertThrows(UpstreamException.class,
+                    () -> connect(upstream, "http", null, null).close());
+            assertFalse(e.isUpstreamFault());
+            assertEquals(Socks5Codec.REP_CONNECTION_NOT_ALLOWED, e.getReplyCode());
+        }
+    }
+
+    @Test
+    void httpConnectRejectsHostWithLineBreaks() throws Exception {
+        CompletableFuture<Integer> received = new CompletableFuture<>();
+        try (StandInProxy upstream = new StandInProxy(socket -> {
+            // 数到客户端关闭为止, 上游不应收到任何请求
+            int n = 0;
+            while (socket.getInputStream().read() >= 0) {
+                n++;
+            }
+            received.complete(n);
+        })) {
+            UpstreamProxy proxy = proxy(upstream, "http", "alice", "s3cret");
+            try (SocketChannel channel = open(upstream)) {
+                UpstreamException e = assertThrows(UpstreamException.class, () -> UpstreamHandshake.connect(
+                        channel, proxy, "example.com:443 HTTP/1.1\r\nHost: internal\r\n\r\nGET / HTTP/1.1\r\nX: y",
+                        null, 443, TIMEOUT_MILLIS));
+                assertFalse(e.isUpstreamFault());
+                assertEquals(Socks5Codec.REP_HOST_UNREACHABLE, e.getReplyCode());
+            }
+            assertEquals(0, get(received));
+        }
+    }
+
+    // ---------------------------------------------------------------- 辅助方法
+
+    static UpstreamProxy proxy(StandInProxy upstream, String type, String username, String password) {
+        return new UpstreamProxy(upstream.server(type, username, password), new Config.UpstreamConfig());
+    }
+
+    private static SocketChannel open(StandInProxy upstream) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), upstream.getPort()));
+    }
+
+    private static SocketChannel connect(StandInProxy upstream, String type, String username, String password)
+            throws IOException {
+        SocketChannel channel = open(upstream);
+        try {
+            UpstreamHandshake.connect(channel, proxy(upstream, type, username, password), "example.com", null, 443,
+                    TIMEOUT_MILLIS);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static byte[] readAvailable(SocketChannel channel, int length) throws IOException {
+        channel.socket().setSoTimeout(TIMEOUT_MILLIS);
+        return read(channel.socket().getInputStream(), length);
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws Exception {
+        return future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
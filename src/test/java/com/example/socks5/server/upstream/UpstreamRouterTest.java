@@ -0,0 +1,155 @@
+package com.example.socks5.server.upstream;
+
+import com.example.socks5.config.Config;
+import com.example.socks5.dns.DnsResolver;
+import com.example.socks5.dns.NameLookup;
+import com.example.socks5.server.codec.Socks5Codec;
+import com.example.socks5.server.connect.HappyEyeballsConnector;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.example.socks5.server.upstream.StandInProxy.read;
+import static com.example.socks5.server.upstream.StandInProxy.readConnect;
+import static com.example.socks5.server.upstream.StandInProxy.readGreeting;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamRouterTest {
+    private static final long WAIT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    @Test
+    void failingUpstreamIsEjectedAndReadmittedAfterEjectTime() throws Exception {
+        AtomicBoolean healthy = new AtomicBoolean(false);
+        try (StandInProxy upstream = socks5(healthy);
+             UpstreamRouter router = router(config(200, 0, upstream))) {
+            UpstreamPool pool = router.route("example.com", null, 443);
+            UpstreamProxy proxy = pool.getProxies().get(0);
+
+            UpstreamException failure = assertThrows(UpstreamException.class,
+                    () -> router.connect(pool, "example.com", null, 443));
+            assertTrue(failure.isUpstreamFault());
+            assertTrue(proxy.isEjected());
+            assertEquals(1, proxy.getFailures());
+
+            // 移出期间不再尝试连接
+            int accepted = upstream.getAccepted();
+            UpstreamException unavailable = assertThrows(UpstreamException.class,
+                    () -> router.connect(pool, "example.com", null, 443));
+            assertFalse(unavailable.isUpstreamFault());
+            assertEquals(accepted, upstream.getAccepted());
+
+            healthy.set(true);
+            Thread.sleep(300);
+            UpstreamConnection connection = router.connect(pool, "example.com", null, 443);
+            try {
+                assertSame(proxy, connection.getProxy());
+                assertFalse(proxy.isEjected());
+                assertEquals(1, proxy.getOutstanding());
+            } finally {
+                connection.getChannel().close();
+                connection.release();
+            }
+            assertEquals(0, proxy.getOutstanding());
+        }
+    }
+
+    @Test
+    void healthCheckReadmitsRecoveredUpstream() throws Exception {
+        AtomicBoolean healthy = new AtomicBoolean(false);
+        // 移出时间远长于测试, 只能由健康检查恢复
+        try (StandInProxy upstream = socks5(healthy);
+             UpstreamRouter router = router(config(60000, 50, upstream))) {
+            UpstreamPool pool = router.route("example.com", null, 443);
+            UpstreamProxy proxy = pool.getProxies().get(0);
+
+            assertThrows(UpstreamException.class, () -> router.connect(pool, "example.com", null, 443));
+            assertTrue(proxy.isEjected());
+            assertNull(pool.select(List.of()));
+
+            healthy.set(true);
+            long deadline = System.nanoTime() + WAIT_NANOS;
+            while (proxy.isEjected() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(20);
+            }
+            assertFalse(proxy.isEjected());
+            UpstreamProxy selected = pool.select(List.of());
+            assertSame(proxy, selected);
+            selected.release();
+        }
+    }
+
+    @Test
+    void connectFailsOverToHealthyUpstream() throws Exception {
+        try (StandInProxy broken = socks5(new AtomicBoolean(false));
+             StandInProxy working = socks5(new AtomicBoolean(true));
+             UpstreamRouter router = router(config(60000, 0, broken, working))) {
+            UpstreamPool pool = router.route("example.com", null, 443);
+            UpstreamProxy brokenProxy = pool.getProxies().get(0);
+            UpstreamProxy workingProxy = pool.getProxies().get(1);
+
+            // 轮转起点不同, 连两次保证坏的上游至少被选中一次
+            for (int i = 0; i < 2; i++) {
+                UpstreamConnection connection = router.connect(pool, "example.com", null, 443);
+                assertSame(workingProxy, connection.getProxy());
+                connection.getChannel().close();
+                connection.release();
+            }
+            assertTrue(brokenProxy.isEjected());
+            assertFalse(workingProxy.isEjected());
+        }
+    }
+
+    // ---------------------------------------------------------------- 辅助方法
+
+    /**
+     * healthy 为 false 时拒绝所有认证方法, 连接和健康检查都算作上游本身出错.
+     */
+    private static StandInProxy socks5(AtomicBoolean healthy) throws IOException {
+        return new StandInProxy(socket -> {
+            InputStream in = socket.getInputStream();
+            readGreeting(in);
+            if (!healthy.get()) {
+                socket.getOutputStream().write(new byte[]{5, (byte) 0xFF});
+                return;
+            }
+            socket.getOutputStream().write(new byte[]{5, 0});
+            readConnect(in);
+            socket.getOutputStream().write(new byte[]{5, Socks5Codec.REP_SUCCEEDED, 0, 1, 0, 0, 0, 0, 0, 0});
+            read(in, 1);
+        });
+    }
+
+    private static Config.UpstreamConfig config(int ejectMillis, int healthCheckIntervalMillis,
+                                                StandInProxy... upstreams) {
+        Config.UpstreamPoolConfig pool = new Config.UpstreamPoolConfig();
+        pool.setName("stand-in");
+        pool.setServers(Arrays.stream(upstreams).map(u -> u.server("socks5", null, null)).toList());
+        Config.UpstreamRuleConfig rule = new Config.UpstreamRuleConfig();
+        rule.setPool("stand-in");
+
+        Config.UpstreamConfig config = new Config.UpstreamConfig();
+        config.setPools(List.of(pool));
+        config.setRules(List.of(rule));
+        config.setMaxFailures(1);
+        config.setEjectMillis(ejectMillis);
+        config.setHealthCheckIntervalMillis(healthCheckIntervalMillis);
+        return config;
+    }
+
+    private static UpstreamRouter router(Config.UpstreamConfig config) throws IOException {
+        Config.ConnectConfig connect = new Config.ConnectConfig();
+        connect.setTimeoutMillis(5000);
+        return new UpstreamRouter(config, new DnsResolver(new Config.DnsConfig(), NameLookup.SYSTEM),
+                new HappyEyeballsConnector(connect));
+    }
+}